@@ -29,6 +29,12 @@ public class AggregatedMetrics {
     public static final Counter API_REFS_LOCAL  = build("api_refs_local", "Total calls to refs/local.");
     public static final Counter API_BLOCK_HAS  = build("api_block_has", "Total calls to block/has.");
     public static final Counter API_BLOOM_ADD  = build("api_bloom_add", "Total calls to bloom/add.");
+    public static final Counter API_REPO_GC  = build("api_repo_gc", "Total calls to repo/gc.");
+    public static final Counter API_REPO_GC_STATUS  = build("api_repo_gc_status", "Total calls to repo/gc/status.");
+    public static final Counter API_REPO_GC_CANCEL  = build("api_repo_gc_cancel", "Total calls to repo/gc/cancel.");
+    public static final Counter API_DAG_FETCH  = build("api_dag_fetch", "Total calls to dag/fetch.");
+    public static final Counter API_DAG_IMPORT  = build("api_dag_import", "Total calls to dag/import.");
+    public static final Counter API_DAG_EXPORT  = build("api_dag_export", "Total calls to dag/export.");
     public static final Counter API_FIND_PROVS  = build("api_dht_findprovs", "Total calls to dht/findprovs.");
     public static final Counter API_IPNS_GET  = build("api_ipns_get", "Total calls to ipns/get.");
 
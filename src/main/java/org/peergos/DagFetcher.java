@@ -0,0 +1,190 @@
+package org.peergos;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import org.peergos.cbor.CborObject;
+import org.peergos.util.Logging;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Fetches a whole dag from a root, following links as blocks arrive rather than level by level.
+ *
+ * Up to maxInFlight wants are outstanding at once, sent in batches of at most batchSize, so a slow block only holds
+ * up its own batch. Each cid is requested at most once. Auth is per block, so children are requested with the auth
+ * from a provider rather than that of the root. Blocks which can't be found are counted and skipped, along with
+ * anything below them.
+ */
+public class DagFetcher {
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    public static final int DEFAULT_BATCH_SIZE = 8;
+
+    public static class Progress {
+        public final long fetched, bytes, missing, queued, inFlight, durationMillis;
+        public final boolean done;
+
+        public Progress(long fetched, long bytes, long missing, long queued, long inFlight, long durationMillis, boolean done) {
+            this.fetched = fetched;
+            this.bytes = bytes;
+            this.missing = missing;
+            this.queued = queued;
+            this.inFlight = inFlight;
+            this.durationMillis = durationMillis;
+            this.done = done;
+        }
+
+        public Map<String, Object> toJson() {
+            Map<String, Object> res = new LinkedHashMap<>();
+            res.put("fetched", fetched);
+            res.put("bytes", bytes);
+            res.put("missing", missing);
+            res.put("queued", queued);
+            res.put("in-flight", inFlight);
+            res.put("duration-millis", durationMillis);
+            res.put("done", done);
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return toJson().toString();
+        }
+    }
+
+    private final Function<List<Want>, List<HashedBlock>> fetcher;
+    private final int maxInFlight, batchSize;
+
+    /**
+     * @param fetcher retrieves a batch of wants, omitting any that can't be found
+     */
+    public DagFetcher(Function<List<Want>, List<HashedBlock>> fetcher, int maxInFlight, int batchSize) {
+        if (maxInFlight < 1 || batchSize < 1)
+            throw new IllegalArgumentException("In flight and batch size must be positive");
+        this.fetcher = fetcher;
+        this.maxInFlight = maxInFlight;
+        this.batchSize = Math.min(batchSize, maxInFlight);
+    }
+
+    public DagFetcher(Function<List<Want>, List<HashedBlock>> fetcher) {
+        this(fetcher, DEFAULT_MAX_IN_FLIGHT, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Fetch every block reachable from the root, requesting the blocks below it without auth.
+     */
+    public CompletableFuture<Progress> fetch(Want root, Consumer<Progress> onProgress) {
+        return fetch(root, c -> Optional.empty(), onProgress);
+    }
+
+    /**
+     * Fetch every block reachable from the root. Cancelling the returned future stops any further wants being sent.
+     *
+     * @param auth the auth to request each block below the root with
+     * @param onProgress called after each batch completes
+     */
+    public CompletableFuture<Progress> fetch(Want root, Function<Cid, Optional<String>> auth, Consumer<Progress> onProgress) {
+        return new Fetch(root, auth, onProgress).start();
+    }
+
+    private class Fetch {
+        private final Function<Cid, Optional<String>> auth;
+        private final Consumer<Progress> onProgress;
+        private final CompletableFuture<Progress> result = new CompletableFuture<>();
+        private final Set<Cid> seen = ConcurrentHashMap.newKeySet();
+        private final ExecutorService workers;
+        private final long start = System.currentTimeMillis();
+        // guarded by this
+        private final Deque<Want> queue = new ArrayDeque<>();
+        private long fetched = 0, bytes = 0, missing = 0, inFlight = 0;
+
+        Fetch(Want root, Function<Cid, Optional<String>> auth, Consumer<Progress> onProgress) {
+            this.auth = auth;
+            this.onProgress = onProgress;
+            this.workers = Executors.newFixedThreadPool((maxInFlight + batchSize - 1) / batchSize, r -> {
+                Thread t = new Thread(r, "dag-fetch");
+                t.setDaemon(true);
+                return t;
+            });
+            seen.add(root.cid);
+            queue.add(root);
+        }
+
+        CompletableFuture<Progress> start() {
+            result.whenComplete((p, t) -> workers.shutdownNow());
+            dispatch();
+            return result;
+        }
+
+        private synchronized Progress progress(boolean done) {
+            return new Progress(fetched, bytes, missing, queue.size(), inFlight, System.currentTimeMillis() - start, done);
+        }
+
+        private void dispatch() {
+            List<List<Want>> batches = new ArrayList<>();
+            synchronized (this) {
+                if (result.isDone())
+                    return;
+                while (! queue.isEmpty() && inFlight < maxInFlight) {
+                    int size = (int) Math.min(batchSize, Math.min(queue.size(), maxInFlight - inFlight));
+                    List<Want> batch = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++)
+                        batch.add(queue.poll());
+                    inFlight += size;
+                    batches.add(batch);
+                }
+                if (batches.isEmpty() && inFlight == 0) {
+                    result.complete(progress(true));
+                    return;
+                }
+            }
+            for (List<Want> batch : batches)
+                workers.execute(() -> fetchBatch(batch));
+        }
+
+        private void fetchBatch(List<Want> batch) {
+            List<HashedBlock> blocks;
+            try {
+                blocks = fetcher.apply(batch);
+            } catch (Exception e) {
+                LOG.log(Level.INFO, "Dag fetch of " + batch.size() + " blocks failed: " + e.getMessage(), e);
+                blocks = Collections.emptyList();
+            }
+            List<Want> children = new ArrayList<>();
+            long batchBytes = 0;
+            for (HashedBlock b : blocks) {
+                batchBytes += b.block.length;
+                if (b.hash.codec == Cid.Codec.Raw)
+                    continue;
+                try {
+                    for (Cid link : CborObject.getLinks(b.hash, b.block)) {
+                        if (link.getType() != Multihash.Type.id && seen.add(link))
+                            children.add(new Want(link, auth.apply(link)));
+                    }
+                } catch (Exception e) {
+                    LOG.log(Level.INFO, "Unable to parse links of " + b.hash + ": " + e.getMessage(), e);
+                }
+            }
+            Progress p;
+            synchronized (this) {
+                fetched += blocks.size();
+                bytes += batchBytes;
+                missing += batch.size() - blocks.size();
+                inFlight -= batch.size();
+                queue.addAll(children);
+                p = progress(false);
+            }
+            try {
+                onProgress.accept(p);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+            dispatch();
+        }
+    }
+}
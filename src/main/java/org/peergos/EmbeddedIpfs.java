@@ -13,9 +13,12 @@ import io.libp2p.protocol.*;
 import org.peergos.blockstore.*;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
 import org.peergos.blockstore.metadatadb.JdbcBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.LruBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.MappedBlockMetadataStore;
 import org.peergos.blockstore.metadatadb.CachingBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.WriteBehindBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.sql.ConnectionPool;
 import org.peergos.blockstore.metadatadb.sql.H2BlockMetadataCommands;
-import org.peergos.blockstore.metadatadb.sql.UncloseableConnection;
 import org.peergos.blockstore.s3.S3Blockstore;
 import org.peergos.cbor.Cborable;
 import org.peergos.config.*;
@@ -29,14 +32,16 @@ import org.peergos.protocol.http.*;
 import org.peergos.protocol.ipns.*;
 import org.peergos.protocol.ports.*;
 import org.peergos.util.Logging;
+import org.peergos.util.ShutdownHooks;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.*;
 import java.util.stream.*;
 
@@ -47,6 +52,7 @@ public class EmbeddedIpfs {
     public final Blockstore blockstore;
     public final Optional<BlockService> blockRetriever;
     public final RecordStore records;
+    public final GarbageCollector gc;
 
     public final Kademlia dht;
     public final Optional<HttpProtocol.Binding> p2pHttp;
@@ -60,6 +66,7 @@ public class EmbeddedIpfs {
     private List<MultiAddress> swarmAddresses;
     private boolean portForwardingEnabled;
     private final List<PortForwarder> portForwarders = new ArrayList<>();
+    private Optional<BlockScrubber> scrubber = Optional.empty();
 
     public EmbeddedIpfs(Host node,
                         Blockstore blockstore,
@@ -72,7 +79,9 @@ public class EmbeddedIpfs {
                         Optional<BlockingDeque<Cid>> newBlockProvider,
                         List<MultiAddress> announce) {
         this.node = node;
-        this.blockstore = blockstore;
+        this.gc = new GarbageCollector(blockstore);
+        // blocks used through the public blockstore are retained by a concurrent garbage collection
+        this.blockstore = gc.tracking();
         this.records = records;
         this.dht = dht;
         this.maxBlockSize = maxBlockSize;
@@ -80,7 +89,7 @@ public class EmbeddedIpfs {
         this.bootstrap = bootstrap;
         this.blockRetriever = blockRetriever;
         this.blockProvider = newBlockProvider.map(q -> new PeriodicBlockProvider(22 * 3600_000L,
-                () -> blockstore.refs(false).join().stream(), node, dht, q));
+                () -> blockstore.streamRefs(Optional.empty(), false), node, dht, q));
         this.announce = announce;
     }
 
@@ -94,23 +103,31 @@ public class EmbeddedIpfs {
         List<Want> local = new ArrayList<>();
         List<Want> remote = new ArrayList<>();
 
-        for (Want w : wants) {
-            if (blockstore.has(w.cid).join())
-                local.add(w);
+        List<Boolean> present = blockstore.hasAll(wants.stream()
+                .map(w -> w.cid)
+                .collect(Collectors.toList())).join();
+        for (int i = 0; i < wants.size(); i++) {
+            if (present.get(i))
+                local.add(wants.get(i));
             else
-                remote.add(w);
+                remote.add(wants.get(i));
         }
-        local.stream()
-                .forEach(w -> {
-                    try {
-                        Optional<byte[]> block = blockstore.get(w.cid).join();
-                        block.ifPresent(b -> blocksFound.add(new HashedBlock(w.cid, b)));
-                        if (block.isEmpty())
-                            remote.add(w);
-                    } catch (Exception e) {
+        if (! local.isEmpty()) {
+            try {
+                List<Optional<byte[]>> blocks = blockstore.getAll(local.stream()
+                        .map(w -> w.cid)
+                        .collect(Collectors.toList())).join();
+                for (int i = 0; i < local.size(); i++) {
+                    Want w = local.get(i);
+                    Optional<byte[]> block = blocks.get(i);
+                    block.ifPresent(b -> blocksFound.add(new HashedBlock(w.cid, b)));
+                    if (block.isEmpty())
                         remote.add(w);
-                    }
-                });
+                }
+            } catch (Exception e) {
+                remote.addAll(local);
+            }
+        }
         if (remote.isEmpty())
             return blocksFound;
         if (blockRetriever.isEmpty())
@@ -121,6 +138,36 @@ public class EmbeddedIpfs {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Fetch every block reachable from the root into the local blockstore, with up to maxInFlight wants outstanding.
+     *
+     * @param auth the auth to request each block below the root with
+     */
+    public CompletableFuture<DagFetcher.Progress> fetchDag(Want root,
+                                                           Function<Cid, Optional<String>> auth,
+                                                           Set<PeerId> peers,
+                                                           int maxInFlight,
+                                                           Consumer<DagFetcher.Progress> onProgress) {
+        DagFetcher fetcher = new DagFetcher(wants -> getBlocks(wants, peers, true), maxInFlight, DagFetcher.DEFAULT_BATCH_SIZE);
+        return fetcher.fetch(root, auth, onProgress);
+    }
+
+    /**
+     * Read a block from the local blockstore without copying it onto the heap where the blockstore supports it.
+     *
+     * @return empty if the block isn't stored locally, or can't be read, in which case callers fall back to getBlocks
+     */
+    public Optional<ByteBuffer> getLocalBlock(Cid c) {
+        try {
+            if (! blockstore.has(c).join())
+                return Optional.empty();
+            return blockstore.getBuffer(c).join();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Unable to read local block " + c + ": " + e.getMessage(), e);
+            return Optional.empty();
+        }
+    }
+
     public CompletableFuture<Integer> publishValue(PrivKey priv, byte[] value, Optional<String> extraDataKeySuffix, Optional<Cborable> extraData, long sequence, int hoursTtl) {
         Multihash pub = Multihash.deserialize(PeerId.fromPubKey(priv.publicKey()).getBytes());
         LocalDateTime expiry = LocalDateTime.now().plusHours(hoursTtl);
@@ -149,7 +196,7 @@ public class EmbeddedIpfs {
 
     public void start(boolean asyncBootstrap) {
         LOG.info("Starting IPFS...");
-        Thread shutdownHook = new Thread(() -> {
+        ShutdownHooks.add(ShutdownHooks.Stage.INTAKE, () -> {
             LOG.info("Stopping Ipfs server...");
             try {
                 this.stop().join();
@@ -157,7 +204,6 @@ public class EmbeddedIpfs {
                 LOG.info(ex.getMessage());
             }
         });
-        Runtime.getRuntime().addShutdownHook(shutdownHook);
         node.start().join();
         IdentifyBuilder.addIdentifyProtocol(node, announce.stream()
                 .map(MultiAddress::toString)
@@ -208,7 +254,15 @@ public class EmbeddedIpfs {
         }));
     }
 
+    /**
+     * Stop the scrubber of the underlying blockstore when this node is stopped.
+     */
+    public void setScrubber(BlockScrubber scrubber) {
+        this.scrubber = Optional.of(scrubber);
+    }
+
     public CompletableFuture<Void> stop() throws Exception {
+        scrubber.ifPresent(BlockScrubber::stop);
         if (records != null) {
             records.close();
         }
@@ -221,36 +275,120 @@ public class EmbeddedIpfs {
         return node != null ? node.stop() : CompletableFuture.completedFuture(null);
     }
 
+    private static ConnectionPool buildBlockMetadataPool(Args a, Path metadataPath) {
+        //see https://www.h2database.com/html/features.html#compatibility for the extra params to support
+        // compatibility mode. This is required for 'ON CONFLICT DO NOTHING aka INSERT OR IGNORE INTO'
+        // The database is closed by our shutdown hook, after any pending metadata is written
+        return ConnectionPool.build("metadata", "jdbc:h2:" + metadataPath.toAbsolutePath() +
+                ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH;DB_CLOSE_ON_EXIT=FALSE",
+                a.getInt("metadata-connections", ConnectionPool.DEFAULT_SIZE));
+    }
+
+    /**
+     *  Metadata in a memory mapped hash table. On first use, any metadata in an existing H2 database is copied in.
+     *  Puts are synced to disk every -metadata-sync-millis. After a crash the metadata put since the last sync may be
+     *  missing, so it is rebuilt from the blocks when the blockstore is built with updateMetadb.
+     */
+    private static BlockMetadataStore buildMappedBlockMetadata(Args a) {
+        Path dir = a.fromIPFSDir("nabu-block-metadata-dir", "nabu-blockmetadata");
+        MappedBlockMetadataStore mapped = new MappedBlockMetadataStore(dir,
+                a.getInt("metadata-sync-millis", (int) MappedBlockMetadataStore.DEFAULT_SYNC_MILLIS));
+        Path sqlPath = a.fromIPFSDir("nabu-block-metadata-sql-file", "nabu-blockmetadata.sql");
+        Path migrated = dir.resolve("migrated");
+        if (sqlPath.resolveSibling(sqlPath.getFileName() + ".mv.db").toFile().exists() && ! migrated.toFile().exists()) {
+            ConnectionPool pool = buildBlockMetadataPool(a, sqlPath);
+            try {
+                long copied = MappedBlockMetadataStore.migrate(new JdbcBlockMetadataStore(pool, new H2BlockMetadataCommands()), mapped);
+                mapped.sync();
+                // puts of existing metadata are no-ops, so an interrupted migration is simply rerun
+                Files.createFile(migrated);
+                LOG.info("Migrated metadata of " + copied + " blocks from " + sqlPath);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            } finally {
+                pool.close();
+            }
+        }
+        ShutdownHooks.add(ShutdownHooks.Stage.METADATA, mapped::close);
+        return mapped;
+    }
+
+    /**
+     *  Hot metadata is cached on heap in front of the store, unless -metadata-cache-mb is 0.
+     */
     public static BlockMetadataStore buildBlockMetadata(Args a) {
-        try {
-            //see https://www.h2database.com/html/features.html#compatibility for the extra params to support
-            // compatibility mode. This is required for 'ON CONFLICT DO NOTHING aka INSERT OR IGNORE INTO'
-            Path metadataPath = a.fromIPFSDir("nabu-block-metadata-sql-file", "nabu-blockmetadata.sql");
-            java.sql.Connection h2Instance = DriverManager.getConnection("jdbc:h2:" +
-                    metadataPath.toAbsolutePath() + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH");
-            Connection instance = new UncloseableConnection(h2Instance);
-            instance.setAutoCommit(true);
-            return new JdbcBlockMetadataStore(() -> instance, new H2BlockMetadataCommands());
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+        BlockMetadataStore store = buildBlockMetadataStore(a);
+        long cacheBytes = a.getInt("metadata-cache-mb", (int) (LruBlockMetadataStore.DEFAULT_MAX_BYTES / 1024 / 1024)) * 1024L * 1024;
+        if (cacheBytes == 0)
+            return store;
+        return new LruBlockMetadataStore(store, cacheBytes);
+    }
+
+    private static BlockMetadataStore buildBlockMetadataStore(Args a) {
+        if (a.getArg("metadata-store", "h2").equals("mmap"))
+            return buildMappedBlockMetadata(a);
+        ConnectionPool pool = buildBlockMetadataPool(a, a.fromIPFSDir("nabu-block-metadata-sql-file", "nabu-blockmetadata.sql"));
+        JdbcBlockMetadataStore jdbc = new JdbcBlockMetadataStore(pool, new H2BlockMetadataCommands());
+        if (! a.getBoolean("metadata-write-behind", false)) {
+            ShutdownHooks.add(ShutdownHooks.Stage.POOL, pool::close);
+            return jdbc;
         }
+        WriteBehindBlockMetadataStore writeBehind = new WriteBehindBlockMetadataStore(jdbc,
+                a.getInt("metadata-batch-size", WriteBehindBlockMetadataStore.DEFAULT_BATCH_SIZE),
+                a.getInt("metadata-max-pending", WriteBehindBlockMetadataStore.DEFAULT_MAX_PENDING));
+        ShutdownHooks.add(ShutdownHooks.Stage.METADATA, writeBehind::close);
+        ShutdownHooks.add(ShutdownHooks.Stage.POOL, pool::close);
+        return writeBehind;
     }
     public static Blockstore buildBlockStore(Config config, Path ipfsPath, BlockMetadataStore meta, boolean updateMetadb) {
+        return buildBlockStore(config, ipfsPath, meta, updateMetadb,
+                s -> ShutdownHooks.add(ShutdownHooks.Stage.INTAKE, s::stop));
+    }
+
+    /**
+     *  @param scrubbers receives the block scrubber, if the block mount enables one, to be stopped with the node
+     */
+    public static Blockstore buildBlockStore(Config config,
+                                             Path ipfsPath,
+                                             BlockMetadataStore meta,
+                                             boolean updateMetadb,
+                                             Consumer<BlockScrubber> scrubbers) {
         Blockstore withMetadb;
         if (config.datastore.blockMount.prefix.equals("flatfs.datastore")) {
-            CachingBlockMetadataStore cachedBlocks = new CachingBlockMetadataStore(new FileBlockstore(ipfsPath), meta);
+            FileBlockstore fileBlocks = FileBlockstore.build(ipfsPath, config.datastore.blockMount.getParams());
+            ShutdownHooks.add(ShutdownHooks.Stage.BLOCKSTORE, fileBlocks::close);
+            CachingBlockMetadataStore cachedBlocks = new CachingBlockMetadataStore(fileBlocks, meta);
+            if (updateMetadb)
+                cachedBlocks.updateMetadataStoreIfEmpty();
+            withMetadb = cachedBlocks;
+            BlockScrubber.build(cachedBlocks, ipfsPath, config.datastore.blockMount.getParams()).ifPresent(scrubbers);
+        } else if (config.datastore.blockMount.prefix.equals("packfs.datastore")) {
+            PackBlockstore packs = PackBlockstore.build(ipfsPath, config.datastore.blockMount.getParams());
+            ShutdownHooks.add(ShutdownHooks.Stage.BLOCKSTORE, packs::close);
+            CachingBlockMetadataStore cachedBlocks = new CachingBlockMetadataStore(packs, meta);
             if (updateMetadb)
                 cachedBlocks.updateMetadataStoreIfEmpty();
             withMetadb = cachedBlocks;
+            BlockScrubber.build(cachedBlocks, ipfsPath, config.datastore.blockMount.getParams()).ifPresent(scrubbers);
         } else if (config.datastore.blockMount.prefix.equals("s3.datastore")) {
             S3Blockstore s3blocks = new S3Blockstore(config.datastore.blockMount.getParams(), meta);
             if (updateMetadb)
                 s3blocks.updateMetadataStoreIfEmpty();
-            withMetadb = s3blocks;
+            // scrub the backend, not the local cache in front of it
+            BlockScrubber.build(s3blocks, ipfsPath, config.datastore.blockMount.getParams()).ifPresent(scrubbers);
+            withMetadb = DiskCacheBlockstore.build(s3blocks, ipfsPath, config.datastore.blockMount.getParams());
         } else {
             throw new IllegalStateException("Unrecognized datastore prefix: " + config.datastore.blockMount.prefix);
         }
-        return typeLimited(filteredBlockStore(withMetadb, config), config);
+        Blockstore prefetching = PrefetchingBlockstore.build(memoryCached(withMetadb, config), config.datastore.blockMount.getParams());
+        return typeLimited(filteredBlockStore(prefetching, config, ipfsPath), config);
+    }
+
+    public static Blockstore memoryCached(Blockstore blocks, Config config) {
+        BlockCache cache = config.datastore.blockCache;
+        return cache.isEnabled() ?
+                new MemoryCacheBlockstore(blocks, cache.maxBytes, cache.segments) :
+                blocks;
     }
 
     public static Blockstore typeLimited(Blockstore blocks, Config config) {
@@ -271,6 +409,25 @@ public class EmbeddedIpfs {
         }
     }
 
+    /**
+     *  Build the filtered blockstore, persisting the filter under the ipfs dir so it needn't be rebuilt on restart.
+     */
+    public static Blockstore filteredBlockStore(Blockstore blocks, Config config, Path ipfsPath) {
+        Path snapshotDir = ipfsPath.resolve("filters");
+        FilteredBlockstore filtered;
+        if (config.datastore.filter.type == FilterType.BLOOM) {
+            filtered = FilteredBlockstore.bloomBased(blocks, config.datastore.filter.falsePositiveRate, snapshotDir);
+        } else if(config.datastore.filter.type == FilterType.INFINI) {
+            filtered = FilteredBlockstore.infiniBased(blocks, config.datastore.filter.falsePositiveRate, snapshotDir);
+        } else if(config.datastore.filter.type == FilterType.NONE) {
+            return blocks;
+        } else {
+            throw new IllegalStateException("Unhandled filter type: " + config.datastore.filter.type);
+        }
+        ShutdownHooks.add(ShutdownHooks.Stage.FILTER, filtered::close);
+        return filtered;
+    }
+
     public static EmbeddedIpfs build(RecordStore records,
                                      Blockstore blocks,
                                      boolean provideBlocks,
@@ -2,6 +2,7 @@ package org.peergos;
 
 import com.sun.net.httpserver.HttpServer;
 import io.ipfs.multiaddr.MultiAddress;
+import org.peergos.blockstore.BlockScrubber;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
 import org.peergos.config.*;
 import org.peergos.net.APIHandler;
@@ -11,6 +12,7 @@ import org.peergos.protocol.http.*;
 import org.peergos.util.JSONParser;
 import org.peergos.util.JsonHelper;
 import org.peergos.util.Logging;
+import org.peergos.util.ShutdownHooks;
 
 import java.io.File;
 import java.io.IOException;
@@ -52,8 +54,9 @@ public class Nabu {
         Path datastorePath = ipfsPath.resolve("datastore").resolve("h2-v2.datastore");
         DatabaseRecordStore records = new DatabaseRecordStore(datastorePath.toAbsolutePath().toString());
         BlockMetadataStore meta = buildBlockMetadata(args);
+        List<BlockScrubber> scrubbers = new ArrayList<>();
         EmbeddedIpfs ipfs = EmbeddedIpfs.build(records,
-                buildBlockStore(config, ipfsPath, meta, true),
+                buildBlockStore(config, ipfsPath, meta, true, scrubbers::add),
                 true,
                 config.addresses.getSwarmAddresses(),
                 config.bootstrap.getBootstrapAddresses(),
@@ -61,6 +64,7 @@ public class Nabu {
                 authoriser,
                 config.addresses.proxyTargetAddress.map(Nabu::proxyHandler)
         );
+        scrubbers.forEach(ipfs::setScrubber);
         if (config.addresses.enableUPnP)
             ipfs.enablePortForwarding();
         ipfs.start(false);
@@ -79,7 +83,7 @@ public class Nabu {
         apiServer.setExecutor(Executors.newFixedThreadPool(handlerThreads));
         apiServer.start();
 
-        Thread shutdownHook = new Thread(() -> {
+        ShutdownHooks.add(ShutdownHooks.Stage.INTAKE, () -> {
             LOG.info("Stopping API server...");
             try {
                 apiServer.stop(3); //wait max 3 seconds
@@ -87,7 +91,6 @@ public class Nabu {
                 ex.printStackTrace();
             }
         });
-        Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
 
     private Path getIPFSPath(Args args) {
@@ -122,6 +125,13 @@ public class Nabu {
                 blockChildMap.put("type", "s3ds");
                 Mount s3BlockMount = new Mount("/blocks", "s3.datastore", "measure", blockChildMap);
                 config = new Config(() -> s3BlockMount);
+            } else if (args.getBoolean("packfs.datastore", false)) {
+                Map<String, Object> blockChildMap = new LinkedHashMap<>();
+                blockChildMap.put("path", "packs");
+                blockChildMap.put("sync", "true");
+                blockChildMap.put("type", "packfs");
+                Mount packBlockMount = new Mount("/blocks", "packfs.datastore", "measure", blockChildMap);
+                config = new Config(() -> packBlockMount);
             } else {
                 config = new Config();
             }
@@ -73,12 +73,24 @@ public class PeriodicBlockProvider {
         }
     }
 
+    private static final int MAX_CONCURRENT_PUBLISHES = 1_000;
+
+    /**
+     *  Publish in bounded batches so the blocks stream is consumed lazily.
+     */
     public void publish(Stream<Cid> blocks) {
         PeerAddresses ourAddrs = PeerAddresses.fromHost(us);
 
-        List<CompletableFuture<Void>> published = blocks.parallel()
-                .map(ref -> publish(ref, ourAddrs))
-                .collect(Collectors.toList());
+        List<CompletableFuture<Void>> published = new ArrayList<>();
+        Iterator<Cid> refs = blocks.iterator();
+        while (refs.hasNext()) {
+            published.add(publish(refs.next(), ourAddrs));
+            if (published.size() >= MAX_CONCURRENT_PUBLISHES) {
+                for (CompletableFuture<Void> fut : published)
+                    fut.join();
+                published.clear();
+            }
+        }
         for (CompletableFuture<Void> fut : published) {
             fut.join();
         }
@@ -0,0 +1,269 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.prometheus.client.Counter;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Optional at-rest compression of blocks.
+ *
+ * A compressed block is stored as a frame: a magic number, the algorithm, the uncompressed length and a CRC32 of the
+ * uncompressed bytes, followed by the deflated block. Blocks that don't shrink enough, and raw blocks that look
+ * incompressible, are stored as is, unframed. Cids are always computed over the uncompressed bytes.
+ *
+ * A block that itself starts like a frame is always stored framed, so with compression configured every stored block
+ * that starts with the magic number is a frame. Decoding is only done with compression configured, so a store that
+ * never had it enabled returns every block as is. To stop compressing new blocks in a store that holds compressed
+ * ones, keep compression configured with a compression-level of 0. A block stored before compression was enabled that
+ * starts with the magic number is only treated as a frame if it decompresses to the recorded length and checksum.
+ */
+public class BlockCompression {
+
+    private static final int MAGIC = 0x4e627a01;
+    private static final byte DEFLATE = 1;
+    // magic, algorithm, uncompressed length, crc
+    static final int HEADER_SIZE = 4 + 1 + 4 + 4;
+    // smaller blocks rarely compress by more than the header
+    public static final int MIN_SIZE = 256;
+    // only store compressed if it saves at least 1/8
+    private static final int MIN_SAVING_SHIFT = 3;
+    private static final int SAMPLE_SIZE = 4096;
+    // bits of entropy per byte above which a raw block is assumed to be already compressed or encrypted
+    private static final double MAX_ENTROPY = 7.5;
+    // the largest block we store, which bounds the length a frame header can make us allocate
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 2 * 1024 * 1024;
+
+    private static final Counter logicalBytes = Counter.build()
+            .name("ipfs_compression_logical_bytes_total")
+            .help("Uncompressed size of blocks written with compression enabled")
+            .register();
+    private static final Counter storedBytes = Counter.build()
+            .name("ipfs_compression_stored_bytes_total")
+            .help("Stored size of blocks written with compression enabled")
+            .register();
+    private static final Counter skipped = Counter.build()
+            .name("ipfs_compression_skipped_total")
+            .help("Number of blocks stored uncompressed because they looked incompressible")
+            .register();
+
+    // deflaters and inflaters hold native memory, so reuse one per thread
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<CRC32> crcs = ThreadLocal.withInitial(CRC32::new);
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+    private static final ThreadLocal<ByteBuffer> readBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(64 * 1024));
+
+    private final int level;
+    private final int maxBlockSize;
+    private final ThreadLocal<Deflater> deflaters;
+
+    public BlockCompression(int level, int maxBlockSize) {
+        this.level = level;
+        this.maxBlockSize = maxBlockSize;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    public BlockCompression(int level) {
+        this(level, DEFAULT_MAX_BLOCK_SIZE);
+    }
+
+    /**
+     * @return compression if the mount params include "compression" of "deflate", with an optional
+     * "compression-level" from 1 to 9
+     */
+    public static Optional<BlockCompression> fromParams(Map<String, Object> params) {
+        String algorithm = (String) params.getOrDefault("compression", "none");
+        if (algorithm.equals("none"))
+            return Optional.empty();
+        if (! algorithm.equals("deflate"))
+            throw new IllegalStateException("Unknown block compression: " + algorithm);
+        int level = Integer.parseInt((String) params.getOrDefault("compression-level", "" + Deflater.DEFAULT_COMPRESSION));
+        return Optional.of(new BlockCompression(level));
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the bytes to store for this block, which may be the block itself
+     */
+    public byte[] encode(byte[] block, Cid.Codec codec) {
+        // a block that looks like a frame must be framed, or it would be decoded on read
+        boolean mustFrame = isFrame(ByteBuffer.wrap(block));
+        if (block.length < MIN_SIZE && ! mustFrame)
+            return block;
+        logicalBytes.inc(block.length);
+        if (codec == Cid.Codec.Raw && ! mustFrame && looksIncompressible(block)) {
+            skipped.inc();
+            storedBytes.inc(block.length);
+            return block;
+        }
+        int maxPayload = mustFrame ?
+                // deflate adds at most 5 bytes per 16 KiB block of stored data
+                block.length + 5 * (block.length / 16384 + 1) :
+                block.length - (block.length >> MIN_SAVING_SHIFT) - HEADER_SIZE;
+        byte[] out = scratchOfSize(HEADER_SIZE + maxPayload + 1);
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(block);
+        deflater.finish();
+        int payload = 0;
+        while (! deflater.finished() && payload <= maxPayload) {
+            int n = deflater.deflate(out, HEADER_SIZE + payload, out.length - HEADER_SIZE - payload);
+            payload += n;
+            if (n == 0 && deflater.needsInput())
+                break;
+        }
+        if (! deflater.finished() || payload > maxPayload) {
+            storedBytes.inc(block.length);
+            return block;
+        }
+        CRC32 crc = crcs.get();
+        crc.reset();
+        crc.update(block);
+        ByteBuffer.wrap(out)
+                .putInt(MAGIC)
+                .put(DEFLATE)
+                .putInt(block.length)
+                .putInt((int) crc.getValue());
+        storedBytes.inc(HEADER_SIZE + payload);
+        return Arrays.copyOf(out, HEADER_SIZE + payload);
+    }
+
+    private static byte[] scratchOfSize(int size) {
+        byte[] buf = scratch.get();
+        if (buf.length >= size)
+            return buf;
+        byte[] bigger = new byte[Math.max(size, buf.length * 2)];
+        scratch.set(bigger);
+        return bigger;
+    }
+
+    /**
+     * Estimate the byte entropy of a sample of the block.
+     */
+    static boolean looksIncompressible(byte[] block) {
+        int[] counts = new int[256];
+        int n = Math.min(block.length, SAMPLE_SIZE);
+        // sample from the start and middle, as headers are often more regular than the body
+        int half = n / 2;
+        int mid = block.length / 2;
+        for (int i = 0; i < half; i++)
+            counts[block[i] & 0xff]++;
+        for (int i = mid; i < mid + (n - half) && i < block.length; i++)
+            counts[block[i] & 0xff]++;
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0)
+                continue;
+            double p = (double) count / n;
+            entropy -= p * Math.log(p);
+        }
+        // small samples underestimate entropy, so scale the threshold down with the sample size
+        double maxEntropy = Math.min(MAX_ENTROPY, Math.log(n) / Math.log(2) * 0.75);
+        return entropy / Math.log(2) > maxEntropy;
+    }
+
+    private static boolean isFrame(ByteBuffer stored) {
+        return stored.remaining() > HEADER_SIZE
+                && stored.getInt(stored.position()) == MAGIC
+                && stored.get(stored.position() + 4) == DEFLATE;
+    }
+
+    /**
+     * @return a per thread buffer with room for size bytes, cleared, which is only valid until the next call on this
+     * thread
+     */
+    public static ByteBuffer readBuffer(int size) {
+        ByteBuffer buf = readBuffers.get();
+        if (buf.capacity() < size) {
+            buf = ByteBuffer.allocate(Math.max(size, buf.capacity() * 2));
+            readBuffers.set(buf);
+        }
+        return buf.clear().limit(size);
+    }
+
+    /**
+     * @param header at least the first HEADER_SIZE bytes of a stored block
+     * @return the uncompressed size of a frame, or empty if the stored block isn't one
+     */
+    public OptionalInt decodedLength(ByteBuffer header) {
+        if (! isFrame(header))
+            return OptionalInt.empty();
+        return OptionalInt.of(header.getInt(header.position() + 5));
+    }
+
+    /**
+     * @return the uncompressed block
+     */
+    public byte[] decode(byte[] stored) {
+        ByteBuffer buf = ByteBuffer.wrap(stored);
+        if (! isFrame(buf))
+            return stored;
+        return inflate(buf).orElse(stored);
+    }
+
+    /**
+     * @return the uncompressed block, which is the argument unless it is a frame
+     */
+    public ByteBuffer decode(ByteBuffer stored) {
+        if (! isFrame(stored))
+            return stored;
+        return inflate(stored.duplicate()).map(ByteBuffer::wrap).orElse(stored);
+    }
+
+    /**
+     * Decode a stored block held in a reused buffer, e.g. from readBuffer.
+     *
+     * @return the uncompressed block, which never shares the argument's memory
+     */
+    public byte[] decodeCopy(ByteBuffer stored) {
+        if (isFrame(stored)) {
+            Optional<byte[]> inflated = inflate(stored.duplicate());
+            if (inflated.isPresent())
+                return inflated.get();
+        }
+        byte[] res = new byte[stored.remaining()];
+        stored.duplicate().get(res);
+        return res;
+    }
+
+    private Optional<byte[]> inflate(ByteBuffer frame) {
+        int start = frame.position();
+        int length = frame.getInt(start + 5);
+        int expectedCrc = frame.getInt(start + 9);
+        // never allocate more than a block for an untrusted header
+        if (length < 0 || length > maxBlockSize)
+            return Optional.empty();
+        byte[] res = new byte[length];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        frame.position(start + HEADER_SIZE);
+        inflater.setInput(frame);
+        try {
+            int read = 0;
+            while (read < length && ! inflater.finished()) {
+                int n = inflater.inflate(res, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                read += n;
+            }
+            if (read != length || ! inflater.finished())
+                return Optional.empty();
+        } catch (DataFormatException e) {
+            return Optional.empty();
+        } finally {
+            // don't keep a reference to the stored block, which may be a mapping
+            inflater.reset();
+        }
+        CRC32 crc = crcs.get();
+        crc.reset();
+        crc.update(res);
+        if ((int) crc.getValue() != expectedCrc)
+            return Optional.empty();
+        return Optional.of(res);
+    }
+}
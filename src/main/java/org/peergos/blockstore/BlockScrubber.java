@@ -0,0 +1,274 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.peergos.Hash;
+import org.peergos.blockstore.s3.S3Blockstore;
+import org.peergos.util.Logging;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Walks a blockstore in the background, re-hashing every block against its cid.
+ *
+ * Blocks are enumerated from the metadata store if there is one, so blocks with metadata that are missing from the
+ * backend are found too. Reads are throttled to a byte rate so scrubbing doesn't compete with serving traffic. The
+ * position is checkpointed after every page, so a restart resumes the pass where it left off. Corrupt and missing
+ * blocks are logged and appended to a report file.
+ */
+public class BlockScrubber {
+
+    private static final Logger LOG = Logging.LOG();
+    public static final long DEFAULT_PASS_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final int PAGE_SIZE = 1_000;
+
+    private static final Counter scrubbedBytes = Counter.build()
+            .name("ipfs_scrub_bytes_total")
+            .help("Number of block bytes verified by the scrubber")
+            .register();
+    private static final Counter corruptBlocks = Counter.build()
+            .name("ipfs_scrub_corrupt_blocks_total")
+            .help("Number of blocks found whose contents don't match their cid")
+            .register();
+    private static final Counter missingBlocks = Counter.build()
+            .name("ipfs_scrub_missing_blocks_total")
+            .help("Number of blocks listed but missing from the backend")
+            .register();
+    private static final Gauge progress = Gauge.build()
+            .name("ipfs_scrub_progress_ratio")
+            .help("Fraction of blocks checked in the current scrub pass")
+            .register();
+
+    public enum Result {
+        OK,
+        CORRUPT,
+        MISSING,
+        // the hash type isn't supported, or the read failed
+        UNVERIFIED
+    }
+
+    private final Blockstore blocks;
+    private final boolean useBlockstore;
+    private final long maxBytesPerSecond;
+    private final long passIntervalMillis;
+    private final Path checkpointFile, reportFile;
+    private final Set<Cid> corrupt = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService runner = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "block-scrubber");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean stopped = false;
+
+    /**
+     * @param blocks the backend to scrub, with its metadata store if any
+     * @param useBlockstore whether to enumerate the backend rather than the metadata store
+     * @param dir where to store the checkpoint and report
+     */
+    public BlockScrubber(Blockstore blocks,
+                         boolean useBlockstore,
+                         long maxBytesPerSecond,
+                         long passIntervalMillis,
+                         Path dir) {
+        if (maxBytesPerSecond <= 0)
+            throw new IllegalArgumentException("Scrub rate must be positive");
+        this.blocks = blocks;
+        this.useBlockstore = useBlockstore;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.passIntervalMillis = passIntervalMillis;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        this.checkpointFile = dir.resolve("checkpoint");
+        this.reportFile = dir.resolve("report");
+    }
+
+    /**
+     * Start a scrubber if the mount params include a "scrub-rate" in bytes per second. The optional
+     * "scrub-interval-hours" sets the time between passes.
+     */
+    public static Optional<BlockScrubber> build(Blockstore blocks, Path ipfsPath, Map<String, Object> params) {
+        if (! params.containsKey("scrub-rate"))
+            return Optional.empty();
+        long rate = Long.parseLong((String) params.get("scrub-rate"));
+        long interval = params.containsKey("scrub-interval-hours") ?
+                TimeUnit.HOURS.toMillis(Long.parseLong((String) params.get("scrub-interval-hours"))) :
+                DEFAULT_PASS_INTERVAL_MILLIS;
+        BlockScrubber scrubber = new BlockScrubber(blocks, false, rate, interval, ipfsPath.resolve("scrub"));
+        LOG.info("Scrubbing blocks at " + rate + " bytes/s");
+        scrubber.start();
+        return Optional.of(scrubber);
+    }
+
+    private static class Checkpoint {
+        final Optional<String> resumeToken;
+        final long checked, bytes, passStartMillis, lastPassEndMillis;
+
+        Checkpoint(Optional<String> resumeToken, long checked, long bytes, long passStartMillis, long lastPassEndMillis) {
+            this.resumeToken = resumeToken;
+            this.checked = checked;
+            this.bytes = bytes;
+            this.passStartMillis = passStartMillis;
+            this.lastPassEndMillis = lastPassEndMillis;
+        }
+
+        boolean inPass() {
+            return passStartMillis > lastPassEndMillis;
+        }
+    }
+
+    private Checkpoint readCheckpoint() {
+        if (! Files.exists(checkpointFile))
+            return new Checkpoint(Optional.empty(), 0, 0, 0, 0);
+        Properties props = new Properties();
+        try (Reader in = Files.newBufferedReader(checkpointFile)) {
+            props.load(in);
+            return new Checkpoint(Optional.ofNullable(props.getProperty("resume")),
+                    Long.parseLong(props.getProperty("checked", "0")),
+                    Long.parseLong(props.getProperty("bytes", "0")),
+                    Long.parseLong(props.getProperty("pass-start", "0")),
+                    Long.parseLong(props.getProperty("last-pass-end", "0")));
+        } catch (IOException | NumberFormatException e) {
+            LOG.log(Level.WARNING, "Ignoring invalid scrub checkpoint: " + e.getMessage(), e);
+            return new Checkpoint(Optional.empty(), 0, 0, 0, 0);
+        }
+    }
+
+    private void writeCheckpoint(Checkpoint c) {
+        Properties props = new Properties();
+        c.resumeToken.ifPresent(t -> props.setProperty("resume", t));
+        props.setProperty("checked", Long.toString(c.checked));
+        props.setProperty("bytes", Long.toString(c.bytes));
+        props.setProperty("pass-start", Long.toString(c.passStartMillis));
+        props.setProperty("last-pass-end", Long.toString(c.lastPassEndMillis));
+        Path temp = checkpointFile.resolveSibling("checkpoint.tmp");
+        try (Writer out = Files.newBufferedWriter(temp)) {
+            props.store(out, "block scrubber position");
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        try {
+            Files.move(temp, checkpointFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public void start() {
+        Checkpoint checkpoint = readCheckpoint();
+        long delay = checkpoint.inPass() ?
+                0 :
+                Math.max(0, checkpoint.lastPassEndMillis + passIntervalMillis - System.currentTimeMillis());
+        runner.schedule(this::runPasses, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void runPasses() {
+        try {
+            scrubPass();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, "Block scrub failed: " + t.getMessage(), t);
+        }
+        if (! stopped)
+            runner.schedule(this::runPasses, passIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        stopped = true;
+        runner.shutdown();
+    }
+
+    /**
+     * @return the corrupt blocks found since startup
+     */
+    public Set<Cid> corruptBlocks() {
+        return Collections.unmodifiableSet(corrupt);
+    }
+
+    /**
+     * Check every block, resuming from the checkpoint if a pass was interrupted.
+     *
+     * @return whether the pass completed
+     */
+    public boolean scrubPass() throws InterruptedException {
+        Checkpoint checkpoint = readCheckpoint();
+        if (! checkpoint.inPass())
+            checkpoint = new Checkpoint(Optional.empty(), 0, 0, System.currentTimeMillis(), checkpoint.lastPassEndMillis);
+        long total = Math.max(1, blocks.count(useBlockstore).join());
+        long checked = checkpoint.checked, bytes = checkpoint.bytes;
+        long rateStart = System.nanoTime(), rateBytes = 0;
+        Optional<String> token = checkpoint.resumeToken;
+        if (token.isPresent())
+            LOG.info("Resuming block scrub after " + checked + " blocks");
+        do {
+            if (stopped)
+                return false;
+            RefsPage page = blocks.refs(token, PAGE_SIZE, Optional.empty(), useBlockstore).join();
+            for (Cid c : page.refs) {
+                Optional<ByteBuffer> block = Optional.empty();
+                Result res;
+                try {
+                    block = blocks.getBuffer(c).join();
+                    res = block.map(b -> verify(c, b)).orElse(Result.MISSING);
+                } catch (CompletionException e) {
+                    res = e.getCause() != null && S3Blockstore.isNotFound(e.getCause()) ? Result.MISSING : Result.UNVERIFIED;
+                    if (res == Result.UNVERIFIED)
+                        LOG.log(Level.WARNING, "Unable to read block " + c + " to scrub: " + e.getMessage(), e);
+                }
+                report(c, res);
+                long size = block.map(ByteBuffer::remaining).orElse(0);
+                checked++;
+                bytes += size;
+                rateBytes += size;
+                scrubbedBytes.inc(size);
+                // throttle to the byte rate
+                long dueNanos = rateBytes * 1_000_000_000L / maxBytesPerSecond;
+                long elapsedNanos = System.nanoTime() - rateStart;
+                if (dueNanos > elapsedNanos)
+                    Thread.sleep((dueNanos - elapsedNanos) / 1_000_000);
+            }
+            progress.set(Math.min(1.0, (double) checked / total));
+            token = page.next;
+            writeCheckpoint(new Checkpoint(token, checked, bytes, checkpoint.passStartMillis, checkpoint.lastPassEndMillis));
+        } while (token.isPresent());
+        writeCheckpoint(new Checkpoint(Optional.empty(), checked, bytes, checkpoint.passStartMillis, System.currentTimeMillis()));
+        LOG.info("Block scrub pass checked " + checked + " blocks, " + bytes + " bytes");
+        return true;
+    }
+
+    public static Result verify(Cid c, ByteBuffer block) {
+        byte[] data = new byte[block.remaining()];
+        block.duplicate().get(data);
+        if (c.getType() == Multihash.Type.sha2_256)
+            return Arrays.equals(Hash.sha256(data), c.getHash()) ? Result.OK : Result.CORRUPT;
+        if (c.getType() == Multihash.Type.id)
+            return Arrays.equals(data, c.getHash()) ? Result.OK : Result.CORRUPT;
+        return Result.UNVERIFIED;
+    }
+
+    private void report(Cid c, Result res) {
+        if (res == Result.OK || res == Result.UNVERIFIED)
+            return;
+        if (res == Result.CORRUPT) {
+            corrupt.add(c);
+            corruptBlocks.inc();
+        } else
+            missingBlocks.inc();
+        LOG.warning("Scrub found " + res + " block " + c);
+        String line = System.currentTimeMillis() + " " + res + " " + c + "\n";
+        try {
+            Files.writeString(reportFile, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to write scrub report: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.peergos.blockstore;
+
+import org.peergos.blockstore.filters.HashFunctions;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free, cache line blocked Bloom filter over byte[] keys.
+ *
+ * Each key is hashed once with xxHash. The hash selects a 512 bit block, one cache line, and the k bit positions
+ * within it are derived by double hashing, so a lookup touches a single cache line. Bits are set with compare and
+ * set, so adds and lookups can run concurrently without locking.
+ */
+public class BlockedBloomFilter {
+
+    private static final int BLOCK_BITS = 512;
+    private static final int WORDS_PER_BLOCK = BLOCK_BITS / Long.SIZE;
+    // blocking raises the false positive rate a little, so use slightly more bits than a standard Bloom filter
+    private static final double BLOCKING_OVERHEAD = 1.2;
+
+    private final AtomicLongArray words;
+    private final int nBlocks;
+    private final int k;
+    private final AtomicLong count;
+
+    private BlockedBloomFilter(AtomicLongArray words, int k, long count) {
+        this.words = words;
+        this.nBlocks = words.length() / WORDS_PER_BLOCK;
+        this.k = k;
+        this.count = new AtomicLong(count);
+    }
+
+    public static BlockedBloomFilter create(long expectedElements, double falsePositiveRate) {
+        long n = Math.max(1, expectedElements);
+        double bitsPerElement = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        int k = (int) Math.max(1, Math.min(16, Math.round(bitsPerElement * Math.log(2))));
+        long blocks = (long) Math.ceil(n * bitsPerElement * BLOCKING_OVERHEAD / BLOCK_BITS);
+        if (blocks * WORDS_PER_BLOCK > Integer.MAX_VALUE)
+            throw new IllegalStateException("Bloom filter too large for " + expectedElements + " elements");
+        return new BlockedBloomFilter(new AtomicLongArray((int) blocks * WORDS_PER_BLOCK), k, 0);
+    }
+
+    public static long hash(byte[] key) {
+        return HashFunctions.xxhash(ByteBuffer.wrap(key));
+    }
+
+    private int blockStart(long hash) {
+        // map the high 32 bits onto [0, nBlocks) without a division
+        return (int) (((hash >>> 32) * nBlocks) >>> 32) * WORDS_PER_BLOCK;
+    }
+
+    private static int secondHash(long hash) {
+        return (int) ((hash * 0x9E3779B97F4A7C15L) >>> 32) | 1;
+    }
+
+    public void add(byte[] key) {
+        long hash = hash(key);
+        int start = blockStart(hash);
+        int h1 = (int) hash, h2 = secondHash(hash);
+        for (int i = 0; i < k; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            int index = start + (bit >>> 6);
+            long mask = 1L << bit;
+            long prev;
+            do {
+                prev = words.get(index);
+                if ((prev & mask) != 0)
+                    break;
+            } while (! words.compareAndSet(index, prev, prev | mask));
+        }
+        count.incrementAndGet();
+    }
+
+    public boolean mightContain(byte[] key) {
+        long hash = hash(key);
+        int start = blockStart(hash);
+        int h1 = (int) hash, h2 = secondHash(hash);
+        for (int i = 0; i < k; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            if ((words.get(start + (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of adds, including repeated keys
+     */
+    public long count() {
+        return count.get();
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public long sizeInBits() {
+        return (long) words.length() * Long.SIZE;
+    }
+
+    /**
+     * Write the filter. Concurrent adds may or may not be included.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(words.length());
+        out.writeInt(k);
+        out.writeLong(count.get());
+        for (int i = 0; i < words.length(); i++)
+            out.writeLong(words.get(i));
+    }
+
+    public static BlockedBloomFilter read(ByteBuffer in) {
+        int nWords = in.getInt();
+        if (nWords <= 0 || nWords % WORDS_PER_BLOCK != 0)
+            throw new IllegalStateException("Invalid bloom filter size " + nWords);
+        int k = in.getInt();
+        long count = in.getLong();
+        long[] words = new long[nWords];
+        in.asLongBuffer().get(words);
+        in.position(in.position() + nWords * Long.BYTES);
+        return new BlockedBloomFilter(new AtomicLongArray(words), k, count);
+    }
+}
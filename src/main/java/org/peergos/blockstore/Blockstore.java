@@ -5,10 +5,13 @@ import io.ipfs.multibase.binary.Base32;
 import io.ipfs.multihash.Multihash;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
+import org.peergos.util.*;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
+import java.util.stream.*;
 
 public interface Blockstore {
 
@@ -29,16 +32,70 @@ public interface Blockstore {
 
     CompletableFuture<Optional<byte[]>> get(Cid c);
 
+    /**
+     * Get a block without copying it onto the heap where the implementation supports it, e.g. a memory mapped file.
+     * The returned buffer must be treated as read only.
+     */
+    default CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return get(c).thenApply(b -> b.map(ByteBuffer::wrap));
+    }
+
     CompletableFuture<Cid> put(byte[] block, Cid.Codec codec);
 
     CompletableFuture<Boolean> rm(Cid c);
 
+    /*
+     *  Batch operations. Results are in the same order as the arguments. The defaults are sequential, stores with a
+     *  cheaper bulk path should override them.
+     */
+
+    default CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return Futures.of(cids.stream()
+                .map(c -> has(c).join())
+                .collect(Collectors.toList()));
+    }
+
+    default CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return Futures.of(cids.stream()
+                .map(c -> get(c).join())
+                .collect(Collectors.toList()));
+    }
+
+    default CompletableFuture<List<Cid>> putAll(List<Pair<byte[], Cid.Codec>> blocks) {
+        return Futures.of(blocks.stream()
+                .map(b -> put(b.left, b.right).join())
+                .collect(Collectors.toList()));
+    }
+
+    default CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return Futures.of(cids.stream()
+                .map(c -> rm(c).join())
+                .collect(Collectors.toList()));
+    }
+
     CompletableFuture<Long> count(boolean useBlockstore);
 
     CompletableFuture<List<Cid>> refs(boolean useBlockstore);
 
     CompletableFuture<Boolean> applyToAll(Consumer<Cid> action, boolean useBlockstore);
 
+    /**
+     * Enumerate the blockstore one page at a time.
+     *
+     * @param resumeToken empty for the first page, otherwise the next token of the previous page
+     * @param pageSize the maximum number of refs to return
+     * @param codec only return refs with this codec, if present
+     * @param useBlockstore enumerate the underlying blockstore rather than the metadata store
+     */
+    CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore);
+
+    /**
+     * Lazily stream all refs, holding at most one page in memory at a time.
+     */
+    default Stream<Cid> streamRefs(Optional<Cid.Codec> codec, boolean useBlockstore) {
+        return RefsPage.stream(token -> refs(token, RefsPage.DEFAULT_PAGE_SIZE, codec, useBlockstore).join());
+    }
+
     CompletableFuture<Boolean> bloomAdd(Cid cid);
 
     CompletableFuture<BlockMetadata> getBlockMetadata(Cid h);
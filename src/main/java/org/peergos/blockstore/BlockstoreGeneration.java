@@ -0,0 +1,42 @@
+package org.peergos.blockstore;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent counter of modifications to a blockstore, used to tell whether a snapshot derived from the blockstore
+ * is still current. The counter is a memory mapped file, so each increment is a single memory write that survives a
+ * process crash.
+ */
+public class BlockstoreGeneration {
+
+    private final MappedByteBuffer counter;
+    private final AtomicLong value = new AtomicLong();
+
+    public BlockstoreGeneration(Path file) {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            counter = ch.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+            value.set(counter.getLong(0));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    /**
+     * Concurrent increments may store their values out of order, but every stored value is newer than any generation
+     * read before the increment, so a stale snapshot is never mistaken for a current one.
+     */
+    public long increment() {
+        long next = value.incrementAndGet();
+        counter.putLong(0, next);
+        return next;
+    }
+}
@@ -0,0 +1,335 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import org.peergos.Hash;
+import org.peergos.cbor.*;
+import org.peergos.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Streaming import and export of CAR files (https://ipld.io/specs/transport/car/).
+ *
+ * Import reads CARv1, or the CARv1 payload of a CARv2, in batches. Each batch is hash verified and written with
+ * putAll on a pool of threads while the next batch is read, so memory is bounded by the batches in flight. Export
+ * writes CARv1, either walking a dag depth first from its roots, or listing every block in storage order.
+ */
+public class CarArchive {
+
+    private static final Logger LOG = Logging.LOG();
+    private static final int MAX_SECTION_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_HEADER_SIZE = 1024 * 1024;
+    private static final int BATCH_BLOCKS = 1_000;
+    private static final int BATCH_BYTES = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_TRACKED_BLOCKS = 1_000_000;
+    // characteristics, data offset, data size, index offset
+    private static final int V2_HEADER_SIZE = 16 + 8 + 8 + 8;
+
+    public static class ImportResult {
+        public final List<Cid> roots;
+        public final long blocks, bytes, skipped;
+
+        public ImportResult(List<Cid> roots, long blocks, long bytes, long skipped) {
+            this.roots = roots;
+            this.blocks = blocks;
+            this.bytes = bytes;
+            this.skipped = skipped;
+        }
+
+        public Map<String, Object> toJson() {
+            Map<String, Object> res = new LinkedHashMap<>();
+            res.put("roots", roots.stream().map(Cid::toString).collect(Collectors.toList()));
+            res.put("blocks", blocks);
+            res.put("bytes", bytes);
+            res.put("skipped", skipped);
+            return res;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static class Header {
+        final long version;
+        final List<Cid> roots;
+
+        Header(long version, List<Cid> roots) {
+            this.version = version;
+            this.roots = roots;
+        }
+    }
+
+    /**
+     * @return the varint, or -1 at the end of the stream
+     */
+    private static long readVarint(InputStream in) throws IOException {
+        long res = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0)
+                    return -1;
+                throw new EOFException("Truncated varint in CAR");
+            }
+            res |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return res;
+        }
+        throw new IllegalStateException("Invalid varint in CAR");
+    }
+
+    private static byte[] readBytes(DataInputStream in, long length, int max) throws IOException {
+        if (length < 0 || length > max)
+            throw new IllegalStateException("Invalid CAR section size: " + length);
+        byte[] res = new byte[(int) length];
+        in.readFully(res);
+        return res;
+    }
+
+    private static Header readHeader(DataInputStream in) throws IOException {
+        long size = readVarint(in);
+        if (size < 0)
+            throw new EOFException("Empty CAR");
+        CborObject.CborMap header = (CborObject.CborMap) CborObject.fromByteArray(readBytes(in, size, MAX_HEADER_SIZE));
+        long version = header.getLong("version");
+        List<Cid> roots = header.containsKey("roots") ?
+                header.getList("roots", c -> (Cid) ((CborObject.CborMerkleLink) c).target) :
+                Collections.emptyList();
+        return new Header(version, roots);
+    }
+
+    /**
+     * @return the cid at the start of a section, and its length in bytes
+     */
+    private static Pair<Cid, Integer> readCid(byte[] section) throws IOException {
+        if (section.length >= 34 && section[0] == 0x12 && section[1] == 0x20)
+            return new Pair<>(Cid.buildCidV0(Multihash.deserialize(Arrays.copyOfRange(section, 0, 34))), 34);
+        ByteArrayInputStream bin = new ByteArrayInputStream(section);
+        long version = readVarint(bin);
+        long codec = readVarint(bin);
+        Multihash h = Multihash.deserialize(bin);
+        return new Pair<>(new Cid(version, Cid.Codec.lookup(codec), h.getType(), h.getHash()), section.length - bin.available());
+    }
+
+    /**
+     * Import every block in a CARv1 or CARv2 stream, verifying each block against its cid.
+     */
+    public static ImportResult importCar(InputStream rawIn, Blockstore target) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService writers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "car-import");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            return importCar(rawIn, target, writers, threads + 1);
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    private static ImportResult importCar(InputStream rawIn,
+                                          Blockstore target,
+                                          ExecutorService writers,
+                                          int maxPendingBatches) throws IOException {
+        CountingInputStream counted = new CountingInputStream(rawIn);
+        DataInputStream in = new DataInputStream(counted);
+        Header header = readHeader(in);
+        long dataEnd = Long.MAX_VALUE;
+        if (header.version == 2) {
+            byte[] v2 = readBytes(in, V2_HEADER_SIZE, V2_HEADER_SIZE);
+            ByteBuffer buf = ByteBuffer.wrap(v2).order(ByteOrder.LITTLE_ENDIAN);
+            long dataOffset = buf.getLong(16);
+            long dataSize = buf.getLong(24);
+            if (dataOffset < counted.count)
+                throw new IllegalStateException("Invalid CARv2 data offset: " + dataOffset);
+            while (counted.count < dataOffset)
+                if (in.skipBytes((int) Math.min(Integer.MAX_VALUE, dataOffset - counted.count)) <= 0)
+                    throw new EOFException("Truncated CARv2");
+            dataEnd = dataOffset + dataSize;
+            header = readHeader(in);
+        }
+        if (header.version != 1)
+            throw new IllegalStateException("Unsupported CAR version: " + header.version);
+
+        Semaphore pending = new Semaphore(maxPendingBatches);
+        List<CompletableFuture<Long>> written = new ArrayList<>();
+        long blocks = 0, bytes = 0, skipped = 0;
+        List<Pair<Cid, byte[]>> batch = new ArrayList<>();
+        long batchBytes = 0;
+        while (true) {
+            long size = counted.count < dataEnd ? readVarint(in) : -1;
+            if (size >= 0) {
+                byte[] section = readBytes(in, size, MAX_SECTION_SIZE);
+                Pair<Cid, Integer> cid = readCid(section);
+                byte[] block = Arrays.copyOfRange(section, cid.right, section.length);
+                if (cid.left.getType() == Multihash.Type.id)
+                    continue;
+                if (cid.left.getType() != Multihash.Type.sha2_256) {
+                    // the blockstore would store it under a different cid
+                    skipped++;
+                    continue;
+                }
+                batch.add(new Pair<>(cid.left, block));
+                batchBytes += block.length;
+                blocks++;
+                bytes += block.length;
+            }
+            boolean end = size < 0;
+            if (batch.size() >= BATCH_BLOCKS || batchBytes >= BATCH_BYTES || (end && ! batch.isEmpty())) {
+                List<Pair<Cid, byte[]>> toWrite = batch;
+                batch = new ArrayList<>();
+                batchBytes = 0;
+                try {
+                    pending.acquire();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException(e.getMessage());
+                }
+                CompletableFuture<Long> done = CompletableFuture.supplyAsync(() -> verifyAndWrite(toWrite, target), writers);
+                done.whenComplete((r, t) -> pending.release());
+                written.add(done);
+                // fail fast if an earlier batch was invalid
+                for (CompletableFuture<Long> w : written)
+                    if (w.isCompletedExceptionally())
+                        w.join();
+                written.removeIf(CompletableFuture::isDone);
+            }
+            if (end)
+                break;
+        }
+        written.forEach(CompletableFuture::join);
+        LOG.info("Imported " + blocks + " blocks, " + bytes + " bytes from CAR");
+        return new ImportResult(header.roots, blocks, bytes, skipped);
+    }
+
+    private static long verifyAndWrite(List<Pair<Cid, byte[]>> blocks, Blockstore target) {
+        for (Pair<Cid, byte[]> b : blocks) {
+            if (! Arrays.equals(Hash.sha256(b.right), b.left.getHash()))
+                throw new IllegalStateException("Block doesn't match its cid in CAR: " + b.left);
+        }
+        target.putAll(blocks.stream()
+                .map(b -> new Pair<>(b.right, b.left.codec))
+                .collect(Collectors.toList())).join();
+        return blocks.size();
+    }
+
+    private static void writeHeader(List<Cid> roots, OutputStream out) throws IOException {
+        Map<String, Cborable> header = new TreeMap<>();
+        header.put("roots", new CborObject.CborList(roots.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList())));
+        header.put("version", new CborObject.CborLong(1));
+        byte[] raw = CborObject.CborMap.build(header).toByteArray();
+        Cid.putUvarint(out, raw.length);
+        out.write(raw);
+    }
+
+    private static void writeBlock(Cid c, byte[] block, OutputStream out) throws IOException {
+        byte[] cid = c.toBytes();
+        Cid.putUvarint(out, cid.length + block.length);
+        out.write(cid);
+        out.write(block);
+    }
+
+    public static long exportDag(Blockstore source, List<Cid> roots, OutputStream out) throws IOException {
+        return exportDag(source, roots, out, DEFAULT_MAX_TRACKED_BLOCKS);
+    }
+
+    /**
+     * Write a CARv1 of every block reachable from the roots through dag-cbor links, depth first.
+     *
+     * Memory is bounded by the maxTracked most recently written cids, which are skipped if seen again, plus the
+     * unvisited siblings along the current path. A block seen again after it has been dropped from the tracked cids is
+     * written again, along with the blocks below it, which CAR readers accept.
+     *
+     * @return the number of blocks written
+     */
+    public static long exportDag(Blockstore source, List<Cid> roots, OutputStream out, int maxTracked) throws IOException {
+        writeHeader(roots, out);
+        Set<Cid> written = Collections.newSetFromMap(new LRUCache<>(maxTracked + 1));
+        long count = 0;
+        Deque<Cid> toVisit = new ArrayDeque<>();
+        for (int i = roots.size() - 1; i >= 0; i--)
+            toVisit.push(roots.get(i));
+        while (! toVisit.isEmpty()) {
+            Cid c = toVisit.pop();
+            if (c.getType() == Multihash.Type.id || ! written.add(c))
+                continue;
+            byte[] block = source.get(c).join()
+                    .orElseThrow(() -> new IllegalStateException("Missing block exporting dag: " + c));
+            writeBlock(c, block, out);
+            count++;
+            // only dag-cbor links are followed
+            List<Cid> links = c.codec == Cid.Codec.DagCbor ?
+                    CborObject.getLinks(c, block) :
+                    Collections.emptyList();
+            for (int i = links.size() - 1; i >= 0; i--)
+                toVisit.push(links.get(i));
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Write a CARv1 of every block in the store, in storage order.
+     *
+     * @return the number of blocks written
+     */
+    public static long exportAll(Blockstore source, List<Cid> roots, OutputStream out, boolean useBlockstore) throws IOException {
+        writeHeader(roots, out);
+        long count = 0;
+        Optional<String> token = Optional.empty();
+        do {
+            RefsPage page = source.refs(token, RefsPage.DEFAULT_PAGE_SIZE, Optional.empty(), useBlockstore).join();
+            for (int i = 0; i < page.refs.size(); i += BATCH_BLOCKS) {
+                List<Cid> cids = page.refs.subList(i, Math.min(i + BATCH_BLOCKS, page.refs.size()));
+                List<Optional<byte[]>> blocks = source.getAll(cids).join();
+                for (int j = 0; j < cids.size(); j++) {
+                    // blocks removed since listing are left out
+                    if (blocks.get(j).isPresent()) {
+                        writeBlock(cids.get(j), blocks.get(j).get(), out);
+                        count++;
+                    }
+                }
+            }
+            token = page.next;
+        } while (token.isPresent());
+        out.flush();
+        return count;
+    }
+}
@@ -2,31 +2,51 @@ package org.peergos.blockstore;
 
 import io.ipfs.cid.*;
 
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
+/**
+ * A Bloom filter of cids. Lookups and adds are lock free, and hash the cid bytes once with xxHash.
+ */
 public class CidBloomFilter implements Filter {
 
-    private final BloomFilter<Cid> bloom;
+    private final BlockedBloomFilter bloom;
 
-    public CidBloomFilter(BloomFilter<Cid> bloom) {
+    public CidBloomFilter(BlockedBloomFilter bloom) {
         this.bloom = bloom;
     }
 
     @Override
     public boolean has(Cid c) {
-        return bloom.contains(c);
+        return bloom.mightContain(c.toBytes());
     }
 
     @Override
     public Cid add(Cid c) {
-        bloom.add(c);
+        bloom.add(c.toBytes());
         return c;
     }
 
+    public void writeSnapshot(DataOutput out) throws IOException {
+        bloom.write(out);
+    }
+
+    /**
+     * @return the filter, or empty if the snapshot is invalid
+     */
+    public static Optional<CidBloomFilter> fromSnapshot(ByteBuffer snapshot) {
+        try {
+            return Optional.of(new CidBloomFilter(BlockedBloomFilter.read(snapshot)));
+        } catch (RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
     public static CidBloomFilter build(Blockstore bs, double falsePositiveRate) {
-        List<Cid> refs = bs.refs(false).join();
-        BloomFilter<Cid> bloom = new BloomFilter<>(falsePositiveRate, refs.size());
-        refs.forEach(bloom::add);
+        long count = bs.count(false).join();
+        BlockedBloomFilter bloom = BlockedBloomFilter.create(count, falsePositiveRate);
+        bs.streamRefs(Optional.empty(), false).forEach(c -> bloom.add(c.toBytes()));
         return new CidBloomFilter(bloom);
     }
 
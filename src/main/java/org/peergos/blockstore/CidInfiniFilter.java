@@ -4,30 +4,106 @@ import io.ipfs.cid.*;
 import org.peergos.blockstore.filters.*;
 import org.peergos.util.Logging;
 
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.locks.StampedLock;
 import java.util.logging.*;
 
+/**
+ * A thread safe InfiniFilter of cids.
+ *
+ * Lookups are optimistic and lock free: they read the filter without locking and only retry under a read lock if a
+ * write happened concurrently. Inserts, deletes and the expansions they trigger are serialised by the write lock.
+ *
+ * A counting filter stores a fingerprint for every add, even if it matches an existing one, so removing a cid can't
+ * remove the entry of a different cid that happens to share its fingerprint.
+ */
 public class CidInfiniFilter implements Filter {
 
     private static final Logger LOG = Logging.LOG();
+    private static final int OPTIMISTIC_ATTEMPTS = 2;
 
     private final ChainedInfiniFilter filter;
+    private final StampedLock lock = new StampedLock();
+    private final boolean counting;
 
-    private CidInfiniFilter(ChainedInfiniFilter filter) {
+    private CidInfiniFilter(ChainedInfiniFilter filter, boolean counting) {
         this.filter = filter;
+        this.counting = counting;
     }
 
     @Override
     public boolean has(Cid c) {
-        return filter.search(c.toBytes());
+        byte[] key = c.toBytes();
+        for (int i = 0; i < OPTIMISTIC_ATTEMPTS; i++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0)
+                continue;
+            try {
+                boolean res = filter.search(key);
+                if (lock.validate(stamp))
+                    return res;
+            } catch (RuntimeException e) {
+                // read an inconsistent state during a concurrent write
+            }
+        }
+        long stamp = lock.readLock();
+        try {
+            return filter.search(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     @Override
     public Cid add(Cid c) {
-        filter.insert(c.toBytes(), true);
+        byte[] key = c.toBytes();
+        long stamp = lock.writeLock();
+        try {
+            filter.insert(key, ! counting);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
         return c;
     }
 
+    /**
+     * Remove a cid. Unless this is a counting filter, if it was only a false positive this may remove a different cid
+     * with the same fingerprint.
+     */
+    @Override
+    public boolean remove(Cid c) {
+        byte[] key = c.toBytes();
+        long stamp = lock.writeLock();
+        try {
+            return filter.delete(key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean supportsRemove() {
+        return counting;
+    }
+
+    public void writeSnapshot(DataOutput out) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            InfiniFilterSnapshot.write(filter, out);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Snapshots are only taken of block filters, so the result is a counting filter.
+     */
+    public static CidInfiniFilter fromSnapshot(ByteBuffer snapshot) {
+        return new CidInfiniFilter(InfiniFilterSnapshot.read(snapshot), true);
+    }
+
     public static CidInfiniFilter build(Blockstore bs) {
         return build(bs, 0.0001);
     }
@@ -37,18 +113,26 @@ public class CidInfiniFilter implements Filter {
         LOG.info("Building infini filter for " + nBlocks + " blocks with false positive rate: " + falsePositiveRate);
         if (nBlocks > Integer.MAX_VALUE)
             throw new IllegalStateException("Too many blocks! " + nBlocks);
-        CidInfiniFilter infini = build((int)nBlocks, falsePositiveRate);
+        CidInfiniFilter infini = build((int)nBlocks, falsePositiveRate, true);
         bs.applyToAll(infini::add, false);
         return infini;
     }
 
     public static CidInfiniFilter build(int nBlocks, double falsePositiveRate) {
+        return build(nBlocks, falsePositiveRate, false);
+    }
+
+    public static CidInfiniFilter build(int nBlocks, double falsePositiveRate, boolean counting) {
         int nextPowerOfTwo = Math.max(17, (int) (1 + Math.log(nBlocks) / Math.log(2)));
-        double expansionAlpha = 0.8;
-        int bitsPerEntry = (int)(4 - Math.log(falsePositiveRate / expansionAlpha) / Math.log(2) + 1);
+        int bitsPerEntry = bitsPerEntry(falsePositiveRate);
         LOG.info("Using infini filter of initial size " + ((double)(bitsPerEntry * (1 << nextPowerOfTwo) / 8) / 1024 / 1024) + " MiB");
         ChainedInfiniFilter infini = new ChainedInfiniFilter(nextPowerOfTwo, bitsPerEntry);
         infini.set_expand_autonomously(true);
-        return new CidInfiniFilter(infini);
+        return new CidInfiniFilter(infini, counting);
+    }
+
+    public static int bitsPerEntry(double falsePositiveRate) {
+        double expansionAlpha = 0.8;
+        return (int)(4 - Math.log(falsePositiveRate / expansionAlpha) / Math.log(2) + 1);
     }
 }
@@ -0,0 +1,401 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.util.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * A size bounded local disk cache in front of a slower blockstore, e.g. S3.
+ *
+ * Eviction follows W-TinyLFU: new blocks enter a small LRU window, and a block leaving the window is only admitted to
+ * the main LRU region if it has been accessed more often than the blocks it would evict, so one-off scans don't
+ * flush the popular blocks. Blocks too large for the window (1% of the cache) go straight to the same admission check
+ * for the main region, and blocks larger than the main region are never cached.
+ */
+public class DiskCacheBlockstore implements Blockstore {
+
+    private static final Logger LOG = Logging.LOG();
+    private static final long AVERAGE_BLOCK_SIZE = 16 * 1024;
+
+    private static final Counter hits = Counter.build()
+            .name("ipfs_disk_cache_hits_total")
+            .help("Number of block reads served by the local disk cache")
+            .register();
+    private static final Counter misses = Counter.build()
+            .name("ipfs_disk_cache_misses_total")
+            .help("Number of block reads that missed the local disk cache")
+            .register();
+    private static final Counter evictions = Counter.build()
+            .name("ipfs_disk_cache_evictions_total")
+            .help("Number of blocks evicted from, or refused admission to, the local disk cache")
+            .register();
+    private static final Gauge cachedBytes = Gauge.build()
+            .name("ipfs_disk_cache_bytes")
+            .help("Total size of the blocks in the local disk cache")
+            .register();
+
+    public enum WritePolicy {
+        /** Cache blocks as they are written. */
+        THROUGH,
+        /** Only cache blocks once they are read. */
+        AROUND;
+
+        public static WritePolicy parse(String name) {
+            switch (name) {
+                case "write-through": return THROUGH;
+                case "write-around": return AROUND;
+                default: throw new IllegalArgumentException("Unknown cache write policy: " + name);
+            }
+        }
+    }
+
+    private final Blockstore target;
+    private final FileBlockstore cache;
+    private final WritePolicy writePolicy;
+    private final long windowMax, mainMax;
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<Cid, Integer> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Cid, Integer> main = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes = 0, mainBytes = 0;
+
+    public DiskCacheBlockstore(Blockstore target, Path cacheDir, long maxBytes, WritePolicy writePolicy) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Cache size must be positive");
+        this.target = target;
+        try {
+            Files.createDirectories(cacheDir);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        this.cache = new FileBlockstore(cacheDir, false, false);
+        this.writePolicy = writePolicy;
+        this.windowMax = Math.max(1, maxBytes / 100);
+        this.mainMax = maxBytes - windowMax;
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxBytes / AVERAGE_BLOCK_SIZE));
+        loadExisting();
+    }
+
+    /**
+     * Wrap the target in a disk cache if the mount params include a "cache-size" in bytes. The optional params are
+     * "cache-path" (defaults to blocks-cache in the ipfs dir) and "cache-policy" (write-through or write-around).
+     */
+    public static Blockstore build(Blockstore target, Path ipfsPath, Map<String, Object> params) {
+        if (! params.containsKey("cache-size"))
+            return target;
+        long maxBytes = Long.parseLong((String) params.get("cache-size"));
+        Path cacheDir = params.containsKey("cache-path") ?
+                Path.of((String) params.get("cache-path")) :
+                ipfsPath.resolve("blocks-cache");
+        WritePolicy policy = WritePolicy.parse((String) params.getOrDefault("cache-policy", "write-through"));
+        return new DiskCacheBlockstore(target, cacheDir, maxBytes, policy);
+    }
+
+    private void loadExisting() {
+        List<Cid> overflow = new ArrayList<>();
+        synchronized (this) {
+            cache.applyToAll(c -> {
+                int size = (int) cache.blockSize(c);
+                if (mainBytes + size <= mainMax) {
+                    main.put(c, size);
+                    mainBytes += size;
+                } else if (windowBytes + size <= windowMax) {
+                    window.put(c, size);
+                    windowBytes += size;
+                } else
+                    overflow.add(c);
+            }, true);
+        }
+        overflow.forEach(c -> cache.rm(c).join());
+        cachedBytes.set(size());
+        LOG.info("Loaded " + (main.size() + window.size()) + " blocks (" + size() + " bytes) from disk cache");
+    }
+
+    /**
+     * Only sha256 blocks can be cached, under their v1 cid, as that is how the cache's file store keys blocks.
+     */
+    private static Optional<Cid> cacheKey(Cid c) {
+        if (c.getType() != Multihash.Type.sha2_256)
+            return Optional.empty();
+        return Optional.of(c.version == 1 ? c : new Cid(1, c.codec, c.getType(), c.getHash()));
+    }
+
+    private synchronized boolean isCached(Cid key) {
+        return window.containsKey(key) || main.containsKey(key);
+    }
+
+    private synchronized void recordHit(Cid key) {
+        sketch.increment(key);
+        // touch to move to the most recently used position
+        if (window.get(key) == null)
+            main.get(key);
+    }
+
+    private synchronized void invalidate(Cid key) {
+        Integer size = window.remove(key);
+        if (size != null)
+            windowBytes -= size;
+        size = main.remove(key);
+        if (size != null)
+            mainBytes -= size;
+        cachedBytes.set(windowBytes + mainBytes);
+    }
+
+    public synchronized long size() {
+        return windowBytes + mainBytes;
+    }
+
+    private void admit(Cid key, byte[] block) {
+        if (block.length > mainMax || isCached(key))
+            return;
+        try {
+            Cid stored = cache.put(block, key.codec).join();
+            if (! stored.equals(key)) {
+                cache.rm(stored).join();
+                return;
+            }
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Unable to write block to disk cache: " + e.getMessage(), e);
+            return;
+        }
+        List<Cid> evicted = insert(key, block.length);
+        for (Cid c : evicted)
+            cache.rm(c).join();
+        evictions.inc(evicted.size());
+    }
+
+    /**
+     * Add a block to the window, demoting the window's eldest blocks to the main region when it is full. A block too
+     * large for the window is offered to the main region directly.
+     *
+     * @return the blocks to delete from disk
+     */
+    private synchronized List<Cid> insert(Cid key, int size) {
+        sketch.increment(key);
+        if (isCached(key))
+            return Collections.emptyList();
+        List<Cid> evicted = new ArrayList<>();
+        if (size > windowMax) {
+            admitToMain(key, size, evicted);
+            cachedBytes.set(windowBytes + mainBytes);
+            return evicted;
+        }
+        window.put(key, size);
+        windowBytes += size;
+        while (windowBytes > windowMax) {
+            Map.Entry<Cid, Integer> eldest = window.entrySet().iterator().next();
+            Cid candidate = eldest.getKey();
+            int candidateSize = eldest.getValue();
+            window.remove(candidate);
+            windowBytes -= candidateSize;
+            admitToMain(candidate, candidateSize, evicted);
+        }
+        cachedBytes.set(windowBytes + mainBytes);
+        return evicted;
+    }
+
+    /**
+     * Move a block into the main region if it is more popular than every main region block it would displace,
+     * adding either the displaced blocks or the refused block to evicted.
+     */
+    private void admitToMain(Cid candidate, int candidateSize, List<Cid> evicted) {
+        int candidateFrequency = sketch.frequency(candidate);
+        List<Cid> victims = new ArrayList<>();
+        long freed = 0;
+        Iterator<Map.Entry<Cid, Integer>> lru = main.entrySet().iterator();
+        while (mainBytes - freed + candidateSize > mainMax) {
+            if (! lru.hasNext()) {
+                evicted.add(candidate);
+                return;
+            }
+            Map.Entry<Cid, Integer> victim = lru.next();
+            if (sketch.frequency(victim.getKey()) >= candidateFrequency) {
+                evicted.add(candidate);
+                return;
+            }
+            victims.add(victim.getKey());
+            freed += victim.getValue();
+        }
+        for (Cid victim : victims)
+            main.remove(victim);
+        mainBytes -= freed;
+        evicted.addAll(victims);
+        main.put(candidate, candidateSize);
+        mainBytes += candidateSize;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        Optional<Cid> key = cacheKey(c);
+        if (key.isPresent() && isCached(key.get()))
+            return Futures.of(true);
+        return target.has(c);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return target.hasAny(h);
+    }
+
+    private Optional<byte[]> getCached(Cid key) {
+        if (! isCached(key))
+            return Optional.empty();
+        Optional<byte[]> local = cache.get(key).join();
+        if (local.isPresent())
+            recordHit(key);
+        else // evicted concurrently
+            invalidate(key);
+        return local;
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        Optional<Cid> key = cacheKey(c);
+        if (key.isEmpty())
+            return target.get(c);
+        Optional<byte[]> local = getCached(key.get());
+        if (local.isPresent()) {
+            hits.inc();
+            return Futures.of(local);
+        }
+        misses.inc();
+        return target.get(c).thenApply(res -> {
+            res.ifPresent(b -> admit(key.get(), b));
+            return res;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        Optional<Cid> key = cacheKey(c);
+        if (key.isPresent() && isCached(key.get())) {
+            Optional<ByteBuffer> local = cache.getBuffer(key.get()).join();
+            if (local.isPresent()) {
+                hits.inc();
+                recordHit(key.get());
+                return Futures.of(local);
+            }
+            invalidate(key.get());
+        }
+        return get(c).thenApply(b -> b.map(ByteBuffer::wrap));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        List<Optional<byte[]>> res = new ArrayList<>(cids.size());
+        List<Integer> missingIndices = new ArrayList<>();
+        for (int i = 0; i < cids.size(); i++) {
+            Optional<Cid> key = cacheKey(cids.get(i));
+            Optional<byte[]> local = key.flatMap(this::getCached);
+            if (local.isPresent())
+                hits.inc();
+            else {
+                misses.inc();
+                missingIndices.add(i);
+            }
+            res.add(local);
+        }
+        if (missingIndices.isEmpty())
+            return Futures.of(res);
+        List<Cid> missing = missingIndices.stream().map(cids::get).collect(Collectors.toList());
+        return target.getAll(missing).thenApply(fetched -> {
+            for (int i = 0; i < missingIndices.size(); i++) {
+                Optional<byte[]> block = fetched.get(i);
+                Cid c = missing.get(i);
+                block.ifPresent(b -> cacheKey(c).ifPresent(key -> admit(key, b)));
+                res.set(missingIndices.get(i), block);
+            }
+            return res;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        return target.put(block, codec).thenApply(cid -> {
+            if (writePolicy == WritePolicy.THROUGH)
+                cacheKey(cid).ifPresent(key -> admit(key, block));
+            return cid;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<Pair<byte[], Cid.Codec>> blocks) {
+        return target.putAll(blocks).thenApply(cids -> {
+            if (writePolicy == WritePolicy.THROUGH)
+                for (int i = 0; i < cids.size(); i++) {
+                    byte[] block = blocks.get(i).left;
+                    cacheKey(cids.get(i)).ifPresent(key -> admit(key, block));
+                }
+            return cids;
+        });
+    }
+
+    private void evict(Cid c) {
+        cacheKey(c).ifPresent(key -> {
+            if (isCached(key)) {
+                invalidate(key);
+                cache.rm(key).join();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        evict(c);
+        return target.rm(c);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        cids.forEach(this::evict);
+        return target.rmAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return target.hasAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<Long> count(boolean useBlockstore) {
+        return target.count(useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return target.refs(useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        return target.refs(resumeToken, pageSize, codec, useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> applyToAll(Consumer<Cid> action, boolean useBlockstore) {
+        return target.applyToAll(action, useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        return target.bloomAdd(cid);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        return target.getBlockMetadata(h);
+    }
+}
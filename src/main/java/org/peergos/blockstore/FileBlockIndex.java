@@ -0,0 +1,473 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import org.peergos.util.Logging;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * An on-disk index of the CIDs held in a FileBlockstore, so enumerating and counting blocks doesn't need to walk the
+ * blocks directory.
+ *
+ * The index is a snapshot file of CIDs plus an append log of adds and removes since the snapshot. The log is merged
+ * into a new snapshot in the background once it grows past a threshold. A marker file records a clean shutdown; if it
+ * is missing on startup the index may be stale and is rebuilt from the directory tree.
+ *
+ * The snapshot is kept sorted by a caller supplied sort key, so pages of CIDs can be read in order starting from a
+ * sparse in memory index of snapshot offsets.
+ */
+public class FileBlockIndex {
+
+    private static final Logger LOG = Logging.LOG();
+
+    // unsorted snapshots from earlier versions used 0x6e6162752d636964 and are rebuilt on load
+    private static final long SNAPSHOT_MAGIC = 0x6e6162752d636964L + 1;
+    private static final int SNAPSHOT_HEADER_SIZE = 16;
+    private static final int SPARSE_INTERVAL = 1024;
+    private static final String SNAPSHOT = "snapshot";
+    private static final String LOG_FILE = "log";
+    private static final String SEALED_LOG = "log.old";
+    private static final String CLEAN = "clean";
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 100_000;
+    private static final int FOR_EACH_PAGE_SIZE = 10_000;
+
+    private final Path dir;
+    private final int compactionThreshold;
+    private final Function<Cid, String> sortKey;
+    private final AtomicLong count = new AtomicLong(0);
+    // value is true for an add and false for a remove since the snapshot
+    private volatile ConcurrentHashMap<Cid, Boolean> delta = new ConcurrentHashMap<>();
+    private volatile Map<Cid, Boolean> sealedDelta = Collections.emptyMap();
+    // held for reading by adds, removes and reads, and for writing to swap the snapshot or close
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private boolean closed;
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "block-index-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    // every SPARSE_INTERVAL'th snapshot entry, built on the first paged read after the snapshot changes
+    private volatile SparseIndex sparse;
+    private DataOutputStream log;
+
+    /**
+     * @param sortKey the order of paged reads
+     * @param walkBlocks enumerates every stored block in sortKey order, to rebuild the index
+     */
+    public FileBlockIndex(Path dir, int compactionThreshold, Function<Cid, String> sortKey, Consumer<Consumer<Cid>> walkBlocks) {
+        this.dir = dir;
+        this.compactionThreshold = compactionThreshold;
+        this.sortKey = sortKey;
+        try {
+            Files.createDirectories(dir);
+            Path clean = dir.resolve(CLEAN);
+            if (clean.toFile().exists() && dir.resolve(SNAPSHOT).toFile().exists()) {
+                Files.delete(clean);
+                try {
+                    load();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Unable to load block index, rebuilding: " + e.getMessage());
+                    delta.clear();
+                    rebuild(walkBlocks);
+                }
+            } else
+                rebuild(walkBlocks);
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dir.resolve(LOG_FILE).toFile(), true)));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private void load() throws IOException {
+        long snapshotCount = readSnapshotCount();
+        Map<Cid, Boolean> logged = new HashMap<>();
+        replayLog(dir.resolve(SEALED_LOG), logged);
+        replayLog(dir.resolve(LOG_FILE), logged);
+        long adds = logged.values().stream().filter(b -> b).count();
+        long[] overlap = {0};
+        if (! logged.isEmpty())
+            forEachInSnapshot(c -> {
+                if (logged.containsKey(c))
+                    overlap[0]++;
+            });
+        count.set(snapshotCount - overlap[0] + adds);
+        delta.putAll(logged);
+        LOG.info("Loaded block index with " + count.get() + " blocks");
+    }
+
+    private void replayLog(Path logFile, Map<Cid, Boolean> into) throws IOException {
+        if (! logFile.toFile().exists())
+            return;
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile.toFile())))) {
+            while (true) {
+                byte op;
+                try {
+                    op = din.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] cid = new byte[din.readShort()];
+                din.readFully(cid);
+                into.put(Cid.cast(cid), op == ADD);
+            }
+        }
+    }
+
+    private long readSnapshotCount() throws IOException {
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(dir.resolve(SNAPSHOT).toFile())))) {
+            if (din.readLong() != SNAPSHOT_MAGIC)
+                throw new IOException("Invalid block index snapshot");
+            return din.readLong();
+        }
+    }
+
+    private interface SnapshotVisitor {
+        /**
+         * @return whether to continue reading
+         */
+        boolean visit(Cid c, long offset) throws IOException;
+    }
+
+    private void readSnapshot(long from, int bufferSize, SnapshotVisitor visitor) throws IOException {
+        try (FileInputStream fin = new FileInputStream(dir.resolve(SNAPSHOT).toFile())) {
+            DataInputStream header = new DataInputStream(fin);
+            if (header.readLong() != SNAPSHOT_MAGIC)
+                throw new IOException("Invalid block index snapshot");
+            header.readLong();
+            long offset = Math.max(from, SNAPSHOT_HEADER_SIZE);
+            long end = fin.getChannel().size();
+            fin.getChannel().position(offset);
+            DataInputStream din = new DataInputStream(new BufferedInputStream(fin, bufferSize));
+            while (offset < end) {
+                byte[] cid = new byte[din.readShort()];
+                din.readFully(cid);
+                if (! visitor.visit(Cid.cast(cid), offset))
+                    return;
+                offset += 2 + cid.length;
+            }
+        }
+    }
+
+    private void forEachInSnapshot(Consumer<Cid> action) throws IOException {
+        readSnapshot(0, 1024 * 1024, (c, offset) -> {
+            action.accept(c);
+            return true;
+        });
+    }
+
+    private static class SparseIndex {
+        final String[] keys;
+        final long[] offsets;
+
+        SparseIndex(String[] keys, long[] offsets) {
+            this.keys = keys;
+            this.offsets = offsets;
+        }
+
+        /**
+         * @return a snapshot offset at or before the first entry with a sort key greater than the given one
+         */
+        long floorOffset(String key) {
+            int i = Arrays.binarySearch(keys, key);
+            int floor = i >= 0 ? i : -i - 2;
+            return floor < 0 ? SNAPSHOT_HEADER_SIZE : offsets[floor];
+        }
+    }
+
+    private SparseIndex sparseIndex() throws IOException {
+        SparseIndex current = sparse;
+        if (current != null)
+            return current;
+        List<String> keys = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        long[] i = {0};
+        readSnapshot(0, 1024 * 1024, (c, offset) -> {
+            if (i[0]++ % SPARSE_INTERVAL == 0) {
+                keys.add(sortKey.apply(c));
+                offsets.add(offset);
+            }
+            return true;
+        });
+        SparseIndex built = new SparseIndex(keys.toArray(new String[0]), offsets.stream().mapToLong(x -> x).toArray());
+        sparse = built;
+        return built;
+    }
+
+    private void rebuild(Consumer<Consumer<Cid>> walkBlocks) throws IOException {
+        LOG.info("Rebuilding block index from blocks directory...");
+        long t0 = System.currentTimeMillis();
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        long[] n = {0};
+        try (RandomAccessFile raf = new RandomAccessFile(tmp.toFile(), "rw");
+             DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(raf.getFD()), 1024 * 1024))) {
+            dout.writeLong(SNAPSHOT_MAGIC);
+            dout.writeLong(0);
+            walkBlocks.accept(c -> {
+                try {
+                    writeCid(dout, c);
+                    n[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            dout.flush();
+            raf.seek(8);
+            raf.writeLong(n[0]);
+            raf.getFD().sync();
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(dir.resolve(SEALED_LOG));
+        Files.deleteIfExists(dir.resolve(LOG_FILE));
+        sparse = null;
+        count.set(n[0]);
+        LOG.info("Rebuilt block index with " + n[0] + " blocks in " + (System.currentTimeMillis() - t0) / 1000 + "s");
+    }
+
+    private static void writeCid(DataOutputStream dout, Cid c) throws IOException {
+        byte[] raw = c.toBytes();
+        dout.writeShort(raw.length);
+        dout.write(raw);
+    }
+
+    private synchronized void append(byte op, Cid c) {
+        try {
+            log.writeByte(op);
+            writeCid(log, c);
+            log.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Record a block that was not previously present.
+     */
+    public void add(Cid c) {
+        snapshotLock.readLock().lock();
+        try {
+            if (closed) {
+                markUnclean();
+                return;
+            }
+            append(ADD, c);
+            Boolean previous = delta.put(c, true);
+            if (! Boolean.TRUE.equals(previous))
+                count.incrementAndGet();
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Record the removal of a block that was present.
+     */
+    public void remove(Cid c) {
+        snapshotLock.readLock().lock();
+        try {
+            if (closed) {
+                markUnclean();
+                return;
+            }
+            append(REMOVE, c);
+            Boolean previous = delta.put(c, false);
+            if (! Boolean.FALSE.equals(previous))
+                count.decrementAndGet();
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        maybeCompact();
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * Apply an action to every indexed CID, in sort key order. The index is read a page at a time and the action runs
+     * without holding the lock, so compaction and close aren't blocked by a slow action.
+     */
+    public void forEach(Consumer<Cid> action) {
+        Optional<String> after = Optional.empty();
+        while (true) {
+            List<Cid> page = page(after, FOR_EACH_PAGE_SIZE);
+            page.forEach(action);
+            if (page.size() < FOR_EACH_PAGE_SIZE)
+                return;
+            after = Optional.of(sortKey.apply(page.get(page.size() - 1)));
+        }
+    }
+
+    /**
+     * @return up to pageSize indexed CIDs with a sort key greater than after, in sort key order
+     */
+    public List<Cid> page(Optional<String> after, int pageSize) {
+        snapshotLock.readLock().lock();
+        try {
+            Map<Cid, Boolean> current = delta;
+            Map<Cid, Boolean> sealed = sealedDelta;
+            TreeMap<String, Cid> res = new TreeMap<>();
+            sealed.forEach((c, added) -> {
+                if (added && ! current.containsKey(c))
+                    addToPage(res, c, after, pageSize);
+            });
+            current.forEach((c, added) -> {
+                if (added)
+                    addToPage(res, c, after, pageSize);
+            });
+            long from = after.isPresent() ? sparseIndex().floorOffset(after.get()) : 0;
+            readSnapshot(from, 64 * 1024, (c, offset) -> {
+                if (current.containsKey(c) || sealed.containsKey(c))
+                    return true;
+                String key = sortKey.apply(c);
+                if (after.isPresent() && key.compareTo(after.get()) <= 0)
+                    return true;
+                if (res.size() == pageSize && key.compareTo(res.lastKey()) > 0)
+                    return false;
+                addToPage(res, key, c, pageSize);
+                return true;
+            });
+            return new ArrayList<>(res.values());
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    private void addToPage(TreeMap<String, Cid> page, Cid c, Optional<String> after, int pageSize) {
+        String key = sortKey.apply(c);
+        if (after.isEmpty() || key.compareTo(after.get()) > 0)
+            addToPage(page, key, c, pageSize);
+    }
+
+    private static void addToPage(TreeMap<String, Cid> page, String key, Cid c, int pageSize) {
+        page.put(key, c);
+        if (page.size() > pageSize)
+            page.pollLastEntry();
+    }
+
+    private void maybeCompact() {
+        if (delta.size() < compactionThreshold || ! compacting.compareAndSet(false, true))
+            return;
+        compactor.submit(() -> {
+            try {
+                compact();
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Block index compaction failed: " + t.getMessage(), t);
+            } finally {
+                compacting.set(false);
+            }
+        });
+    }
+
+    /**
+     * Merge the current log into a new snapshot.
+     */
+    public void compact() throws IOException {
+        Map<Cid, Boolean> toMerge;
+        snapshotLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                log.close();
+                Files.move(dir.resolve(LOG_FILE), dir.resolve(SEALED_LOG), StandardCopyOption.REPLACE_EXISTING);
+                log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dir.resolve(LOG_FILE).toFile(), true)));
+            }
+            toMerge = delta;
+            sealedDelta = toMerge;
+            delta = new ConcurrentHashMap<>();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        long[] n = {0};
+        try (RandomAccessFile raf = new RandomAccessFile(tmp.toFile(), "rw");
+             DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(raf.getFD()), 1024 * 1024))) {
+            dout.writeLong(SNAPSHOT_MAGIC);
+            dout.writeLong(0);
+            List<Map.Entry<String, Cid>> adds = toMerge.entrySet().stream()
+                    .filter(Map.Entry::getValue)
+                    .map(e -> new AbstractMap.SimpleEntry<>(sortKey.apply(e.getKey()), e.getKey()))
+                    .sorted(Map.Entry.comparingByKey())
+                    .collect(Collectors.toList());
+            int[] next = {0};
+            readSnapshot(0, 1024 * 1024, (c, offset) -> {
+                if (toMerge.containsKey(c))
+                    return true;
+                String key = sortKey.apply(c);
+                for (; next[0] < adds.size() && adds.get(next[0]).getKey().compareTo(key) < 0; next[0]++)
+                    writeCid(dout, adds.get(next[0]).getValue());
+                writeCid(dout, c);
+                n[0]++;
+                return true;
+            });
+            for (; next[0] < adds.size(); next[0]++)
+                writeCid(dout, adds.get(next[0]).getValue());
+            n[0] += adds.size();
+            dout.flush();
+            raf.seek(8);
+            raf.writeLong(n[0]);
+            raf.getFD().sync();
+        }
+
+        snapshotLock.writeLock().lock();
+        try {
+            Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(dir.resolve(SEALED_LOG));
+            sealedDelta = Collections.emptyMap();
+            sparse = null;
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A change that arrived after close isn't in the log, so the index must be rebuilt on the next start.
+     */
+    private void markUnclean() {
+        try {
+            Files.deleteIfExists(dir.resolve(CLEAN));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Flush the log and mark the index as clean so it can be reused on the next start. The marker is only written once
+     * in-flight adds and removes have been logged.
+     */
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+            snapshotLock.writeLock().lock();
+            try {
+                closed = true;
+                synchronized (this) {
+                    log.flush();
+                    log.close();
+                }
+                Files.write(dir.resolve(CLEAN), new byte[0]);
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+        } catch (IOException | InterruptedException e) {
+            LOG.log(Level.WARNING, "Error closing block index: " + e.getMessage(), e);
+        }
+    }
+}
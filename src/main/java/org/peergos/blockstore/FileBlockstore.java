@@ -2,20 +2,32 @@ package org.peergos.blockstore;
 
 import io.ipfs.cid.Cid;
 import io.ipfs.multihash.Multihash;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
 import org.peergos.Hash;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.util.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
+import java.util.OptionalInt;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -25,11 +37,88 @@ public class FileBlockstore implements Blockstore {
 
     private static final Logger LOG = Logging.LOG();
 
+    // below this size reading into the heap is cheaper than setting up a mapping
+    private static final int MMAP_THRESHOLD = 16 * 1024;
+
+    // used to overlap the file I/O of batch operations
+    private static final int BULK_IO_THREADS = 16;
+    private static final ExecutorService bulkIO = Executors.newFixedThreadPool(BULK_IO_THREADS, r -> {
+        Thread t = new Thread(r, "file-blockstore-bulk");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final Gauge ioQueueDepth = Gauge.build()
+            .labelNames("op")
+            .name("ipfs_file_blockstore_queue_depth")
+            .help("Number of file blockstore operations waiting for an I/O thread")
+            .register();
+    private static final Histogram ioDuration = Histogram.build()
+            .labelNames("op")
+            .name("ipfs_file_blockstore_io_seconds")
+            .help("Time spent on an I/O thread per file blockstore operation")
+            .exponentialBuckets(0.0001, 2, 16)
+            .register();
+
+    public static final int DEFAULT_IO_THREADS = 16;
+    public static final int DEFAULT_IO_QUEUE = 10_000;
+
     private final Path blocksRoot;
     private final String BLOCKS = "blocks";
     private final String BLOCK_FILE_SUFFIX = ".data";
+    private static final String INDEX = "blocks-index";
+    private final boolean mmapReads;
+    private final Optional<FileBlockIndex> index;
+    private final Optional<GroupCommitter> committer;
+    private final Optional<ExecutorService> ioExecutor;
+    private final int ioThreads;
+    private final Optional<BlockCompression> compression;
+    // shard directories known to exist and be writable
+    private final ConcurrentHashMap<Path, Boolean> shardDirs = new ConcurrentHashMap<>();
 
     public FileBlockstore(Path root) {
+        this(root, false, false, false);
+    }
+
+    public FileBlockstore(Path root, boolean mmapReads) {
+        this(root, mmapReads, false, false);
+    }
+
+    public FileBlockstore(Path root, boolean mmapReads, boolean indexed) {
+        this(root, mmapReads, indexed, false);
+    }
+
+    public FileBlockstore(Path root, boolean mmapReads, boolean indexed, boolean durable) {
+        this(root, mmapReads, indexed, durable, 0, 0);
+    }
+
+    /**
+     *
+     * @param root the ipfs directory containing the blocks directory
+     * @param mmapReads whether getBuffer should memory map larger blocks
+     * @param indexed whether to maintain an on-disk CID index so refs, count and applyToAll don't walk the blocks
+     * @param durable whether puts only complete once the block is synced to disk, via a synced temp file per put and a group
+     *                commit of the renames and directory syncs
+     * @param ioThreads if positive, do block I/O on a pool of this many threads so futures complete off the caller
+     *                  thread, otherwise do it on the caller thread
+     * @param ioQueue the maximum number of operations waiting for an I/O thread, beyond which operations fail with a
+     *                RejectedExecutionException. Batch operations are split into at most ioThreads tasks, and run on
+     *                the caller thread when the queue is full
+     */
+    public FileBlockstore(Path root, boolean mmapReads, boolean indexed, boolean durable, int ioThreads, int ioQueue) {
+        this(root, mmapReads, indexed, durable, ioThreads, ioQueue, Optional.empty());
+    }
+
+    /**
+     * @param compression if present, compress blocks before writing them
+     */
+    public FileBlockstore(Path root,
+                          boolean mmapReads,
+                          boolean indexed,
+                          boolean durable,
+                          int ioThreads,
+                          int ioQueue,
+                          Optional<BlockCompression> compression) {
         if (root == null || !root.toFile().isDirectory()) {
             throw new IllegalStateException("Path must be a directory! " + root);
         }
@@ -43,12 +132,136 @@ public class FileBlockstore implements Blockstore {
             throw new IllegalStateException("Unable to create blocks directory");
         }
         this.blocksRoot = blocksPath;
-        LOG.info("Using FileBlockStore at location: " + blocksPath);
+        this.mmapReads = mmapReads;
+        this.compression = compression;
+        this.committer = durable ? Optional.of(new GroupCommitter()) : Optional.empty();
+        this.ioThreads = ioThreads;
+        // when the queue is full operations fail rather than running on, and blocking, the caller's thread
+        this.ioExecutor = ioThreads > 0 ?
+                Optional.of(new ThreadPoolExecutor(ioThreads, ioThreads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(ioQueue), r -> {
+                    Thread t = new Thread(r, "file-blockstore-io");
+                    t.setDaemon(true);
+                    return t;
+                }, (r, exec) -> {
+                    throw new RejectedExecutionException(exec.isShutdown() ?
+                            "File blockstore is closed" :
+                            "File blockstore I/O queue is full");
+                })) :
+                Optional.empty();
+        LOG.info("Using FileBlockStore at location: " + blocksPath + (mmapReads ? " with memory mapped reads" : "") +
+                (durable ? " with durable writes" : "") + (ioThreads > 0 ? " with " + ioThreads + " I/O threads" : "") +
+                (compression.isPresent() ? " with compression" : ""));
+        this.index = indexed ?
+                Optional.of(new FileBlockIndex(root.resolve(INDEX), FileBlockIndex.DEFAULT_COMPACTION_THRESHOLD,
+                        this::sortKey, action -> walkBlocksSorted(Optional.empty(), key -> {
+                            action.accept(keyToHash(key));
+                            return true;
+                        }))) :
+                Optional.empty();
+    }
+
+    public static FileBlockstore build(Path root, Map<String, Object> params) {
+        boolean mmapReads = Boolean.parseBoolean((String) params.getOrDefault("mmap", "false"));
+        boolean indexed = Boolean.parseBoolean((String) params.getOrDefault("index", "false"));
+        boolean durable = Boolean.parseBoolean((String) params.getOrDefault("sync", "false"));
+        boolean async = Boolean.parseBoolean((String) params.getOrDefault("async", "false"));
+        int ioThreads = async ?
+                Integer.parseInt((String) params.getOrDefault("io-threads", "" + DEFAULT_IO_THREADS)) :
+                0;
+        int ioQueue = Integer.parseInt((String) params.getOrDefault("io-queue", "" + DEFAULT_IO_QUEUE));
+        return new FileBlockstore(root, mmapReads, indexed, durable, ioThreads, ioQueue, BlockCompression.fromParams(params));
+    }
+
+    /**
+     *  Run an operation on the given executor, recording how many are waiting and how long each takes.
+     */
+    private static <T> CompletableFuture<T> submit(String op, Supplier<CompletableFuture<T>> task, Executor executor) {
+        try {
+            return schedule(op, task, executor);
+        } catch (RejectedExecutionException e) {
+            return Futures.errored(e);
+        }
+    }
+
+    private static <T> CompletableFuture<T> schedule(String op, Supplier<CompletableFuture<T>> task, Executor executor) {
+        ioQueueDepth.labels(op).inc();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                ioQueueDepth.labels(op).dec();
+                Histogram.Timer timer = ioDuration.labels(op).startTimer();
+                try {
+                    return task.get();
+                } finally {
+                    timer.observeDuration();
+                }
+            }, executor).thenCompose(f -> f);
+        } catch (RejectedExecutionException e) {
+            ioQueueDepth.labels(op).dec();
+            throw e;
+        }
+    }
+
+    /**
+     *  Run a batch operation as at most one task per I/O thread, so a batch takes a bounded number of queue slots.
+     *  A chunk that doesn't fit in the queue runs on the calling thread, which also slows down the caller.
+     */
+    private <I, T> CompletableFuture<List<T>> batch(String op, List<I> items, Function<I, CompletableFuture<T>> task) {
+        if (items.isEmpty())
+            return Futures.of(Collections.emptyList());
+        int chunks = Math.min(items.size(), ioExecutor.isPresent() ? ioThreads : BULK_IO_THREADS);
+        int chunkSize = (items.size() + chunks - 1) / chunks;
+        List<CompletableFuture<List<T>>> results = new ArrayList<>();
+        for (int start = 0; start < items.size(); start += chunkSize) {
+            List<I> chunk = items.subList(start, Math.min(items.size(), start + chunkSize));
+            Supplier<CompletableFuture<List<T>>> run = () -> Futures.combineAll(chunk.stream()
+                    .map(task)
+                    .collect(Collectors.toList()));
+            try {
+                results.add(schedule(op, run, batchExecutor()));
+            } catch (RejectedExecutionException e) {
+                if (ioExecutor.isPresent() && ioExecutor.get().isShutdown())
+                    results.add(Futures.errored(e));
+                else
+                    results.add(run.get());
+            }
+        }
+        return Futures.combineAll(results).thenApply(lists -> lists.stream()
+                .flatMap(List::stream)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     *  Run an operation on the I/O pool in async mode, otherwise on the calling thread.
+     */
+    private <T> CompletableFuture<T> io(String op, Supplier<CompletableFuture<T>> task) {
+        if (ioExecutor.isEmpty())
+            return task.get();
+        return submit(op, task, ioExecutor.get());
+    }
+
+    private Executor batchExecutor() {
+        return ioExecutor.isPresent() ? ioExecutor.get() : bulkIO;
+    }
+
+    private static String shard(String key) {
+        return key.substring(key.length() -3, key.length()-1);
+    }
+
+    /**
+     *  The order of paged refs: by shard directory, then by key within a shard.
+     */
+    private static String sortKey(String key) {
+        return shard(key) + "/" + key;
+    }
+
+    private String sortKey(Cid c) {
+        return sortKey(hashToKey(c));
     }
 
     public Path getFilePath(Cid cid) {
         String key = hashToKey(cid);
-        String folder = key.substring(key.length() -3, key.length()-1);
+        String folder = shard(key);
         String filename = key + BLOCK_FILE_SUFFIX;
 
         Path path = Paths.get(folder);
@@ -56,8 +269,32 @@ public class FileBlockstore implements Blockstore {
         return path;
     }
 
+    /**
+     * @return the uncompressed size in bytes of the block, or 0 if it is absent
+     */
+    public long blockSize(Cid cid) {
+        Path file = blocksRoot.resolve(getFilePath(cid));
+        if (compression.isEmpty())
+            return file.toFile().length();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(BlockCompression.HEADER_SIZE + 1);
+            while (header.hasRemaining() && ch.read(header) >= 0)
+                ;
+            OptionalInt decoded = compression.get().decodedLength(header.flip());
+            return decoded.isPresent() ? decoded.getAsInt() : ch.size();
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public CompletableFuture<Boolean> has(Cid cid) {
+        return io("has", () -> hasLocal(cid));
+    }
+
+    private CompletableFuture<Boolean> hasLocal(Cid cid) {
         Path path = getFilePath(cid);
         File file = blocksRoot.resolve(path).toFile();
         return CompletableFuture.completedFuture(file.exists());
@@ -65,52 +302,126 @@ public class FileBlockstore implements Blockstore {
 
     @Override
     public CompletableFuture<Boolean> hasAny(Multihash h) {
-        return Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
-                .anyMatch(c -> has(new Cid(1, c, h.getType(), h.getHash())).join()));
+        return io("has", () -> Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
+                .anyMatch(c -> hasLocal(new Cid(1, c, h.getType(), h.getHash())).join())));
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> get(Cid cid) {
+        return io("get", () -> getLocal(cid));
+    }
+
+    private CompletableFuture<Optional<byte[]>> getLocal(Cid cid) {
         try {
             Path path = getFilePath(cid);
             File file = blocksRoot.resolve(path).toFile();
             if (!file.exists()) {
                 return CompletableFuture.completedFuture(Optional.empty());
             }
-            try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-                byte[] buffer = new byte[1024];
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                for (int len; (len = din.read(buffer)) != -1; ) {
-                    bout.write(buffer, 0, len);
-                }
-                return CompletableFuture.completedFuture(Optional.of(bout.toByteArray()));
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (compression.isEmpty())
+                    return CompletableFuture.completedFuture(Optional.of(readFully(ch).array()));
+                // the stored bytes are only needed until they are decoded, so read them into a reused buffer
+                ByteBuffer stored = readFully(ch, BlockCompression.readBuffer(size(ch))).flip();
+                return CompletableFuture.completedFuture(Optional.of(compression.get().decodeCopy(stored)));
             }
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.completedFuture(Optional.empty());
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid cid) {
+        return io("get", () -> getBufferLocal(cid));
+    }
+
+    private CompletableFuture<Optional<ByteBuffer>> getBufferLocal(Cid cid) {
+        Path file = blocksRoot.resolve(getFilePath(cid));
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            // Small blocks are copied. Mapping a larger block is safe as block files are never truncated or rewritten
+            // in place: a put only writes a missing or empty file, and rm unlinks the file, which leaves an existing
+            // mapping readable. A file truncated under a live mapping would fault the reading thread.
+            if (mmapReads && size >= MMAP_THRESHOLD) {
+                ByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                return CompletableFuture.completedFuture(Optional.of(compression.map(c -> c.decode(mapped)).orElse(mapped)));
+            }
+            if (compression.isEmpty())
+                return CompletableFuture.completedFuture(Optional.of(readFully(ch).flip()));
+            ByteBuffer stored = readFully(ch, BlockCompression.readBuffer(size(ch))).flip();
+            return CompletableFuture.completedFuture(Optional.of(ByteBuffer.wrap(compression.get().decodeCopy(stored))));
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static int size(FileChannel ch) throws IOException {
+        long size = ch.size();
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalStateException("Block too large: " + size);
+        return (int) size;
+    }
+
+    private static ByteBuffer readFully(FileChannel ch) throws IOException {
+        return readFully(ch, ByteBuffer.allocate(size(ch)));
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining() && ch.read(buf) >= 0)
+            ;
+        return buf;
+    }
+
+    private void ensureShardDirectory(Path parent) {
+        shardDirs.computeIfAbsent(parent, p -> {
+            try {
+                File parentDir = parent.toFile();
+                if (!parentDir.exists())
+                    Files.createDirectories(parent);
+
+                for (Path someParent = parent; !someParent.equals(blocksRoot); someParent = someParent.getParent()) {
+                    File someParentFile = someParent.toFile();
+                    if (!someParentFile.canWrite()) {
+                        final boolean b = someParentFile.setWritable(true, false);
+                        if (!b)
+                            throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + parentDir.toString() + " writable");
+                    }
+                }
+                // no writes to this directory are in flight yet, so any temp files are from a crash
+                if (committer.isPresent())
+                    GroupCommitter.removeStaleTempFiles(parent);
+                return true;
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        });
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        return io("put", () -> putLocal(block, codec));
+    }
+
+    private CompletableFuture<Cid> putLocal(byte[] block, Cid.Codec codec) {
         Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(block));
+        Path target = blocksRoot.resolve(getFilePath(cid));
+        // blocks are content addressed, so an existing non-empty file already holds this block
+        if (target.toFile().length() > 0)
+            return CompletableFuture.completedFuture(cid);
+        ensureShardDirectory(target.getParent());
+        byte[] stored = compression.map(c -> c.encode(block, codec)).orElse(block);
+        if (committer.isPresent())
+            return committer.get().write(target, stored).thenApply(x -> {
+                index.ifPresent(i -> i.add(cid));
+                return cid;
+            });
         try {
-            Path filePath = getFilePath(cid);
-            Path target = blocksRoot.resolve(filePath);
-            Path parent = target.getParent();
-            File parentDir = parent.toFile();
-
-            if (!parentDir.exists())
-                Files.createDirectories(parent);
-
-            for (Path someParent = parent; !someParent.equals(blocksRoot); someParent = someParent.getParent()) {
-                File someParentFile = someParent.toFile();
-                if (!someParentFile.canWrite()) {
-                    final boolean b = someParentFile.setWritable(true, false);
-                    if (!b)
-                        throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + parentDir.toString() + " writable");
-                }
-            }
-            Files.write(target, block, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            Files.write(target, stored, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            index.ifPresent(i -> i.add(cid));
             return CompletableFuture.completedFuture(cid);
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
@@ -119,67 +430,166 @@ public class FileBlockstore implements Blockstore {
 
     @Override
     public CompletableFuture<Boolean> rm(Cid cid) {
+        return io("rm", () -> rmLocal(cid));
+    }
+
+    private CompletableFuture<Boolean> rmLocal(Cid cid) {
         Path path = getFilePath(cid);
         File file = blocksRoot.resolve(path).toFile();
         if (file.exists()) {
-            return CompletableFuture.completedFuture(file.delete());
+            boolean deleted = file.delete();
+            if (deleted)
+                index.ifPresent(i -> i.remove(cid));
+            return CompletableFuture.completedFuture(deleted);
         } else {
             return CompletableFuture.completedFuture(false);
         }
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return batch("has", cids, this::hasLocal);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return batch("get", cids, this::getLocal);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<Pair<byte[], Cid.Codec>> blocks) {
+        // the I/O threads don't wait on each commit, so durable writes share directory syncs
+        return batch("put", blocks, b -> putLocal(b.left, b.right));
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return batch("rm", cids, this::rmLocal);
+    }
+
     @Override
     public CompletableFuture<Boolean> bloomAdd(Cid cid) {
         //not implemented
         return CompletableFuture.completedFuture(false);
     }
 
-    @Override
-    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
-        List<Path> result = new ArrayList<>();
+    private void walkBlocks(Consumer<Cid> action) {
         try (Stream<Path> walk = Files.walk(blocksRoot)) {
-            result = walk.filter(f -> Files.isRegularFile(f) &&
+            walk.filter(f -> Files.isRegularFile(f) &&
                             f.toFile().length() > 0 &&
                             f.getFileName().toString().endsWith(BLOCK_FILE_SUFFIX))
-                    .collect(Collectors.toList());
-        } catch (IOException ioe) {
-            LOG.log(Level.WARNING, "Unable to retrieve local refs: " + ioe);
+                    .map(p -> {
+                        String filename = p.getFileName().toString();
+                        return keyToHash(filename.substring(0, filename.length() - BLOCK_FILE_SUFFIX.length()));
+                    }).forEach(action);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        List<Cid> cidList = result.stream().map(p -> {
-            String filename = p.getFileName().toString();
-            return keyToHash(filename.substring(0, filename.length() - BLOCK_FILE_SUFFIX.length()));
-        }).collect(Collectors.toList());
-        return CompletableFuture.completedFuture(cidList);
     }
 
     @Override
-    public CompletableFuture<Long> count(boolean useBlockstore) {
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        List<Cid> cidList = new ArrayList<>();
         try {
-            return Futures.of(Files.walk(blocksRoot)
-                    .filter(f -> Files.isRegularFile(f) &&
-                            f.toFile().length() > 0 &&
-                            f.getFileName().toString().endsWith(BLOCK_FILE_SUFFIX))
-                    .count());
+            applyToAll(cidList::add, useBlockstore);
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Unable to retrieve local refs: " + e);
+        }
+        return CompletableFuture.completedFuture(cidList);
+    }
+
+    /**
+     *  Visit the keys of non-empty blocks in sort key order, after the given key, until the visitor returns false.
+     *  Only one shard listing is held in memory at a time.
+     */
+    private void walkBlocksSorted(Optional<String> after, Predicate<String> visitor) {
+        Optional<String> startShard = after.map(FileBlockstore::shard);
+        try (Stream<Path> shards = Files.list(blocksRoot)) {
+            List<String> shardNames = shards.filter(Files::isDirectory)
+                    .map(p -> p.getFileName().toString())
+                    .filter(s -> startShard.isEmpty() || s.compareTo(startShard.get()) >= 0)
+                    .sorted()
+                    .collect(Collectors.toList());
+            for (String shard : shardNames) {
+                List<String> keys;
+                try (Stream<Path> files = Files.list(blocksRoot.resolve(shard))) {
+                    keys = files.filter(f -> f.toFile().length() > 0)
+                            .map(f -> f.getFileName().toString())
+                            .filter(f -> f.endsWith(BLOCK_FILE_SUFFIX))
+                            .map(f -> f.substring(0, f.length() - BLOCK_FILE_SUFFIX.length()))
+                            .filter(k -> startShard.isEmpty() || ! shard.equals(startShard.get()) || k.compareTo(after.get()) > 0)
+                            .sorted()
+                            .collect(Collectors.toList());
+                }
+                for (String key : keys) {
+                    if (! visitor.test(key))
+                        return;
+                }
+            }
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            throw new RuntimeException(e.getMessage(), e);
         }
     }
 
+    /**
+     *  Pages from the block index when there is one, otherwise through the shard directories, in sort key order.
+     *  The resume token is the key of the last block returned.
+     */
     @Override
-    public CompletableFuture<Boolean> applyToAll(Consumer<Cid> action, boolean useBlockstore) {
-        try {
-            Files.walk(blocksRoot)
-                    .filter(f -> Files.isRegularFile(f) &&
-                            f.toFile().length() > 0 &&
-                            f.getFileName().toString().endsWith(BLOCK_FILE_SUFFIX))
-                    .map(p -> {
-                        String filename = p.getFileName().toString();
-                        return keyToHash(filename.substring(0, filename.length() - BLOCK_FILE_SUFFIX.length()));
-                    }).forEach(action);
-            return Futures.of(true);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        if (index.isPresent()) {
+            List<Cid> page = index.get().page(resumeToken.map(FileBlockstore::sortKey), pageSize);
+            Optional<String> next = page.size() < pageSize ?
+                    Optional.empty() :
+                    Optional.of(hashToKey(page.get(page.size() - 1)));
+            return Futures.of(new RefsPage(page, next).filter(c -> RefsPage.matches(c, codec)));
         }
+        List<Cid> page = new ArrayList<>();
+        String[] lastKey = {null};
+        boolean[] more = {false};
+        walkBlocksSorted(resumeToken, key -> {
+            if (page.size() == pageSize) {
+                more[0] = true;
+                return false;
+            }
+            lastKey[0] = key;
+            Cid c = keyToHash(key);
+            if (RefsPage.matches(c, codec))
+                page.add(c);
+            return true;
+        });
+        return Futures.of(new RefsPage(page, more[0] ? Optional.of(lastKey[0]) : Optional.empty()));
+    }
+
+    @Override
+    public CompletableFuture<Long> count(boolean useBlockstore) {
+        if (index.isPresent())
+            return Futures.of(index.get().count());
+        AtomicLong count = new AtomicLong(0);
+        walkBlocks(c -> count.incrementAndGet());
+        return Futures.of(count.get());
+    }
+
+    @Override
+    public CompletableFuture<Boolean> applyToAll(Consumer<Cid> action, boolean useBlockstore) {
+        if (index.isPresent())
+            index.get().forEach(action);
+        else
+            walkBlocks(action);
+        return Futures.of(true);
+    }
+
+    public void close() {
+        ioExecutor.ifPresent(exec -> {
+            exec.shutdown();
+            try {
+                exec.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                LOG.log(Level.WARNING, "Interrupted waiting for file blockstore I/O to finish", e);
+            }
+        });
+        committer.ifPresent(GroupCommitter::close);
+        index.ifPresent(FileBlockIndex::close);
     }
 
     @Override
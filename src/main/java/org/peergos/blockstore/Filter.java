@@ -1,6 +1,9 @@
 package org.peergos.blockstore;
 
 import io.ipfs.cid.*;
+import io.ipfs.multihash.Multihash;
+
+import java.util.stream.*;
 
 public interface Filter {
 
@@ -12,4 +15,40 @@ public interface Filter {
      * @return the argument c
      */
     Cid add(Cid c);
+
+    /**
+     * Remove a cid that was previously added.
+     *
+     * @return whether an entry was removed
+     */
+    default boolean remove(Cid c) {
+        return false;
+    }
+
+    /**
+     * @return whether remove is supported without risking false negatives for other cids
+     */
+    default boolean supportsRemove() {
+        return false;
+    }
+
+    /**
+     * @return whether adding a cid twice needs two removes to remove it, so a cid already present mustn't be re-added
+     */
+    default boolean countsDuplicates() {
+        return supportsRemove();
+    }
+
+    /**
+     * Stop any background work, e.g. rebuilds.
+     */
+    default void close() {}
+
+    /**
+     * @return whether the multihash might be present under any of the codecs we store
+     */
+    default boolean hasAny(Multihash h) {
+        return Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
+                .anyMatch(c -> has(new Cid(1, c, h.getType(), h.getHash())));
+    }
 }
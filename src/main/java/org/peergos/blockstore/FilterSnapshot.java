@@ -0,0 +1,187 @@
+package org.peergos.blockstore;
+
+import org.peergos.util.Logging;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persists a block filter so it can be reloaded at startup instead of being rebuilt from every cid in the blockstore.
+ *
+ * A snapshot records the blockstore generation and block count it was taken at, and is only reloaded if both still
+ * match, i.e. nothing has been written or removed since. Snapshots are written periodically, when the generation has
+ * changed, and on close.
+ */
+public class FilterSnapshot {
+
+    private static final Logger LOG = Logging.LOG();
+    private static final long MAGIC = 0x6e6162752d666c74L; // "nabu-flt"
+    // version 2: blocked bloom filter payload
+    private static final int VERSION = 2;
+    // magic, version, type, generation, block count, false positive rate, payload length, payload crc
+    private static final int HEADER_SIZE = 8 + 4 + 4 + 8 + 8 + 8 + 8 + 8;
+    public static final long DEFAULT_PERIOD_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    public enum Type {
+        BLOOM,
+        INFINI
+    }
+
+    public interface Payload {
+        void write(DataOutput out) throws IOException;
+    }
+
+    private final Path file;
+    private final Type type;
+    private final double falsePositiveRate;
+    private final Payload payload;
+    private final BlockstoreGeneration generation;
+    private final Supplier<Long> blockCount;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "filter-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+    private long lastSnapshotGeneration;
+
+    public FilterSnapshot(Path file,
+                          Type type,
+                          double falsePositiveRate,
+                          Payload payload,
+                          BlockstoreGeneration generation,
+                          Supplier<Long> blockCount,
+                          boolean current) {
+        this.file = file;
+        this.type = type;
+        this.falsePositiveRate = falsePositiveRate;
+        this.payload = payload;
+        this.generation = generation;
+        this.blockCount = blockCount;
+        this.lastSnapshotGeneration = current ? generation.get() : -1;
+    }
+
+    /**
+     * Snapshot now if the filter was rebuilt rather than loaded from a current snapshot, then periodically.
+     */
+    public synchronized void start(long periodMillis) {
+        long initialDelay = lastSnapshotGeneration == generation.get() ? periodMillis : 0;
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                snapshotIfChanged();
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Unable to snapshot filter: " + t.getMessage(), t);
+            }
+        }, initialDelay, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void snapshotIfChanged() {
+        // read the generation first, so any concurrent write invalidates the snapshot
+        long gen = generation.get();
+        if (gen == lastSnapshotGeneration)
+            return;
+        write(file, type, gen, blockCount.get(), falsePositiveRate, payload);
+        lastSnapshotGeneration = gen;
+    }
+
+    public void close() {
+        // don't interrupt, as that would close the channel of a snapshot being written
+        timer.shutdown();
+        try {
+            timer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            LOG.log(Level.WARNING, "Interrupted waiting for filter snapshot to finish", e);
+        }
+        snapshotIfChanged();
+    }
+
+    public static void write(Path file, Type type, long generation, long blockCount, double falsePositiveRate, Payload payload) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ch.position(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(ch), crc), 1024 * 1024));
+            payload.write(out);
+            out.flush();
+            long payloadSize = ch.position() - HEADER_SIZE;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(type.ordinal())
+                    .putLong(generation)
+                    .putLong(blockCount)
+                    .putDouble(falsePositiveRate)
+                    .putLong(payloadSize)
+                    .putLong(crc.getValue())
+                    .flip();
+            while (header.hasRemaining())
+                ch.write(header, header.position());
+            ch.force(true);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        LOG.info("Wrote " + type + " filter snapshot at generation " + generation);
+    }
+
+    /**
+     * Memory map a snapshot and validate it.
+     *
+     * @return the snapshot payload if the snapshot exists and matches the given parameters
+     */
+    public static Optional<ByteBuffer> read(Path file, Type type, long generation, long blockCount, double falsePositiveRate) {
+        if (! Files.exists(file))
+            return Optional.empty();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+                return invalid(file, "size " + size);
+            MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (mapped.getLong() != MAGIC || mapped.getInt() != VERSION)
+                return invalid(file, "unknown format");
+            if (mapped.getInt() != type.ordinal())
+                return invalid(file, "different filter type");
+            long snapshotGeneration = mapped.getLong();
+            long snapshotBlockCount = mapped.getLong();
+            if (snapshotGeneration != generation || snapshotBlockCount != blockCount)
+                return invalid(file, "blockstore has changed");
+            if (mapped.getDouble() != falsePositiveRate)
+                return invalid(file, "different false positive rate");
+            long payloadSize = mapped.getLong();
+            long expectedCrc = mapped.getLong();
+            if (payloadSize != size - HEADER_SIZE)
+                return invalid(file, "truncated");
+            ByteBuffer payload = mapped.slice();
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if (crc.getValue() != expectedCrc)
+                return invalid(file, "checksum mismatch");
+            LOG.info("Loading " + type + " filter snapshot at generation " + generation);
+            return Optional.of(payload);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to read filter snapshot " + file + ": " + e.getMessage(), e);
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<ByteBuffer> invalid(Path file, String reason) {
+        LOG.info("Ignoring filter snapshot " + file + ": " + reason);
+        return Optional.empty();
+    }
+}
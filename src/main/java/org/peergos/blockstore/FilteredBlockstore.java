@@ -2,84 +2,242 @@ package org.peergos.blockstore;
 
 import io.ipfs.cid.Cid;
 import io.ipfs.multihash.*;
+import org.peergos.Hash;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.util.*;
 
-import java.util.List;
-import java.util.Optional;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.*;
 import java.util.stream.*;
 
 public class FilteredBlockstore implements Blockstore {
 
+    private static final int PUT_STRIPES = 1024;
+
     private final Blockstore blocks;
     private final Filter present;
-    private volatile Filter absent;
-    private final AtomicLong absentCount = new AtomicLong(0);
+    private final GenerationalAbsentFilter absent;
+    // bumped on every put of a cid in the stripe, so a lookup racing with a put doesn't record the cid as absent
+    private final AtomicLongArray putEpochs = new AtomicLongArray(PUT_STRIPES);
 
-    public FilteredBlockstore(Blockstore blocks, Filter present) {
+    private final Optional<BlockstoreGeneration> generation;
+    private volatile Optional<FilterSnapshot> snapshot = Optional.empty();
+
+    public FilteredBlockstore(Blockstore blocks,
+                              Filter present,
+                              GenerationalAbsentFilter absent,
+                              Optional<BlockstoreGeneration> generation) {
         this.blocks = blocks;
         this.present = present;
-        this.absent = buildAbsentFilter();
+        this.absent = absent;
+        this.generation = generation;
+    }
+
+    public FilteredBlockstore(Blockstore blocks, Filter present) {
+        this(blocks, present, new GenerationalAbsentFilter(), Optional.empty());
     }
 
     public CompletableFuture<Boolean> bloomAdd(Cid cid) {
         present.add(cid);
+        markPresent(cid);
         return CompletableFuture.completedFuture(true);
     }
 
-    private static Filter buildAbsentFilter() {
-        return CidInfiniFilter.build(1_000, 0.001);
+    private static int stripe(Cid c) {
+        return Math.floorMod(c.hashCode(), PUT_STRIPES);
     }
 
-    private void addAbsentBlock(Cid c) {
-        if (absentCount.get() > 10_000) {
-            absentCount.set(0);
-            absent = buildAbsentFilter();
-        }
-        absentCount.incrementAndGet();
-        absent.add(c);
+    private Cid markPresent(Cid c) {
+        putEpochs.incrementAndGet(stripe(c));
+        absent.remove(c);
+        generation.ifPresent(BlockstoreGeneration::increment);
+        return c;
+    }
+
+    private <T> T modified(T result) {
+        generation.ifPresent(BlockstoreGeneration::increment);
+        return result;
+    }
+
+    private boolean mightHave(Cid c) {
+        return present.has(c) && ! absent.has(c);
+    }
+
+    /**
+     * @param epoch the put epoch of the cid's stripe when the lookup started
+     */
+    private void addAbsentBlock(Cid c, long epoch) {
+        if (putEpochs.get(stripe(c)) == epoch)
+            absent.add(c);
     }
 
     @Override
     public CompletableFuture<Boolean> has(Cid c) {
-        if (present.has(c) && ! absent.has(c))
+        if (mightHave(c)) {
+            long epoch = putEpochs.get(stripe(c));
             return blocks.has(c).thenApply(res -> {
                 if (! res)
-                    addAbsentBlock(c);
+                    addAbsentBlock(c, epoch);
                 return res;
             });
+        }
         return CompletableFuture.completedFuture(false);
     }
 
     @Override
     public CompletableFuture<Boolean> hasAny(Multihash h) {
-        return Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
-                .anyMatch(c -> has(new Cid(1, c, h.getType(), h.getHash())).join()));
+        if (! present.hasAny(h))
+            return Futures.of(false);
+        return blocks.hasAny(h);
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> get(Cid c) {
-        if (present.has(c) && ! absent.has(c)) {
+        if (mightHave(c)) {
+            long epoch = putEpochs.get(stripe(c));
             return blocks.get(c).exceptionally(t -> {
-                addAbsentBlock(c);
+                addAbsentBlock(c, epoch);
                 return Optional.empty();
             });
         }
         return CompletableFuture.completedFuture(Optional.empty());
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        if (mightHave(c)) {
+            long epoch = putEpochs.get(stripe(c));
+            return blocks.getBuffer(c).exceptionally(t -> {
+                addAbsentBlock(c, epoch);
+                return Optional.empty();
+            });
+        }
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    /**
+     *  Only a cid the filter reports as present might already be stored, so only those are checked in the target.
+     *  Filters that don't count duplicates don't need the check at all.
+     *
+     *  @return the cids that were stored before this put, which mustn't get another entry in a counting filter
+     */
+    private CompletableFuture<Set<Cid>> alreadyStored(List<Cid> cids) {
+        if (! present.countsDuplicates())
+            return Futures.of(Collections.emptySet());
+        List<Cid> candidates = cids.stream()
+                .filter(present::has)
+                .distinct()
+                .collect(Collectors.toList());
+        if (candidates.isEmpty())
+            return Futures.of(Collections.emptySet());
+        return blocks.hasAll(candidates).thenApply(res -> {
+            Set<Cid> stored = new HashSet<>();
+            for (int i = 0; i < candidates.size(); i++)
+                if (res.get(i))
+                    stored.add(candidates.get(i));
+            return stored;
+        });
+    }
+
+    private static Cid cid(byte[] block, Cid.Codec codec) {
+        return new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(block));
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
-        return blocks.put(block, codec)
-                .thenApply(present::add);
+        if (! present.countsDuplicates())
+            return blocks.put(block, codec).thenApply(c -> markPresent(present.add(c)));
+        return alreadyStored(List.of(cid(block, codec))).thenCompose(stored -> blocks.put(block, codec)
+                .thenApply(c -> {
+                    if (! stored.contains(c))
+                        present.add(c);
+                    return markPresent(c);
+                }));
     }
 
     @Override
     public CompletableFuture<Boolean> rm(Cid c) {
-        return blocks.rm(c);
+        return blocks.rm(c).thenApply(removed -> {
+            if (removed)
+                present.remove(c);
+            return modified(removed);
+        });
+    }
+
+    /**
+     *  Only pass the cids that might be present through to the target, answering the rest with the absent value.
+     */
+    private <T> CompletableFuture<List<T>> filteredBatch(List<Cid> cids,
+                                                        Function<List<Cid>, CompletableFuture<List<T>>> op,
+                                                        T absentValue) {
+        List<Cid> candidates = cids.stream()
+                .filter(this::mightHave)
+                .collect(Collectors.toList());
+        if (candidates.isEmpty())
+            return Futures.of(cids.stream().map(c -> absentValue).collect(Collectors.toList()));
+        return op.apply(candidates).thenApply(found -> {
+            Map<Cid, T> results = new HashMap<>();
+            for (int i = 0; i < candidates.size(); i++)
+                results.put(candidates.get(i), found.get(i));
+            return cids.stream()
+                    .map(c -> results.getOrDefault(c, absentValue))
+                    .collect(Collectors.toList());
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return filteredBatch(cids, candidates -> {
+            long[] epochs = candidates.stream().mapToLong(c -> putEpochs.get(stripe(c))).toArray();
+            return blocks.hasAll(candidates).thenApply(res -> {
+                for (int i = 0; i < candidates.size(); i++)
+                    if (! res.get(i))
+                        addAbsentBlock(candidates.get(i), epochs[i]);
+                return res;
+            });
+        }, false);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        // on a batch failure, fall back to individual gets so only the failing blocks are marked absent
+        return filteredBatch(cids, candidates -> blocks.getAll(candidates)
+                .exceptionally(t -> candidates.stream()
+                        .map(c -> get(c).join())
+                        .collect(Collectors.toList())), Optional.empty());
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<Pair<byte[], Cid.Codec>> toPut) {
+        List<Cid> expected = present.countsDuplicates() ?
+                toPut.stream()
+                        .map(p -> cid(p.left, p.right))
+                        .collect(Collectors.toList()) :
+                Collections.emptyList();
+        return alreadyStored(expected).thenCompose(stored -> blocks.putAll(toPut).thenApply(cids -> {
+            Set<Cid> added = new HashSet<>(stored);
+            for (Cid c : cids) {
+                if (added.add(c))
+                    present.add(c);
+                markPresent(c);
+            }
+            return cids;
+        }));
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return blocks.rmAll(cids).thenApply(removed -> {
+            for (int i = 0; i < cids.size(); i++)
+                if (removed.get(i))
+                    present.remove(cids.get(i));
+            return modified(removed);
+        });
     }
 
     @Override
@@ -87,6 +245,11 @@ public class FilteredBlockstore implements Blockstore {
         return blocks.refs(useBlockstore);
     }
 
+    @Override
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        return blocks.refs(resumeToken, pageSize, codec, useBlockstore);
+    }
+
     @Override
     public CompletableFuture<Long> count(boolean useBlockstore) {
         return blocks.count(useBlockstore);
@@ -98,11 +261,84 @@ public class FilteredBlockstore implements Blockstore {
     }
 
     public static FilteredBlockstore bloomBased(Blockstore source, double falsePositiveRate) {
-        return new FilteredBlockstore(source, CidBloomFilter.build(source, falsePositiveRate));
+        return new FilteredBlockstore(source, rebuilding(source, CidBloomFilter.build(source, falsePositiveRate),
+                () -> CidBloomFilter.build(source, falsePositiveRate), falsePositiveRate, Optional.empty()));
     }
 
     public static FilteredBlockstore infiniBased(Blockstore source, double falsePositiveRate) {
-        return new FilteredBlockstore(source, CidInfiniFilter.build(source, falsePositiveRate));
+        return new FilteredBlockstore(source, rebuilding(source, CidInfiniFilter.build(source, falsePositiveRate),
+                () -> CidInfiniFilter.build(source, falsePositiveRate), falsePositiveRate, Optional.empty()));
+    }
+
+    /**
+     *  Rebuild the filter in the background once removed blocks push its false positive rate too high.
+     */
+    private static <F extends Filter> RebuildingFilter<F> rebuilding(Blockstore source,
+                                                                     F initial,
+                                                                     Supplier<F> builder,
+                                                                     double falsePositiveRate,
+                                                                     Optional<BlockstoreGeneration> generation) {
+        return new RebuildingFilter<>(initial, builder, () -> source.count(false).join(), falsePositiveRate,
+                falsePositiveRate * RebuildingFilter.DEFAULT_REBUILD_FACTOR,
+                () -> generation.ifPresent(BlockstoreGeneration::increment));
+    }
+
+    /**
+     *  Reload the filter from a snapshot in the given directory if it is current, otherwise rebuild it. The filter is
+     *  then snapshotted periodically and on close.
+     */
+    public static FilteredBlockstore bloomBased(Blockstore source, double falsePositiveRate, Path snapshotDir) {
+        BlockstoreGeneration generation = openGeneration(snapshotDir);
+        Path file = snapshotDir.resolve("blocks.bloom");
+        Optional<CidBloomFilter> loaded = FilterSnapshot.read(file, FilterSnapshot.Type.BLOOM, generation.get(),
+                        source.count(false).join(), falsePositiveRate)
+                .flatMap(CidBloomFilter::fromSnapshot);
+        RebuildingFilter<CidBloomFilter> filter = rebuilding(source,
+                loaded.orElseGet(() -> CidBloomFilter.build(source, falsePositiveRate)),
+                () -> CidBloomFilter.build(source, falsePositiveRate), falsePositiveRate, Optional.of(generation));
+        FilteredBlockstore res = new FilteredBlockstore(source, filter, new GenerationalAbsentFilter(), Optional.of(generation));
+        res.startSnapshots(new FilterSnapshot(file, FilterSnapshot.Type.BLOOM, falsePositiveRate,
+                out -> filter.current().writeSnapshot(out),
+                generation, () -> source.count(false).join(), loaded.isPresent()));
+        return res;
+    }
+
+    public static FilteredBlockstore infiniBased(Blockstore source, double falsePositiveRate, Path snapshotDir) {
+        BlockstoreGeneration generation = openGeneration(snapshotDir);
+        Path file = snapshotDir.resolve("blocks.infini");
+        Optional<CidInfiniFilter> loaded = FilterSnapshot.read(file, FilterSnapshot.Type.INFINI, generation.get(),
+                        source.count(false).join(), falsePositiveRate)
+                .map(CidInfiniFilter::fromSnapshot);
+        RebuildingFilter<CidInfiniFilter> filter = rebuilding(source,
+                loaded.orElseGet(() -> CidInfiniFilter.build(source, falsePositiveRate)),
+                () -> CidInfiniFilter.build(source, falsePositiveRate), falsePositiveRate, Optional.of(generation));
+        FilteredBlockstore res = new FilteredBlockstore(source, filter, new GenerationalAbsentFilter(), Optional.of(generation));
+        res.startSnapshots(new FilterSnapshot(file, FilterSnapshot.Type.INFINI, falsePositiveRate,
+                out -> filter.current().writeSnapshot(out),
+                generation, () -> source.count(false).join(), loaded.isPresent()));
+        return res;
+    }
+
+    private static BlockstoreGeneration openGeneration(Path snapshotDir) {
+        try {
+            Files.createDirectories(snapshotDir);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        return new BlockstoreGeneration(snapshotDir.resolve("generation"));
+    }
+
+    private void startSnapshots(FilterSnapshot snapshot) {
+        this.snapshot = Optional.of(snapshot);
+        snapshot.start(FilterSnapshot.DEFAULT_PERIOD_MILLIS);
+    }
+
+    /**
+     *  Write a final filter snapshot, if snapshots are enabled.
+     */
+    public void close() {
+        snapshot.ifPresent(FilterSnapshot::close);
+        present.close();
     }
 
     @Override
@@ -0,0 +1,69 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An approximate, aging access frequency counter for cids (the TinyLFU count-min sketch). Each cid maps to one
+ * saturating 4-bit counter in each of 4 rows and its frequency is the minimum of these. All counters are halved once
+ * enough increments have been recorded, so old popularity decays.
+ */
+public class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    public FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(1024, Math.min(1 << 26, expectedEntries)) - 1) << 1;
+        this.counters = new byte[ROWS][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    private static long[] hashes(Cid c) {
+        byte[] hash = c.getHash();
+        if (hash.length >= 16) {
+            // already a cryptographic hash, so use it directly
+            ByteBuffer buf = ByteBuffer.wrap(hash);
+            return new long[] {buf.getLong(0), buf.getLong(8) | 1};
+        }
+        long h = Arrays.hashCode(hash) * 0x9E3779B97F4A7C15L;
+        return new long[] {h, (h >>> 29) | 1};
+    }
+
+    private int index(long[] h, int row) {
+        return (int) ((h[0] + row * h[1]) & mask);
+    }
+
+    public synchronized int frequency(Cid c) {
+        long[] h = hashes(c);
+        int min = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++)
+            min = Math.min(min, counters[row][index(h, row)]);
+        return min;
+    }
+
+    public synchronized void increment(Cid c) {
+        long[] h = hashes(c);
+        for (int row = 0; row < ROWS; row++) {
+            int i = index(h, row);
+            if (counters[row][i] < MAX_COUNT)
+                counters[row][i]++;
+        }
+        if (++additions >= sampleSize)
+            age();
+    }
+
+    private void age() {
+        for (byte[] row : counters)
+            for (int i = 0; i < row.length; i++)
+                row[i] >>= 1;
+        additions /= 2;
+    }
+}
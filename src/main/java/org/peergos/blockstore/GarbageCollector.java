@@ -0,0 +1,356 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.peergos.cbor.CborObject;
+import org.peergos.util.Logging;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * A mark and sweep garbage collector for a blockstore.
+ *
+ * A collection runs in three phases:
+ *  - indexing records every block currently stored in a compact mark set
+ *  - marking walks the block links from the roots in parallel, marking every reachable block
+ *  - sweeping pages through the blockstore again and deletes unmarked blocks in throttled batches
+ *
+ * Only blocks present when indexing ran can be deleted, so blocks written during a collection are always retained.
+ * Blocks that are put, read or checked for through the tracking view of the blockstore during a collection are also
+ * retained, as a client may be about to link to them from a new root.
+ * Links are read from the block metadata, falling back to parsing the block. If the links of a stored block can't be
+ * read the collection fails rather than risk deleting its children.
+ */
+public class GarbageCollector {
+
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_MARK_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    public static final int DEFAULT_SWEEP_BATCH_SIZE = 1_000;
+    public static final int DEFAULT_MAX_DELETES_PER_SECOND = 10_000;
+
+    private static final Counter runs = Counter.build()
+            .name("ipfs_gc_runs_total")
+            .help("Number of garbage collections started")
+            .register();
+    private static final Counter deletedBlocks = Counter.build()
+            .name("ipfs_gc_deleted_blocks_total")
+            .help("Number of blocks deleted by garbage collection")
+            .register();
+    private static final Gauge markedBlocks = Gauge.build()
+            .name("ipfs_gc_marked_blocks")
+            .help("Number of reachable blocks marked by the current or last garbage collection")
+            .register();
+
+    public enum Phase {
+        IDLE,
+        INDEXING,
+        MARKING,
+        SWEEPING,
+        DONE,
+        CANCELLED,
+        FAILED
+    }
+
+    public static class Progress {
+        public final Phase phase;
+        public final long indexed, marked, scanned, deleted;
+        public final long startMillis, durationMillis;
+        public final Optional<String> error;
+
+        public Progress(Phase phase,
+                        long indexed,
+                        long marked,
+                        long scanned,
+                        long deleted,
+                        long startMillis,
+                        long durationMillis,
+                        Optional<String> error) {
+            this.phase = phase;
+            this.indexed = indexed;
+            this.marked = marked;
+            this.scanned = scanned;
+            this.deleted = deleted;
+            this.startMillis = startMillis;
+            this.durationMillis = durationMillis;
+            this.error = error;
+        }
+
+        public Map<String, Object> toJson() {
+            Map<String, Object> res = new LinkedHashMap<>();
+            res.put("Phase", phase.name());
+            res.put("Indexed", indexed);
+            res.put("Marked", marked);
+            res.put("Scanned", scanned);
+            res.put("Deleted", deleted);
+            res.put("StartMillis", startMillis);
+            res.put("DurationMillis", durationMillis);
+            error.ifPresent(e -> res.put("Error", e));
+            return res;
+        }
+    }
+
+    private final Blockstore blocks;
+    private final int markThreads, sweepBatchSize, maxDeletesPerSecond;
+    private final ExecutorService runner = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "gc");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile Phase phase = Phase.IDLE;
+    private volatile boolean cancelled = false;
+    private volatile long startMillis = 0, endMillis = 0;
+    private volatile Optional<String> error = Optional.empty();
+    private final AtomicLong indexed = new AtomicLong(0), marked = new AtomicLong(0),
+            scanned = new AtomicLong(0), deleted = new AtomicLong(0);
+    // cids used through the tracking view while a collection runs, which the sweep must keep
+    private final Set<Cid> grace = ConcurrentHashMap.newKeySet();
+    private volatile boolean tracking = false;
+    private boolean running = false;
+
+    /**
+     * @param maxDeletesPerSecond the sweep's delete rate limit, or 0 for no limit
+     */
+    public GarbageCollector(Blockstore blocks, int markThreads, int sweepBatchSize, int maxDeletesPerSecond) {
+        if (markThreads < 1)
+            throw new IllegalArgumentException("Need at least one mark thread");
+        if (sweepBatchSize < 1)
+            throw new IllegalArgumentException("Sweep batch size must be positive");
+        if (maxDeletesPerSecond < 0)
+            throw new IllegalArgumentException("Max deletes per second can't be negative");
+        this.blocks = blocks;
+        this.markThreads = markThreads;
+        this.sweepBatchSize = sweepBatchSize;
+        this.maxDeletesPerSecond = maxDeletesPerSecond;
+    }
+
+    public GarbageCollector(Blockstore blocks) {
+        this(blocks, DEFAULT_MARK_THREADS, DEFAULT_SWEEP_BATCH_SIZE, DEFAULT_MAX_DELETES_PER_SECOND);
+    }
+
+    /**
+     * @return a view of the blockstore that protects the blocks used through it from a running collection. Clients
+     * should use this rather than the underlying blockstore.
+     */
+    public Blockstore tracking() {
+        return new GcTrackingBlockstore(blocks, () -> tracking, grace::add);
+    }
+
+    /**
+     * Start a collection in the background.
+     *
+     * @return the progress at the end of the collection
+     */
+    public synchronized CompletableFuture<Progress> start(RootsProvider roots) {
+        if (running)
+            throw new IllegalStateException("Garbage collection is already running");
+        running = true;
+        cancelled = false;
+        phase = Phase.INDEXING;
+        startMillis = System.currentTimeMillis();
+        error = Optional.empty();
+        indexed.set(0);
+        marked.set(0);
+        scanned.set(0);
+        deleted.set(0);
+        grace.clear();
+        tracking = true;
+        return CompletableFuture.supplyAsync(() -> run(roots), runner);
+    }
+
+    public Progress progress() {
+        long end = phase == Phase.IDLE || isRunning() ? System.currentTimeMillis() : endMillis;
+        return new Progress(phase, indexed.get(), marked.get(), scanned.get(), deleted.get(), startMillis,
+                startMillis == 0 ? 0 : end - startMillis, error);
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop the current collection after the batch in progress.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void checkCancelled() {
+        if (cancelled)
+            throw new CancellationException("Garbage collection cancelled");
+    }
+
+    private Progress run(RootsProvider roots) {
+        runs.inc();
+        markedBlocks.set(0);
+        try {
+            MarkSet set = index();
+            phase = Phase.MARKING;
+            Set<Cid> unindexed = ConcurrentHashMap.newKeySet();
+            mark(set, unindexed, roots.getRoots());
+            // pick up roots that changed while marking
+            mark(set, unindexed, roots.getRoots());
+            phase = Phase.SWEEPING;
+            sweep(set);
+            phase = Phase.DONE;
+        } catch (CancellationException e) {
+            phase = Phase.CANCELLED;
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, "Garbage collection failed: " + t.getMessage(), t);
+            error = Optional.of(String.valueOf(t.getMessage()));
+            phase = Phase.FAILED;
+        } finally {
+            endMillis = System.currentTimeMillis();
+            tracking = false;
+            grace.clear();
+            synchronized (this) {
+                running = false;
+            }
+        }
+        Progress res = progress();
+        LOG.info("Garbage collection " + res.phase + " after " + res.durationMillis + "ms, marked " + res.marked
+                + " of " + res.indexed + " blocks and deleted " + res.deleted);
+        return res;
+    }
+
+    private MarkSet index() {
+        long count = blocks.count(false).join();
+        // leave room for blocks written while indexing, later blocks are simply never swept
+        MarkSet set = new MarkSet(count + count / 4 + 1024);
+        Optional<String> token = Optional.empty();
+        do {
+            RefsPage page = blocks.refs(token, RefsPage.DEFAULT_PAGE_SIZE, Optional.empty(), false).join();
+            for (Cid c : page.refs) {
+                if (! set.add(c)) {
+                    LOG.info("Garbage collection mark set is full, retaining blocks indexed after " + set.size());
+                    return set;
+                }
+                indexed.incrementAndGet();
+            }
+            token = page.next;
+            checkCancelled();
+        } while (token.isPresent());
+        return set;
+    }
+
+    private void mark(MarkSet set, Set<Cid> unindexed, Collection<Cid> roots) throws InterruptedException {
+        Queue<Cid> work = new ConcurrentLinkedQueue<>(roots);
+        // queued plus in progress, so idle workers know when the walk is finished
+        AtomicLong outstanding = new AtomicLong(work.size());
+        ExecutorService pool = Executors.newFixedThreadPool(markThreads, r -> {
+            Thread t = new Thread(r, "gc-mark");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < markThreads; i++)
+                workers.add(pool.submit(() -> markWorker(set, unindexed, work, outstanding)));
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    // stop the other workers
+                    cancelled = true;
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void markWorker(MarkSet set, Set<Cid> unindexed, Queue<Cid> work, AtomicLong outstanding) {
+        while (true) {
+            checkCancelled();
+            Cid c = work.poll();
+            if (c == null) {
+                if (outstanding.get() == 0)
+                    return;
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            try {
+                int slot = set.indexOf(c);
+                boolean first = slot >= 0 ? set.mark(slot) : unindexed.add(c);
+                if (! first)
+                    continue;
+                if (slot >= 0)
+                    markedBlocks.set(marked.incrementAndGet());
+                for (Cid link : links(c)) {
+                    outstanding.incrementAndGet();
+                    work.add(link);
+                }
+            } finally {
+                outstanding.decrementAndGet();
+            }
+        }
+    }
+
+    private List<Cid> links(Cid c) {
+        if (c.codec == Cid.Codec.Raw)
+            return Collections.emptyList();
+        try {
+            return blocks.getBlockMetadata(c).join().links;
+        } catch (RuntimeException e) {
+            // no metadata, parse the block itself
+            Optional<byte[]> block = blocks.get(c).join();
+            if (block.isEmpty())
+                return Collections.emptyList();
+            return CborObject.getLinks(c, block.get());
+        }
+    }
+
+    private void sweep(MarkSet set) throws InterruptedException {
+        long sweepStart = System.nanoTime();
+        List<Cid> batch = new ArrayList<>();
+        Optional<String> token = Optional.empty();
+        do {
+            RefsPage page = blocks.refs(token, RefsPage.DEFAULT_PAGE_SIZE, Optional.empty(), false).join();
+            for (Cid c : page.refs) {
+                scanned.incrementAndGet();
+                int slot = set.indexOf(c);
+                if (slot >= 0 && ! set.isMarked(slot) && ! grace.contains(c))
+                    batch.add(c);
+                if (batch.size() >= sweepBatchSize) {
+                    delete(batch, sweepStart);
+                    checkCancelled();
+                }
+            }
+            token = page.next;
+            checkCancelled();
+        } while (token.isPresent());
+        if (! batch.isEmpty())
+            delete(batch, sweepStart);
+    }
+
+    private void delete(List<Cid> batch, long sweepStart) throws InterruptedException {
+        // recheck just before deleting, the batch may have been used since it was scanned
+        List<Cid> toDelete = batch.stream()
+                .filter(c -> ! grace.contains(c))
+                .collect(Collectors.toList());
+        long removed = toDelete.isEmpty() ? 0 : blocks.rmAll(toDelete).join()
+                .stream()
+                .filter(b -> b)
+                .count();
+        batch.clear();
+        deletedBlocks.inc(removed);
+        long total = deleted.addAndGet(removed);
+        if (maxDeletesPerSecond == 0)
+            return;
+        // throttle to the maximum delete rate, so serving blocks isn't starved of IO
+        long dueNanos = total * 1_000_000_000L / maxDeletesPerSecond;
+        long elapsedNanos = System.nanoTime() - sweepStart;
+        if (dueNanos > elapsedNanos)
+            Thread.sleep((dueNanos - elapsedNanos) / 1_000_000);
+    }
+}
@@ -0,0 +1,134 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.peergos.Hash;
+import org.peergos.blockstore.metadatadb.*;
+import org.peergos.util.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Reports every cid that is put, read or checked for through this blockstore to the garbage collector before the
+ * operation runs, so a block a client is about to link to can't be swept by a collection that is already running.
+ * Nothing is reported, or hashed, while no collection is running.
+ */
+public class GcTrackingBlockstore implements Blockstore {
+
+    private final Blockstore target;
+    private final BooleanSupplier collecting;
+    private final Consumer<Cid> used;
+
+    public GcTrackingBlockstore(Blockstore target, BooleanSupplier collecting, Consumer<Cid> used) {
+        this.target = target;
+        this.collecting = collecting;
+        this.used = used;
+    }
+
+    private Cid use(Cid c) {
+        if (collecting.getAsBoolean())
+            used.accept(c);
+        return c;
+    }
+
+    private List<Cid> useAll(List<Cid> cids) {
+        if (collecting.getAsBoolean())
+            cids.forEach(used);
+        return cids;
+    }
+
+    /**
+     * Puts are reported before they reach the target, so the block is protected before a client can learn its cid.
+     * A collection that starts during the put is told about it once it completes.
+     */
+    private void useBeforePut(byte[] block, Cid.Codec codec) {
+        if (collecting.getAsBoolean())
+            used.accept(new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(block)));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        return target.has(use(c));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return target.hasAny(h);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        return target.get(use(c));
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return target.getBuffer(use(c));
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        useBeforePut(block, codec);
+        return target.put(block, codec).thenApply(this::use);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        return target.rm(c);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return target.hasAll(useAll(cids));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return target.getAll(useAll(cids));
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<Pair<byte[], Cid.Codec>> blocks) {
+        blocks.forEach(b -> useBeforePut(b.left, b.right));
+        return target.putAll(blocks).thenApply(this::useAll);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return target.rmAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return target.refs(useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        return target.refs(resumeToken, pageSize, codec, useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<Long> count(boolean useBlockstore) {
+        return target.count(useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> applyToAll(Consumer<Cid> action, boolean useBlockstore) {
+        return target.applyToAll(action, useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        return target.bloomAdd(cid);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        return target.getBlockMetadata(h);
+    }
+}
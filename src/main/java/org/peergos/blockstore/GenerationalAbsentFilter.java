@@ -0,0 +1,136 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers cids recently found to be absent, within a memory budget.
+ *
+ * Entries are spread over a ring of generations. New entries go into the current generation, and once it is full
+ * the oldest generation is dropped and replaced by an empty one, so only a fraction of the entries are forgotten at
+ * a time. A hit in an older generation refreshes the entry into the current one, so cids that are repeatedly
+ * requested stay known to be absent.
+ */
+public class GenerationalAbsentFilter {
+
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_GENERATIONS = 4;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+
+    private static final Counter lookups = Counter.build()
+            .name("ipfs_absent_filter_lookups_total")
+            .help("Number of lookups in the absent block filter")
+            .register();
+    private static final Counter hits = Counter.build()
+            .name("ipfs_absent_filter_hits_total")
+            .help("Number of lookups answered as absent by the absent block filter")
+            .register();
+    private static final Gauge hitRatio = Gauge.build()
+            .name("ipfs_absent_filter_hit_ratio")
+            .help("Fraction of absent block filter lookups answered without querying the blockstore")
+            .register();
+
+    private final AtomicReferenceArray<CidInfiniFilter> generations;
+    private final AtomicLongArray sizes;
+    private final long entriesPerGeneration;
+    private final double falsePositiveRate;
+    private volatile int current = 0;
+    private final LongAdder lookupCount = new LongAdder(), hitCount = new LongAdder();
+
+    public GenerationalAbsentFilter(long maxBytes, int generationCount, double falsePositiveRate) {
+        if (generationCount < 2)
+            throw new IllegalArgumentException("Need at least 2 generations");
+        this.falsePositiveRate = falsePositiveRate;
+        // infini filters have at least twice as many slots as the entries they are built for
+        long bitsPerGeneration = maxBytes * 8 / generationCount;
+        this.entriesPerGeneration = Math.max(1024, bitsPerGeneration / CidInfiniFilter.bitsPerEntry(falsePositiveRate) / 2);
+        this.generations = new AtomicReferenceArray<>(generationCount);
+        this.sizes = new AtomicLongArray(generationCount);
+        for (int i = 0; i < generationCount; i++)
+            generations.set(i, newGeneration());
+    }
+
+    public GenerationalAbsentFilter() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_GENERATIONS, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    private CidInfiniFilter newGeneration() {
+        return CidInfiniFilter.build((int) Math.min(Integer.MAX_VALUE, entriesPerGeneration), falsePositiveRate);
+    }
+
+    /**
+     * Lock free; the generation filters are thread safe, and an entry lost to a concurrent rotation is only a cache
+     * miss.
+     */
+    public boolean has(Cid c) {
+        lookupCount.increment();
+        lookups.inc();
+        int newest = current;
+        int count = generations.length();
+        for (int age = 0; age < count; age++) {
+            int gen = Math.floorMod(newest - age, count);
+            CidInfiniFilter generation = generations.get(gen);
+            if (generation.has(c)) {
+                if (age > 0 && generation.remove(c)) {
+                    sizes.decrementAndGet(gen);
+                    insert(c);
+                }
+                hitCount.increment();
+                hits.inc();
+                updateHitRatio();
+                return true;
+            }
+        }
+        updateHitRatio();
+        return false;
+    }
+
+    private void updateHitRatio() {
+        hitRatio.set((double) hitCount.sum() / lookupCount.sum());
+    }
+
+    public void add(Cid c) {
+        for (int i = 0; i < generations.length(); i++)
+            if (generations.get(i).has(c))
+                return;
+        insert(c);
+    }
+
+    private void insert(Cid c) {
+        int gen = current;
+        while (sizes.incrementAndGet(gen) > entriesPerGeneration) {
+            rotate(gen);
+            gen = current;
+        }
+        generations.get(gen).add(c);
+    }
+
+    /**
+     * Replace the oldest generation with an empty one and make it current, unless another thread already rotated
+     * away from the given full generation.
+     */
+    private synchronized void rotate(int full) {
+        if (current != full)
+            return;
+        int next = (full + 1) % generations.length();
+        generations.set(next, newGeneration());
+        sizes.set(next, 0);
+        current = next;
+    }
+
+    /**
+     * Forget a cid, e.g. because it has since been stored.
+     */
+    public void remove(Cid c) {
+        for (int i = 0; i < generations.length(); i++) {
+            CidInfiniFilter generation = generations.get(i);
+            while (generation.has(c) && generation.remove(c))
+                sizes.updateAndGet(i, n -> Math.max(0, n - 1));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.peergos.blockstore;
+
+import io.prometheus.client.Histogram;
+import org.peergos.util.Logging;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable file writes with group commit. Each writer writes its data to a temp file next to its target on the calling
+ * thread without syncing it. A single committer thread then syncs the data of every pending write, renames them into
+ * place and syncs each affected directory once per batch, so writers don't block on an fsync of their own and
+ * concurrent writers share the directory syncs.
+ */
+public class GroupCommitter {
+
+    private static final Logger LOG = Logging.LOG();
+    public static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAX_BATCH = 4096;
+
+    private static final Histogram commitBatchSize = Histogram.build()
+            .name("ipfs_block_commit_batch_size")
+            .help("Number of block writes made durable per group commit")
+            .exponentialBuckets(1, 2, 13)
+            .register();
+
+    private static class PendingWrite {
+        final Path temp, target;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PendingWrite(Path temp, Path target) {
+            this.temp = temp;
+            this.target = target;
+        }
+    }
+
+    private final BlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>();
+    private final AtomicLong tempCounter = new AtomicLong(0);
+    private final Thread committer;
+    // guarded by pending, so no write can be queued after the committer has drained the queue
+    private volatile boolean running = true;
+
+    public GroupCommitter() {
+        committer = new Thread(this::commitLoop, "block-group-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Write the data to a temp file on the calling thread, then queue its sync and rename to the target path.
+     *
+     * @return a future that completes once the data and its directory entry are durable
+     */
+    public CompletableFuture<Boolean> write(Path target, byte[] data) {
+        if (! running)
+            throw new IllegalStateException("Group committer is closed");
+        Path temp = target.resolveSibling(target.getFileName() + "." + tempCounter.incrementAndGet() + TEMP_SUFFIX);
+        try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining())
+                ch.write(buf);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        PendingWrite write = new PendingWrite(temp, target);
+        synchronized (pending) {
+            if (! running) {
+                deleteTemp(temp);
+                throw new IllegalStateException("Group committer is closed");
+            }
+            pending.add(write);
+        }
+        return write.result;
+    }
+
+    private void commitLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (running || ! pending.isEmpty()) {
+            try {
+                PendingWrite first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                pending.drainTo(batch, MAX_BATCH - 1);
+                commit(batch);
+            } catch (InterruptedException e) {
+                // keep draining until closed
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Group commit failed: " + t.getMessage(), t);
+                batch.forEach(w -> w.result.completeExceptionally(t));
+            } finally {
+                batch.clear();
+            }
+        }
+        // nothing can be queued once running is false, this only catches writes left by an unexpected exit
+        pending.drainTo(batch);
+        batch.forEach(w -> {
+            deleteTemp(w.temp);
+            w.result.completeExceptionally(new IllegalStateException("Group committer is closed"));
+        });
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        Set<Path> dirs = new HashSet<>();
+        List<PendingWrite> moved = new ArrayList<>(batch.size());
+        for (PendingWrite write : batch) {
+            try {
+                try (FileChannel ch = FileChannel.open(write.temp, StandardOpenOption.WRITE)) {
+                    ch.force(false);
+                }
+                Files.move(write.temp, write.target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                dirs.add(write.target.getParent());
+                moved.add(write);
+            } catch (IOException e) {
+                write.result.completeExceptionally(e);
+            }
+        }
+        for (Path dir : dirs)
+            syncDirectory(dir);
+        commitBatchSize.observe(moved.size());
+        moved.forEach(w -> w.result.complete(true));
+    }
+
+    private static void deleteTemp(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Unable to delete " + temp + ": " + e.getMessage());
+        }
+    }
+
+    private static void syncDirectory(Path dir) {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // not all platforms support syncing a directory
+            LOG.log(Level.FINE, "Unable to sync directory " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Delete temp files left in a directory by a crash before their commit.
+     */
+    public static void removeStaleTempFiles(Path dir) throws IOException {
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(dir, "*" + TEMP_SUFFIX)) {
+            for (Path temp : temps)
+                Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Commit all pending writes and stop the committer thread.
+     */
+    public void close() {
+        synchronized (pending) {
+            running = false;
+        }
+        try {
+            committer.join(TimeUnit.MINUTES.toMillis(1));
+        } catch (InterruptedException e) {
+            LOG.log(Level.WARNING, "Interrupted waiting for group commit to finish", e);
+        }
+    }
+}
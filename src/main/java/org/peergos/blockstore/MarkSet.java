@@ -0,0 +1,104 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import org.peergos.blockstore.filters.HashFunctions;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed capacity set of cids, each with a mark bit, for garbage collection.
+ *
+ * Cids are stored as 128 bit fingerprints in an open addressed table, 16 bytes per slot, instead of as objects.
+ * The set is filled from one thread, after which lookups and marks are lock free and can run concurrently.
+ */
+public class MarkSet {
+
+    private static final double MAX_LOAD = 0.7;
+    private static final int MAX_SLOTS = 1 << 30;
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    private final long[] high, low;
+    private final AtomicLongArray marks;
+    private final int mask;
+    private final long maxEntries;
+    private long size = 0;
+
+    public MarkSet(long expectedEntries) {
+        long minSlots = (long) Math.ceil(Math.max(16, expectedEntries) / MAX_LOAD);
+        if (minSlots > MAX_SLOTS)
+            throw new IllegalStateException("Too many blocks for a mark set: " + expectedEntries);
+        int slots = Integer.highestOneBit((int) minSlots - 1) << 1;
+        this.high = new long[slots];
+        this.low = new long[slots];
+        this.marks = new AtomicLongArray((slots + 63) / 64);
+        this.mask = slots - 1;
+        this.maxEntries = (long) (slots * MAX_LOAD);
+    }
+
+    private int find(long h1, long h2) {
+        int slot = (int) (h1 ^ (h1 >>> 32)) & mask;
+        while (true) {
+            long f1 = high[slot];
+            if (f1 == 0 || (f1 == h1 && low[slot] == h2))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static long[] fingerprint(Cid c) {
+        ByteBuffer key = ByteBuffer.wrap(c.toBytes());
+        // the high half is never 0, which marks an empty slot
+        return new long[] {HashFunctions.xxhash(key) | 1, HashFunctions.xxhash(key, SEED)};
+    }
+
+    /**
+     * Add a cid. Not thread safe.
+     *
+     * @return false if the set is full
+     */
+    public boolean add(Cid c) {
+        if (size >= maxEntries)
+            return false;
+        long[] f = fingerprint(c);
+        int slot = find(f[0], f[1]);
+        if (high[slot] == 0) {
+            high[slot] = f[0];
+            low[slot] = f[1];
+            size++;
+        }
+        return true;
+    }
+
+    /**
+     * @return the slot of the cid, or -1 if it isn't in the set
+     */
+    public int indexOf(Cid c) {
+        long[] f = fingerprint(c);
+        int slot = find(f[0], f[1]);
+        return high[slot] == 0 ? -1 : slot;
+    }
+
+    /**
+     * @return true if this call marked the slot, false if it was already marked
+     */
+    public boolean mark(int slot) {
+        int index = slot >>> 6;
+        long bit = 1L << slot;
+        long prev;
+        do {
+            prev = marks.get(index);
+            if ((prev & bit) != 0)
+                return false;
+        } while (! marks.compareAndSet(index, prev, prev | bit));
+        return true;
+    }
+
+    public boolean isMarked(int slot) {
+        return (marks.get(slot >>> 6) & (1L << slot)) != 0;
+    }
+
+    public long size() {
+        return size;
+    }
+}
@@ -0,0 +1,318 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.util.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps recently read blocks in off-heap memory, so hot blocks are served from RAM without growing the Java heap.
+ *
+ * The byte budget is split over independently locked segments. Each segment is a ring buffer in a single direct
+ * buffer; new blocks are appended at the write position, overwriting the oldest blocks. A block that is read when it
+ * is close to being overwritten is moved back to the write position, so frequently read blocks stay resident. The
+ * ring is made of chunks which get a new direct buffer each time the write position wraps round to them, so a buffer
+ * returned by getBuffer is never overwritten; an evicted chunk's memory is freed once no returned buffers reference it.
+ *
+ * Direct memory is limited by -XX:MaxDirectMemorySize, which defaults to the max heap size.
+ */
+public class MemoryCacheBlockstore implements Blockstore {
+
+    private static final Counter hits = Counter.build()
+            .name("ipfs_memory_cache_hits_total")
+            .help("Number of block reads served by the off-heap block cache")
+            .register();
+    private static final Counter misses = Counter.build()
+            .name("ipfs_memory_cache_misses_total")
+            .help("Number of block reads that missed the off-heap block cache")
+            .register();
+    private static final Counter evictions = Counter.build()
+            .name("ipfs_memory_cache_evictions_total")
+            .help("Number of blocks evicted from the off-heap block cache")
+            .register();
+    private static final Gauge cachedBytes = Gauge.build()
+            .name("ipfs_memory_cache_bytes")
+            .help("Total size of the blocks in the off-heap block cache")
+            .register();
+
+    private static final class Entry {
+        final ByteBuffer chunk;
+        final int offset, length;
+
+        Entry(ByteBuffer chunk, int offset, int length) {
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        ByteBuffer view() {
+            int start = offset % chunk.capacity();
+            return chunk.duplicate().position(start).limit(start + length).slice().asReadOnlyBuffer();
+        }
+    }
+
+    private static final class Segment {
+        private static final int CHUNKS = 8;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        // the ring is split into chunks, each given a new direct buffer when the write position enters it, so bytes
+        // are never overwritten in place and views of cached blocks stay valid after eviction
+        private final ByteBuffer[] chunks = new ByteBuffer[CHUNKS];
+        private final int capacity, chunkSize;
+        private final Map<Cid, Entry> index = new HashMap<>();
+        private final TreeMap<Integer, Cid> byOffset = new TreeMap<>();
+        private int writePos = 0;
+
+        Segment(int capacity) {
+            this.chunkSize = Math.max(1, capacity / CHUNKS);
+            this.capacity = chunkSize * CHUNKS;
+        }
+
+        Optional<ByteBuffer> get(Cid c) {
+            lock.lock();
+            try {
+                Entry e = index.get(c);
+                if (e == null)
+                    return Optional.empty();
+                // promote blocks in the quarter of the ring that will be overwritten next
+                int untilOverwritten = Math.floorMod(e.offset - writePos, capacity);
+                if (untilOverwritten < capacity / 4) {
+                    ByteBuffer block = ByteBuffer.allocate(e.length).put(e.view()).flip();
+                    remove(c, e);
+                    return Optional.of(append(c, block).view());
+                }
+                return Optional.of(e.view());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(Cid c, byte[] block) {
+            put(c, ByteBuffer.wrap(block));
+        }
+
+        /**
+         *  Copy the remaining bytes of the block into the cache, without changing the position of the given buffer.
+         */
+        void put(Cid c, ByteBuffer block) {
+            if (block.remaining() > chunkSize)
+                return;
+            lock.lock();
+            try {
+                if (! index.containsKey(c))
+                    append(c, block);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(Cid c) {
+            lock.lock();
+            try {
+                Entry e = index.get(c);
+                if (e != null)
+                    remove(c, e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(Cid c, Entry e) {
+            index.remove(c);
+            byOffset.remove(e.offset);
+            cachedBytes.dec(e.length);
+        }
+
+        private Entry append(Cid c, ByteBuffer block) {
+            int length = block.remaining();
+            int chunkEnd = (writePos / chunkSize + 1) * chunkSize;
+            if (writePos + length > chunkEnd) {
+                evictRange(writePos, chunkEnd);
+                writePos = chunkEnd % capacity;
+            }
+            if (writePos % chunkSize == 0)
+                chunks[writePos / chunkSize] = ByteBuffer.allocateDirect(chunkSize);
+            evictRange(writePos, writePos + length);
+            ByteBuffer chunk = chunks[writePos / chunkSize];
+            chunk.duplicate().position(writePos % chunkSize).put(block.duplicate());
+            Entry e = new Entry(chunk, writePos, length);
+            index.put(c, e);
+            byOffset.put(writePos, c);
+            cachedBytes.inc(length);
+            writePos = (writePos + length) % capacity;
+            return e;
+        }
+
+        /**
+         *  Evict every block starting in [from, to). Blocks are laid out contiguously from the write position, so no
+         *  block starting before from can overlap the range.
+         */
+        private void evictRange(int from, int to) {
+            SortedMap<Integer, Cid> overwritten = byOffset.subMap(from, to);
+            for (Cid c : overwritten.values()) {
+                cachedBytes.dec(index.remove(c).length);
+                evictions.inc();
+            }
+            overwritten.clear();
+        }
+    }
+
+    private final Blockstore target;
+    private final Segment[] segments;
+
+    public MemoryCacheBlockstore(Blockstore target, long maxBytes, int segmentCount) {
+        long segmentSize = maxBytes / segmentCount;
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Block cache segments must be between 1 byte and 2 GiB, use more segments");
+        this.target = target;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment((int) segmentSize);
+    }
+
+    private Segment segment(Cid c) {
+        return segments[Math.floorMod(c.hashCode(), segments.length)];
+    }
+
+    private Optional<ByteBuffer> getCachedBuffer(Cid c) {
+        Optional<ByteBuffer> cached = segment(c).get(c);
+        if (cached.isPresent())
+            hits.inc();
+        else
+            misses.inc();
+        return cached;
+    }
+
+    private Optional<byte[]> getCached(Cid c) {
+        return getCachedBuffer(c).map(buf -> {
+            byte[] block = new byte[buf.remaining()];
+            buf.get(block);
+            return block;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        Optional<byte[]> cached = getCached(c);
+        if (cached.isPresent())
+            return Futures.of(cached);
+        return target.get(c).thenApply(res -> {
+            res.ifPresent(b -> segment(c).put(c, b));
+            return res;
+        });
+    }
+
+    /**
+     * Cache hits return a read-only view of the off-heap copy, and misses are cached straight from the target's
+     * buffer, so neither copies the block onto the heap.
+     */
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        Optional<ByteBuffer> cached = getCachedBuffer(c);
+        if (cached.isPresent())
+            return Futures.of(cached);
+        return target.getBuffer(c).thenApply(res -> {
+            res.ifPresent(b -> segment(c).put(c, b));
+            return res;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        List<Optional<byte[]>> res = cids.stream()
+                .map(this::getCached)
+                .collect(Collectors.toList());
+        List<Integer> missingIndices = new ArrayList<>();
+        for (int i = 0; i < res.size(); i++)
+            if (res.get(i).isEmpty())
+                missingIndices.add(i);
+        if (missingIndices.isEmpty())
+            return Futures.of(res);
+        List<Cid> missing = missingIndices.stream().map(cids::get).collect(Collectors.toList());
+        return target.getAll(missing).thenApply(fetched -> {
+            for (int i = 0; i < missingIndices.size(); i++) {
+                Cid c = missing.get(i);
+                Optional<byte[]> block = fetched.get(i);
+                block.ifPresent(b -> segment(c).put(c, b));
+                res.set(missingIndices.get(i), block);
+            }
+            return res;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        segment(c).remove(c);
+        return target.rm(c);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        cids.forEach(c -> segment(c).remove(c));
+        return target.rmAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        return target.has(c);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return target.hasAny(h);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return target.hasAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        return target.put(block, codec);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<Pair<byte[], Cid.Codec>> blocks) {
+        return target.putAll(blocks);
+    }
+
+    @Override
+    public CompletableFuture<Long> count(boolean useBlockstore) {
+        return target.count(useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return target.refs(useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        return target.refs(resumeToken, pageSize, codec, useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> applyToAll(Consumer<Cid> action, boolean useBlockstore) {
+        return target.applyToAll(action, useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        return target.bloomAdd(cid);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        return target.getBlockMetadata(h);
+    }
+}
@@ -0,0 +1,698 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import org.peergos.Hash;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.cbor.CborObject;
+import org.peergos.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.*;
+import java.util.zip.CRC32;
+
+/**
+ * A blockstore that appends blocks to large segment files instead of writing one file per block.
+ *
+ * Each segment is a sequence of records: [type][cid length][data length][cid][data][crc32]. A CID -> (segment,
+ * offset, length) index is held in memory and snapshotted to disk together with the segment position it covers. The
+ * index is ordered by multihash, so the cids of a multihash are adjacent, and paged refs walk it in order.
+ * On startup the snapshot is loaded and any records appended after it are replayed, truncating a torn tail.
+ * Segments whose live bytes drop below a threshold are compacted in the background by copying their live blocks
+ * to the active segment. With mmap reads enabled, sealed segments are memory mapped and
+ * {@link #getBuffer(Cid)} returns slices of the mapping without copying.
+ *
+ * With sync enabled, writes are appended under the write lock but synced outside it. A sync covers every record
+ * appended before it started, so concurrent writers share syncs rather than queueing behind one each.
+ */
+public class PackBlockstore implements Blockstore {
+
+    private static final Logger LOG = Logging.LOG();
+
+    private static final String PACKS = "packs";
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final String INDEX_FILE = "index";
+    private static final long INDEX_MAGIC = 0x6e6162752d696478L;
+    private static final byte BLOCK_RECORD = 1;
+    private static final byte TOMBSTONE_RECORD = 2;
+    private static final int RECORD_HEADER_SIZE = 1 + 4 + 4;
+    private static final int RECORD_TRAILER_SIZE = 4;
+
+    public static final long DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final class Location {
+        final Cid cid;
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(Cid cid, int segment, long offset, int length) {
+            this.cid = cid;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path packsRoot;
+    private final long maxSegmentSize;
+    private final double compactionThreshold;
+    private final boolean sync;
+    private final boolean mmapReads;
+    // keyed by multihash, then version and codec, see key(Cid)
+    private final ConcurrentSkipListMap<byte[], Location> index = new ConcurrentSkipListMap<>(Arrays::compareUnsigned);
+    private final AtomicLong count = new AtomicLong();
+    private final ConcurrentHashMap<Integer, FileChannel> segments = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, MappedByteBuffer> mapped = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, AtomicLong> liveBytes = new ConcurrentHashMap<>();
+    private final AtomicBoolean indexDirty = new AtomicBoolean(false);
+    private final ScheduledExecutorService maintenance;
+    private final Object writeLock = new Object();
+    private int activeSegment;
+    private FileChannel active;
+    private long activeSize;
+    // guarded by syncLock, the position in the active segment that has been synced
+    private final Object syncLock = new Object();
+    private int syncedSegment;
+    private long syncedSize;
+
+    public PackBlockstore(Path root, long maxSegmentSize, double compactionThreshold, boolean sync, boolean mmapReads) {
+        if (root == null || !root.toFile().isDirectory()) {
+            throw new IllegalStateException("Path must be a directory! " + root);
+        }
+        this.packsRoot = root.resolve(PACKS);
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.sync = sync;
+        this.mmapReads = mmapReads;
+        try {
+            Files.createDirectories(packsRoot);
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pack-blockstore-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.MINUTES);
+        LOG.info("Using PackBlockstore at location: " + packsRoot + " with " + count.get() + " blocks");
+    }
+
+    public PackBlockstore(Path root, long maxSegmentSize, double compactionThreshold, boolean sync) {
+        this(root, maxSegmentSize, compactionThreshold, sync, false);
+    }
+
+    public PackBlockstore(Path root) {
+        this(root, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD, true);
+    }
+
+    public static PackBlockstore build(Path root, Map<String, Object> params) {
+        long segmentSize = Optional.ofNullable(params.get("segmentSize"))
+                .map(s -> Long.parseLong((String) s))
+                .orElse(DEFAULT_SEGMENT_SIZE);
+        double threshold = Optional.ofNullable(params.get("compactionThreshold"))
+                .map(s -> Double.parseDouble((String) s))
+                .orElse(DEFAULT_COMPACTION_THRESHOLD);
+        boolean sync = Optional.ofNullable(params.get("sync"))
+                .map(s -> Boolean.parseBoolean((String) s))
+                .orElse(true);
+        boolean mmap = Optional.ofNullable(params.get("mmap"))
+                .map(s -> Boolean.parseBoolean((String) s))
+                .orElse(false);
+        return new PackBlockstore(root, segmentSize, threshold, sync, mmap);
+    }
+
+    /**
+     * The multihash comes first, so the cids of a multihash are adjacent, followed by the version and codec. A
+     * multihash encodes its length, so it is never a prefix of another.
+     */
+    private static byte[] key(Cid c) {
+        byte[] hash = c.bareMultihash().toBytes();
+        return ByteBuffer.wrap(Arrays.copyOf(hash, hash.length + 9))
+                .position(hash.length)
+                .put((byte) c.version)
+                .putLong(c.codec.type)
+                .array();
+    }
+
+    private Path segmentPath(int segment) {
+        return packsRoot.resolve(String.format("%08d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(packsRoot)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(SEGMENT_SUFFIX))
+                    .map(n -> Integer.parseInt(n.substring(0, n.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private FileChannel channel(int segment) throws IOException {
+        FileChannel existing = segments.get(segment);
+        if (existing != null)
+            return existing;
+        synchronized (segments) {
+            existing = segments.get(segment);
+            if (existing != null)
+                return existing;
+            FileChannel opened = FileChannel.open(segmentPath(segment), StandardOpenOption.READ);
+            segments.put(segment, opened);
+            return opened;
+        }
+    }
+
+    /* ---- startup and recovery ---- */
+
+    private void load() throws IOException {
+        List<Integer> existing = listSegments();
+        int replayFrom = 0;
+        long replayOffset = 0;
+        Path indexPath = packsRoot.resolve(INDEX_FILE);
+        if (indexPath.toFile().exists()) {
+            try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(indexPath.toFile())))) {
+                if (din.readLong() != INDEX_MAGIC)
+                    throw new IOException("Invalid pack index");
+                replayFrom = din.readInt();
+                replayOffset = din.readLong();
+                long count = din.readLong();
+                for (long i = 0; i < count; i++) {
+                    byte[] raw = new byte[din.readShort()];
+                    din.readFully(raw);
+                    Cid cid = Cid.cast(raw);
+                    index.put(key(cid), new Location(cid, din.readInt(), din.readLong(), din.readInt()));
+                }
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Unable to read pack index, rebuilding from segments: " + e.getMessage());
+                index.clear();
+                replayFrom = 0;
+                replayOffset = 0;
+            }
+        }
+        for (int segment : existing) {
+            if (segment < replayFrom)
+                continue;
+            boolean last = segment == existing.get(existing.size() - 1);
+            replay(segment, segment == replayFrom ? replayOffset : 0, last);
+        }
+        index.values().forEach(loc -> liveBytes.computeIfAbsent(loc.segment, s -> new AtomicLong()).addAndGet(recordSize(loc)));
+        count.set(index.size());
+
+        activeSegment = existing.isEmpty() ? 0 : existing.get(existing.size() - 1);
+        openActive(activeSegment);
+        syncedSegment = activeSegment;
+        syncedSize = activeSize;
+    }
+
+    private interface RecordVisitor {
+        void accept(byte type, Cid cid, long dataOffset, ByteBuffer data);
+    }
+
+    /**
+     * Visit the valid records from a position in a segment.
+     *
+     * @return the position after the last valid record
+     */
+    private static long readRecords(FileChannel ch, long from, RecordVisitor visitor) throws IOException {
+        long size = ch.size();
+        long pos = from;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (pos < size) {
+            header.clear();
+            if (readFully(ch, header, pos) < RECORD_HEADER_SIZE)
+                break;
+            header.flip();
+            byte type = header.get();
+            int cidLength = header.getInt();
+            int dataLength = header.getInt();
+            if ((type != BLOCK_RECORD && type != TOMBSTONE_RECORD) || cidLength <= 0 || dataLength < 0 ||
+                    pos + RECORD_HEADER_SIZE + cidLength + dataLength + RECORD_TRAILER_SIZE > size)
+                break;
+            ByteBuffer body = ByteBuffer.allocate(cidLength + dataLength + RECORD_TRAILER_SIZE);
+            readFully(ch, body, pos + RECORD_HEADER_SIZE);
+            body.flip();
+            CRC32 crc = new CRC32();
+            header.rewind();
+            crc.update(header);
+            crc.update(body.array(), 0, cidLength + dataLength);
+            if ((int) crc.getValue() != body.getInt(cidLength + dataLength))
+                break;
+            Cid cid = Cid.cast(Arrays.copyOfRange(body.array(), 0, cidLength));
+            ByteBuffer data = ByteBuffer.wrap(body.array(), cidLength, dataLength).slice();
+            visitor.accept(type, cid, pos + RECORD_HEADER_SIZE + cidLength, data);
+            pos += RECORD_HEADER_SIZE + cidLength + dataLength + RECORD_TRAILER_SIZE;
+        }
+        return pos;
+    }
+
+    private void replay(int segment, long from, boolean truncateTail) throws IOException {
+        try (FileChannel ch = FileChannel.open(segmentPath(segment), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            long pos = readRecords(ch, from, (type, cid, dataOffset, data) -> {
+                if (type == BLOCK_RECORD)
+                    index.put(key(cid), new Location(cid, segment, dataOffset, data.remaining()));
+                else
+                    index.remove(key(cid));
+            });
+            if (pos < size) {
+                if (truncateTail) {
+                    LOG.warning("Truncating torn tail of pack segment " + segment + " at " + pos + " of " + size);
+                    ch.truncate(pos);
+                    ch.force(true);
+                } else
+                    LOG.warning("Corrupt record in pack segment " + segment + " at " + pos);
+            }
+        }
+    }
+
+    private static int readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int read = ch.read(buf, position + total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    private static long recordSize(Location loc) {
+        return RECORD_HEADER_SIZE + loc.cid.toBytes().length + loc.length + RECORD_TRAILER_SIZE;
+    }
+
+    private void openActive(int segment) throws IOException {
+        FileChannel ch = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = ch;
+        activeSize = ch.size();
+        activeSegment = segment;
+        FileChannel old = segments.put(segment, ch);
+        if (old != null && old != ch)
+            old.close();
+    }
+
+    /* ---- writes ---- */
+
+    private static ByteBuffer record(byte type, Cid cid, byte[] data, int offset, int length) {
+        byte[] cidBytes = cid.toBytes();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + cidBytes.length + length + RECORD_TRAILER_SIZE);
+        record.put(type);
+        record.putInt(cidBytes.length);
+        record.putInt(length);
+        record.put(cidBytes);
+        record.put(data, offset, length);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * A tombstone records the segment of the block record it removes, so compaction knows when it can be dropped.
+     */
+    private static ByteBuffer tombstone(Cid cid, int removedSegment) {
+        byte[] data = ByteBuffer.allocate(4).putInt(removedSegment).array();
+        return record(TOMBSTONE_RECORD, cid, data, 0, data.length);
+    }
+
+    /**
+     * Append a record to the active segment. The caller must hold the write lock, and update the index before
+     * releasing it, so an index checkpoint can never cover a record without its index change. The record is synced
+     * by a later call to syncTo.
+     */
+    private Location append(Cid cid, ByteBuffer record) throws IOException {
+        if (activeSize >= maxSegmentSize) {
+            // a sealed segment is always synced, so syncTo only has to consider the active one
+            if (sync)
+                active.force(false);
+            openActive(activeSegment + 1);
+        }
+        int cidLength = record.getInt(1), length = record.getInt(5);
+        long start = activeSize;
+        while (record.hasRemaining())
+            active.write(record, start + record.position());
+        activeSize += record.limit();
+        indexDirty.set(true);
+        return new Location(cid, activeSegment, start + RECORD_HEADER_SIZE + cidLength, length);
+    }
+
+    /**
+     * Wait until the record at this location is on disk. Records appended while another sync is running are covered
+     * by the next one, which a single waiting writer performs for all of them.
+     */
+    private void syncTo(Location loc) throws IOException {
+        if (! sync)
+            return;
+        long end = loc.offset + loc.length + RECORD_TRAILER_SIZE;
+        synchronized (syncLock) {
+            if (loc.segment < syncedSegment || (loc.segment == syncedSegment && end <= syncedSize))
+                return;
+            int segment;
+            long size;
+            FileChannel ch;
+            synchronized (writeLock) {
+                segment = activeSegment;
+                size = activeSize;
+                ch = active;
+            }
+            // a newer segment means this one was synced when it was sealed
+            if (segment == loc.segment)
+                ch.force(false);
+            syncedSegment = segment;
+            syncedSize = segment == loc.segment ? size : 0;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(block));
+        byte[] key = key(cid);
+        if (index.containsKey(key))
+            return CompletableFuture.completedFuture(cid);
+        ByteBuffer record = record(BLOCK_RECORD, cid, block, 0, block.length);
+        try {
+            Location loc;
+            synchronized (writeLock) {
+                if (index.containsKey(key))
+                    return CompletableFuture.completedFuture(cid);
+                loc = append(cid, record);
+                index.put(key, loc);
+                count.incrementAndGet();
+                liveBytes.computeIfAbsent(loc.segment, s -> new AtomicLong()).addAndGet(recordSize(loc));
+            }
+            syncTo(loc);
+            return CompletableFuture.completedFuture(cid);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid cid) {
+        byte[] key = key(cid);
+        if (! index.containsKey(key))
+            return CompletableFuture.completedFuture(false);
+        try {
+            Location tombstone;
+            synchronized (writeLock) {
+                Location removed = index.get(key);
+                if (removed == null)
+                    return CompletableFuture.completedFuture(false);
+                tombstone = append(cid, tombstone(cid, removed.segment));
+                index.remove(key);
+                count.decrementAndGet();
+                liveBytes.computeIfAbsent(removed.segment, s -> new AtomicLong()).addAndGet(-recordSize(removed));
+            }
+            syncTo(tombstone);
+            return CompletableFuture.completedFuture(true);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /* ---- reads ---- */
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        return CompletableFuture.completedFuture(index.containsKey(key(c)));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        byte[] hash = new Multihash(h.getType(), h.getHash()).toBytes();
+        byte[] first = index.ceilingKey(hash);
+        return Futures.of(first != null && first.length > hash.length &&
+                Arrays.equals(first, 0, hash.length, hash, 0, hash.length));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid cid) {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Location loc = index.get(key(cid));
+            if (loc == null)
+                return CompletableFuture.completedFuture(Optional.empty());
+            try {
+                ByteBuffer buf = ByteBuffer.allocate(loc.length);
+                if (readFully(channel(loc.segment), buf, loc.offset) < loc.length)
+                    throw new EOFException("Truncated block " + cid + " in pack segment " + loc.segment);
+                return CompletableFuture.completedFuture(Optional.of(buf.array()));
+            } catch (ClosedChannelException | NoSuchFileException e) {
+                // the segment was compacted away underneath us, look up the new location
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+        throw new IllegalStateException("Unable to read block " + cid);
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid cid) {
+        if (! mmapReads)
+            return get(cid).thenApply(b -> b.map(ByteBuffer::wrap));
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Location loc = index.get(key(cid));
+            if (loc == null)
+                return CompletableFuture.completedFuture(Optional.empty());
+            try {
+                Optional<MappedByteBuffer> segment = mapSealed(loc.segment);
+                if (segment.isEmpty())
+                    return get(cid).thenApply(b -> b.map(ByteBuffer::wrap));
+                ByteBuffer slice = segment.get().duplicate();
+                slice.position((int) loc.offset).limit((int) loc.offset + loc.length);
+                return CompletableFuture.completedFuture(Optional.of(slice.slice()));
+            } catch (ClosedChannelException | NoSuchFileException e) {
+                // the segment was compacted away underneath us, look up the new location
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+        throw new IllegalStateException("Unable to read block " + cid);
+    }
+
+    /**
+     * Sealed segments are immutable so can be mapped once, the active segment is still growing.
+     */
+    private Optional<MappedByteBuffer> mapSealed(int segment) throws IOException {
+        MappedByteBuffer existing = mapped.get(segment);
+        if (existing != null)
+            return Optional.of(existing);
+        synchronized (writeLock) {
+            if (segment == activeSegment)
+                return Optional.empty();
+        }
+        FileChannel ch = channel(segment);
+        long size = ch.size();
+        if (size > Integer.MAX_VALUE)
+            return Optional.empty();
+        MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        MappedByteBuffer raced = mapped.putIfAbsent(segment, map);
+        return Optional.of(raced != null ? raced : map);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        //not implemented
+        return CompletableFuture.completedFuture(false);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return CompletableFuture.completedFuture(index.values().stream()
+                .map(loc -> loc.cid)
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        NavigableMap<byte[], Location> remaining = resumeToken.isPresent() ?
+                index.tailMap(key(keyToHash(resumeToken.get())), false) :
+                index;
+        List<Cid> page = remaining.values().stream()
+                .limit(pageSize)
+                .map(loc -> loc.cid)
+                .collect(Collectors.toList());
+        Optional<String> next = page.size() < pageSize ? Optional.empty() : Optional.of(hashToKey(page.get(page.size() - 1)));
+        return Futures.of(new RefsPage(page, next).filter(c -> RefsPage.matches(c, codec)));
+    }
+
+    @Override
+    public CompletableFuture<Long> count(boolean useBlockstore) {
+        return Futures.of(count.get());
+    }
+
+    @Override
+    public CompletableFuture<Boolean> applyToAll(Consumer<Cid> action, boolean useBlockstore) {
+        index.values().forEach(loc -> action.accept(loc.cid));
+        return Futures.of(true);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        byte[] block = get(h).join().get();
+        return Futures.of(new BlockMetadata(block.length, CborObject.getLinks(h, block)));
+    }
+
+    /* ---- maintenance ---- */
+
+    private void maintain() {
+        try {
+            compact();
+            if (indexDirty.get())
+                writeIndex();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, "Pack blockstore maintenance failed: " + t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Rewrite the live blocks of every sealed segment whose live fraction has dropped below the compaction
+     * threshold into the active segment, then delete the old segment. Tombstones are carried over while the segment
+     * holding the block they removed still exists, otherwise rebuilding the index from the segments would bring the
+     * block back.
+     */
+    public synchronized void compact() throws IOException {
+        for (int segment : listSegments()) {
+            synchronized (writeLock) {
+                if (segment == activeSegment)
+                    continue;
+            }
+            long size = Files.size(segmentPath(segment));
+            long live = Optional.ofNullable(liveBytes.get(segment)).map(AtomicLong::get).orElse(0L);
+            if (size > 0 && (double) live / size >= compactionThreshold)
+                continue;
+            List<Map.Entry<byte[], Location>> toMove = index.entrySet().stream()
+                    .filter(e -> e.getValue().segment == segment)
+                    .collect(Collectors.toList());
+            LOG.info("Compacting pack segment " + segment + " moving " + toMove.size() + " live blocks");
+            FileChannel source = channel(segment);
+            for (Map.Entry<byte[], Location> e : toMove) {
+                Location loc = e.getValue();
+                ByteBuffer buf = ByteBuffer.allocate(loc.length);
+                readFully(source, buf, loc.offset);
+                ByteBuffer record = record(BLOCK_RECORD, loc.cid, buf.array(), 0, loc.length);
+                synchronized (writeLock) {
+                    // only move entries that haven't been removed concurrently
+                    if (index.get(e.getKey()) != loc)
+                        continue;
+                    Location moved = append(loc.cid, record);
+                    index.put(e.getKey(), moved);
+                    liveBytes.computeIfAbsent(moved.segment, s -> new AtomicLong()).addAndGet(recordSize(moved));
+                }
+            }
+            carryTombstones(segment, source);
+            synchronized (writeLock) {
+                active.force(false);
+            }
+            // persist the index before deleting so a crash can never replay from a removed segment
+            writeIndex();
+            liveBytes.remove(segment);
+            mapped.remove(segment);
+            FileChannel removed = segments.remove(segment);
+            if (removed != null)
+                removed.close();
+            Files.deleteIfExists(segmentPath(segment));
+        }
+    }
+
+    private void carryTombstones(int segment, FileChannel source) throws IOException {
+        boolean olderSegments = listSegments().stream().anyMatch(s -> s < segment);
+        if (! olderSegments)
+            return;
+        Map<Cid, Integer> tombstones = new HashMap<>();
+        readRecords(source, 0, (type, cid, dataOffset, data) -> {
+            if (type == TOMBSTONE_RECORD)
+                // tombstones written before they recorded a segment could remove a block in any older segment
+                tombstones.put(cid, data.remaining() == 4 ? data.getInt(0) : -1);
+            else
+                tombstones.remove(cid);
+        });
+        int carried = 0;
+        for (Map.Entry<Cid, Integer> t : tombstones.entrySet()) {
+            int removedSegment = t.getValue();
+            if (removedSegment == segment || (removedSegment >= 0 && ! segmentPath(removedSegment).toFile().exists()))
+                continue;
+            ByteBuffer record = tombstone(t.getKey(), removedSegment);
+            synchronized (writeLock) {
+                // a block put after the tombstone is written after it, so it stays live on a rebuild anyway
+                if (index.containsKey(key(t.getKey())))
+                    continue;
+                append(t.getKey(), record);
+            }
+            carried++;
+        }
+        if (carried > 0)
+            LOG.info("Carried " + carried + " tombstones over from pack segment " + segment);
+    }
+
+    private synchronized void writeIndex() throws IOException {
+        indexDirty.set(false);
+        int checkpointSegment;
+        long checkpointOffset;
+        List<Location> snapshot;
+        FileChannel checkpointChannel;
+        synchronized (writeLock) {
+            checkpointSegment = activeSegment;
+            checkpointOffset = activeSize;
+            checkpointChannel = active;
+            snapshot = new ArrayList<>(index.values());
+        }
+        // appends are synced after the write lock is released, the checkpoint must not cover records that aren't
+        checkpointChannel.force(false);
+        Path tmp = packsRoot.resolve(INDEX_FILE + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(tmp.toFile());
+             DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(fout))) {
+            dout.writeLong(INDEX_MAGIC);
+            dout.writeInt(checkpointSegment);
+            dout.writeLong(checkpointOffset);
+            dout.writeLong(snapshot.size());
+            for (Location loc : snapshot) {
+                byte[] cid = loc.cid.toBytes();
+                dout.writeShort(cid.length);
+                dout.write(cid);
+                dout.writeInt(loc.segment);
+                dout.writeLong(loc.offset);
+                dout.writeInt(loc.length);
+            }
+            dout.flush();
+            fout.getFD().sync();
+        }
+        Files.move(tmp, packsRoot.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void close() {
+        // don't interrupt, as that would close the active segment under an in-flight compaction
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            LOG.log(Level.WARNING, "Interrupted waiting for pack compaction to finish", e);
+        }
+        try {
+            synchronized (writeLock) {
+                active.force(true);
+            }
+            writeIndex();
+            for (FileChannel ch : segments.values())
+                ch.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error closing pack blockstore: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.cbor.CborObject;
+import org.peergos.util.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Warms the children of dag-cbor blocks as they are read, as a client walking a dag almost always asks for them next.
+ *
+ * When a dag-cbor block is read, its links (up to the fan out) are fetched in a batch in the background, and so on
+ * down to the configured depth. When a walk reads a block from the deepest prefetched level, prefetching continues
+ * below it. Prefetched blocks are held in a bounded buffer until they are read, which removes them, or they are
+ * evicted. Each read that triggers prefetching starts a session; if a block from a session is
+ * evicted before being read, and nothing from the session has been read, the rest of the session is cancelled.
+ *
+ * This wraps the block caches, so prefetched blocks are also added to any cache below it. Children that aren't held
+ * locally are skipped.
+ */
+public class PrefetchingBlockstore implements Blockstore {
+
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_FAN_OUT = 32;
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_THREADS = 4;
+    // prefetched blocks not read within this time are assumed to be unwanted
+    private static final long MAX_AGE_MILLIS = 30_000;
+    private static final int MAX_QUEUED_BATCHES = 1024;
+
+    private static final Counter prefetched = Counter.build()
+            .name("ipfs_prefetch_blocks_total")
+            .help("Number of blocks prefetched")
+            .register();
+    private static final Counter hits = Counter.build()
+            .name("ipfs_prefetch_hits_total")
+            .help("Number of block reads served by a prefetched block")
+            .register();
+    private static final Counter wasted = Counter.build()
+            .name("ipfs_prefetch_unused_total")
+            .help("Number of prefetched blocks evicted without being read")
+            .register();
+    private static final Counter cancelled = Counter.build()
+            .name("ipfs_prefetch_cancelled_total")
+            .help("Number of prefetch sessions cancelled because their blocks went unused")
+            .register();
+    private static final Counter dropped = Counter.build()
+            .name("ipfs_prefetch_dropped_total")
+            .help("Number of prefetch batches dropped because the prefetch queue was full")
+            .register();
+    private static final Gauge bufferedBytes = Gauge.build()
+            .name("ipfs_prefetch_bytes")
+            .help("Total size of prefetched blocks waiting to be read")
+            .register();
+
+    private static final class Session {
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final AtomicInteger used = new AtomicInteger(0);
+
+        boolean isCancelled() {
+            return cancelled.get();
+        }
+    }
+
+    private static final class Prefetched {
+        final byte[] block;
+        final Session session;
+        // how many levels below this block are being prefetched
+        final int depthBelow;
+        final long created;
+
+        Prefetched(byte[] block, Session session, int depthBelow, long created) {
+            this.block = block;
+            this.session = session;
+            this.depthBelow = depthBelow;
+            this.created = created;
+        }
+    }
+
+    private final Blockstore target;
+    private final int maxDepth, fanOut;
+    private final long maxBytes;
+    // in insertion order, so the oldest blocks are evicted first
+    private final LinkedHashMap<Cid, Prefetched> buffer = new LinkedHashMap<>();
+    private long bufferSize = 0;
+    private final Set<Cid> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final ThreadPoolExecutor prefetcher;
+
+    public PrefetchingBlockstore(Blockstore target, int maxDepth, int fanOut, long maxBytes, int threads) {
+        if (maxDepth < 1 || fanOut < 1 || maxBytes <= 0)
+            throw new IllegalArgumentException("Prefetch depth, fan out and memory must be positive");
+        this.target = target;
+        this.maxDepth = maxDepth;
+        this.fanOut = fanOut;
+        this.maxBytes = maxBytes;
+        this.prefetcher = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_BATCHES),
+                r -> {
+                    Thread t = new Thread(r, "block-prefetch");
+                    t.setDaemon(true);
+                    return t;
+                },
+                (r, executor) -> {
+                    // prefetching is best effort
+                    pending.decrementAndGet();
+                    dropped.inc();
+                });
+    }
+
+    /**
+     * Prefetch if the mount params include a "prefetch-depth". The optional "prefetch-fanout",
+     * "prefetch-memory" (in bytes) and "prefetch-threads" set the other limits.
+     */
+    public static Blockstore build(Blockstore target, Map<String, Object> params) {
+        if (! params.containsKey("prefetch-depth"))
+            return target;
+        int depth = Integer.parseInt((String) params.get("prefetch-depth"));
+        int fanOut = Integer.parseInt((String) params.getOrDefault("prefetch-fanout", "" + DEFAULT_FAN_OUT));
+        long maxBytes = Long.parseLong((String) params.getOrDefault("prefetch-memory", "" + DEFAULT_MAX_BYTES));
+        int threads = Integer.parseInt((String) params.getOrDefault("prefetch-threads", "" + DEFAULT_THREADS));
+        LOG.info("Prefetching linked blocks to depth " + depth + " with fan out " + fanOut);
+        return new PrefetchingBlockstore(target, depth, fanOut, maxBytes, threads);
+    }
+
+    /**
+     * @return whether there are no prefetches queued or running
+     */
+    public boolean isIdle() {
+        return pending.get() == 0;
+    }
+
+    private Optional<byte[]> take(Cid c) {
+        Prefetched p;
+        synchronized (buffer) {
+            p = buffer.remove(c);
+            if (p == null)
+                return Optional.empty();
+            bufferSize -= p.block.length;
+        }
+        bufferedBytes.dec(p.block.length);
+        hits.inc();
+        p.session.used.incrementAndGet();
+        // keep prefetching ahead of a walk which has reached the last prefetched level
+        if (p.depthBelow == 0 && c.codec == Cid.Codec.DagCbor)
+            prefetch(c, Optional.of(ByteBuffer.wrap(p.block)), maxDepth, p.session);
+        return Optional.of(p.block);
+    }
+
+    private boolean isBuffered(Cid c) {
+        synchronized (buffer) {
+            return buffer.containsKey(c);
+        }
+    }
+
+    private void store(Cid c, byte[] block, Session session, int depthBelow) {
+        if (block.length > maxBytes / 4)
+            return;
+        List<Prefetched> evicted = new ArrayList<>();
+        long added = 0;
+        long now = System.currentTimeMillis();
+        synchronized (buffer) {
+            Iterator<Prefetched> oldest = buffer.values().iterator();
+            while (oldest.hasNext()) {
+                Prefetched p = oldest.next();
+                if (bufferSize + block.length <= maxBytes && p.created + MAX_AGE_MILLIS > now)
+                    break;
+                oldest.remove();
+                bufferSize -= p.block.length;
+                evicted.add(p);
+            }
+            if (buffer.putIfAbsent(c, new Prefetched(block, session, depthBelow, now)) == null) {
+                added = block.length;
+                bufferSize += added;
+            }
+        }
+        bufferedBytes.inc(added);
+        for (Prefetched p : evicted) {
+            bufferedBytes.dec(p.block.length);
+            wasted.inc();
+            if (p.session.used.get() == 0 && p.session.cancelled.compareAndSet(false, true))
+                cancelled.inc();
+        }
+    }
+
+    private void remove(Cid c) {
+        synchronized (buffer) {
+            Prefetched p = buffer.remove(c);
+            if (p != null) {
+                bufferSize -= p.block.length;
+                bufferedBytes.dec(p.block.length);
+            }
+        }
+    }
+
+    private List<Cid> links(Cid c, Optional<ByteBuffer> block) {
+        if (block.isPresent())
+            return CborObject.getLinks(c, block.get());
+        try {
+            return target.getBlockMetadata(c).join().links;
+        } catch (Exception e) {
+            // no metadata store
+            return target.get(c).join()
+                    .map(b -> CborObject.getLinks(c, b))
+                    .orElse(Collections.emptyList());
+        }
+    }
+
+    private void prefetch(Cid parent, Optional<ByteBuffer> block, int depth, Session session) {
+        if (depth < 1 || session.isCancelled())
+            return;
+        pending.incrementAndGet();
+        prefetcher.execute(() -> {
+            List<Cid> children = Collections.emptyList();
+            try {
+                if (session.isCancelled())
+                    return;
+                children = links(parent, block).stream()
+                        .filter(c -> c.getType() != Multihash.Type.id)
+                        .distinct()
+                        .limit(fanOut)
+                        .filter(c -> ! isBuffered(c) && inFlight.add(c))
+                        .collect(Collectors.toList());
+                if (children.isEmpty())
+                    return;
+                List<Optional<byte[]>> blocks = target.getAll(children).join();
+                for (int i = 0; i < children.size(); i++) {
+                    Cid child = children.get(i);
+                    Optional<byte[]> childBlock = blocks.get(i);
+                    if (childBlock.isEmpty() || session.isCancelled())
+                        continue;
+                    prefetched.inc();
+                    store(child, childBlock.get(), session, depth - 1);
+                    if (child.codec == Cid.Codec.DagCbor)
+                        prefetch(child, childBlock.map(ByteBuffer::wrap), depth - 1, session);
+                }
+            } catch (Exception e) {
+                LOG.log(Level.FINE, "Prefetch of links from " + parent + " failed: " + e.getMessage(), e);
+            } finally {
+                inFlight.removeAll(children);
+                pending.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        Optional<byte[]> prefetched = take(c);
+        if (prefetched.isPresent())
+            return Futures.of(prefetched);
+        return target.get(c).thenApply(block -> {
+            if (block.isPresent() && c.codec == Cid.Codec.DagCbor)
+                prefetch(c, block.map(ByteBuffer::wrap), maxDepth, new Session());
+            return block;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        Optional<byte[]> prefetched = take(c);
+        if (prefetched.isPresent())
+            return Futures.of(prefetched.map(ByteBuffer::wrap));
+        return target.getBuffer(c).thenApply(block -> {
+            // the links are parsed from the buffer in place, buffers from getBuffer are never overwritten, and the
+            // duplicate is unaffected by the caller reading it
+            if (block.isPresent() && c.codec == Cid.Codec.DagCbor)
+                prefetch(c, block.map(ByteBuffer::duplicate), maxDepth, new Session());
+            return block;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        List<Optional<byte[]>> res = cids.stream()
+                .map(this::take)
+                .collect(Collectors.toList());
+        List<Cid> missing = new ArrayList<>();
+        for (int i = 0; i < cids.size(); i++)
+            if (res.get(i).isEmpty())
+                missing.add(cids.get(i));
+        if (missing.isEmpty())
+            return Futures.of(res);
+        return target.getAll(missing).thenApply(fetched -> {
+            Iterator<Optional<byte[]>> it = fetched.iterator();
+            for (int i = 0; i < res.size(); i++)
+                if (res.get(i).isEmpty())
+                    res.set(i, it.next());
+            return res;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        remove(c);
+        return target.rm(c);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        cids.forEach(this::remove);
+        return target.rmAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        return target.has(c);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return target.hasAny(h);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return target.hasAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        return target.put(block, codec);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<Pair<byte[], Cid.Codec>> blocks) {
+        return target.putAll(blocks);
+    }
+
+    @Override
+    public CompletableFuture<Long> count(boolean useBlockstore) {
+        return target.count(useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return target.refs(useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        return target.refs(resumeToken, pageSize, codec, useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> applyToAll(Consumer<Cid> action, boolean useBlockstore) {
+        return target.applyToAll(action, useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        return target.bloomAdd(cid);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        return target.getBlockMetadata(h);
+    }
+}
@@ -3,7 +3,9 @@ package org.peergos.blockstore;
 import io.ipfs.cid.*;
 import io.ipfs.multihash.*;
 import org.peergos.blockstore.metadatadb.*;
+import org.peergos.util.*;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
@@ -33,6 +35,11 @@ public class ProvidingBlockstore implements Blockstore {
         return target.get(c);
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return target.getBuffer(c);
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
         CompletableFuture<Cid> res = target.put(block, codec);
@@ -45,11 +52,38 @@ public class ProvidingBlockstore implements Blockstore {
         return target.rm(c);
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return target.hasAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return target.getAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<Pair<byte[], Cid.Codec>> blocks) {
+        CompletableFuture<List<Cid>> res = target.putAll(blocks);
+        res.thenApply(toPublish::addAll);
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return target.rmAll(cids);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
         return target.refs(useBlockstore);
     }
 
+    @Override
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        return target.refs(resumeToken, pageSize, codec, useBlockstore);
+    }
+
     @Override
     public CompletableFuture<Long> count(boolean useBlockstore) {
         return target.count(useBlockstore);
@@ -14,7 +14,9 @@ import java.util.stream.*;
 
 public class RamBlockstore implements Blockstore {
 
-    private final ConcurrentHashMap<Cid, byte[]> blocks = new ConcurrentHashMap<>();
+    // sorted so refs can be paged through
+    private final ConcurrentSkipListMap<Cid, byte[]> blocks =
+            new ConcurrentSkipListMap<>(Comparator.comparing(Cid::toBytes, Arrays::compareUnsigned));
 
     @Override
     public CompletableFuture<Boolean> has(Cid c) {
@@ -60,6 +62,20 @@ public class RamBlockstore implements Blockstore {
         return CompletableFuture.completedFuture(new ArrayList(blocks.keySet()));
     }
 
+    @Override
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        NavigableSet<Cid> remaining = resumeToken.isPresent() ?
+                blocks.navigableKeySet().tailSet(keyToHash(resumeToken.get()), false) :
+                blocks.navigableKeySet();
+        List<Cid> page = remaining.stream()
+                .limit(pageSize)
+                .collect(Collectors.toList());
+        Optional<String> next = page.size() < pageSize ?
+                Optional.empty() :
+                Optional.of(hashToKey(page.get(page.size() - 1)));
+        return Futures.of(new RefsPage(page, next).filter(c -> RefsPage.matches(c, codec)));
+    }
+
     @Override
     public CompletableFuture<Long> count(boolean useBlockstore) {
         return Futures.of((long)blocks.size());
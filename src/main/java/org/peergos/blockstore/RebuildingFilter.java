@@ -0,0 +1,212 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.peergos.util.Logging;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A block filter that tracks the entries left behind by removed blocks, and rebuilds itself in the background once
+ * they raise the effective false positive rate past a threshold.
+ *
+ * Removed blocks are deleted from filters that support it. Other filters keep a stale entry per removed block, which
+ * turns every later lookup of that cid into a blockstore query. The effective false positive rate is estimated as the
+ * design rate plus the fraction of entries that are stale.
+ *
+ * Adds and removes during a rebuild are replayed, in order, into the new filter before it replaces the old one. A
+ * remove is only replayed for a cid the replay added, since the rebuilt filter may not contain the others and removing
+ * an absent cid can remove a colliding entry; the others are counted as stale if the new filter reports them.
+ */
+public class RebuildingFilter<F extends Filter> implements Filter {
+
+    private static final Logger LOG = Logging.LOG();
+    public static final double DEFAULT_REBUILD_FACTOR = 10;
+
+    private static final Counter rebuilds = Counter.build()
+            .name("ipfs_filter_rebuilds_total")
+            .help("Number of block filter rebuilds triggered by removed blocks")
+            .register();
+    private static final Counter staleEntries = Counter.build()
+            .name("ipfs_filter_stale_entries_total")
+            .help("Number of removed blocks whose entries couldn't be removed from the block filter")
+            .register();
+    private static final Gauge effectiveFpr = Gauge.build()
+            .name("ipfs_filter_effective_false_positive_rate")
+            .help("Estimated false positive rate of the block filter, including entries of removed blocks")
+            .register();
+
+    private final Supplier<F> builder;
+    private final Supplier<Long> blockCount;
+    private final double falsePositiveRate;
+    private final double rebuildThreshold;
+    private final Runnable onRebuild;
+    private volatile F current;
+    private final AtomicLong live, stale = new AtomicLong(0);
+    // held for reading by adds and removes, and for writing while a rebuilt filter is swapped in
+    private final ReentrantReadWriteLock swap = new ReentrantReadWriteLock();
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+    private final Queue<Map.Entry<Cid, Boolean>> pending = new ConcurrentLinkedQueue<>();
+    private final ExecutorService rebuilder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "filter-rebuild");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param initial the filter, containing every block currently in the blockstore
+     * @param builder builds a new filter of every block in the blockstore
+     * @param blockCount the number of blocks in the blockstore
+     * @param rebuildThreshold the effective false positive rate which triggers a rebuild
+     * @param onRebuild called after a rebuilt filter is swapped in
+     */
+    public RebuildingFilter(F initial,
+                            Supplier<F> builder,
+                            Supplier<Long> blockCount,
+                            double falsePositiveRate,
+                            double rebuildThreshold,
+                            Runnable onRebuild) {
+        this.current = initial;
+        this.builder = builder;
+        this.blockCount = blockCount;
+        this.falsePositiveRate = falsePositiveRate;
+        this.rebuildThreshold = rebuildThreshold;
+        this.onRebuild = onRebuild;
+        this.live = new AtomicLong(blockCount.get());
+    }
+
+    public RebuildingFilter(F initial, Supplier<F> builder, Supplier<Long> blockCount, double falsePositiveRate) {
+        this(initial, builder, blockCount, falsePositiveRate, falsePositiveRate * DEFAULT_REBUILD_FACTOR, () -> {});
+    }
+
+    public F current() {
+        return current;
+    }
+
+    @Override
+    public boolean has(Cid c) {
+        return current.has(c);
+    }
+
+    @Override
+    public Cid add(Cid c) {
+        swap.readLock().lock();
+        try {
+            current.add(c);
+            live.incrementAndGet();
+            if (rebuilding.get())
+                pending.add(Map.entry(c, true));
+        } finally {
+            swap.readLock().unlock();
+        }
+        return c;
+    }
+
+    /**
+     * Record the removal of a block from the blockstore.
+     */
+    @Override
+    public boolean remove(Cid c) {
+        boolean removed;
+        swap.readLock().lock();
+        try {
+            F filter = current;
+            removed = filter.supportsRemove() && filter.remove(c);
+            if (! filter.supportsRemove()) {
+                stale.incrementAndGet();
+                staleEntries.inc();
+            }
+            live.decrementAndGet();
+            if (rebuilding.get())
+                pending.add(Map.entry(c, false));
+        } finally {
+            swap.readLock().unlock();
+        }
+        maybeRebuild();
+        return removed;
+    }
+
+    @Override
+    public boolean supportsRemove() {
+        return true;
+    }
+
+    /**
+     * Removes are always accepted, but only the current filter determines whether duplicate adds are counted.
+     */
+    @Override
+    public boolean countsDuplicates() {
+        return current.countsDuplicates();
+    }
+
+    /**
+     * Abandon any rebuild in progress and stop the rebuild thread.
+     */
+    @Override
+    public void close() {
+        rebuilder.shutdownNow();
+    }
+
+    public double effectiveFalsePositiveRate() {
+        long staleCount = stale.get();
+        long total = Math.max(1, live.get() + staleCount);
+        return falsePositiveRate + (double) staleCount / total;
+    }
+
+    private void maybeRebuild() {
+        double fpr = effectiveFalsePositiveRate();
+        effectiveFpr.set(fpr);
+        if (fpr > rebuildThreshold && rebuilding.compareAndSet(false, true)) {
+            LOG.info("Rebuilding block filter with estimated false positive rate " + fpr);
+            rebuilder.submit(this::rebuild);
+        }
+    }
+
+    private void rebuild() {
+        try {
+            long count = blockCount.get();
+            F fresh = builder.get();
+            swap.writeLock().lock();
+            try {
+                long delta = 0, freshStale = 0;
+                Set<Cid> replayed = new HashSet<>();
+                for (Map.Entry<Cid, Boolean> op : pending) {
+                    Cid c = op.getKey();
+                    if (op.getValue()) {
+                        fresh.add(c);
+                        replayed.add(c);
+                        delta++;
+                    } else {
+                        if (fresh.supportsRemove() && replayed.remove(c))
+                            fresh.remove(c);
+                        else if (fresh.has(c))
+                            // either the builder saw the block before its removal, or a false positive
+                            freshStale++;
+                        delta--;
+                    }
+                }
+                pending.clear();
+                current = fresh;
+                live.set(Math.max(0, count + delta));
+                stale.set(freshStale);
+                rebuilding.set(false);
+            } finally {
+                swap.writeLock().unlock();
+            }
+            rebuilds.inc();
+            effectiveFpr.set(effectiveFalsePositiveRate());
+            onRebuild.run();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, "Unable to rebuild block filter: " + t.getMessage(), t);
+            pending.clear();
+            rebuilding.set(false);
+        }
+    }
+}
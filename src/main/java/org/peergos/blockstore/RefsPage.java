@@ -0,0 +1,46 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * One page of a blockstore enumeration. The resume token is opaque and only meaningful to the blockstore that
+ * produced it. A page may be shorter than requested (e.g. after codec filtering) without being the last page; the
+ * enumeration is complete when there is no next token.
+ */
+public class RefsPage {
+    public static final int DEFAULT_PAGE_SIZE = 10_000;
+
+    public final List<Cid> refs;
+    public final Optional<String> next;
+
+    public RefsPage(List<Cid> refs, Optional<String> next) {
+        this.refs = refs;
+        this.next = next;
+    }
+
+    public static RefsPage empty() {
+        return new RefsPage(Collections.emptyList(), Optional.empty());
+    }
+
+    public RefsPage filter(Predicate<Cid> keep) {
+        return new RefsPage(refs.stream().filter(keep).collect(Collectors.toList()), next);
+    }
+
+    public static boolean matches(Cid c, Optional<Cid.Codec> codec) {
+        return codec.isEmpty() || c.codec == codec.get();
+    }
+
+    /**
+     * Lazily stream every ref from the given page source, fetching one page at a time.
+     */
+    public static Stream<Cid> stream(Function<Optional<String>, RefsPage> getPage) {
+        return Stream.iterate(getPage.apply(Optional.empty()),
+                        Objects::nonNull,
+                        p -> p.next.isPresent() ? getPage.apply(p.next) : null)
+                .flatMap(p -> p.refs.stream());
+    }
+}
@@ -0,0 +1,23 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+
+import java.util.*;
+
+/**
+ * The roots of the blocks to keep during garbage collection. Every block reachable from a root through block links
+ * is retained.
+ *
+ * Roots are requested at the start of marking and again before sweeping, so they must include the roots of any
+ * writes in progress. A block that is already stored and only becomes reachable after the second request may be
+ * collected.
+ */
+public interface RootsProvider {
+
+    Collection<Cid> getRoots();
+
+    static RootsProvider of(Collection<Cid> roots) {
+        List<Cid> copy = List.copyOf(roots);
+        return () -> copy;
+    }
+}
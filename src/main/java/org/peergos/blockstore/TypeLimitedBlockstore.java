@@ -5,9 +5,8 @@ import io.ipfs.multihash.*;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.util.*;
 
-import java.util.List;
-import java.util.Optional;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.stream.*;
@@ -31,6 +30,9 @@ public class TypeLimitedBlockstore implements Blockstore {
 
     @Override
     public CompletableFuture<Boolean> hasAny(Multihash h) {
+        // a single codec agnostic lookup when every codec the target would check is allowed
+        if (allowedCodecs.containsAll(List.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)))
+            return blocks.hasAny(h);
         for (Cid.Codec codec : allowedCodecs) {
             if (has(new Cid(1, codec, h.getType(), h.getHash())).join())
                 return Futures.of(true);
@@ -54,6 +56,14 @@ public class TypeLimitedBlockstore implements Blockstore {
         return CompletableFuture.completedFuture(Optional.empty());
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid cid) {
+        if (allowedCodecs.contains(cid.codec)) {
+            return blocks.getBuffer(cid);
+        }
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
         if (allowedCodecs.contains(codec)) {
@@ -70,6 +80,57 @@ public class TypeLimitedBlockstore implements Blockstore {
         throw new IllegalArgumentException("Unsupported codec: " + cid.codec);
     }
 
+    private void checkAllowed(List<Cid> cids) {
+        for (Cid c : cids)
+            if (! allowedCodecs.contains(c.codec))
+                throw new IllegalArgumentException("Unsupported codec: " + c.codec);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        List<Cid> allowed = cids.stream()
+                .filter(c -> allowedCodecs.contains(c.codec))
+                .collect(Collectors.toList());
+        return blocks.hasAll(allowed).thenApply(res -> {
+            Set<Cid> present = new HashSet<>();
+            for (int i = 0; i < allowed.size(); i++)
+                if (res.get(i))
+                    present.add(allowed.get(i));
+            return cids.stream()
+                    .map(present::contains)
+                    .collect(Collectors.toList());
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        List<Cid> allowed = cids.stream()
+                .filter(c -> allowedCodecs.contains(c.codec))
+                .collect(Collectors.toList());
+        return blocks.getAll(allowed).thenApply(res -> {
+            Map<Cid, Optional<byte[]>> found = new HashMap<>();
+            for (int i = 0; i < allowed.size(); i++)
+                found.put(allowed.get(i), res.get(i));
+            return cids.stream()
+                    .map(c -> found.getOrDefault(c, Optional.empty()))
+                    .collect(Collectors.toList());
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<Pair<byte[], Cid.Codec>> toPut) {
+        for (Pair<byte[], Cid.Codec> b : toPut)
+            if (! allowedCodecs.contains(b.right))
+                throw new IllegalArgumentException("Unsupported codec: " + b.right);
+        return blocks.putAll(toPut);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        checkAllowed(cids);
+        return blocks.rmAll(cids);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
         return blocks.refs(useBlockstore).thenApply(res -> res.stream()
@@ -77,6 +138,14 @@ public class TypeLimitedBlockstore implements Blockstore {
                 .collect(Collectors.toList()));
     }
 
+    @Override
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        if (codec.isPresent() && ! allowedCodecs.contains(codec.get()))
+            return CompletableFuture.completedFuture(RefsPage.empty());
+        return blocks.refs(resumeToken, pageSize, codec, useBlockstore)
+                .thenApply(page -> page.filter(c -> allowedCodecs.contains(c.codec)));
+    }
+
     @Override
     public CompletableFuture<Long> count(boolean useBlockstore) {
         return blocks.count(useBlockstore);
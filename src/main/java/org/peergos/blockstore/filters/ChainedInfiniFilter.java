@@ -2,6 +2,8 @@ package org.peergos.blockstore.filters;
 
 import java.util.ArrayList;
 
+import org.peergos.blockstore.filters.bitmap.Bitmap;
+
 /*
  * The following example assumes we begin with an InfiniFilter with 2^3, or 8 cells and 4 bits per fingerprint
  * The example assumes decreasing the FPR polynomially, or in other words
@@ -49,6 +51,11 @@ public class ChainedInfiniFilter extends InfiniFilter {
 		super(power_of_two, bits_per_entry);
 		older_filters = new ArrayList<InfiniFilter>();
 	}
+
+	ChainedInfiniFilter(int power_of_two, int bits_per_entry, Bitmap bitmap) {
+		super(power_of_two, bits_per_entry, bitmap);
+		older_filters = new ArrayList<InfiniFilter>();
+	}
 	
 	void handle_empty_fingerprint(long bucket_index, QuotientFilter current) {
 		long bucket1 = bucket_index;
@@ -213,6 +220,37 @@ public class ChainedInfiniFilter extends InfiniFilter {
 		return success; 
 	}
 	
+	// search and delete by hash must also cover the former and older filters, which hold entries migrated out during expansion
+	protected boolean _search(long large_hash) {
+		if (super._search(large_hash)) {
+			return true;
+		}
+		if (former != null && former._search(large_hash)) {
+			return true;
+		}
+		for (QuotientFilter qf : older_filters) {
+			if (qf._search(large_hash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	protected boolean _delete(long large_hash) {
+		if (super._delete(large_hash)) {
+			return true;
+		}
+		if (former != null && former._delete(large_hash)) {
+			return true;
+		}
+		for (int i = older_filters.size() - 1; i >= 0; i--) {
+			if (older_filters.get(i)._delete(large_hash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	public double measure_num_bits_per_entry() {
 		ArrayList<QuotientFilter> filters = new ArrayList<QuotientFilter>(older_filters);
 		if (former != null) {
@@ -1,6 +1,8 @@
 
 package org.peergos.blockstore.filters;
 
+import org.peergos.blockstore.filters.bitmap.Bitmap;
+
 public class InfiniFilter extends QuotientFilter {
 
 	long empty_fingerprint;
@@ -15,6 +17,10 @@ public class InfiniFilter extends QuotientFilter {
 		max_entries_before_expansion = (long)(Math.pow(2, power_of_two_size) * expansion_threshold);
 		empty_fingerprint = (1L << fingerprintLength) - 2L;
 	}
+
+	InfiniFilter(int power_of_two, int bits_per_entry, Bitmap bitmap) {
+		super(power_of_two, bits_per_entry, bitmap);
+	}
 	
 	protected boolean compare(long index, long fingerprint) {
 		long generation = parse_unary(index);
@@ -0,0 +1,97 @@
+package org.peergos.blockstore.filters;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.peergos.blockstore.filters.bitmap.Bitmap;
+import org.peergos.blockstore.filters.bitmap.QuickBitVectorWrapper;
+
+/*
+ * Writes and reads the complete state of a ChainedInfiniFilter, including its older and former filters, so it can be
+ * restored without re-inserting every entry.
+ */
+public class InfiniFilterSnapshot {
+
+	public static void write(ChainedInfiniFilter f, DataOutput out) throws IOException {
+		writeInfini(f, out);
+		out.writeBoolean(f.former != null);
+		if (f.former != null)
+			writeInfini(f.former, out);
+		out.writeInt(f.count_until_replacing_former);
+		out.writeInt(f.count_until_expanding_former);
+		out.writeInt(f.former_phase);
+		out.writeInt(f.older_filters.size());
+		for (InfiniFilter older : f.older_filters)
+			writeInfini(older, out);
+	}
+
+	public static ChainedInfiniFilter read(ByteBuffer in) {
+		int power_of_two = in.getInt();
+		int bits_per_entry = in.getInt();
+		ChainedInfiniFilter f = new ChainedInfiniFilter(power_of_two, bits_per_entry, readBitmap(in));
+		readInfini(f, in);
+		if (in.get() != 0)
+			f.former = readInfini(in);
+		f.count_until_replacing_former = in.getInt();
+		f.count_until_expanding_former = in.getInt();
+		f.former_phase = in.getInt();
+		int older = in.getInt();
+		for (int i = 0; i < older; i++)
+			f.older_filters.add(readInfini(in));
+		return f;
+	}
+
+	private static void writeInfini(InfiniFilter f, DataOutput out) throws IOException {
+		out.writeInt(f.power_of_two_size);
+		out.writeInt(f.bitPerEntry);
+		if (! (f.filter instanceof QuickBitVectorWrapper))
+			throw new IllegalStateException("Unsupported bitmap " + f.filter.getClass());
+		long[] bits = ((QuickBitVectorWrapper) f.filter).getBits();
+		out.writeInt(bits.length);
+		for (long word : bits)
+			out.writeLong(word);
+		out.writeInt(f.fingerprintLength);
+		out.writeInt(f.num_extension_slots);
+		out.writeInt(f.num_existing_entries);
+		out.writeDouble(f.expansion_threshold);
+		out.writeLong(f.max_entries_before_expansion);
+		out.writeBoolean(f.expand_autonomously);
+		out.writeBoolean(f.is_full);
+		out.writeInt(f.original_fingerprint_size);
+		out.writeInt(f.num_expansions);
+		out.writeInt(f.ht.ordinal());
+		out.writeLong(f.empty_fingerprint);
+		out.writeInt(f.fprStyle.ordinal());
+	}
+
+	private static InfiniFilter readInfini(ByteBuffer in) {
+		int power_of_two = in.getInt();
+		int bits_per_entry = in.getInt();
+		InfiniFilter f = new InfiniFilter(power_of_two, bits_per_entry, readBitmap(in));
+		readInfini(f, in);
+		return f;
+	}
+
+	private static Bitmap readBitmap(ByteBuffer in) {
+		long[] bits = new long[in.getInt()];
+		in.asLongBuffer().get(bits);
+		in.position(in.position() + bits.length * Long.BYTES);
+		return new QuickBitVectorWrapper(bits);
+	}
+
+	private static void readInfini(InfiniFilter f, ByteBuffer in) {
+		f.fingerprintLength = in.getInt();
+		f.num_extension_slots = in.getInt();
+		f.num_existing_entries = in.getInt();
+		f.expansion_threshold = in.getDouble();
+		f.max_entries_before_expansion = in.getLong();
+		f.expand_autonomously = in.get() != 0;
+		f.is_full = in.get() != 0;
+		f.original_fingerprint_size = in.getInt();
+		f.num_expansions = in.getInt();
+		f.ht = HashType.values()[in.getInt()];
+		f.empty_fingerprint = in.getLong();
+		f.fprStyle = FingerprintGrowthStrategy.FalsePositiveRateExpansion.values()[in.getInt()];
+	}
+}
@@ -8,6 +8,14 @@ public class QuickBitVectorWrapper extends Bitmap {
 		bs = QuickBitVector.makeBitVector(num_entries, bits_per_entry);
 	}
 
+	public QuickBitVectorWrapper(long[] bits) {
+		bs = bits;
+	}
+
+	public long[] getBits() {
+		return bs;
+	}
+
 	@Override
 	public long size() {
 		return (long)bs.length * Long.BYTES * 8L;
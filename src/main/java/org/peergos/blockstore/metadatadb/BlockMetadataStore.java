@@ -1,10 +1,13 @@
 package org.peergos.blockstore.metadatadb;
 
 import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
 import org.peergos.cbor.CborObject;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -16,8 +19,34 @@ public interface BlockMetadataStore {
 
     void put(Cid block, BlockMetadata meta);
 
+    /**
+     * @return whether there is metadata for this multihash under any of the codecs we store
+     */
+    default boolean hasAny(Multihash h) {
+        return Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
+                .anyMatch(c -> get(new Cid(1, c, h.getType(), h.getHash())).isPresent());
+    }
+
     void remove(Cid block);
 
+    /**
+     * @return the metadata of those blocks that are present
+     */
+    default Map<Cid, BlockMetadata> getAll(List<Cid> blocks) {
+        Map<Cid, BlockMetadata> res = new HashMap<>();
+        for (Cid block : blocks)
+            get(block).ifPresent(m -> res.put(block, m));
+        return res;
+    }
+
+    default void putAll(Map<Cid, BlockMetadata> metas) {
+        metas.forEach(this::put);
+    }
+
+    default void removeAll(List<Cid> blocks) {
+        blocks.forEach(this::remove);
+    }
+
     long size();
 
     boolean applyToAll(Consumer<Cid> action);
@@ -26,6 +55,13 @@ public interface BlockMetadataStore {
 
     Stream<Cid> listCbor();
 
+    /**
+     * @param after only return cids ordered after this one, if present
+     * @param pageSize the maximum number of cids to return
+     * @return the next page of cids in a stable order
+     */
+    List<Cid> listPage(Optional<Cid> after, int pageSize);
+
     default BlockMetadata put(Cid block, byte[] data) {
         BlockMetadata meta = extractMetadata(block, data);
         put(block, meta);
@@ -50,4 +86,16 @@ public interface BlockMetadataStore {
     }
 
     void compact();
+
+    /**
+     * @return whether metadata may have been lost, e.g. in a crash, so the store must be rebuilt from the blocks
+     */
+    default boolean needsRebuild() {
+        return false;
+    }
+
+    /**
+     * Record that every block's metadata has been put again since needsRebuild was reported.
+     */
+    default void rebuilt() {}
 }
@@ -4,10 +4,13 @@ import io.ipfs.cid.Cid;
 import io.ipfs.multihash.Multihash;
 import org.peergos.Hash;
 import org.peergos.blockstore.Blockstore;
+import org.peergos.blockstore.RefsPage;
+import org.peergos.util.ArrayOps;
 import org.peergos.util.Futures;
+import org.peergos.util.Pair;
 
-import java.util.List;
-import java.util.Optional;
+import java.nio.ByteBuffer;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.stream.*;
@@ -64,6 +67,14 @@ public class CachingBlockMetadataStore implements Blockstore {
         });
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid hash) {
+        // only go direct to the target when there is no metadata to populate from the block
+        if (metadata.get(hash).isPresent())
+            return target.getBuffer(hash);
+        return get(hash).thenApply(bopt -> bopt.map(ByteBuffer::wrap));
+    }
+
     @Override
     public CompletableFuture<Boolean> has(Cid c) {
         Optional<BlockMetadata> meta = metadata.get(c);
@@ -72,10 +83,64 @@ public class CachingBlockMetadataStore implements Blockstore {
         return get(c).thenApply(opt -> opt.isPresent());
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        Map<Cid, BlockMetadata> known = metadata.getAll(cids);
+        List<Cid> unknown = cids.stream()
+                .filter(c -> ! known.containsKey(c))
+                .collect(Collectors.toList());
+        return getAll(unknown).thenApply(blocks -> {
+            Set<Cid> found = new HashSet<>();
+            for (int i = 0; i < unknown.size(); i++)
+                if (blocks.get(i).isPresent())
+                    found.add(unknown.get(i));
+            return cids.stream()
+                    .map(c -> known.containsKey(c) || found.contains(c))
+                    .collect(Collectors.toList());
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return target.getAll(cids).thenApply(blocks -> {
+            Map<Cid, BlockMetadata> metas = new HashMap<>();
+            for (int i = 0; i < cids.size(); i++) {
+                Cid c = cids.get(i);
+                blocks.get(i).ifPresent(b -> metas.put(c, BlockMetadataStore.extractMetadata(c, b)));
+            }
+            metadata.putAll(metas);
+            return blocks;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<Pair<byte[], Cid.Codec>> blocks) {
+        return target.putAll(blocks).thenApply(cids -> {
+            Map<Cid, BlockMetadata> metas = new HashMap<>();
+            for (int i = 0; i < cids.size(); i++)
+                metas.put(cids.get(i), BlockMetadataStore.extractMetadata(cids.get(i), blocks.get(i).left));
+            metadata.putAll(metas);
+            return cids;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return target.rmAll(cids).thenApply(res -> {
+            List<Cid> removed = new ArrayList<>();
+            for (int i = 0; i < cids.size(); i++)
+                if (res.get(i))
+                    removed.add(cids.get(i));
+            metadata.removeAll(removed);
+            return res;
+        });
+    }
+
     @Override
     public CompletableFuture<Boolean> hasAny(Multihash h) {
-        return Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
-                .anyMatch(c -> has(new Cid(1, c, h.getType(), h.getHash())).join()));
+        if (metadata.hasAny(h))
+            return Futures.of(true);
+        return target.hasAny(h);
     }
 
     @Override
@@ -90,6 +155,24 @@ public class CachingBlockMetadataStore implements Blockstore {
         return CompletableFuture.completedFuture(metadata.list().collect(Collectors.toList()));
     }
 
+    @Override
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        if (useBlockstore)
+            return target.refs(resumeToken, pageSize, codec, true);
+        return CompletableFuture.completedFuture(metadataPage(metadata, resumeToken, pageSize, codec));
+    }
+
+    /**
+     *  A page of a metadata store listing, where the resume token is the hex of the last cid returned.
+     */
+    public static RefsPage metadataPage(BlockMetadataStore metadata, Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec) {
+        List<Cid> page = metadata.listPage(resumeToken.map(t -> Cid.cast(ArrayOps.hexToBytes(t))), pageSize);
+        Optional<String> next = page.size() < pageSize ?
+                Optional.empty() :
+                Optional.of(ArrayOps.bytesToHex(page.get(page.size() - 1).toBytes()));
+        return new RefsPage(page, next).filter(c -> RefsPage.matches(c, codec));
+    }
+
     @Override
     public CompletableFuture<Long> count(boolean useBlockstore) {
         if (useBlockstore)
@@ -115,14 +198,17 @@ public class CachingBlockMetadataStore implements Blockstore {
         });
     }
 
+    /**
+     *  Populate the metadata store from the blocks if it is empty, or if it may have lost metadata in a crash.
+     */
     public void updateMetadataStoreIfEmpty() {
-        if (metadata.size() > 0)
+        if (metadata.size() > 0 && ! metadata.needsRebuild())
             return;
-        List<Cid> cids = target.refs(true).join();
-        for(Cid c : cids) {
+        target.streamRefs(Optional.empty(), true).forEach(c -> {
             Optional<BlockMetadata> existing = metadata.get(c);
             if (existing.isEmpty())
                 metadata.put(c, target.getBlockMetadata(c).join());
-        }
+        });
+        metadata.rebuilt();
     }
 }
@@ -2,6 +2,7 @@ package org.peergos.blockstore.metadatadb;
 
 
 import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
 import org.peergos.blockstore.metadatadb.sql.BlockMetadataSqlSupplier;
 import org.peergos.cbor.CborObject;
 import org.peergos.util.Logging;
@@ -11,7 +12,10 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
@@ -24,8 +28,14 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
 
     private static final Logger LOG = Logging.LOG();
     private static final String GET_INFO = "SELECT * FROM blockmetadata WHERE cid = ?;";
+    private static final String HAS_ANY = "SELECT 1 FROM blockmetadata WHERE cid IN (?, ?, ?) LIMIT 1;";
     private static final String REMOVE = "DELETE FROM blockmetadata where cid = ?;";
     private static final String LIST = "SELECT cid FROM blockmetadata;";
+    private static final String FIRST_PAGE = "SELECT cid FROM blockmetadata ORDER BY cid LIMIT ?;";
+    private static final String NEXT_PAGE = "SELECT cid FROM blockmetadata WHERE cid > ? ORDER BY cid LIMIT ?;";
+    private static final int LIST_PAGE_SIZE = 10_000;
+    // keep IN clauses and statement batches to a size every database accepts
+    private static final int MAX_BATCH = 500;
     private static final String SIZE = "SELECT COUNT(*) FROM blockmetadata;";
     private Supplier<Connection> conn;
     private final BlockMetadataSqlSupplier commands;
@@ -36,21 +46,13 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
         init(commands);
     }
 
+    /**
+     *  Connections are expected to be in autocommit mode, with an isolation level set by the supplier, such as a
+     *  {@link org.peergos.blockstore.metadatadb.sql.ConnectionPool}. Every statement here is a single row read or an
+     *  idempotent write, so they don't need serializable isolation.
+     */
     private Connection getConnection() {
-        return getConnection(true, true);
-    }
-
-    private Connection getConnection(boolean autocommit, boolean serializable) {
-        Connection connection = conn.get();
-        try {
-            if (autocommit)
-                connection.setAutoCommit(true);
-            if (serializable)
-                connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-            return connection;
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+        return conn.get();
     }
 
     private synchronized void init(BlockMetadataSqlSupplier commands) {
@@ -86,6 +88,53 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
         }
     }
 
+    @Override
+    public void removeAll(List<Cid> blocks) {
+        if (blocks.isEmpty())
+            return;
+        try (Connection conn = getConnection();
+             PreparedStatement remove = conn.prepareStatement(REMOVE)) {
+            for (int i = 0; i < blocks.size(); i++) {
+                remove.setBytes(1, blocks.get(i).toBytes());
+                remove.addBatch();
+                if ((i + 1) % MAX_BATCH == 0 || i == blocks.size() - 1)
+                    remove.executeBatch();
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    private static BlockMetadata fromRow(ResultSet rs) throws SQLException {
+        List<Cid> links = ((CborObject.CborList) CborObject.fromByteArray(rs.getBytes("links")))
+                .map(cbor -> Cid.cast(((CborObject.CborByteArray)cbor).value));
+        return new BlockMetadata(rs.getInt("size"), links);
+    }
+
+    @Override
+    public Map<Cid, BlockMetadata> getAll(List<Cid> blocks) {
+        Map<Cid, BlockMetadata> res = new HashMap<>();
+        try (Connection conn = getConnection()) {
+            for (int start = 0; start < blocks.size(); start += MAX_BATCH) {
+                List<Cid> batch = blocks.subList(start, Math.min(blocks.size(), start + MAX_BATCH));
+                String query = "SELECT * FROM blockmetadata WHERE cid IN (" +
+                        batch.stream().map(c -> "?").collect(Collectors.joining(", ")) + ");";
+                try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                    for (int i = 0; i < batch.size(); i++)
+                        stmt.setBytes(i + 1, batch.get(i).toBytes());
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next())
+                        res.put(Cid.cast(rs.getBytes("cid")), fromRow(rs));
+                }
+            }
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
     @Override
     public Optional<BlockMetadata> get(Cid block) {
         try (Connection conn = getConnection();
@@ -93,9 +142,7 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
             stmt.setBytes(1, block.toBytes());
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
-                List<Cid> links = ((CborObject.CborList) CborObject.fromByteArray(rs.getBytes("links")))
-                        .map(cbor -> Cid.cast(((CborObject.CborByteArray)cbor).value));
-                return Optional.of(new BlockMetadata(rs.getInt("size"), links));
+                return Optional.of(fromRow(rs));
             }
             return Optional.empty();
         } catch (SQLException sqe) {
@@ -104,18 +151,40 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
         }
     }
 
+    /**
+     *  The codec is part of the primary key, so probe every codec we store in a single query.
+     */
+    @Override
+    public boolean hasAny(Multihash h) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(HAS_ANY)) {
+            stmt.setBytes(1, new Cid(1, Cid.Codec.DagCbor, h.getType(), h.getHash()).toBytes());
+            stmt.setBytes(2, new Cid(1, Cid.Codec.Raw, h.getType(), h.getHash()).toBytes());
+            stmt.setBytes(3, new Cid(1, Cid.Codec.DagProtobuf, h.getType(), h.getHash()).toBytes());
+            ResultSet rs = stmt.executeQuery();
+            return rs.next();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    private static void setMetadata(PreparedStatement insert, Cid block, BlockMetadata meta) throws SQLException {
+        insert.setBytes(1, block.toBytes());
+        insert.setLong(2, meta.size);
+        insert.setBytes(3, new CborObject.CborList(meta.links.stream()
+                .map(Cid::toBytes)
+                .map(CborObject.CborByteArray::new)
+                .collect(Collectors.toList()))
+                .toByteArray());
+    }
+
     @Override
     public void put(Cid block, BlockMetadata meta) {
         try (Connection conn = getConnection();
              PreparedStatement insert = conn.prepareStatement(commands.addMetadataCommand())) {
 
-            insert.setBytes(1, block.toBytes());
-            insert.setLong(2, meta.size);
-            insert.setBytes(3, new CborObject.CborList(meta.links.stream()
-                    .map(Cid::toBytes)
-                    .map(CborObject.CborByteArray::new)
-                    .collect(Collectors.toList()))
-                    .toByteArray());
+            setMetadata(insert, block, meta);
             insert.executeUpdate();
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
@@ -123,6 +192,34 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
         }
     }
 
+    @Override
+    public void putAll(Map<Cid, BlockMetadata> metas) {
+        if (metas.isEmpty())
+            return;
+        // one transaction per call, rather than one per row
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement insert = conn.prepareStatement(commands.addMetadataCommand())) {
+                int count = 0;
+                for (Map.Entry<Cid, BlockMetadata> e : metas.entrySet()) {
+                    setMetadata(insert, e.getKey(), e.getValue());
+                    insert.addBatch();
+                    if (++count % MAX_BATCH == 0 || count == metas.size())
+                        insert.executeBatch();
+                }
+                conn.commit();
+            } catch (SQLException sqe) {
+                conn.rollback();
+                throw sqe;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
     @Override
     public long size() {
         try (Connection conn = getConnection();
@@ -152,37 +249,40 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
     }
 
     @Override
-    public Stream<Cid> list() {
+    public List<Cid> listPage(Optional<Cid> after, int pageSize) {
         try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(LIST)) {
+             PreparedStatement stmt = conn.prepareStatement(after.isPresent() ? NEXT_PAGE : FIRST_PAGE)) {
+            int index = 1;
+            if (after.isPresent())
+                stmt.setBytes(index++, after.get().toBytes());
+            stmt.setInt(index, pageSize);
             ResultSet rs = stmt.executeQuery();
             List<Cid> res = new ArrayList<>();
             while (rs.next()) {
                 res.add(Cid.cast(rs.getBytes("cid")));
             }
-            return res.stream();
+            return res;
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
             throw new RuntimeException(sqe);
         }
     }
 
+    /**
+     *  Lazily page through the table so the full set of cids is never held in memory.
+     */
+    @Override
+    public Stream<Cid> list() {
+        return Stream.iterate(listPage(Optional.empty(), LIST_PAGE_SIZE),
+                        page -> ! page.isEmpty(),
+                        page -> page.size() < LIST_PAGE_SIZE ?
+                                Collections.emptyList() :
+                                listPage(Optional.of(page.get(page.size() - 1)), LIST_PAGE_SIZE))
+                .flatMap(List::stream);
+    }
+
     @Override
     public Stream<Cid> listCbor() {
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(LIST)) {
-            ResultSet rs = stmt.executeQuery();
-            List<Cid> res = new ArrayList<>();
-            while (rs.next()) {
-                Cid cid = Cid.cast(rs.getBytes("cid"));
-                if (cid.codec != Cid.Codec.Raw) {
-                    res.add(cid);
-                }
-            }
-            return res.stream();
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-            throw new RuntimeException(sqe);
-        }
+        return list().filter(cid -> cid.codec != Cid.Codec.Raw);
     }
 }
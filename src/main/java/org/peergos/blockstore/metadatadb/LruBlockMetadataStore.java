@@ -0,0 +1,284 @@
+package org.peergos.blockstore.metadatadb;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the metadata of recently looked up blocks on heap, so repeated lookups of hot blocks don't go to the target.
+ *
+ * Lookups of blocks we don't have are cached too, as an absent entry. The byte budget is split over independently
+ * locked segments, each evicting its least recently used entries, weighted by an estimate of their heap size. Writes go
+ * to the target first and then update the cache, and removes invalidate it. A lookup only caches what it read from the
+ * target if its segment wasn't written meanwhile, so a slow read can't cache a stale result over a concurrent write.
+ * All writes to the target must go through this store.
+ */
+public class LruBlockMetadataStore implements BlockMetadataStore {
+
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+    private static final int SEGMENTS = 16;
+    // rough heap sizes of a map entry, a cid and its BlockMetadata
+    private static final int ENTRY_OVERHEAD = 96, CID_SIZE = 80;
+
+    private static final Counter hits = Counter.build()
+            .name("ipfs_metadata_cache_hits_total")
+            .help("Number of metadata lookups served by the metadata cache")
+            .labelNames("result")
+            .register();
+    private static final Counter misses = Counter.build()
+            .name("ipfs_metadata_cache_misses_total")
+            .help("Number of metadata lookups that missed the metadata cache")
+            .register();
+    private static final Counter evictions = Counter.build()
+            .name("ipfs_metadata_cache_evictions_total")
+            .help("Number of entries evicted from the metadata cache")
+            .register();
+    private static final Gauge cachedBytes = Gauge.build()
+            .name("ipfs_metadata_cache_bytes")
+            .help("Estimated heap size of the metadata cache")
+            .register();
+
+    private static int weight(Optional<BlockMetadata> meta) {
+        return ENTRY_OVERHEAD + CID_SIZE + meta.map(m -> m.links.size() * CID_SIZE).orElse(0);
+    }
+
+    private static final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long maxBytes;
+        private final LinkedHashMap<Cid, Optional<BlockMetadata>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes = 0;
+        // incremented by every write, so a lookup can tell if its result may be stale
+        private long version = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return null if nothing is cached, otherwise whether the block is present
+         */
+        Optional<BlockMetadata> get(Cid c) {
+            lock.lock();
+            try {
+                return entries.get(c);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long version() {
+            lock.lock();
+            try {
+                return version;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void write(Cid c, Optional<BlockMetadata> meta) {
+            lock.lock();
+            try {
+                version++;
+                cache(c, meta);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void invalidate(Cid c) {
+            lock.lock();
+            try {
+                version++;
+                Optional<BlockMetadata> existing = entries.remove(c);
+                if (existing != null)
+                    adjust(- weight(existing));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void fill(Cid c, Optional<BlockMetadata> meta, long readVersion) {
+            lock.lock();
+            try {
+                if (version == readVersion)
+                    cache(c, meta);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void cache(Cid c, Optional<BlockMetadata> meta) {
+            int weight = weight(meta);
+            if (weight > maxBytes)
+                return;
+            Optional<BlockMetadata> existing = entries.put(c, meta);
+            adjust(weight - (existing == null ? 0 : weight(existing)));
+            Iterator<Map.Entry<Cid, Optional<BlockMetadata>>> lru = entries.entrySet().iterator();
+            while (bytes > maxBytes && lru.hasNext()) {
+                Map.Entry<Cid, Optional<BlockMetadata>> eldest = lru.next();
+                lru.remove();
+                adjust(- weight(eldest.getValue()));
+                evictions.inc();
+            }
+        }
+
+        private void adjust(long delta) {
+            bytes += delta;
+            cachedBytes.inc(delta);
+        }
+    }
+
+    private final BlockMetadataStore target;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public LruBlockMetadataStore(BlockMetadataStore target, long maxBytes) {
+        this.target = target;
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+    }
+
+    public LruBlockMetadataStore(BlockMetadataStore target) {
+        this(target, DEFAULT_MAX_BYTES);
+    }
+
+    private Segment segment(Cid c) {
+        int h = c.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static void recordHit(Optional<BlockMetadata> cached) {
+        hits.labels(cached.isPresent() ? "present" : "absent").inc();
+    }
+
+    @Override
+    public Optional<BlockMetadata> get(Cid block) {
+        Segment segment = segment(block);
+        Optional<BlockMetadata> cached = segment.get(block);
+        if (cached != null) {
+            recordHit(cached);
+            return cached;
+        }
+        misses.inc();
+        long version = segment.version();
+        Optional<BlockMetadata> meta = target.get(block);
+        segment.fill(block, meta, version);
+        return meta;
+    }
+
+    @Override
+    public Map<Cid, BlockMetadata> getAll(List<Cid> blocks) {
+        Map<Cid, BlockMetadata> res = new HashMap<>();
+        List<Cid> remaining = new ArrayList<>();
+        Map<Cid, Long> versions = new HashMap<>();
+        for (Cid block : blocks) {
+            Segment segment = segment(block);
+            Optional<BlockMetadata> cached = segment.get(block);
+            if (cached != null) {
+                recordHit(cached);
+                cached.ifPresent(m -> res.put(block, m));
+            } else {
+                misses.inc();
+                versions.put(block, segment.version());
+                remaining.add(block);
+            }
+        }
+        if (remaining.isEmpty())
+            return res;
+        Map<Cid, BlockMetadata> found = target.getAll(remaining);
+        for (Cid block : remaining)
+            segment(block).fill(block, Optional.ofNullable(found.get(block)), versions.get(block));
+        res.putAll(found);
+        return res;
+    }
+
+    @Override
+    public boolean hasAny(Multihash h) {
+        boolean allAbsent = true;
+        for (Cid.Codec codec : List.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)) {
+            Cid c = new Cid(1, codec, h.getType(), h.getHash());
+            Optional<BlockMetadata> cached = segment(c).get(c);
+            if (cached != null && cached.isPresent()) {
+                recordHit(cached);
+                return true;
+            }
+            if (cached == null)
+                allAbsent = false;
+        }
+        if (allAbsent) {
+            hits.labels("absent").inc();
+            return false;
+        }
+        misses.inc();
+        return target.hasAny(h);
+    }
+
+    @Override
+    public void put(Cid block, BlockMetadata meta) {
+        target.put(block, meta);
+        segment(block).write(block, Optional.of(meta));
+    }
+
+    @Override
+    public void putAll(Map<Cid, BlockMetadata> metas) {
+        target.putAll(metas);
+        metas.forEach((c, m) -> segment(c).write(c, Optional.of(m)));
+    }
+
+    @Override
+    public void remove(Cid block) {
+        target.remove(block);
+        segment(block).invalidate(block);
+    }
+
+    @Override
+    public void removeAll(List<Cid> blocks) {
+        target.removeAll(blocks);
+        blocks.forEach(c -> segment(c).invalidate(c));
+    }
+
+    @Override
+    public long size() {
+        return target.size();
+    }
+
+    @Override
+    public boolean applyToAll(Consumer<Cid> action) {
+        return target.applyToAll(action);
+    }
+
+    @Override
+    public Stream<Cid> list() {
+        return target.list();
+    }
+
+    @Override
+    public Stream<Cid> listCbor() {
+        return target.listCbor();
+    }
+
+    @Override
+    public List<Cid> listPage(Optional<Cid> after, int pageSize) {
+        return target.listPage(after, pageSize);
+    }
+
+    @Override
+    public void compact() {
+        target.compact();
+    }
+
+    @Override
+    public boolean needsRebuild() {
+        return target.needsRebuild();
+    }
+
+    @Override
+    public void rebuilt() {
+        target.rebuilt();
+    }
+}
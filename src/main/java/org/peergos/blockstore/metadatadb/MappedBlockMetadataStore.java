@@ -0,0 +1,810 @@
+package org.peergos.blockstore.metadatadb;
+
+import io.ipfs.cid.Cid;
+import org.peergos.blockstore.filters.HashFunctions;
+import org.peergos.util.Logging;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A block metadata store in a memory mapped, open addressing hash table, so a lookup is a few memory reads rather
+ * than a database query.
+ *
+ * Each slot of the table holds a 64 bit hash of a cid, the block size, and the offset of a record in an append only
+ * log, which holds the cid itself and its links. Slots are probed linearly from a home slot given by the top bits of
+ * the hash, so slot order follows hash order, and listPage pages in hash order, which doesn't change on a resize.
+ *
+ * A put appends to the log before it publishes the slot, so a crash leaves at most an unreferenced log record. A resize
+ * or compaction writes a new table, and a compaction a new log, and then switches to them by atomically replacing the
+ * file naming the current generation, so a crash leaves either the old or the new files in use. Removes leave their log
+ * records in place until the next compaction.
+ *
+ * Puts aren't forced to disk as they are made. The log and then the table are synced periodically, and on a resize,
+ * compaction or close, and the table records how much of the log has been synced. Removes are synced before they
+ * return, so a removed block never comes back. After a power loss the OS may have written back a slot but not its log
+ * record, so on opening any slot referring past the synced log is dropped. The metadata put since the last sync is
+ * lost, which a caller that answers presence from the metadata can't detect, so the store then reports needsRebuild
+ * until its owner has put the metadata of every block again and called rebuilt.
+ *
+ * A close records the entry counts and marks the table clean, so the next open doesn't have to scan the table. Opening
+ * clears the mark, so only the open after a crash scans.
+ */
+public class MappedBlockMetadataStore implements BlockMetadataStore, AutoCloseable {
+
+    private static final Logger LOG = Logging.LOG();
+
+    private static final long INDEX_MAGIC = 0x6e6162752d6d6574L;
+    private static final String CURRENT = "CURRENT";
+    private static final String INDEX_PREFIX = "index.";
+    private static final String LOG_PREFIX = "log.";
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 24;
+    // header fields
+    private static final int CAPACITY_BITS = 8, LOG_END = 16, SYNCED_LOG_END = 24, CLEAN = 32, NEEDS_REBUILD = 36,
+            COUNT = 40, REMOVED_COUNT = 48;
+    // slot fields, the state is written last so a slot is never seen half written
+    private static final int OFFSET = 8, SIZE = 16, STATE = 20;
+    private static final int EMPTY = 0, LIVE = 1, REMOVED = 2;
+    private static final double MAX_LOAD = 0.7;
+    private static final int MIN_CAPACITY_BITS = 10;
+    private static final int MAX_CAPACITY_BITS = 32;
+    // a single mapping is limited to 2 GiB, so the slots are mapped in chunks
+    private static final int TABLE_CHUNK_BITS = 25;
+    private static final long TABLE_CHUNK_SLOTS = 1L << TABLE_CHUNK_BITS;
+    // log records never span chunks, and a chunk is larger than the record of any 2 MiB block
+    private static final long LOG_CHUNK = 64 * 1024 * 1024;
+    private static final int LIST_PAGE_SIZE = 10_000;
+    public static final long DEFAULT_SYNC_MILLIS = 5_000;
+
+    private static class Table {
+        final FileChannel channel;
+        final MappedByteBuffer header;
+        final MappedByteBuffer[] chunks;
+        final int bits;
+
+        Table(FileChannel channel, int bits) throws IOException {
+            this.channel = channel;
+            this.bits = bits;
+            // mapping past the end of the file extends it with zeros, which are empty slots
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            long slots = 1L << bits;
+            this.chunks = new MappedByteBuffer[(int) ((slots + TABLE_CHUNK_SLOTS - 1) / TABLE_CHUNK_SLOTS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long chunkSlots = Math.min(TABLE_CHUNK_SLOTS, slots - i * TABLE_CHUNK_SLOTS);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + i * TABLE_CHUNK_SLOTS * SLOT_SIZE, chunkSlots * SLOT_SIZE);
+            }
+        }
+
+        long capacity() {
+            return 1L << bits;
+        }
+
+        long home(long hash) {
+            return hash >>> (64 - bits);
+        }
+
+        MappedByteBuffer chunk(long slot) {
+            return chunks[(int) (slot >>> TABLE_CHUNK_BITS)];
+        }
+
+        static int position(long slot) {
+            return (int) (slot & (TABLE_CHUNK_SLOTS - 1)) * SLOT_SIZE;
+        }
+
+        int state(long slot) {
+            return chunk(slot).getInt(position(slot) + STATE);
+        }
+
+        void setState(long slot, int state) {
+            chunk(slot).putInt(position(slot) + STATE, state);
+        }
+
+        long hash(long slot) {
+            return chunk(slot).getLong(position(slot));
+        }
+
+        long offset(long slot) {
+            return chunk(slot).getLong(position(slot) + OFFSET);
+        }
+
+        int size(long slot) {
+            return chunk(slot).getInt(position(slot) + SIZE);
+        }
+
+        long logEnd() {
+            return header.getLong(LOG_END);
+        }
+
+        void setLogEnd(long end) {
+            header.putLong(LOG_END, end);
+        }
+
+        long syncedLogEnd() {
+            return header.getLong(SYNCED_LOG_END);
+        }
+
+        /**
+         * @return the first slot which isn't live on the probe path of this hash
+         */
+        long freeSlot(long hash) {
+            long mask = capacity() - 1;
+            long slot = home(hash);
+            while (state(slot) == LIVE)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        void write(long slot, long hash, long offset, int size) {
+            MappedByteBuffer chunk = chunk(slot);
+            int pos = position(slot);
+            chunk.putLong(pos, hash);
+            chunk.putLong(pos + OFFSET, offset);
+            chunk.putInt(pos + SIZE, size);
+            chunk.putInt(pos + STATE, LIVE);
+        }
+
+        /**
+         * Write the table to disk, recording that the log is synced up to the current log end.
+         */
+        void force() {
+            for (MappedByteBuffer chunk : chunks)
+                chunk.force();
+            header.putLong(SYNCED_LOG_END, logEnd());
+            header.force();
+        }
+    }
+
+    private static class Log {
+        final FileChannel channel;
+        final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+        Log(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Map enough of the log to hold everything before end
+         */
+        void mapTo(long end) throws IOException {
+            while ((long) chunks.size() * LOG_CHUNK < end)
+                chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, chunks.size() * LOG_CHUNK, LOG_CHUNK));
+        }
+
+        ByteBuffer at(long offset) {
+            ByteBuffer chunk = chunks.get((int) (offset / LOG_CHUNK)).duplicate();
+            chunk.position((int) (offset % LOG_CHUNK));
+            return chunk;
+        }
+
+        /**
+         * @return the offset the record was written at
+         */
+        long append(long end, byte[] record) throws IOException {
+            if (record.length > LOG_CHUNK)
+                throw new IllegalStateException("Block metadata is too large: " + record.length);
+            long offset = end;
+            if (offset / LOG_CHUNK != (offset + record.length - 1) / LOG_CHUNK)
+                offset = (offset / LOG_CHUNK + 1) * LOG_CHUNK;
+            mapTo(offset + record.length);
+            at(offset).put(record);
+            return offset;
+        }
+
+        boolean cidEquals(long offset, byte[] cid) {
+            ByteBuffer rec = at(offset);
+            if ((rec.getShort() & 0xffff) != cid.length)
+                return false;
+            for (int i = 0; i < cid.length; i++)
+                if (rec.get() != cid[i])
+                    return false;
+            return true;
+        }
+
+        byte[] cid(long offset) {
+            ByteBuffer rec = at(offset);
+            byte[] cid = new byte[rec.getShort() & 0xffff];
+            rec.get(cid);
+            return cid;
+        }
+
+        private static void skipBytes(ByteBuffer rec) {
+            int length = rec.getShort() & 0xffff;
+            rec.position(rec.position() + length);
+        }
+
+        List<Cid> links(long offset) {
+            ByteBuffer rec = at(offset);
+            skipBytes(rec);
+            int count = rec.getInt();
+            List<Cid> links = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] link = new byte[rec.getShort() & 0xffff];
+                rec.get(link);
+                links.add(Cid.cast(link));
+            }
+            return links;
+        }
+
+        byte[] record(long offset) {
+            ByteBuffer rec = at(offset);
+            int start = rec.position();
+            skipBytes(rec);
+            int count = rec.getInt();
+            for (int i = 0; i < count; i++)
+                skipBytes(rec);
+            byte[] res = new byte[rec.position() - start];
+            rec.position(start);
+            rec.get(res);
+            return res;
+        }
+
+        void force() throws IOException {
+            for (MappedByteBuffer chunk : chunks)
+                chunk.force();
+            channel.force(true);
+        }
+    }
+
+    private final Path dir;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long indexGeneration, logGeneration;
+    private Table table;
+    private Log log;
+    private long count, removed;
+    private boolean closed = false;
+    private volatile boolean dirty = false;
+    private final Optional<ScheduledExecutorService> syncer;
+
+    public MappedBlockMetadataStore(Path dir) {
+        this(dir, DEFAULT_SYNC_MILLIS);
+    }
+
+    /**
+     * @param syncMillis the interval between syncs to disk, or 0 to only sync on a resize, compaction or close
+     */
+    public MappedBlockMetadataStore(Path dir, long syncMillis) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            Path current = dir.resolve(CURRENT);
+            boolean created = ! current.toFile().exists();
+            if (! created) {
+                String[] generations = new String(Files.readAllBytes(current), StandardCharsets.UTF_8).trim().split(" ");
+                indexGeneration = Long.parseLong(generations[0]);
+                logGeneration = Long.parseLong(generations[1]);
+                table = openTable(dir.resolve(INDEX_PREFIX + indexGeneration));
+                log = openLog(dir.resolve(LOG_PREFIX + logGeneration), false);
+            } else {
+                table = createTable(dir.resolve(INDEX_PREFIX + 0), MIN_CAPACITY_BITS, 0);
+                log = openLog(dir.resolve(LOG_PREFIX + 0), true);
+                writeCurrent();
+            }
+            log.mapTo(table.logEnd());
+            if (created || table.header.getInt(CLEAN) == 1) {
+                count = table.header.getLong(COUNT);
+                removed = table.header.getLong(REMOVED_COUNT);
+            } else
+                recover();
+            // a crash from now on must be detected by the next open
+            table.header.putInt(CLEAN, 0);
+            table.header.force();
+            deleteUnused();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        this.syncer = syncMillis <= 0 ?
+                Optional.empty() :
+                Optional.of(Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "metadata-sync");
+                    t.setDaemon(true);
+                    return t;
+                }));
+        syncer.ifPresent(e -> e.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Recount the entries after a crash, dropping any slot which may refer to a log record that never reached the
+     * disk. Puts since the last sync may be missing whether or not their slot reached the disk, so the metadata must
+     * be rebuilt.
+     */
+    private void recover() {
+        long synced = table.syncedLogEnd(), lost = 0;
+        for (long slot = 0; slot < table.capacity(); slot++) {
+            int state = table.state(slot);
+            if (state == LIVE && table.offset(slot) >= synced) {
+                table.setState(slot, REMOVED);
+                state = REMOVED;
+                lost++;
+            }
+            if (state == LIVE)
+                count++;
+            else if (state == REMOVED)
+                removed++;
+        }
+        table.header.putInt(NEEDS_REBUILD, 1);
+        LOG.info("Block metadata wasn't closed cleanly, dropped metadata of " + lost +
+                " blocks written after the last sync, it will be rebuilt from the blocks");
+    }
+
+    private static Table createTable(Path file, int bits, long logEnd) throws IOException {
+        Files.deleteIfExists(file);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Table table = new Table(channel, bits);
+        table.header.putLong(0, INDEX_MAGIC);
+        table.header.putLong(CAPACITY_BITS, bits);
+        table.setLogEnd(logEnd);
+        return table;
+    }
+
+    private static Table openTable(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getLong(0) != INDEX_MAGIC)
+            throw new IllegalStateException("Invalid block metadata index " + file);
+        int bits = (int) header.getLong(CAPACITY_BITS);
+        long length = HEADER_SIZE + ((long) SLOT_SIZE << bits);
+        if (bits < MIN_CAPACITY_BITS || bits > MAX_CAPACITY_BITS || channel.size() != length)
+            throw new IllegalStateException("Truncated block metadata index " + file);
+        return new Table(channel, bits);
+    }
+
+    private static Log openLog(Path file, boolean create) throws IOException {
+        if (create)
+            Files.deleteIfExists(file);
+        return new Log(FileChannel.open(file, create ?
+                EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE)));
+    }
+
+    private void writeCurrent() throws IOException {
+        Path tmp = dir.resolve(CURRENT + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            out.write(ByteBuffer.wrap((indexGeneration + " " + logGeneration).getBytes(StandardCharsets.UTF_8)));
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(CURRENT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     *  Delete tables and logs left by a resize or compaction, including those interrupted by a crash
+     */
+    private void deleteUnused() {
+        String inUseIndex = INDEX_PREFIX + indexGeneration, inUseLog = LOG_PREFIX + logGeneration;
+        File[] files = dir.toFile().listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            String name = f.getName();
+            if ((name.startsWith(INDEX_PREFIX) && ! name.equals(inUseIndex)) ||
+                    (name.startsWith(LOG_PREFIX) && ! name.equals(inUseLog))) {
+                // a mapped file can't be deleted on some platforms, so it is retried on the next start
+                if (! f.delete())
+                    LOG.fine("Unable to delete " + f);
+            }
+        }
+    }
+
+    /**
+     * Make the new files current, and only then drop the old ones.
+     */
+    private void switchTo(Table newTable, Log newLog) throws IOException {
+        newTable.header.putInt(NEEDS_REBUILD, table.header.getInt(NEEDS_REBUILD));
+        newLog.force();
+        newTable.force();
+        newTable.channel.force(true);
+        indexGeneration++;
+        if (newLog != log)
+            logGeneration++;
+        writeCurrent();
+        table.channel.close();
+        if (newLog != log)
+            log.channel.close();
+        table = newTable;
+        log = newLog;
+        deleteUnused();
+    }
+
+    private static long hash(byte[] cid) {
+        return HashFunctions.xxhash(ByteBuffer.wrap(cid));
+    }
+
+    private static byte[] record(byte[] cid, List<Cid> links) {
+        List<byte[]> linkBytes = links.stream().map(Cid::toBytes).collect(Collectors.toList());
+        int length = 2 + cid.length + 4 + linkBytes.stream().mapToInt(b -> 2 + b.length).sum();
+        ByteBuffer rec = ByteBuffer.allocate(length);
+        rec.putShort((short) cid.length).put(cid).putInt(linkBytes.size());
+        for (byte[] link : linkBytes)
+            rec.putShort((short) link.length).put(link);
+        return rec.array();
+    }
+
+    /**
+     * @return the slot holding this cid, or -1
+     */
+    private long find(byte[] cid, long hash) {
+        long mask = table.capacity() - 1;
+        for (long slot = table.home(hash), probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+            int state = table.state(slot);
+            if (state == EMPTY)
+                return -1;
+            if (state == LIVE && table.hash(slot) == hash && log.cidEquals(table.offset(slot), cid))
+                return slot;
+        }
+        return -1;
+    }
+
+    private void ensureOpen() {
+        if (closed)
+            throw new IllegalStateException("Block metadata store is closed");
+    }
+
+    @Override
+    public Optional<BlockMetadata> get(Cid block) {
+        byte[] cid = block.toBytes();
+        long hash = hash(cid);
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            long slot = find(cid, hash);
+            if (slot < 0)
+                return Optional.empty();
+            return Optional.of(new BlockMetadata(table.size(slot), log.links(table.offset(slot))));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<Cid, BlockMetadata> getAll(List<Cid> blocks) {
+        Map<Cid, BlockMetadata> res = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            for (Cid block : blocks) {
+                byte[] cid = block.toBytes();
+                long slot = find(cid, hash(cid));
+                if (slot >= 0)
+                    res.put(block, new BlockMetadata(table.size(slot), log.links(table.offset(slot))));
+            }
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(Cid block, BlockMetadata meta) {
+        putAll(Collections.singletonMap(block, meta));
+    }
+
+    @Override
+    public void putAll(Map<Cid, BlockMetadata> metas) {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            for (Map.Entry<Cid, BlockMetadata> e : metas.entrySet()) {
+                byte[] cid = e.getKey().toBytes();
+                long hash = hash(cid);
+                // the metadata of a block never changes
+                if (find(cid, hash) >= 0)
+                    continue;
+                if (count + removed + 1 > MAX_LOAD * table.capacity())
+                    resize();
+                byte[] record = record(cid, e.getValue().links);
+                long offset = log.append(table.logEnd(), record);
+                // claim the log record before it is referenced, so it can't be overwritten after a crash
+                table.setLogEnd(offset + record.length);
+                long slot = table.freeSlot(hash);
+                if (table.state(slot) == REMOVED)
+                    removed--;
+                table.write(slot, hash, offset, e.getValue().size);
+                count++;
+                dirty = true;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The smallest table with room for twice the current entries, which also clears removed slots.
+     */
+    private static int bitsFor(long entries) {
+        int bits = MIN_CAPACITY_BITS;
+        while ((entries + 1) * 2 > MAX_LOAD * (1L << bits))
+            bits++;
+        if (bits > MAX_CAPACITY_BITS)
+            throw new IllegalStateException("Block metadata index is full");
+        return bits;
+    }
+
+    private void resize() throws IOException {
+        int bits = bitsFor(count);
+        LOG.info("Resizing block metadata index to " + (1L << bits) + " slots");
+        Table resized = createTable(dir.resolve(INDEX_PREFIX + (indexGeneration + 1)), bits, table.logEnd());
+        for (long slot = 0; slot < table.capacity(); slot++) {
+            if (table.state(slot) != LIVE)
+                continue;
+            long hash = table.hash(slot);
+            resized.write(resized.freeSlot(hash), hash, table.offset(slot), table.size(slot));
+        }
+        switchTo(resized, log);
+        removed = 0;
+    }
+
+    @Override
+    public void remove(Cid block) {
+        removeAll(Collections.singletonList(block));
+    }
+
+    @Override
+    public void removeAll(List<Cid> blocks) {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            for (Cid block : blocks) {
+                byte[] cid = block.toBytes();
+                long slot = find(cid, hash(cid));
+                if (slot < 0)
+                    continue;
+                // the slot stays on the probe path of other cids
+                table.setState(slot, REMOVED);
+                count--;
+                removed++;
+                dirty = true;
+            }
+            // a remove that only reached memory would be undone by a crash, as the slot is still live on disk
+            if (dirty) {
+                log.force();
+                table.force();
+                dirty = false;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean applyToAll(Consumer<Cid> action) {
+        list().forEach(action);
+        return true;
+    }
+
+    @Override
+    public Stream<Cid> list() {
+        return Stream.iterate(listPage(Optional.empty(), LIST_PAGE_SIZE),
+                        page -> ! page.isEmpty(),
+                        page -> page.size() < LIST_PAGE_SIZE ?
+                                Collections.emptyList() :
+                                listPage(Optional.of(page.get(page.size() - 1)), LIST_PAGE_SIZE))
+                .flatMap(List::stream);
+    }
+
+    @Override
+    public Stream<Cid> listCbor() {
+        return list().filter(cid -> cid.codec != Cid.Codec.Raw);
+    }
+
+    private int compare(long hash1, long offset1, long hash2, byte[] cid2) {
+        int byHash = Long.compareUnsigned(hash1, hash2);
+        if (byHash != 0)
+            return byHash;
+        return Arrays.compareUnsigned(log.cid(offset1), cid2);
+    }
+
+    /**
+     * Cids are ordered by hash, then by their bytes. An entry lies between its home slot and the next empty slot, so
+     * once we reach an empty slot having found a page of entries with earlier home slots, every entry we haven't
+     * seen is ordered after them. Entries which wrapped around from the end of the table are found at the start.
+     */
+    @Override
+    public List<Cid> listPage(Optional<Cid> after, int pageSize) {
+        byte[] afterCid = after.map(Cid::toBytes).orElse(null);
+        long afterHash = afterCid == null ? 0 : hash(afterCid);
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            long capacity = table.capacity();
+            long start = afterCid == null ? 0 : table.home(afterHash);
+            List<long[]> found = new ArrayList<>();
+            int unwrapped = 0;
+            boolean complete = false;
+            for (long slot = start; slot < capacity; slot++) {
+                int state = table.state(slot);
+                if (state == EMPTY) {
+                    if (unwrapped >= pageSize) {
+                        complete = true;
+                        break;
+                    }
+                    continue;
+                }
+                if (state != LIVE)
+                    continue;
+                long hash = table.hash(slot), offset = table.offset(slot);
+                if (afterCid != null && compare(hash, offset, afterHash, afterCid) <= 0)
+                    continue;
+                found.add(new long[]{hash, offset});
+                if (table.home(hash) <= slot)
+                    unwrapped++;
+            }
+            if (! complete && start > 0) {
+                for (long slot = 0; slot < start && table.state(slot) != EMPTY; slot++) {
+                    long hash = table.hash(slot);
+                    if (table.state(slot) == LIVE && table.home(hash) > slot &&
+                            (afterCid == null || compare(hash, table.offset(slot), afterHash, afterCid) > 0))
+                        found.add(new long[]{hash, table.offset(slot)});
+                }
+            }
+            return found.stream()
+                    .sorted((a, b) -> a[0] != b[0] ?
+                            Long.compareUnsigned(a[0], b[0]) :
+                            Arrays.compareUnsigned(log.cid(a[1]), log.cid(b[1])))
+                    .limit(pageSize)
+                    .map(e -> Cid.cast(log.cid(e[1])))
+                    .collect(Collectors.toList());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the log without the records of removed blocks, and the table without removed slots.
+     */
+    @Override
+    public void compact() {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            Log compacted = openLog(dir.resolve(LOG_PREFIX + (logGeneration + 1)), true);
+            Table rebuilt = createTable(dir.resolve(INDEX_PREFIX + (indexGeneration + 1)), bitsFor(count), 0);
+            long end = 0;
+            for (long slot = 0; slot < table.capacity(); slot++) {
+                if (table.state(slot) != LIVE)
+                    continue;
+                byte[] record = log.record(table.offset(slot));
+                long offset = compacted.append(end, record);
+                end = offset + record.length;
+                long hash = table.hash(slot);
+                rebuilt.write(rebuilt.freeSlot(hash), hash, offset, table.size(slot));
+            }
+            rebuilt.setLogEnd(end);
+            long before = table.logEnd();
+            switchTo(rebuilt, compacted);
+            removed = 0;
+            LOG.info("Compacted block metadata log from " + before + " to " + end + " bytes");
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copy all the metadata from another store, such as the H2 blockmetadata table, in pages.
+     *
+     * @return the number of entries copied
+     */
+    public static long migrate(BlockMetadataStore source, MappedBlockMetadataStore target) {
+        long copied = 0;
+        Optional<Cid> after = Optional.empty();
+        while (true) {
+            List<Cid> page = source.listPage(after, LIST_PAGE_SIZE);
+            if (page.isEmpty())
+                break;
+            Map<Cid, BlockMetadata> metas = source.getAll(page);
+            target.putAll(metas);
+            copied += metas.size();
+            after = Optional.of(page.get(page.size() - 1));
+            LOG.info("Migrated metadata of " + copied + " blocks");
+        }
+        return copied;
+    }
+
+    /**
+     * Write the log and then the table to disk, so a synced slot never refers to a log record which isn't on disk.
+     * Puts wait for a sync to finish.
+     */
+    public void sync() {
+        if (! dirty)
+            return;
+        lock.readLock().lock();
+        try {
+            if (closed)
+                return;
+            dirty = false;
+            log.force();
+            table.force();
+        } catch (IOException e) {
+            dirty = true;
+            LOG.log(Level.WARNING, "Unable to sync block metadata: " + e.getMessage(), e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean needsRebuild() {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            return table.header.getInt(NEEDS_REBUILD) == 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sync the rebuilt metadata, and only then clear the mark.
+     */
+    @Override
+    public void rebuilt() {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            log.force();
+            table.force();
+            dirty = false;
+            table.header.putInt(NEEDS_REBUILD, 0);
+            table.header.force();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write everything to disk, then record the counts and mark the table clean, and release the files.
+     */
+    @Override
+    public void close() {
+        syncer.ifPresent(ExecutorService::shutdown);
+        lock.writeLock().lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            log.force();
+            table.force();
+            table.header.putLong(COUNT, count);
+            table.header.putLong(REMOVED_COUNT, removed);
+            table.header.putInt(CLEAN, 1);
+            table.header.force();
+            table.channel.close();
+            log.channel.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.peergos.blockstore.metadatadb;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.peergos.util.Logging;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Writes metadata to the target with group commit, so concurrent block writes share one database insert instead of
+ * doing one each.
+ *
+ * A put queues its metadata and returns once a single writer thread has written the batch containing it, so anything
+ * acknowledged is in the target and callers, like S3Blockstore, can answer presence from the metadata alone. A failed
+ * batch fails every put in it. The writer picks up whatever has queued while the previous batch was written, so a lone
+ * writer waits for one insert, as it would without batching. At most maxPending puts can be queued, further puts wait
+ * for the writer, which bounds memory without making a caller write other callers' metadata.
+ */
+public class WriteBehindBlockMetadataStore implements BlockMetadataStore {
+
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_MAX_PENDING = 50_000;
+
+    private static final Counter flushes = Counter.build()
+            .name("ipfs_metadata_write_behind_flushes_total")
+            .help("Number of batches of metadata written to the metadata store")
+            .register();
+    private static final Counter flushed = Counter.build()
+            .name("ipfs_metadata_write_behind_writes_total")
+            .help("Number of metadata entries written to the metadata store in batches")
+            .register();
+    private static final Gauge pendingWrites = Gauge.build()
+            .name("ipfs_metadata_write_behind_pending")
+            .help("Number of metadata entries waiting to be written")
+            .register();
+
+    private static class PendingWrite {
+        final Cid cid;
+        final BlockMetadata meta;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PendingWrite(Cid cid, BlockMetadata meta) {
+            this.cid = cid;
+            this.meta = meta;
+        }
+    }
+
+    private final BlockMetadataStore target;
+    private final int batchSize;
+    private final BlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>();
+    private final Semaphore capacity;
+    // held while draining and writing a batch, so a remove can't be overtaken by a queued write of the same cid
+    private final Object flushLock = new Object();
+    private final Thread writer;
+    // guarded by pending, so no write can be queued after the writer has drained the queue
+    private volatile boolean running = true;
+
+    public WriteBehindBlockMetadataStore(BlockMetadataStore target, int batchSize, int maxPending) {
+        if (batchSize < 1 || maxPending < batchSize)
+            throw new IllegalArgumentException("Pending metadata must hold at least one batch");
+        this.target = target;
+        this.batchSize = batchSize;
+        this.capacity = new Semaphore(maxPending);
+        writer = new Thread(this::writeLoop, "metadata-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public WriteBehindBlockMetadataStore(BlockMetadataStore target) {
+        this(target, DEFAULT_BATCH_SIZE, DEFAULT_MAX_PENDING);
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (running || ! pending.isEmpty()) {
+            try {
+                PendingWrite first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                synchronized (flushLock) {
+                    batch.add(first);
+                    pending.drainTo(batch, batchSize - 1);
+                    write(batch);
+                }
+            } catch (InterruptedException e) {
+                // keep draining until closed
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Unable to write metadata: " + t.getMessage(), t);
+                batch.forEach(w -> w.result.completeExceptionally(t));
+            } finally {
+                capacity.release(batch.size());
+                batch.clear();
+                pendingWrites.set(pending.size());
+            }
+        }
+    }
+
+    private void write(List<PendingWrite> batch) {
+        Map<Cid, BlockMetadata> metas = new HashMap<>();
+        for (PendingWrite w : batch)
+            metas.put(w.cid, w.meta);
+        target.putAll(metas);
+        flushes.inc();
+        flushed.inc(metas.size());
+        batch.forEach(w -> w.result.complete(true));
+    }
+
+    /**
+     * Stop accepting queued writes and wait for the writer to write those already queued. Later puts go directly to
+     * the target.
+     */
+    public void close() {
+        synchronized (pending) {
+            running = false;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void put(Cid block, BlockMetadata meta) {
+        PendingWrite write = new PendingWrite(block, meta);
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        boolean queued;
+        synchronized (pending) {
+            queued = running;
+            if (queued)
+                pending.add(write);
+        }
+        if (! queued) {
+            capacity.release();
+            target.put(block, meta);
+            return;
+        }
+        try {
+            write.result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new RuntimeException(cause.getMessage(), cause);
+        }
+    }
+
+    @Override
+    public void putAll(Map<Cid, BlockMetadata> metas) {
+        target.putAll(metas);
+    }
+
+    @Override
+    public Optional<BlockMetadata> get(Cid block) {
+        return target.get(block);
+    }
+
+    @Override
+    public Map<Cid, BlockMetadata> getAll(List<Cid> blocks) {
+        return target.getAll(blocks);
+    }
+
+    @Override
+    public boolean hasAny(Multihash h) {
+        return target.hasAny(h);
+    }
+
+    @Override
+    public void remove(Cid block) {
+        synchronized (flushLock) {
+            dropPending(Set.of(block));
+            target.remove(block);
+        }
+    }
+
+    @Override
+    public void removeAll(List<Cid> blocks) {
+        synchronized (flushLock) {
+            dropPending(new HashSet<>(blocks));
+            target.removeAll(blocks);
+        }
+    }
+
+    /**
+     * A queued write of a removed block is superseded by the remove, so its put returns without writing it.
+     */
+    private void dropPending(Set<Cid> removed) {
+        List<PendingWrite> dropped = new ArrayList<>();
+        pending.removeIf(w -> {
+            if (! removed.contains(w.cid))
+                return false;
+            dropped.add(w);
+            return true;
+        });
+        capacity.release(dropped.size());
+        dropped.forEach(w -> w.result.complete(false));
+    }
+
+    @Override
+    public long size() {
+        return target.size();
+    }
+
+    @Override
+    public boolean applyToAll(Consumer<Cid> action) {
+        return target.applyToAll(action);
+    }
+
+    @Override
+    public Stream<Cid> list() {
+        return target.list();
+    }
+
+    @Override
+    public Stream<Cid> listCbor() {
+        return target.listCbor();
+    }
+
+    @Override
+    public List<Cid> listPage(Optional<Cid> after, int pageSize) {
+        return target.listPage(after, pageSize);
+    }
+
+    @Override
+    public void compact() {
+        target.compact();
+    }
+
+    @Override
+    public boolean needsRebuild() {
+        return target.needsRebuild();
+    }
+
+    @Override
+    public void rebuilt() {
+        target.rebuilt();
+    }
+}
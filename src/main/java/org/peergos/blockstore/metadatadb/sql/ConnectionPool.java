@@ -0,0 +1,261 @@
+package org.peergos.blockstore.metadatadb.sql;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import org.peergos.util.Logging;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed size pool of JDBC connections, each with a cache of prepared statements.
+ *
+ * Connections are opened lazily up to the pool size, and are set to autocommit with the given isolation level once,
+ * when opened. Closing a borrowed connection returns it to the pool, rolling back and restoring autocommit if a
+ * transaction was left open. Closing a prepared statement from a borrowed connection returns it to that connection's
+ * cache, so a hot query is only parsed once per connection.
+ */
+public class ConnectionPool implements Supplier<Connection>, AutoCloseable {
+
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_SIZE = 8;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30_000;
+
+    private static final Gauge activeConnections = Gauge.build()
+            .name("ipfs_jdbc_pool_active_connections")
+            .help("Number of pooled database connections in use")
+            .labelNames("pool")
+            .register();
+    private static final Gauge openConnections = Gauge.build()
+            .name("ipfs_jdbc_pool_open_connections")
+            .help("Number of pooled database connections open")
+            .labelNames("pool")
+            .register();
+    private static final Histogram waitDuration = Histogram.build()
+            .name("ipfs_jdbc_pool_wait_seconds")
+            .help("Time spent waiting for a pooled database connection")
+            .labelNames("pool")
+            .register();
+    private static final Counter statementCache = Counter.build()
+            .name("ipfs_jdbc_statement_cache_total")
+            .help("Prepared statement cache lookups")
+            .labelNames("pool", "result")
+            .register();
+
+    private final String name;
+    private final Callable<Connection> factory;
+    private final int size, isolation, statementCacheSize;
+    private final long timeoutMillis;
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param name the label for this pool's metrics
+     * @param factory opens a new physical connection
+     * @param isolation the transaction isolation level of every connection
+     */
+    public ConnectionPool(String name,
+                          Callable<Connection> factory,
+                          int size,
+                          int isolation,
+                          int statementCacheSize,
+                          long timeoutMillis) {
+        if (size < 1)
+            throw new IllegalArgumentException("Connection pool needs at least one connection");
+        this.name = name;
+        this.factory = factory;
+        this.size = size;
+        this.isolation = isolation;
+        this.statementCacheSize = statementCacheSize;
+        this.timeoutMillis = timeoutMillis;
+        this.idle = new ArrayBlockingQueue<>(size);
+    }
+
+    /**
+     *  A pool whose lookups see committed writes, which is all that single statement reads of immutable metadata need.
+     */
+    public static ConnectionPool build(String name, String jdbcUrl, int size) {
+        return new ConnectionPool(name, () -> DriverManager.getConnection(jdbcUrl), size,
+                Connection.TRANSACTION_READ_COMMITTED, DEFAULT_STATEMENT_CACHE_SIZE, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Borrow a connection, which must be closed to return it to the pool.
+     */
+    @Override
+    public Connection get() {
+        if (closed)
+            throw new IllegalStateException("Connection pool " + name + " is closed");
+        PooledConnection conn = idle.poll();
+        if (conn == null)
+            conn = open().orElse(null);
+        if (conn == null) {
+            Histogram.Timer timer = waitDuration.labels(name).startTimer();
+            try {
+                conn = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            } finally {
+                timer.observeDuration();
+            }
+            if (conn == null)
+                throw new IllegalStateException("Timed out waiting for a connection from pool " + name);
+        }
+        activeConnections.labels(name).inc();
+        conn.borrowed = true;
+        return conn;
+    }
+
+    private synchronized Optional<PooledConnection> open() {
+        if (all.size() >= size)
+            return Optional.empty();
+        try {
+            Connection physical = factory.call();
+            physical.setAutoCommit(true);
+            physical.setTransactionIsolation(isolation);
+            PooledConnection conn = new PooledConnection(physical);
+            all.add(conn);
+            openConnections.labels(name).inc();
+            return Optional.of(conn);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private void release(PooledConnection conn) {
+        activeConnections.labels(name).dec();
+        if (closed) {
+            conn.closePhysical();
+            return;
+        }
+        idle.offer(conn);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (PooledConnection conn : all)
+            if (! conn.borrowed)
+                conn.closePhysical();
+        openConnections.labels(name).set(0);
+    }
+
+    private class PooledConnection extends UncloseableConnection {
+        private final Connection target;
+        private final LinkedHashMap<String, PreparedStatement> statements =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() <= statementCacheSize)
+                            return false;
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                };
+        // statements handed out and not yet closed
+        private final Set<String> inUse = new HashSet<>();
+        private volatile boolean borrowed = false;
+
+        PooledConnection(Connection target) {
+            super(target);
+            this.target = target;
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            if (! borrowed)
+                throw new SQLException("Connection has been returned to the pool");
+            // the same query can be open twice on a connection, but only the first use is cached
+            if (inUse.contains(sql)) {
+                statementCache.labels(name, "busy").inc();
+                return target.prepareStatement(sql);
+            }
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null || stmt.isClosed()) {
+                statementCache.labels(name, "miss").inc();
+                stmt = target.prepareStatement(sql);
+                statements.put(sql, stmt);
+            } else
+                statementCache.labels(name, "hit").inc();
+            inUse.add(sql);
+            return cached(sql, stmt);
+        }
+
+        private PreparedStatement cached(String sql, PreparedStatement stmt) {
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "close":
+                                if (inUse.remove(sql)) {
+                                    stmt.clearParameters();
+                                    stmt.clearBatch();
+                                }
+                                return null;
+                            case "getConnection":
+                                return this;
+                            default:
+                                try {
+                                    return method.invoke(stmt, args);
+                                } catch (InvocationTargetException e) {
+                                    throw e.getCause();
+                                }
+                        }
+                    });
+        }
+
+        @Override
+        public boolean isClosed() throws SQLException {
+            return ! borrowed || target.isClosed();
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (! borrowed)
+                return;
+            borrowed = false;
+            inUse.clear();
+            try {
+                if (! target.getAutoCommit()) {
+                    target.rollback();
+                    target.setAutoCommit(true);
+                }
+                if (target.getTransactionIsolation() != isolation)
+                    target.setTransactionIsolation(isolation);
+            } catch (SQLException e) {
+                LOG.log(Level.WARNING, "Unable to reset pooled connection: " + e.getMessage(), e);
+            }
+            release(this);
+        }
+
+        private void closeQuietly(Statement stmt) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                LOG.log(Level.FINE, e.getMessage(), e);
+            }
+        }
+
+        void closePhysical() {
+            statements.values().forEach(this::closeQuietly);
+            statements.clear();
+            try {
+                target.close();
+            } catch (SQLException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -5,10 +5,13 @@ import io.ipfs.multihash.Multihash;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Histogram;
 import org.peergos.Hash;
+import org.peergos.blockstore.BlockCompression;
 import org.peergos.blockstore.Blockstore;
 import org.peergos.blockstore.RateLimitException;
+import org.peergos.blockstore.RefsPage;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
+import org.peergos.blockstore.metadatadb.CachingBlockMetadataStore;
 import org.peergos.cbor.CborObject;
 import org.peergos.util.Hasher;
 import org.peergos.util.*;
@@ -21,6 +24,8 @@ import java.nio.file.Path;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicLong;
@@ -93,9 +98,13 @@ public class S3Blockstore implements Blockstore {
     private final Hasher hasher;
 
     private final BlockMetadataStore blockMetadata;
+    private final Optional<BlockCompression> compression;
+    // runs the individual S3 requests of batch operations concurrently
+    private final ExecutorService bulkRequests;
 
     public S3Blockstore(Map<String, Object> params, BlockMetadataStore blockMetadata) {
         this.blockMetadata = blockMetadata;
+        this.compression = BlockCompression.fromParams(params);
         region = getParam(params, "region");
         bucket = getParam(params, "bucket");
         regionEndpoint = getParam(params, "regionEndpoint", "");
@@ -134,6 +143,12 @@ public class S3Blockstore implements Blockstore {
                 rootDirectory : rootDirectory + "/");
 
         hasher = new Hasher();
+        int bulkParallelism = Integer.parseInt(getParam(params, "bulk-parallelism", "20"));
+        bulkRequests = Executors.newFixedThreadPool(bulkParallelism, r -> {
+            Thread t = new Thread(r, "s3-bulk");
+            t.setDaemon(true);
+            return t;
+        });
         LOG.info("Using S3BlockStore");
     }
     private String getHost() {
@@ -219,17 +234,20 @@ public class S3Blockstore implements Blockstore {
             throw new IllegalStateException("Block not present locally: " + h);
         byte[] bloc = data.get();
         if (h.codec == Cid.Codec.Raw) {
-            // we should avoid this by populating the metadata store, as it means two S3 calls, a ranged GET and a HEAD
-            int size = getSizeWithoutRetry(h).join().get();
-            BlockMetadata meta = new BlockMetadata(size, Collections.emptyList());
+            // the size of the block, not of the stored object, which may be compressed
+            BlockMetadata meta = new BlockMetadata(bloc.length, Collections.emptyList());
             blockMetadata.put(h, meta);
             return Futures.of(meta);
         }
         return Futures.of(blockMetadata.put(h, bloc));
     }
 
+    /**
+     *  Populate the metadata store from S3 if it is empty, or if it may have lost metadata in a crash. Presence is
+     *  answered from the metadata alone, so a missing entry would hide a block.
+     */
     public void updateMetadataStoreIfEmpty() {
-        if (blockMetadata.size() > 0)
+        if (blockMetadata.size() > 0 && ! blockMetadata.needsRebuild())
             return;
         LOG.info("Updating block metadata store from S3. Listing blocks...");
         List<Cid> all = directRefs().join();
@@ -257,6 +275,7 @@ public class S3Blockstore implements Blockstore {
         futures.stream()
                 .map(ForkJoinTask::join)
                 .collect(Collectors.toList());
+        blockMetadata.rebuilt();
         LOG.info("Finished updating block metadata store from S3.");
     }
 
@@ -284,8 +303,8 @@ public class S3Blockstore implements Blockstore {
 
     @Override
     public CompletableFuture<Boolean> hasAny(Multihash h) {
-        return Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
-                .anyMatch(c -> has(new Cid(1, c, h.getType(), h.getHash())).join()));
+        // the metadata store is kept in sync with every put and rm, so avoid a HEAD request per codec
+        return Futures.of(blockMetadata.hasAny(h));
     }
 
     private CompletableFuture<Optional<Integer>> getSizeWithoutRetry(Cid cid) {
@@ -311,8 +330,7 @@ public class S3Blockstore implements Blockstore {
                 rateLimited.inc();
                 throw new RateLimitException();
             }
-            boolean notFound = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchKey</Code>");
-            if (! notFound) {
+            if (! isNotFound(e)) {
                 LOG.warning("S3 error reading " + cid);
                 LOG.log(Level.WARNING, msg, e);
             }
@@ -329,6 +347,14 @@ public class S3Blockstore implements Blockstore {
         return getWithBackoff(() -> getWithoutRetry(cid));
     }
 
+    /**
+     * @return whether the exception is S3 reporting that the key doesn't exist
+     */
+    public static boolean isNotFound(Throwable t) {
+        String msg = t.getMessage();
+        return msg != null && msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchKey</Code>");
+    }
+
     private CompletableFuture<Optional<byte[]>> getWithoutRetry(Cid cid) {
         String path = folder + hashToKey(cid);
         Optional<Pair<Integer, Integer>> range = Optional.empty();
@@ -336,7 +362,8 @@ public class S3Blockstore implements Blockstore {
                 S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, storageClass, accessKeyId, secretKey, useHttps, hasher).join();
         Histogram.Timer readTimer = readTimerLog.labels("read").startTimer();
         try {
-            byte[] block = HttpUtil.get(getUrl.base, getUrl.fields);
+            byte[] stored = HttpUtil.get(getUrl.base, getUrl.fields);
+            byte[] block = compression.map(c -> c.decode(stored)).orElse(stored);
             blockGets.inc();
             blockMetadata.put(cid, block);
             return Futures.of(Optional.of(block));
@@ -351,8 +378,7 @@ public class S3Blockstore implements Blockstore {
                 rateLimited.inc();
                 throw new RateLimitException();
             }
-            boolean notFound = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchKey</Code>");
-            if (! notFound) {
+            if (! isNotFound(e)) {
                 LOG.warning("S3 error reading " + path);
                 LOG.log(Level.WARNING, msg, e);
             }
@@ -376,10 +402,12 @@ public class S3Blockstore implements Blockstore {
             String s3Key = folder + key;
             Map<String, String> extraHeaders = new TreeMap<>();
             extraHeaders.put("Content-Type", "application/octet-stream");
-            String contentHash =  ArrayOps.bytesToHex(hash);
-            PresignedUrl putUrl = S3Request.preSignPut(s3Key, block.length, contentHash, storageClass, false,
+            // the cid is over the uncompressed block, but S3 checks the hash of what is uploaded
+            byte[] stored = compression.map(c -> c.encode(block, codec)).orElse(block);
+            String contentHash =  ArrayOps.bytesToHex(stored == block ? hash : Hash.sha256(stored));
+            PresignedUrl putUrl = S3Request.preSignPut(s3Key, stored.length, contentHash, storageClass, false,
                     S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, extraHeaders, region, accessKeyId, secretKey, useHttps, hasher).join();
-            HttpUtil.put(putUrl.base, putUrl.fields, block);
+            HttpUtil.put(putUrl.base, putUrl.fields, stored);
             blockMetadata.put(cid, block);
             blockPuts.inc();
             blockPutBytes.labels("size").observe(block.length);
@@ -411,6 +439,37 @@ public class S3Blockstore implements Blockstore {
         }
     }
 
+    /**
+     *  Presence is answered from a single metadata store query, without any S3 requests.
+     */
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        Map<Cid, BlockMetadata> known = blockMetadata.getAll(cids);
+        return Futures.of(cids.stream()
+                .map(known::containsKey)
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        Map<Cid, BlockMetadata> known = blockMetadata.getAll(cids);
+        if (! known.isEmpty() && noReads)
+            throw new IllegalStateException("Reads from Glacier are disabled!");
+        return Futures.parallel(cids, c -> known.containsKey(c) ?
+                getWithBackoff(() -> getWithoutRetry(c)).join() :
+                Optional.<byte[]>empty(), bulkRequests);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<Pair<byte[], Cid.Codec>> blocks) {
+        return Futures.parallel(blocks, b -> put(b.left, b.right).join(), bulkRequests);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return Futures.parallel(cids, c -> rm(c).join(), bulkRequests);
+    }
+
     @Override
     public CompletableFuture<Boolean> bloomAdd(Cid cid) {
         return CompletableFuture.completedFuture(false);
@@ -423,6 +482,41 @@ public class S3Blockstore implements Blockstore {
         return CompletableFuture.completedFuture(blockMetadata.list().collect(Collectors.toList()));
     }
 
+    /**
+     *  Pages directly over S3 list requests when using the blockstore, where the resume token is the S3 continuation
+     *  token, otherwise over the metadata store.
+     */
+    @Override
+    public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+        if (! useBlockstore)
+            return Futures.of(CachingBlockMetadataStore.metadataPage(blockMetadata, resumeToken, pageSize, codec));
+        List<Cid> page = new ArrayList<>();
+        Optional<String> continuationToken = resumeToken;
+        int listed = 0;
+        while (listed < pageSize) {
+            Optional<String> token = continuationToken;
+            int maxKeys = Math.min(1_000, pageSize - listed);
+            S3AdminRequests.ListObjectsReply result = getWithBackoff(() -> S3AdminRequests.listObjects(folder, maxKeys, token,
+                    ZonedDateTime.now(), host, region, storageClass, accessKeyId, secretKey, url -> {
+                        try {
+                            return HttpUtil.get(url.base, url.fields);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }, S3AdminRequests.builder::get, useHttps, hasher));
+            listed += result.objects.size();
+            result.objects.stream()
+                    .filter(obj -> ! obj.key.endsWith("/"))
+                    .map(obj -> keyToHash(obj.key))
+                    .filter(c -> RefsPage.matches(c, codec))
+                    .forEach(page::add);
+            if (! result.isTruncated)
+                return Futures.of(new RefsPage(page, Optional.empty()));
+            continuationToken = result.continuationToken;
+        }
+        return Futures.of(new RefsPage(page, continuationToken));
+    }
+
     @Override
     public CompletableFuture<Long> count(boolean useBlockstore) {
         if (!useBlockstore)
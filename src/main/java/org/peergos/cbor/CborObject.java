@@ -4,6 +4,7 @@ import io.ipfs.cid.*;
 import io.ipfs.multihash.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.function.*;
 import java.util.stream.*;
@@ -26,6 +27,37 @@ public interface CborObject extends Cborable {
                         .collect(Collectors.toList());
     }
 
+    /**
+     * Parse the links of a block without copying it, e.g. from a memory mapped or cached buffer.
+     */
+    static List<Cid> getLinks(Cid h, ByteBuffer data) {
+        if (h.codec == Cid.Codec.Raw)
+            return Collections.emptyList();
+        ByteBuffer buf = data.duplicate();
+        InputStream in = buf.hasArray() ?
+                new ByteArrayInputStream(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining()) :
+                new InputStream() {
+                    @Override
+                    public int read() {
+                        return buf.hasRemaining() ? buf.get() & 0xff : -1;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) {
+                        if (! buf.hasRemaining())
+                            return -1;
+                        int n = Math.min(len, buf.remaining());
+                        buf.get(b, off, n);
+                        return n;
+                    }
+                };
+        return read(in, data.remaining())
+                .links()
+                .stream()
+                .map(m -> (Cid) m)
+                .collect(Collectors.toList());
+    }
+
     default byte[] toByteArray() {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         CborEncoder encoder = new CborEncoder(bout);
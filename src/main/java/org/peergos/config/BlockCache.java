@@ -0,0 +1,43 @@
+package org.peergos.config;
+
+import org.peergos.util.JsonHelper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class BlockCache implements Jsonable {
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    public final long maxBytes;
+    public final int segments;
+
+    public BlockCache(long maxBytes, int segments) {
+        if (maxBytes < 0) {
+            throw new IllegalStateException("Invalid BlockCache size: " + maxBytes);
+        }
+        if (segments <= 0) {
+            throw new IllegalStateException("Invalid BlockCache segment count: " + segments);
+        }
+        this.maxBytes = maxBytes;
+        this.segments = segments;
+    }
+    public static BlockCache none() {
+        return new BlockCache(0, DEFAULT_SEGMENTS);
+    }
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+    public Map<String, Object> toJson() {
+        Map<String, Object> configMap = new LinkedHashMap<>();
+        configMap.put("maxBytes", Long.toString(maxBytes));
+        configMap.put("segments", Integer.toString(segments));
+        return configMap;
+    }
+    public static BlockCache fromJson(Map<String, Object> json) {
+        return new BlockCache(Long.parseLong(JsonHelper.getStringProperty(json, "maxBytes")),
+            json.containsKey("segments") ?
+                    Integer.parseInt(JsonHelper.getStringProperty(json, "segments")) :
+                    DEFAULT_SEGMENTS
+        );
+    }
+}
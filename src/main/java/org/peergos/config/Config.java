@@ -123,9 +123,10 @@ public class Config {
             throw new IllegalStateException("Expecting Addresses/Swarm entries");
         }
         Mount blockMount = config.datastore.blockMount;
-        if (!( (blockMount.prefix.equals("flatfs.datastore")  || blockMount.prefix.equals("s3.datastore"))
+        if (!( (blockMount.prefix.equals("flatfs.datastore")  || blockMount.prefix.equals("s3.datastore")
+                || blockMount.prefix.equals("packfs.datastore"))
                 && blockMount.type.equals("measure"))) {
-            throw new IllegalStateException("Expecting /blocks mount to have prefix == ('flatfs.datastore' or 's3.datastore') and type == 'measure'");
+            throw new IllegalStateException("Expecting /blocks mount to have prefix == ('flatfs.datastore', 's3.datastore' or 'packfs.datastore') and type == 'measure'");
         }
         Map<String, Object> blockParams = blockMount.getParams();
         String blockPath = (String) blockParams.get("path");
@@ -137,6 +138,9 @@ public class Config {
         if (blockMount.prefix.equals("s3.datastore") && !blockType.equals("s3ds")) {
             throw new IllegalStateException("Expecting /blocks s3.datastore mount to have a type of 's3ds'");
         }
+        if (blockMount.prefix.equals("packfs.datastore") && !blockType.equals("packfs")) {
+            throw new IllegalStateException("Expecting /blocks packfs.datastore mount to have a type of 'packfs'");
+        }
 
         Mount rootMount = config.datastore.rootMount;
         if (!(rootMount.prefix.equals("h2.datastore") && rootMount.type.equals("measure"))) {
@@ -5,6 +5,9 @@ import io.ipfs.multihash.*;
 import io.libp2p.core.PeerId;
 import io.libp2p.crypto.keys.*;
 import org.peergos.*;
+import org.peergos.blockstore.CarArchive;
+import org.peergos.blockstore.RefsPage;
+import org.peergos.blockstore.RootsProvider;
 import org.peergos.blockstore.auth.Bat;
 import org.peergos.blockstore.auth.BatId;
 import org.peergos.cbor.*;
@@ -16,6 +19,8 @@ import com.sun.net.httpserver.HttpExchange;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.Logger;
 import java.util.stream.*;
 
@@ -37,6 +42,13 @@ public class APIHandler extends Handler {
     public static final String REFS_LOCAL = "refs/local";
     public static final String BLOOM_ADD = "bloom/add";
     public static final String HAS = "block/has";
+    public static final String GC = "repo/gc";
+    public static final String GC_STATUS = "repo/gc/status";
+    public static final String GC_CANCEL = "repo/gc/cancel";
+    public static final String DAG_FETCH = "dag/fetch";
+    private static final long DAG_FETCH_PROGRESS_INTERVAL_MILLIS = 1_000;
+    public static final String DAG_IMPORT = "dag/import";
+    public static final String DAG_EXPORT = "dag/export";
 
     public static final String FIND_PROVS = "dht/findprovs";
     public static final String IPNS_GET = "ipns/get";
@@ -91,7 +103,13 @@ public class APIHandler extends Handler {
                     boolean addToBlockstore = Optional.ofNullable(params.get("persist"))
                             .map(a -> Boolean.parseBoolean(a.get(0)))
                             .orElse(true);
-                    List<HashedBlock> block = ipfs.getBlocks(List.of(new Want(Cid.decode(args.get(0)), auth)), peers, addToBlockstore);
+                    Cid cid = Cid.decode(args.get(0));
+                    Optional<ByteBuffer> local = ipfs.getLocalBlock(cid);
+                    if (local.isPresent()) {
+                        replyBuffer(httpExchange, local.get());
+                        break;
+                    }
+                    List<HashedBlock> block = ipfs.getBlocks(List.of(new Want(cid, auth)), peers, addToBlockstore);
                     if (! block.isEmpty()) {
                         replyBytes(httpExchange, block.get(0).block);
                     } else {
@@ -198,10 +216,9 @@ public class APIHandler extends Handler {
                             .stream()
                             .map(Cid::decode)
                             .collect(Collectors.toList());
-                    boolean deleted = true;
-                    for (Cid cid : cids) {
-                        deleted &= ipfs.blockstore.rm(cid).join();
-                    }
+                    boolean deleted = ipfs.blockstore.rmAll(cids).join()
+                            .stream()
+                            .allMatch(b -> b);
 
                     if (deleted) {
                         Map res = new HashMap<>();
@@ -242,15 +259,24 @@ public class APIHandler extends Handler {
                             .map(a -> a.get(0))
                             .map(Boolean::parseBoolean)
                             .orElse(false);
-                    List<Cid> refs = ipfs.blockstore.refs(useBlockStore).join();
-                    StringBuilder sb = new StringBuilder();
-                    for (Cid cid : refs) {
+                    Optional<Integer> pageSize = Optional.ofNullable(params.get("page-size"))
+                            .map(a -> a.get(0))
+                            .map(Integer::parseInt);
+                    Stream<Cid> refs;
+                    if (pageSize.isPresent()) {
+                        // a single page, with the token to resume from in a header
+                        Optional<String> resume = Optional.ofNullable(params.get("resume")).map(a -> a.get(0));
+                        RefsPage page = ipfs.blockstore.refs(resume, pageSize.get(), Optional.empty(), useBlockStore).join();
+                        page.next.ifPresent(t -> httpExchange.getResponseHeaders().set("X-Next-Page", t));
+                        refs = page.refs.stream();
+                    } else
+                        refs = ipfs.blockstore.streamRefs(Optional.empty(), useBlockStore);
+                    replyStream(httpExchange, refs.map(cid -> {
                         Map<String, String> entry = new HashMap<>();
                         entry.put("Ref", cid.toString());
                         entry.put("Err", "");
-                        sb.append(JSONParser.toString(entry));
-                    }
-                    replyBytes(httpExchange, sb.toString().getBytes());
+                        return JSONParser.toString(entry).getBytes();
+                    }));
                     break;
                 }
                 case HAS: {
@@ -271,6 +297,115 @@ public class APIHandler extends Handler {
                     replyBytes(httpExchange, added.toString().getBytes());
                     break;
                 }
+                case GC: {
+                    AggregatedMetrics.API_REPO_GC.inc();
+                    // the roots to retain, everything not reachable from them is deleted
+                    Map<String, Object> json = (Map<String, Object>) JSONParser.parse(new String(readFully(httpExchange.getRequestBody())));
+                    List<String> rootsJson = json == null ? null : (List<String>) json.get("roots");
+                    boolean force = json != null && Boolean.TRUE.equals(json.get("force"));
+                    List<Cid> roots = rootsJson == null ?
+                            Collections.emptyList() :
+                            rootsJson.stream()
+                                    .map(Cid::decode)
+                                    .collect(Collectors.toList());
+                    if (roots.isEmpty() && ! force)
+                        throw new APIException("\"roots\" is required, without any roots every block is deleted so \"force\": true is also required");
+                    ipfs.gc.start(RootsProvider.of(roots));
+                    replyJson(httpExchange, JSONParser.toString(ipfs.gc.progress().toJson()));
+                    break;
+                }
+                case GC_STATUS: {
+                    AggregatedMetrics.API_REPO_GC_STATUS.inc();
+                    replyJson(httpExchange, JSONParser.toString(ipfs.gc.progress().toJson()));
+                    break;
+                }
+                case GC_CANCEL: {
+                    AggregatedMetrics.API_REPO_GC_CANCEL.inc();
+                    ipfs.gc.cancel();
+                    replyJson(httpExchange, JSONParser.toString(ipfs.gc.progress().toJson()));
+                    break;
+                }
+                case DAG_FETCH: {
+                    AggregatedMetrics.API_DAG_FETCH.inc();
+                    if (args == null || args.size() != 1) {
+                        throw new APIException("argument \"cid\" is required");
+                    }
+                    Optional<String> auth = Optional.ofNullable(params.get("auth"))
+                            .map(a -> a.get(0))
+                            .flatMap(a -> a.isEmpty() ? Optional.empty() : Optional.of(a));
+                    Set<PeerId> peers = Optional.ofNullable(params.get("peers"))
+                            .map(p -> p.stream().map(PeerId::fromBase58).collect(Collectors.toSet()))
+                            .orElse(Collections.emptySet());
+                    int maxInFlight = Optional.ofNullable(params.get("in-flight"))
+                            .map(a -> Integer.parseInt(a.get(0)))
+                            .orElse(DagFetcher.DEFAULT_MAX_IN_FLIGHT);
+                    // auth is per block, so the auth for blocks below the root is given as wants in the body
+                    byte[] body = readFully(httpExchange.getRequestBody());
+                    Map<Cid, String> childAuth = new HashMap<>();
+                    if (body.length > 0) {
+                        Map<String, Object> json = (Map<String, Object>) JSONParser.parse(new String(body));
+                        ((List<Map<String, String>>) json.getOrDefault("wants", Collections.emptyList()))
+                                .stream()
+                                .map(Want::fromJson)
+                                .forEach(w -> w.authHex.ifPresent(a -> childAuth.put(w.cid, a)));
+                    }
+                    // stream a line of progress every interval, and when done, so a client that has gone away is noticed
+                    AtomicReference<DagFetcher.Progress> latest = new AtomicReference<>(
+                            new DagFetcher.Progress(0, 0, 0, 1, 0, 0, false));
+                    BlockingQueue<DagFetcher.Progress> done = new LinkedBlockingQueue<>();
+                    CompletableFuture<DagFetcher.Progress> fetch = ipfs.fetchDag(new Want(Cid.decode(args.get(0)), auth),
+                            c -> Optional.ofNullable(childAuth.get(c)), peers, maxInFlight, latest::set);
+                    fetch.thenAccept(done::add);
+                    httpExchange.sendResponseHeaders(200, 0);
+                    OutputStream out = httpExchange.getResponseBody();
+                    try {
+                        while (true) {
+                            DagFetcher.Progress p = done.poll(DAG_FETCH_PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                            if (p == null)
+                                p = latest.get();
+                            out.write((JSONParser.toString(p.toJson()) + "\n").getBytes());
+                            out.flush();
+                            if (p.done)
+                                break;
+                        }
+                        out.close();
+                    } catch (IOException e) {
+                        // the client has gone away
+                        fetch.cancel(true);
+                        throw e;
+                    }
+                    break;
+                }
+                case DAG_IMPORT: {
+                    AggregatedMetrics.API_DAG_IMPORT.inc();
+                    // the request body is the CAR file
+                    CarArchive.ImportResult res = CarArchive.importCar(new BufferedInputStream(httpExchange.getRequestBody()), ipfs.blockstore);
+                    replyJson(httpExchange, JSONParser.toString(res.toJson()));
+                    break;
+                }
+                case DAG_EXPORT: {
+                    AggregatedMetrics.API_DAG_EXPORT.inc();
+                    List<Cid> roots = args == null ?
+                            Collections.emptyList() :
+                            args.stream().map(Cid::decode).collect(Collectors.toList());
+                    // "dag" walks the dag from the roots, "storage" lists every block in the store
+                    String order = Optional.ofNullable(params.get("order"))
+                            .map(a -> a.get(0))
+                            .orElse("dag");
+                    if (order.equals("dag") && roots.isEmpty())
+                        throw new APIException("argument \"root\" is required");
+                    if (! order.equals("dag") && ! order.equals("storage"))
+                        throw new APIException("Unknown export order: " + order);
+                    httpExchange.getResponseHeaders().set("Content-Type", "application/vnd.ipld.car");
+                    httpExchange.sendResponseHeaders(200, 0);
+                    OutputStream out = new BufferedOutputStream(httpExchange.getResponseBody());
+                    if (order.equals("dag"))
+                        CarArchive.exportDag(ipfs.blockstore, roots, out);
+                    else
+                        CarArchive.exportAll(ipfs.blockstore, roots, out, false);
+                    out.close();
+                    break;
+                }
                 case FIND_PROVS: {
                     AggregatedMetrics.API_FIND_PROVS.inc();
                     if (args == null || args.size() != 1) {
@@ -7,8 +7,13 @@ import org.peergos.util.HttpUtil;
 import org.peergos.util.Logging;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 
 public abstract class Handler implements HttpHandler {
@@ -63,6 +68,37 @@ public abstract class Handler implements HttpHandler {
         }
     }
 
+    protected static void replyBuffer(HttpExchange exchange, ByteBuffer body) {
+        try {
+            exchange.sendResponseHeaders(200, body.remaining());
+            WritableByteChannel out = Channels.newChannel(exchange.getResponseBody());
+            while (body.hasRemaining())
+                out.write(body);
+            out.close();
+        } catch (IOException e)
+        {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    /**
+     *  Reply with a body of unknown length, written with chunked encoding as the stream is consumed.
+     */
+    protected static void replyStream(HttpExchange exchange, Stream<byte[]> body) {
+        try {
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = new BufferedOutputStream(exchange.getResponseBody());
+            Iterator<byte[]> parts = body.iterator();
+            while (parts.hasNext())
+                out.write(parts.next());
+            out.flush();
+            out.close();
+        } catch (IOException e)
+        {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
     protected static void replyBytes(HttpExchange exchange, byte[] body) {
         try {
             exchange.sendResponseHeaders(200, body.length);
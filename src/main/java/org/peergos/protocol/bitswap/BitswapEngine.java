@@ -155,6 +155,19 @@ public class BitswapEngine {
         int absentBlocks = 0;
         int presentBlocks = 0;
         if (msg.hasWantlist()) {
+            // look up every wanted block in one batch rather than a round trip per want
+            List<Cid> wanted = new ArrayList<>();
+            for (MessageOuterClass.Message.Wantlist.Entry e : msg.getWantlist().getEntriesList()) {
+                try {
+                    wanted.add(Cid.cast(e.getBlock().toByteArray()));
+                } catch (Exception ex) {}
+            }
+            List<Boolean> wantedPresent = store.hasAll(wanted).join();
+            Set<Cid> localBlocks = new HashSet<>();
+            for (int i = 0; i < wanted.size(); i++)
+                if (wantedPresent.get(i))
+                    localBlocks.add(wanted.get(i));
+
             for (MessageOuterClass.Message.Wantlist.Entry e : msg.getWantlist().getEntriesList()) {
                 Cid c;
                 try {
@@ -178,7 +191,7 @@ public class BitswapEngine {
                         messageSize += presence.getSerializedSize();
                         continue;
                     }
-                    boolean blockPresent = store.has(c).join();
+                    boolean blockPresent = localBlocks.contains(c);
                     if (! blockPresent)
                         absentBlocks++;
                     else
@@ -187,7 +200,7 @@ public class BitswapEngine {
                         MessageOuterClass.Message.Block blockP = MessageOuterClass.Message.Block.newBuilder()
                                 .setPrefix(ByteString.copyFrom(prefixBytes(c)))
                                 .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(auth.orElse(""))))
-                                .setData(ByteString.copyFrom(store.get(c).join().get()))
+                                .setData(UnsafeByteOperations.unsafeWrap(store.getBuffer(c).join().get()))
                                 .build();
                         int blockSize = blockP.getSerializedSize();
                         if (blockSize + messageSize > maxMessageSize) {
@@ -214,7 +227,7 @@ public class BitswapEngine {
                         LOG.info("Rejecting repeated invalid auth for block " + c + " from " + sourcePeerId.bareMultihash());
                     }
                 } else {
-                    boolean hasBlock = store.has(c).join();
+                    boolean hasBlock = localBlocks.contains(c);
                     if (hasBlock) {
                         MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence.newBuilder()
                                 .setCid(ByteString.copyFrom(c.toBytes()))
@@ -237,6 +250,8 @@ public class BitswapEngine {
         LOG.fine("Bitswap received " + msg.getWantlist().getEntriesCount() + " wants, " + msg.getPayloadCount() +
                 " blocks and " + msg.getBlockPresencesCount() + " presences from " + sourcePeerId);
         boolean receivedWantedBlock = false;
+        List<Pair<byte[], Cid.Codec>> toPersist = new ArrayList<>();
+        List<Pair<WantResult, HashedBlock>> received = new ArrayList<>();
         for (MessageOuterClass.Message.Block block : msg.getPayloadList()) {
             byte[] cidPrefix = block.getPrefix().toByteArray();
             Optional<String> auth = block.getAuth().isEmpty() ?
@@ -259,10 +274,10 @@ public class BitswapEngine {
                     if (waiter != null) {
                         receivedWantedBlock = true;
                         if (persistBlocks.containsKey(w)) {
-                            store.put(data, codec);
+                            toPersist.add(new Pair<>(data, codec));
                             persistBlocks.remove(w);
                         }
-                        waiter.result.complete(new HashedBlock(c, data));
+                        received.add(new Pair<>(waiter, new HashedBlock(c, data)));
                         localWants.remove(w);
                     } else
                         LOG.info("Received block we don't want: " + c + " from " + sourcePeerId.bareMultihash());
@@ -271,6 +286,21 @@ public class BitswapEngine {
                 e.printStackTrace();
             }
         }
+        // persist before completing the waiters, so the blocks are local once a want completes
+        if (toPersist.isEmpty())
+            received.forEach(r -> r.left.result.complete(r.right));
+        else {
+            try {
+                store.putAll(toPersist).whenComplete((res, t) -> {
+                    if (t != null)
+                        LOG.log(Level.WARNING, "Couldn't persist received blocks: " + t.getMessage(), t);
+                    received.forEach(r -> r.left.result.complete(r.right));
+                });
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Couldn't persist received blocks: " + e.getMessage(), e);
+                received.forEach(r -> r.left.result.complete(r.right));
+            }
+        }
         if (! localWants.isEmpty())
             LOG.fine("Remaining: " + localWants.size());
         boolean receivedRequestedHave = false;
@@ -2,6 +2,7 @@ package org.peergos.protocol.dht;
 import io.ipfs.cid.Cid;
 import io.ipfs.multibase.binary.Base32;
 import io.ipfs.multihash.Multihash;
+import org.peergos.blockstore.metadatadb.sql.ConnectionPool;
 import org.peergos.protocol.ipns.IpnsRecord;
 
 import java.io.ByteArrayOutputStream;
@@ -15,7 +16,7 @@ import java.util.*;
 public class DatabaseRecordStore implements RecordStore {
 
     private final String connectionStringPrefix = "jdbc:h2:";//./store/records;AUTO_RECONNECT=TRUE
-    private final Connection connection;
+    private final ConnectionPool pool;
 
     private final String RECORD_TABLE = "records";
     private final int SIZE_OF_VAL = 10 * 1024; // 10KiB
@@ -26,20 +27,13 @@ public class DatabaseRecordStore implements RecordStore {
      * @param location - location of the database on disk (See: https://h2database.com/html/cheatSheet.html for options)
      */
     public DatabaseRecordStore(String location) {
-        try {
-            this.connection = getConnection(connectionStringPrefix + location);
-            this.connection.setAutoCommit(true);
-            createTable();
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
-        }
+        // every connection to an unnamed in-memory database gets its own database
+        int connections = location.equals("mem:") ? 1 : ConnectionPool.DEFAULT_SIZE;
+        this.pool = ConnectionPool.build("records", connectionStringPrefix + location, connections);
+        createTable();
     }
     public void close() throws Exception {
-        connection.close();
-    }
-
-    private Connection getConnection(String connectionString) throws SQLException {
-        return DriverManager.getConnection(connectionString);
+        pool.close();
     }
 
     private void createTable() {
@@ -47,7 +41,8 @@ public class DatabaseRecordStore implements RecordStore {
                 + " (peerId VARCHAR(" + SIZE_OF_PEERID + ") primary key not null, raw BLOB not null, "
                 + "sequence BIGINT not null, ttlNanos BIGINT not null, expiryUTC BIGINT not null, "
                 + "val VARCHAR(" + SIZE_OF_VAL + ") not null);";
-        try (PreparedStatement select = connection.prepareStatement(createSQL)) {
+        try (Connection connection = pool.get();
+             PreparedStatement select = connection.prepareStatement(createSQL)) {
             select.execute();
         } catch (SQLException ex) {
             throw new IllegalStateException(ex);
@@ -63,7 +58,8 @@ public class DatabaseRecordStore implements RecordStore {
     @Override
     public Optional<IpnsRecord> get(Multihash peerId) {
         String selectSQL = "SELECT raw, sequence, ttlNanos, expiryUTC, val FROM " + RECORD_TABLE + " WHERE peerId=?";
-        try (PreparedStatement pstmt = connection.prepareStatement(selectSQL)) {
+        try (Connection connection = pool.get();
+             PreparedStatement pstmt = connection.prepareStatement(selectSQL)) {
             pstmt.setString(1, hashToKey(peerId));
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
@@ -96,7 +92,8 @@ public class DatabaseRecordStore implements RecordStore {
     public void put(Multihash peerId, IpnsRecord record) {
         String updateSQL = "MERGE INTO " + RECORD_TABLE
                 + " (peerId, raw, sequence, ttlNanos, expiryUTC, val) VALUES (?, ?, ?, ?, ?, ?);";
-        try (PreparedStatement pstmt = connection.prepareStatement(updateSQL)) {
+        try (Connection connection = pool.get();
+             PreparedStatement pstmt = connection.prepareStatement(updateSQL)) {
             pstmt.setString(1, hashToKey(peerId));
             pstmt.setBytes(2, record.raw);
             pstmt.setLong(3, record.sequence);
@@ -113,7 +110,8 @@ public class DatabaseRecordStore implements RecordStore {
     @Override
     public void remove(Multihash peerId) {
         String deleteSQL = "DELETE FROM " + RECORD_TABLE + " WHERE peerId=?";
-        try (PreparedStatement pstmt = connection.prepareStatement(deleteSQL)) {
+        try (Connection connection = pool.get();
+             PreparedStatement pstmt = connection.prepareStatement(deleteSQL)) {
             pstmt.setString(1, hashToKey(peerId));
             pstmt.executeUpdate();
         } catch (SQLException ex) {
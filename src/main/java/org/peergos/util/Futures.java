@@ -2,6 +2,9 @@ package org.peergos.util;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class Futures {
 
@@ -20,6 +23,25 @@ public class Futures {
         throw new RuntimeException(t.getMessage(), t);
     }
 
+    /**
+     *  @return a future of all the results, in the same order as the given futures
+     */
+    public static <T> CompletableFuture<List<T>> combineAll(List<CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(x -> futures.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.toList()));
+    }
+
+    /**
+     *  Apply a blocking function to every input in parallel on the given executor, preserving order.
+     */
+    public static <T, R> CompletableFuture<List<R>> parallel(List<T> inputs, Function<T, R> f, Executor executor) {
+        return combineAll(inputs.stream()
+                .map(in -> CompletableFuture.supplyAsync(() -> f.apply(in), executor))
+                .collect(Collectors.toList()));
+    }
+
     public static <T> CompletableFuture<T> errored(Throwable t) {
         CompletableFuture<T> err = new CompletableFuture<>();
         err.completeExceptionally(t);
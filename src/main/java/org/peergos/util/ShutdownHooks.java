@@ -0,0 +1,53 @@
+package org.peergos.util;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single JVM shutdown hook that closes components in dependency order. The JVM runs separate hooks concurrently,
+ * so a blockstore could otherwise be closed while a filter above it is still writing, or a connection pool while
+ * pending metadata is still being flushed to it.
+ */
+public class ShutdownHooks {
+    private static final Logger LOG = Logging.LOG();
+
+    /**
+     * Stages run in declaration order, and the hooks of a stage in the order they were added.
+     */
+    public enum Stage {
+        // anything that accepts new blocks or requests, e.g. the node, API server and block scrubber
+        INTAKE,
+        FILTER,
+        BLOCKSTORE,
+        METADATA,
+        POOL
+    }
+
+    private static final Map<Stage, List<Runnable>> hooks = new EnumMap<>(Stage.class);
+    private static boolean installed = false;
+
+    public static synchronized void add(Stage stage, Runnable hook) {
+        if (! installed) {
+            Runtime.getRuntime().addShutdownHook(new Thread(ShutdownHooks::run, "ordered-shutdown"));
+            installed = true;
+        }
+        hooks.computeIfAbsent(stage, s -> new ArrayList<>()).add(hook);
+    }
+
+    private static void run() {
+        Map<Stage, List<Runnable>> toRun;
+        synchronized (ShutdownHooks.class) {
+            toRun = new EnumMap<>(hooks);
+        }
+        for (Map.Entry<Stage, List<Runnable>> stage : toRun.entrySet()) {
+            for (Runnable hook : stage.getValue()) {
+                try {
+                    hook.run();
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, "Error in " + stage.getKey() + " shutdown hook: " + t.getMessage(), t);
+                }
+            }
+        }
+    }
+}
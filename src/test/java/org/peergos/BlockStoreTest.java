@@ -9,10 +9,12 @@ import org.junit.Test;
 import org.peergos.blockstore.FileBlockstore;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Comparator;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class BlockStoreTest {
 
@@ -69,4 +71,80 @@ public class BlockStoreTest {
         Assert.assertTrue("data match", str.equals(msg));
     }
 
+    @Test
+    public void mappedReads() {
+        FileBlockstore bs = new FileBlockstore(TMP_DATA_FOLDER.toPath(), true);
+        byte[] small = "small block".getBytes();
+        byte[] large = new byte[100 * 1024];
+        new Random(1).nextBytes(large);
+        for (byte[] block : List.of(small, large)) {
+            Cid cid = bs.put(block, Cid.Codec.Raw).join();
+            ByteBuffer buf = bs.getBuffer(cid).join().get();
+            byte[] read = new byte[buf.remaining()];
+            buf.get(read);
+            Assert.assertTrue("data match", Arrays.equals(block, read));
+        }
+        Cid absent = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256("absent".getBytes()));
+        Assert.assertTrue(bs.getBuffer(absent).join().isEmpty());
+    }
+
+    @Test
+    public void asyncIO() throws IOException {
+        FileBlockstore bs = new FileBlockstore(Files.createTempDirectory("nabu-async"), false, false, false, 2, 100);
+        Random r = new Random(3);
+        Map<Cid, byte[]> blocks = new ConcurrentHashMap<>();
+        List<CompletableFuture<Cid>> puts = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] block = new byte[1024];
+            r.nextBytes(block);
+            puts.add(bs.put(block, Cid.Codec.Raw).thenApply(c -> {
+                blocks.put(c, block);
+                return c;
+            }));
+        }
+        puts.forEach(CompletableFuture::join);
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet()) {
+            Assert.assertTrue(bs.has(e.getKey()).join());
+            Assert.assertTrue("data match", Arrays.equals(e.getValue(), bs.get(e.getKey()).join().get()));
+        }
+        bs.close();
+    }
+
+    @Test
+    public void durableWrites() throws IOException {
+        Path root = Files.createTempDirectory("nabu-durable");
+        FileBlockstore bs = new FileBlockstore(root, false, false, true);
+        Random r = new Random(2);
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] block = new byte[1024];
+            r.nextBytes(block);
+            blocks.add(block);
+        }
+        List<Cid> cids = blocks.parallelStream()
+                .map(b -> bs.put(b, Cid.Codec.Raw).join())
+                .collect(java.util.stream.Collectors.toList());
+        for (int i = 0; i < blocks.size(); i++)
+            Assert.assertTrue("data match", Arrays.equals(blocks.get(i), bs.get(cids.get(i)).join().get()));
+        // putting an existing block is a no-op
+        Assert.assertTrue(bs.put(blocks.get(0), Cid.Codec.Raw).join().equals(cids.get(0)));
+        bs.close();
+        Assert.assertTrue("no temp files left", Files.walk(root)
+                .noneMatch(p -> p.toString().endsWith(".tmp")));
+
+        // temp files from a crash are removed when the shard is first written to
+        Path shard = root.resolve("blocks").resolve(bs.getFilePath(cids.get(0)).getParent());
+        Path stale = shard.resolve("stale.data.1.tmp");
+        Files.write(stale, new byte[10]);
+        FileBlockstore reopened = new FileBlockstore(root, false, false, true);
+        byte[] block = new byte[1024];
+        do {
+            r.nextBytes(block);
+        } while (! reopened.getFilePath(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(block))).getParent()
+                .equals(bs.getFilePath(cids.get(0)).getParent()));
+        reopened.put(block, Cid.Codec.Raw).join();
+        Assert.assertTrue(! stale.toFile().exists());
+        reopened.close();
+    }
+
 }
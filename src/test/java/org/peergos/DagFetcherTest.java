@@ -0,0 +1,86 @@
+package org.peergos;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+import org.peergos.blockstore.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class DagFetcherTest {
+
+    @Test
+    public void fetchesWholeDagWithBoundedWants() {
+        RamBlockstore remote = new RamBlockstore();
+        Cid shared = TestBlocks.putTree(remote, "shared", 2, 3);
+        Cid root = TestBlocks.putNode(remote, "root",
+                List.of(TestBlocks.putTree(remote, "a", 3, 4), TestBlocks.putTree(remote, "b", 3, 4), shared, shared));
+        long total = remote.count(false).join();
+
+        int maxInFlight = 10;
+        AtomicInteger inFlight = new AtomicInteger(0);
+        AtomicInteger maxSeen = new AtomicInteger(0);
+        Set<Cid> requested = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger(0);
+        DagFetcher fetcher = new DagFetcher(wants -> {
+            maxSeen.accumulateAndGet(inFlight.addAndGet(wants.size()), Math::max);
+            try {
+                Thread.sleep(5);
+                return wants.stream()
+                        .peek(w -> {
+                            if (! requested.add(w.cid))
+                                duplicates.incrementAndGet();
+                        })
+                        .map(w -> new HashedBlock(w.cid, remote.get(w.cid).join().get()))
+                        .collect(Collectors.toList());
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                inFlight.addAndGet(-wants.size());
+            }
+        }, maxInFlight, 4);
+
+        List<DagFetcher.Progress> updates = new CopyOnWriteArrayList<>();
+        DagFetcher.Progress res = fetcher.fetch(new Want(root), updates::add).join();
+        Assert.assertTrue(res.done);
+        Assert.assertTrue(res.fetched == total);
+        Assert.assertTrue(res.missing == 0);
+        Assert.assertTrue(duplicates.get() == 0);
+        Assert.assertTrue(maxSeen.get() <= maxInFlight);
+        Assert.assertTrue(! updates.isEmpty());
+    }
+
+    @Test
+    public void missingBlocksAreSkipped() {
+        RamBlockstore remote = new RamBlockstore();
+        Cid missingChild = TestBlocks.putTree(remote, "missing", 2, 2);
+        Cid root = TestBlocks.putNode(remote, "root", List.of(TestBlocks.putTree(remote, "present", 1, 3), missingChild));
+        DagFetcher fetcher = new DagFetcher(wants -> wants.stream()
+                .filter(w -> ! w.cid.equals(missingChild))
+                .map(w -> new HashedBlock(w.cid, remote.get(w.cid).join().get()))
+                .collect(Collectors.toList()));
+        DagFetcher.Progress res = fetcher.fetch(new Want(root), p -> {}).join();
+        Assert.assertTrue(res.fetched == 1 + 1 + 3);
+        Assert.assertTrue(res.missing == 1);
+    }
+
+    @Test
+    public void childrenAreRequestedWithTheirOwnAuth() {
+        RamBlockstore remote = new RamBlockstore();
+        Cid root = TestBlocks.putTree(remote, "root", 2, 3);
+        Map<Cid, Optional<String>> requested = new ConcurrentHashMap<>();
+        DagFetcher fetcher = new DagFetcher(wants -> wants.stream()
+                .peek(w -> requested.put(w.cid, w.authHex))
+                .map(w -> new HashedBlock(w.cid, remote.get(w.cid).join().get()))
+                .collect(Collectors.toList()));
+        DagFetcher.Progress res = fetcher.fetch(new Want(root, Optional.of("root-auth")),
+                c -> Optional.of("auth-" + c), p -> {}).join();
+        Assert.assertTrue(res.fetched == remote.count(false).join());
+        Assert.assertTrue(requested.get(root).equals(Optional.of("root-auth")));
+        for (Map.Entry<Cid, Optional<String>> e : requested.entrySet())
+            if (! e.getKey().equals(root))
+                Assert.assertTrue(e.getValue().equals(Optional.of("auth-" + e.getKey())));
+    }
+}
@@ -4,10 +4,14 @@ import io.ipfs.cid.Cid;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class RamBlockMetadataStore implements BlockMetadataStore {
@@ -51,6 +55,17 @@ public class RamBlockMetadataStore implements BlockMetadataStore {
                 .filter(c -> c.codec != Cid.Codec.Raw);
     }
 
+    @Override
+    public List<Cid> listPage(Optional<Cid> after, int pageSize) {
+        Comparator<Cid> order = Comparator.comparing(Cid::toBytes, Arrays::compareUnsigned);
+        return store.keySet()
+                .stream()
+                .filter(c -> after.isEmpty() || order.compare(c, after.get()) > 0)
+                .sorted(order)
+                .limit(pageSize)
+                .collect(Collectors.toList());
+    }
+
     @Override
     public long size() {
         return store.size();
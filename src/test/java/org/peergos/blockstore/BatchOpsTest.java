@@ -0,0 +1,73 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.junit.*;
+import org.peergos.*;
+import org.peergos.blockstore.metadatadb.*;
+import org.peergos.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class BatchOpsTest {
+    private static Random r = new Random(42);
+
+    private static void checkBatchOps(Blockstore bs) {
+        List<Pair<byte[], Cid.Codec>> blocks = IntStream.range(0, 50)
+                .mapToObj(i -> {
+                    byte[] block = new byte[100];
+                    r.nextBytes(block);
+                    return new Pair<>(block, Cid.Codec.Raw);
+                }).collect(Collectors.toList());
+        List<Cid> cids = bs.putAll(blocks).join();
+        Assert.assertTrue(cids.size() == blocks.size());
+
+        Cid absent = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256("absent".getBytes()));
+        List<Cid> query = new ArrayList<>(cids);
+        query.add(10, absent);
+
+        List<Boolean> has = bs.hasAll(query).join();
+        List<Optional<byte[]>> got = bs.getAll(query).join();
+        Assert.assertTrue(has.size() == query.size() && got.size() == query.size());
+        for (int i = 0; i < query.size(); i++) {
+            boolean expected = ! query.get(i).equals(absent);
+            Assert.assertTrue(has.get(i) == expected);
+            Assert.assertTrue(got.get(i).isPresent() == expected);
+        }
+        for (int i = 0; i < cids.size(); i++)
+            Assert.assertTrue(Arrays.equals(blocks.get(i).left, got.get(i < 10 ? i : i + 1).get()));
+
+        List<Boolean> removed = bs.rmAll(cids.subList(0, 10)).join();
+        Assert.assertTrue(removed.stream().allMatch(b -> b));
+        List<Boolean> after = bs.hasAll(cids).join();
+        for (int i = 0; i < cids.size(); i++)
+            Assert.assertTrue(after.get(i) == i >= 10);
+    }
+
+    @Test
+    public void ramBlockstore() {
+        checkBatchOps(new RamBlockstore());
+    }
+
+    @Test
+    public void fileBlockstore() throws IOException {
+        checkBatchOps(new FileBlockstore(Files.createTempDirectory("nabu-batch")));
+    }
+
+    @Test
+    public void asyncFileBlockstore() throws IOException {
+        FileBlockstore bs = new FileBlockstore(Files.createTempDirectory("nabu-batch"), false, true, true, 4, 10);
+        checkBatchOps(bs);
+        bs.close();
+    }
+
+    @Test
+    public void wrapped() {
+        Blockstore cached = new CachingBlockMetadataStore(new RamBlockstore(), new RamBlockMetadataStore());
+        Blockstore filtered = new FilteredBlockstore(cached, CidInfiniFilter.build(1_000, 0.001));
+        checkBatchOps(new TypeLimitedBlockstore(new ProvidingBlockstore(filtered), Set.of(Cid.Codec.Raw, Cid.Codec.DagCbor)));
+    }
+}
@@ -0,0 +1,104 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.junit.*;
+import org.peergos.*;
+
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class BlockCompressionTest {
+
+    private static byte[] compressible(int size) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < size; i++)
+            sb.append("{\"owner\":\"alice\",\"path\":\"/docs/").append(i % 50).append("\"}");
+        return Arrays.copyOf(sb.toString().getBytes(), size);
+    }
+
+    @Test
+    public void fileBlockstoreRoundTrip() throws Exception {
+        Path dir = Files.createTempDirectory("nabu-compression");
+        FileBlockstore bs = new FileBlockstore(dir, true, false, false, 0, 0, Optional.of(new BlockCompression(6)));
+
+        byte[] cbor = compressible(64 * 1024);
+        Cid cid = bs.put(cbor, Cid.Codec.DagCbor).join();
+        // the cid is over the uncompressed bytes
+        Assert.assertTrue(cid.equals(new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, Hash.sha256(cbor))));
+        Assert.assertTrue(bs.blockSize(cid) == cbor.length);
+        Assert.assertTrue(Files.size(dir.resolve("blocks").resolve(bs.getFilePath(cid))) < cbor.length / 2);
+        Assert.assertTrue(Arrays.equals(bs.get(cid).join().get(), cbor));
+        ByteBuffer mapped = bs.getBuffer(cid).join().get();
+        byte[] fromBuffer = new byte[mapped.remaining()];
+        mapped.get(fromBuffer);
+        Assert.assertTrue(Arrays.equals(fromBuffer, cbor));
+
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+        Cid rawCid = bs.put(random, Cid.Codec.Raw).join();
+        Assert.assertTrue(bs.blockSize(rawCid) == random.length);
+        Assert.assertTrue(Arrays.equals(bs.get(rawCid).join().get(), random));
+
+        // blocks written with compression remain readable when new blocks are no longer compressed
+        FileBlockstore uncompressing = new FileBlockstore(dir, false, false, false, 0, 0, Optional.of(new BlockCompression(0)));
+        Assert.assertTrue(Arrays.equals(uncompressing.get(cid).join().get(), cbor));
+        byte[] more = compressible(10_000);
+        Cid moreCid = uncompressing.put(more, Cid.Codec.DagCbor).join();
+        Assert.assertTrue(Files.size(dir.resolve("blocks").resolve(bs.getFilePath(moreCid))) == more.length);
+    }
+
+    @Test
+    public void blocksThatLookLikeFramesAreNotDecoded() throws Exception {
+        BlockCompression compression = new BlockCompression(6);
+        byte[] frame = compression.encode(compressible(10_000), Cid.Codec.DagCbor);
+
+        // a store without compression returns such a block as is
+        FileBlockstore plain = new FileBlockstore(Files.createTempDirectory("nabu-compression"), false, false);
+        Cid plainCid = plain.put(frame, Cid.Codec.Raw).join();
+        Assert.assertTrue(Arrays.equals(plain.get(plainCid).join().get(), frame));
+
+        // a store with compression frames it, even though it doesn't shrink
+        FileBlockstore compressed = new FileBlockstore(Files.createTempDirectory("nabu-compression"), true, false, false, 0, 0,
+                Optional.of(compression));
+        Cid cid = compressed.put(frame, Cid.Codec.Raw).join();
+        Assert.assertTrue(compression.encode(frame, Cid.Codec.Raw) != frame);
+        Assert.assertTrue(Arrays.equals(compressed.get(cid).join().get(), frame));
+        Assert.assertTrue(compressed.getBuffer(cid).join().get().equals(ByteBuffer.wrap(frame)));
+    }
+
+    @Test
+    public void frameLengthIsBounded() {
+        BlockCompression compression = new BlockCompression(6, 1024);
+        byte[] frame = compression.encode(compressible(10_000), Cid.Codec.DagCbor);
+        // the frame claims more than the max block size, so it isn't inflated
+        Assert.assertTrue(compression.decode(frame) == frame);
+        Assert.assertTrue(Arrays.equals(new BlockCompression(6).decode(frame), compressible(10_000)));
+    }
+
+    @Test
+    public void smallAndIncompressibleBlocksAreUnframed() {
+        BlockCompression compression = new BlockCompression(6);
+        byte[] small = compressible(BlockCompression.MIN_SIZE - 1);
+        Assert.assertTrue(compression.encode(small, Cid.Codec.DagCbor) == small);
+
+        byte[] random = new byte[10_000];
+        new Random(1).nextBytes(random);
+        Assert.assertTrue(compression.encode(random, Cid.Codec.Raw) == random);
+        // a cbor block is always tried, but isn't stored compressed if it doesn't shrink
+        Assert.assertTrue(compression.encode(random, Cid.Codec.DagCbor) == random);
+    }
+
+    @Test
+    public void uncompressedBlockWithMagicIsReturnedAsIs() {
+        BlockCompression compression = new BlockCompression(6);
+        byte[] frame = compression.encode(compressible(10_000), Cid.Codec.DagCbor);
+        // a stored block which starts like a frame but isn't one
+        byte[] lookalike = Arrays.copyOf(frame, frame.length);
+        lookalike[lookalike.length - 1] ^= 1;
+        Assert.assertTrue(compression.decode(lookalike) == lookalike);
+        Assert.assertTrue(compression.decode(ByteBuffer.wrap(lookalike)).remaining() == lookalike.length);
+        Assert.assertTrue(Arrays.equals(compression.decodeCopy(ByteBuffer.wrap(lookalike)), lookalike));
+    }
+}
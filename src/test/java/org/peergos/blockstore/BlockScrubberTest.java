@@ -0,0 +1,88 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class BlockScrubberTest {
+
+    private static class DamagedBlockstore extends RamBlockstore {
+        final Set<Cid> corrupt = ConcurrentHashMap.newKeySet();
+        final Set<Cid> missing = ConcurrentHashMap.newKeySet();
+        final AtomicInteger reads = new AtomicInteger(0);
+        volatile Runnable onRead = () -> {};
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> get(Cid c) {
+            reads.incrementAndGet();
+            onRead.run();
+            if (missing.contains(c))
+                return CompletableFuture.completedFuture(Optional.empty());
+            return super.get(c).thenApply(b -> b.map(block -> corrupt.contains(c) ? flipBit(block) : block));
+        }
+
+        private static byte[] flipBit(byte[] block) {
+            byte[] res = Arrays.copyOf(block, block.length);
+            res[0] ^= 1;
+            return res;
+        }
+    }
+
+    @Test
+    public void findsCorruptAndMissing() throws Exception {
+        DamagedBlockstore bs = new DamagedBlockstore();
+        List<Cid> cids = TestBlocks.putBlocks(bs, 100);
+        bs.corrupt.add(cids.get(3));
+        bs.missing.add(cids.get(7));
+        Path dir = Files.createTempDirectory("nabu-scrub");
+
+        BlockScrubber scrubber = new BlockScrubber(bs, false, 1_000_000_000, BlockScrubber.DEFAULT_PASS_INTERVAL_MILLIS, dir);
+        Assert.assertTrue(scrubber.scrubPass());
+        Assert.assertTrue(scrubber.corruptBlocks().equals(Set.of(cids.get(3))));
+        List<String> report = Files.readAllLines(dir.resolve("report"));
+        Assert.assertTrue(report.size() == 2);
+        Assert.assertTrue(report.stream().anyMatch(l -> l.endsWith("CORRUPT " + cids.get(3))));
+        Assert.assertTrue(report.stream().anyMatch(l -> l.endsWith("MISSING " + cids.get(7))));
+    }
+
+    @Test
+    public void resumesFromCheckpoint() throws Exception {
+        DamagedBlockstore bs = new DamagedBlockstore();
+        int nBlocks = 3_500;
+        TestBlocks.putBlocks(bs, nBlocks);
+        Path dir = Files.createTempDirectory("nabu-scrub");
+
+        BlockScrubber first = new BlockScrubber(bs, false, 1_000_000_000, BlockScrubber.DEFAULT_PASS_INTERVAL_MILLIS, dir);
+        // stop part way through the second page, which is finished and checkpointed
+        bs.onRead = () -> {
+            if (bs.reads.get() == 1_500)
+                first.stop();
+        };
+        Assert.assertTrue(! first.scrubPass());
+        int firstReads = bs.reads.get();
+        bs.onRead = () -> {};
+
+        BlockScrubber second = new BlockScrubber(bs, false, 1_000_000_000, BlockScrubber.DEFAULT_PASS_INTERVAL_MILLIS, dir);
+        Assert.assertTrue(second.scrubPass());
+        // the second scrubber resumes after the checkpointed pages
+        Assert.assertTrue(firstReads == 2_000);
+        Assert.assertTrue(bs.reads.get() == nBlocks);
+    }
+
+    @Test
+    public void throttlesReads() throws Exception {
+        RamBlockstore bs = new RamBlockstore();
+        for (int i = 0; i < 20; i++)
+            bs.put(new byte[1024 + i], Cid.Codec.Raw).join();
+        Path dir = Files.createTempDirectory("nabu-scrub");
+        BlockScrubber scrubber = new BlockScrubber(bs, false, 40 * 1024, BlockScrubber.DEFAULT_PASS_INTERVAL_MILLIS, dir);
+        long start = System.currentTimeMillis();
+        scrubber.scrubPass();
+        long duration = System.currentTimeMillis() - start;
+        Assert.assertTrue("duration " + duration, duration >= 400);
+    }
+}
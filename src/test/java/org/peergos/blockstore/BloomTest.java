@@ -1,10 +1,11 @@
 package org.peergos.blockstore;
 
 import io.ipfs.cid.*;
-import io.ipfs.multihash.*;
 import org.junit.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
 
 public class BloomTest {
     private static Random r = new Random(42);
@@ -40,6 +41,28 @@ public class BloomTest {
         checkFalsePositiveRate(bloom, 14);
     }
 
+    @Test
+    public void concurrentAdds() throws Exception {
+        BlockedBloomFilter filter = BlockedBloomFilter.create(200_000, 0.01);
+        CidBloomFilter bloom = new CidBloomFilter(filter);
+        int threads = 4, perThread = 50_000;
+        List<List<Cid>> cids = IntStream.range(0, threads)
+                .mapToObj(t -> TestBlocks.randomCids(perThread, new Random(t)))
+                .collect(Collectors.toList());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> adds = cids.stream()
+                .map(mine -> pool.submit(() -> mine.forEach(bloom::add)))
+                .collect(Collectors.toList());
+        for (Future<?> add : adds)
+            add.get();
+        pool.shutdown();
+
+        Assert.assertTrue(filter.count() == threads * perThread);
+        for (List<Cid> mine : cids)
+            Assert.assertTrue(mine.stream().allMatch(bloom::has));
+        checkFalsePositiveRate(bloom, 1.1);
+    }
+
     private static void addRandomBlocks(int nBlocks, Blockstore b) {
         for (int i = 0; i < nBlocks; i++) {
             byte[] block = new byte[10];
@@ -52,10 +75,7 @@ public class BloomTest {
         int in = 0;
         int total = 100_000;
         for (int i = 0; i < total; i++) {
-            byte[] hash = new byte[32];
-            r.nextBytes(hash);
-            Cid random = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, hash);
-            if (bloom.has(random))
+            if (bloom.has(TestBlocks.randomCid(r)))
                 in++;
         }
         double falsePositiveRate = 0.01;
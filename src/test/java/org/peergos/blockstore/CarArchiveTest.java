@@ -0,0 +1,100 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class CarArchiveTest {
+
+    private static void assertSameBlocks(Blockstore expected, Blockstore actual) {
+        List<Cid> refs = expected.refs(false).join();
+        Assert.assertTrue(actual.count(false).join() == refs.size());
+        for (Cid c : refs)
+            Assert.assertTrue(Arrays.equals(expected.get(c).join().get(), actual.get(c).join().get()));
+    }
+
+    @Test
+    public void dagRoundTrip() throws Exception {
+        RamBlockstore source = new RamBlockstore();
+        Cid root = TestBlocks.putTree(source, "root", 3, 5);
+        // not reachable from the root, so not exported
+        TestBlocks.putTree(source, "other", 1, 2);
+        RamBlockstore reachable = new RamBlockstore();
+        TestBlocks.putTree(reachable, "root", 3, 5);
+
+        ByteArrayOutputStream car = new ByteArrayOutputStream();
+        long written = CarArchive.exportDag(source, List.of(root), car);
+        Assert.assertTrue(written == reachable.count(false).join());
+
+        RamBlockstore target = new RamBlockstore();
+        CarArchive.ImportResult res = CarArchive.importCar(new ByteArrayInputStream(car.toByteArray()), target);
+        Assert.assertTrue(res.roots.equals(List.of(root)));
+        Assert.assertTrue(res.blocks == written);
+        assertSameBlocks(reachable, target);
+    }
+
+    @Test
+    public void dagRoundTripWithFewTrackedBlocks() throws Exception {
+        RamBlockstore source = new RamBlockstore();
+        // the shared subtree is reached again after it has been dropped from the tracked cids
+        Cid shared = TestBlocks.putTree(source, "shared", 2, 3);
+        Cid root = TestBlocks.putNode(source, "root",
+                List.of(shared, TestBlocks.putTree(source, "a", 2, 4), shared));
+
+        ByteArrayOutputStream car = new ByteArrayOutputStream();
+        long written = CarArchive.exportDag(source, List.of(root), car, 4);
+        Assert.assertTrue(written > source.count(false).join());
+
+        RamBlockstore target = new RamBlockstore();
+        CarArchive.ImportResult res = CarArchive.importCar(new ByteArrayInputStream(car.toByteArray()), target);
+        Assert.assertTrue(res.blocks == written);
+        assertSameBlocks(source, target);
+    }
+
+    @Test
+    public void storageOrderRoundTripInsideCarV2() throws Exception {
+        RamBlockstore source = new RamBlockstore();
+        for (int i = 0; i < 2_500; i++)
+            source.put(("block " + i).getBytes(), Cid.Codec.Raw).join();
+        ByteArrayOutputStream v1 = new ByteArrayOutputStream();
+        Assert.assertTrue(CarArchive.exportAll(source, Collections.emptyList(), v1, false) == 2_500);
+
+        // wrap the CARv1 as the payload of a CARv2, with some padding before it
+        byte[] pragma = {0x0a, (byte) 0xa1, 0x67, 0x76, 0x65, 0x72, 0x73, 0x69, 0x6f, 0x6e, 0x02};
+        int padding = 7;
+        long dataOffset = pragma.length + 40 + padding;
+        ByteBuffer header = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        header.position(16);
+        header.putLong(dataOffset).putLong(v1.size()).putLong(0);
+        ByteArrayOutputStream v2 = new ByteArrayOutputStream();
+        v2.write(pragma);
+        v2.write(header.array());
+        v2.write(new byte[padding]);
+        v2.write(v1.toByteArray());
+        // an index after the payload is ignored
+        v2.write(new byte[]{1, 2, 3});
+
+        RamBlockstore target = new RamBlockstore();
+        CarArchive.ImportResult res = CarArchive.importCar(new ByteArrayInputStream(v2.toByteArray()), target);
+        Assert.assertTrue(res.blocks == 2_500);
+        assertSameBlocks(source, target);
+    }
+
+    @Test
+    public void corruptBlockIsRejected() throws Exception {
+        RamBlockstore source = new RamBlockstore();
+        Cid root = TestBlocks.putTree(source, "root", 1, 3);
+        ByteArrayOutputStream car = new ByteArrayOutputStream();
+        CarArchive.exportDag(source, List.of(root), car);
+        byte[] corrupt = car.toByteArray();
+        corrupt[corrupt.length - 1] ^= 1;
+        try {
+            CarArchive.importCar(new ByteArrayInputStream(corrupt), new RamBlockstore());
+            Assert.fail("Imported a corrupt block");
+        } catch (RuntimeException expected) {}
+    }
+}
@@ -0,0 +1,104 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+public class ConcurrentInfiniTest {
+    private static final Logger LOG = Logging.LOG();
+
+    @Test
+    public void noFalseNegativesDuringExpansion() throws Exception {
+        // small enough to expand several times
+        CidInfiniFilter filter = CidInfiniFilter.build(1_000, 0.001);
+        int writers = 4, readers = 4, perWriter = 100_000;
+        Random r = new Random(42);
+        List<List<Cid>> toAdd = IntStream.range(0, writers)
+                .mapToObj(i -> TestBlocks.randomCids(perWriter, r))
+                .collect(Collectors.toList());
+        AtomicIntegerArray added = new AtomicIntegerArray(writers);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong falseNegatives = new AtomicLong(0);
+
+        ExecutorService pool = Executors.newFixedThreadPool(writers + readers);
+        List<Future<?>> writes = IntStream.range(0, writers).mapToObj(w -> pool.submit(() -> {
+            List<Cid> mine = toAdd.get(w);
+            for (int i = 0; i < mine.size(); i++) {
+                filter.add(mine.get(i));
+                added.set(w, i + 1);
+            }
+        })).collect(Collectors.toList());
+        List<Future<Long>> reads = IntStream.range(0, readers).mapToObj(t -> pool.submit(() -> {
+            Random local = new Random(t);
+            long lookups = 0;
+            while (writing.get()) {
+                int w = local.nextInt(writers);
+                int n = added.get(w);
+                if (n == 0)
+                    continue;
+                if (! filter.has(toAdd.get(w).get(local.nextInt(n))))
+                    falseNegatives.incrementAndGet();
+                lookups++;
+            }
+            return lookups;
+        })).collect(Collectors.toList());
+
+        for (Future<?> write : writes)
+            write.get();
+        writing.set(false);
+        long lookups = 0;
+        for (Future<Long> read : reads)
+            lookups += read.get();
+        pool.shutdown();
+
+        Assert.assertTrue("lookups " + lookups, lookups > 0);
+        Assert.assertTrue("false negatives " + falseNegatives.get(), falseNegatives.get() == 0);
+        for (List<Cid> cids : toAdd)
+            Assert.assertTrue(cids.stream().allMatch(filter::has));
+    }
+
+    @Test
+    @Ignore
+    public void lookupThroughput() throws Exception {
+        Random r = new Random(42);
+        CidInfiniFilter filter = CidInfiniFilter.build(2_000_000, 0.001);
+        List<Cid> present = TestBlocks.randomCids(1_000_000, r);
+        present.forEach(filter::add);
+        List<Cid> writes = TestBlocks.randomCids(1_000_000, r);
+
+        for (int threads : List.of(1, 2, 4, 8, 16)) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+            AtomicBoolean running = new AtomicBoolean(true);
+            // a concurrent writer, as when blocks arrive over bitswap
+            Future<?> writer = pool.submit(() -> {
+                for (int i = 0; running.get(); i = (i + 1) % writes.size())
+                    filter.add(writes.get(i));
+            });
+            long durationMillis = 2_000;
+            List<Future<Long>> readers = IntStream.range(0, threads).mapToObj(t -> pool.submit(() -> {
+                Random local = new Random(t);
+                long ops = 0;
+                long end = System.currentTimeMillis() + durationMillis;
+                while (System.currentTimeMillis() < end) {
+                    for (int i = 0; i < 1000; i++)
+                        filter.has(present.get(local.nextInt(present.size())));
+                    ops += 1000;
+                }
+                return ops;
+            })).collect(Collectors.toList());
+            long total = 0;
+            for (Future<Long> reader : readers)
+                total += reader.get();
+            running.set(false);
+            writer.get();
+            pool.shutdown();
+            LOG.info(threads + " reader threads: " + (total * 1000 / durationMillis) + " lookups/s");
+        }
+    }
+}
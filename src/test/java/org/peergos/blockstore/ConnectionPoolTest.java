@@ -0,0 +1,123 @@
+package org.peergos.blockstore;
+
+import org.junit.*;
+import org.peergos.blockstore.metadatadb.sql.*;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class ConnectionPoolTest {
+
+    private static class FakeDatabase {
+        final AtomicInteger opened = new AtomicInteger(0);
+        final AtomicInteger prepared = new AtomicInteger(0);
+        final AtomicInteger rollbacks = new AtomicInteger(0);
+
+        Connection open() {
+            opened.incrementAndGet();
+            boolean[] autocommit = {true};
+            int[] isolation = {Connection.TRANSACTION_SERIALIZABLE};
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "prepareStatement":
+                                prepared.incrementAndGet();
+                                return statement();
+                            case "setAutoCommit":
+                                autocommit[0] = (Boolean) args[0];
+                                return null;
+                            case "getAutoCommit":
+                                return autocommit[0];
+                            case "setTransactionIsolation":
+                                isolation[0] = (Integer) args[0];
+                                return null;
+                            case "getTransactionIsolation":
+                                return isolation[0];
+                            case "rollback":
+                                rollbacks.incrementAndGet();
+                                return null;
+                            case "isClosed":
+                                return false;
+                            default:
+                                return null;
+                        }
+                    });
+        }
+
+        private static PreparedStatement statement() {
+            boolean[] closed = {false};
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    (proxy, method, args) -> {
+                        if (method.getName().equals("close"))
+                            closed[0] = true;
+                        if (method.getName().equals("isClosed"))
+                            return closed[0];
+                        if (method.getName().equals("executeUpdate"))
+                            return 1;
+                        return null;
+                    });
+        }
+    }
+
+    @Test
+    public void reusesConnectionsAndStatements() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        ConnectionPool pool = new ConnectionPool("test", db::open, 2, Connection.TRANSACTION_READ_COMMITTED, 8, 1_000);
+        for (int i = 0; i < 100; i++) {
+            try (Connection conn = pool.get();
+                 PreparedStatement stmt = conn.prepareStatement("SELECT 1")) {
+                Assert.assertTrue(conn.getTransactionIsolation() == Connection.TRANSACTION_READ_COMMITTED);
+                stmt.executeUpdate();
+            }
+        }
+        Assert.assertTrue(db.opened.get() == 1);
+        Assert.assertTrue(db.prepared.get() == 1);
+
+        // the same query open twice on one connection
+        try (Connection conn = pool.get();
+             PreparedStatement first = conn.prepareStatement("SELECT 1");
+             PreparedStatement second = conn.prepareStatement("SELECT 1")) {
+            Assert.assertTrue(first != second);
+        }
+        Assert.assertTrue(db.prepared.get() == 2);
+    }
+
+    @Test
+    public void openTransactionIsRolledBackOnReturn() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        ConnectionPool pool = new ConnectionPool("test", db::open, 1, Connection.TRANSACTION_READ_COMMITTED, 8, 1_000);
+        try (Connection conn = pool.get()) {
+            conn.setAutoCommit(false);
+        }
+        try (Connection conn = pool.get()) {
+            Assert.assertTrue(conn.getAutoCommit());
+        }
+        Assert.assertTrue(db.rollbacks.get() == 1);
+    }
+
+    @Test
+    public void boundedSize() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        ConnectionPool pool = new ConnectionPool("test", db::open, 2, Connection.TRANSACTION_READ_COMMITTED, 8, 100);
+        Connection a = pool.get();
+        Connection b = pool.get();
+        try {
+            pool.get();
+            Assert.fail("Borrowed more connections than the pool size");
+        } catch (IllegalStateException expected) {}
+        b.close();
+        Connection c = pool.get();
+        Assert.assertTrue(db.opened.get() == 2);
+        a.close();
+        c.close();
+        // a returned connection can't be used
+        try {
+            c.prepareStatement("SELECT 1");
+            Assert.fail();
+        } catch (SQLException expected) {}
+        pool.close();
+    }
+}
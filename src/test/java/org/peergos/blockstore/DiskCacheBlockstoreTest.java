@@ -0,0 +1,104 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class DiskCacheBlockstoreTest {
+    private static Random r = new Random(42);
+
+    private static byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        r.nextBytes(block);
+        return block;
+    }
+
+    @Test
+    public void writeThroughServesFromCache() throws IOException {
+        RamBlockstore target = new RamBlockstore();
+        DiskCacheBlockstore cached = new DiskCacheBlockstore(target, Files.createTempDirectory("nabu-cache"),
+                1024 * 1024, DiskCacheBlockstore.WritePolicy.THROUGH);
+        byte[] block = randomBlock(1000);
+        Cid cid = cached.put(block, Cid.Codec.Raw).join();
+        target.rm(cid).join();
+        Assert.assertTrue(Arrays.equals(block, cached.get(cid).join().get()));
+
+        cached.rm(cid).join();
+        Assert.assertTrue(cached.get(cid).join().isEmpty());
+    }
+
+    @Test
+    public void writeAroundCachesOnRead() throws IOException {
+        RamBlockstore target = new RamBlockstore();
+        DiskCacheBlockstore cached = new DiskCacheBlockstore(target, Files.createTempDirectory("nabu-cache"),
+                1024 * 1024, DiskCacheBlockstore.WritePolicy.AROUND);
+        byte[] block = randomBlock(1000);
+        Cid cid = cached.put(block, Cid.Codec.Raw).join();
+        Assert.assertTrue(cached.size() == 0);
+        Assert.assertTrue(cached.get(cid).join().isPresent());
+        Assert.assertTrue(cached.size() == block.length);
+    }
+
+    @Test
+    public void boundedAndScanResistant() throws IOException {
+        RamBlockstore target = new RamBlockstore();
+        Path dir = Files.createTempDirectory("nabu-cache");
+        long maxBytes = 100 * 1000;
+        DiskCacheBlockstore cached = new DiskCacheBlockstore(target, dir, maxBytes, DiskCacheBlockstore.WritePolicy.AROUND);
+
+        List<Cid> hot = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            hot.add(target.put(randomBlock(1000), Cid.Codec.Raw).join());
+        for (int round = 0; round < 5; round++)
+            for (Cid c : hot)
+                cached.get(c).join();
+
+        // a long scan of blocks read only once
+        for (int i = 0; i < 1000; i++) {
+            Cid c = target.put(randomBlock(1000), Cid.Codec.Raw).join();
+            cached.get(c).join();
+            Assert.assertTrue(cached.size() <= maxBytes);
+        }
+        for (Cid c : hot)
+            target.rm(c).join();
+        for (Cid c : hot)
+            Assert.assertTrue("hot block survived scan", cached.get(c).join().isPresent());
+
+        // cache contents are reloaded on restart
+        DiskCacheBlockstore reopened = new DiskCacheBlockstore(target, dir, maxBytes, DiskCacheBlockstore.WritePolicy.AROUND);
+        Assert.assertTrue(reopened.size() == cached.size());
+        Assert.assertTrue(reopened.get(hot.get(0)).join().isPresent());
+    }
+
+    @Test
+    public void defaultCachePath() throws IOException {
+        RamBlockstore target = new RamBlockstore();
+        Path ipfsPath = Files.createTempDirectory("nabu-ipfs");
+        Blockstore cached = DiskCacheBlockstore.build(target, ipfsPath, Map.of("cache-size", "" + 1024 * 1024));
+        Assert.assertTrue(cached instanceof DiskCacheBlockstore);
+        Assert.assertTrue(Files.isDirectory(ipfsPath.resolve("blocks-cache")));
+        byte[] block = randomBlock(1000);
+        Cid cid = cached.put(block, Cid.Codec.Raw).join();
+        target.rm(cid).join();
+        Assert.assertTrue(Arrays.equals(block, cached.get(cid).join().get()));
+    }
+
+    @Test
+    public void blocksLargerThanWindowAreCached() throws IOException {
+        RamBlockstore target = new RamBlockstore();
+        DiskCacheBlockstore cached = new DiskCacheBlockstore(target, Files.createTempDirectory("nabu-cache"),
+                100 * 1000, DiskCacheBlockstore.WritePolicy.THROUGH);
+        byte[] large = randomBlock(10 * 1000);
+        Cid cid = cached.put(large, Cid.Codec.Raw).join();
+        Assert.assertTrue(cached.size() == large.length);
+        target.rm(cid).join();
+        Assert.assertTrue(Arrays.equals(large, cached.get(cid).join().get()));
+
+        // larger than the whole cache
+        cached.put(randomBlock(200 * 1000), Cid.Codec.Raw).join();
+        Assert.assertTrue(cached.size() == large.length);
+    }
+}
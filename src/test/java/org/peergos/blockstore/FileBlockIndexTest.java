@@ -0,0 +1,155 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class FileBlockIndexTest {
+    private static Random r = new Random(42);
+
+    private static Set<Cid> listIndex(FileBlockIndex index) {
+        Set<Cid> res = new HashSet<>();
+        List<Cid> all = new ArrayList<>();
+        index.forEach(all::add);
+        res.addAll(all);
+        Assert.assertTrue("no duplicates", res.size() == all.size());
+        return res;
+    }
+
+    @Test
+    public void indexedBlockstore() throws IOException {
+        Path dir = Files.createTempDirectory("nabu-index");
+        FileBlockstore bs = new FileBlockstore(dir, false, true);
+        Set<Cid> expected = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] block = new byte[32];
+            r.nextBytes(block);
+            expected.add(bs.put(block, Cid.Codec.Raw).join());
+        }
+        Cid removed = expected.iterator().next();
+        bs.rm(removed).join();
+        expected.remove(removed);
+
+        Assert.assertTrue(bs.count(false).join() == expected.size());
+        Assert.assertTrue(new HashSet<>(bs.refs(false).join()).equals(expected));
+        bs.close();
+
+        // clean restart loads the index
+        FileBlockstore reopened = new FileBlockstore(dir, false, true);
+        Assert.assertTrue(reopened.count(false).join() == expected.size());
+        Assert.assertTrue(new HashSet<>(reopened.refs(false).join()).equals(expected));
+
+        // unclean restart rebuilds from the blocks directory
+        FileBlockstore rebuilt = new FileBlockstore(dir, false, true);
+        Assert.assertTrue(rebuilt.count(false).join() == expected.size());
+        Assert.assertTrue(new HashSet<>(rebuilt.refs(false).join()).equals(expected));
+    }
+
+    @Test
+    public void compaction() throws IOException {
+        Path dir = Files.createTempDirectory("nabu-index");
+        FileBlockIndex index = new FileBlockIndex(dir, 1_000_000, Cid::toString, c -> {});
+        Set<Cid> expected = new HashSet<>();
+        List<Cid> all = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            Cid cid = new Cid(1, Cid.Codec.Raw, io.ipfs.multihash.Multihash.Type.sha2_256, hash);
+            index.add(cid);
+            expected.add(cid);
+            all.add(cid);
+            if (i % 100 == 99)
+                index.compact();
+        }
+        for (int i = 0; i < all.size(); i += 3) {
+            index.remove(all.get(i));
+            expected.remove(all.get(i));
+        }
+        Assert.assertTrue(index.count() == expected.size());
+        Assert.assertTrue(listIndex(index).equals(expected));
+        index.compact();
+        Assert.assertTrue(index.count() == expected.size());
+        Assert.assertTrue(listIndex(index).equals(expected));
+
+        // re-add a removed cid after compaction, then reload
+        index.add(all.get(0));
+        expected.add(all.get(0));
+        index.close();
+        FileBlockIndex reloaded = new FileBlockIndex(dir, 1_000_000, Cid::toString, c -> Assert.fail("Shouldn't rebuild"));
+        Assert.assertTrue(reloaded.count() == expected.size());
+        Assert.assertTrue(listIndex(reloaded).equals(expected));
+    }
+
+    @Test
+    public void pagingIsOrdered() throws IOException {
+        Path dir = Files.createTempDirectory("nabu-index");
+        FileBlockIndex index = new FileBlockIndex(dir, 1_000_000, Cid::toString, c -> {});
+        TreeSet<String> expected = new TreeSet<>();
+        List<Cid> all = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            Cid cid = new Cid(1, Cid.Codec.Raw, io.ipfs.multihash.Multihash.Type.sha2_256, hash);
+            index.add(cid);
+            expected.add(cid.toString());
+            all.add(cid);
+            if (i == 3000)
+                index.compact();
+        }
+        for (int i = 0; i < all.size(); i += 7) {
+            index.remove(all.get(i));
+            expected.remove(all.get(i).toString());
+        }
+
+        List<String> paged = new ArrayList<>();
+        Optional<String> after = Optional.empty();
+        while (true) {
+            List<Cid> page = index.page(after, 100);
+            page.forEach(c -> paged.add(c.toString()));
+            if (page.size() < 100)
+                break;
+            after = Optional.of(page.get(page.size() - 1).toString());
+        }
+        Assert.assertTrue(paged.equals(new ArrayList<>(expected)));
+    }
+
+    @Test
+    public void forEachReleasesTheLockBetweenPages() throws IOException {
+        Path dir = Files.createTempDirectory("nabu-index");
+        FileBlockIndex index = new FileBlockIndex(dir, 1_000_000, Cid::toString, c -> {});
+        Set<Cid> expected = new HashSet<>(TestBlocks.randomCids(25_000, r));
+        expected.forEach(index::add);
+        index.compact();
+
+        // compacting from inside the action would deadlock if the read lock were held throughout
+        Set<Cid> seen = new HashSet<>();
+        index.forEach(c -> {
+            seen.add(c);
+            if (seen.size() % 10_000 == 0) {
+                try {
+                    index.compact();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        Assert.assertTrue(seen.equals(expected));
+    }
+
+    @Test
+    public void changeAfterCloseForcesRebuild() throws IOException {
+        Path dir = Files.createTempDirectory("nabu-index");
+        FileBlockIndex index = new FileBlockIndex(dir, 1_000_000, Cid::toString, c -> {});
+        List<Cid> cids = TestBlocks.randomCids(10, r);
+        cids.forEach(index::add);
+        index.close();
+        index.add(TestBlocks.randomCid(r));
+
+        boolean[] rebuilt = {false};
+        new FileBlockIndex(dir, 1_000_000, Cid::toString, c -> rebuilt[0] = true);
+        Assert.assertTrue(rebuilt[0]);
+    }
+}
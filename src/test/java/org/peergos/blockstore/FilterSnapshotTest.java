@@ -0,0 +1,90 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.junit.*;
+import org.peergos.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+public class FilterSnapshotTest {
+
+    private static class EnumerationCountingBlockstore extends RamBlockstore {
+        final AtomicInteger enumerations = new AtomicInteger(0);
+
+        @Override
+        public CompletableFuture<Boolean> applyToAll(Consumer<Cid> action, boolean useBlockstore) {
+            enumerations.incrementAndGet();
+            return super.applyToAll(action, useBlockstore);
+        }
+
+        @Override
+        public CompletableFuture<RefsPage> refs(Optional<String> resumeToken, int pageSize, Optional<Cid.Codec> codec, boolean useBlockstore) {
+            if (resumeToken.isEmpty())
+                enumerations.incrementAndGet();
+            return super.refs(resumeToken, pageSize, codec, useBlockstore);
+        }
+    }
+
+    private static void checkReload(BiFunction<Blockstore, Path, FilteredBlockstore> open) throws IOException {
+        Path dir = Files.createTempDirectory("nabu-filters");
+        EnumerationCountingBlockstore source = new EnumerationCountingBlockstore();
+        List<Cid> cids = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            cids.add(source.put(("block" + i).getBytes(), Cid.Codec.Raw).join());
+
+        FilteredBlockstore first = open.apply(source, dir);
+        Assert.assertTrue(source.enumerations.get() == 1);
+        cids.add(first.put("added".getBytes(), Cid.Codec.Raw).join());
+        first.close();
+
+        // clean restart reloads the snapshot
+        FilteredBlockstore second = open.apply(source, dir);
+        Assert.assertTrue(source.enumerations.get() == 1);
+        for (Cid c : cids)
+            Assert.assertTrue(second.has(c).join());
+        second.close();
+
+        // a write that isn't followed by a snapshot, e.g. a crash, forces a rebuild
+        cids.add(source.put("unsnapshotted".getBytes(), Cid.Codec.Raw).join());
+        new BlockstoreGeneration(dir.resolve("generation")).increment();
+        FilteredBlockstore third = open.apply(source, dir);
+        Assert.assertTrue(source.enumerations.get() == 2);
+        for (Cid c : cids)
+            Assert.assertTrue(third.has(c).join());
+        third.close();
+    }
+
+    @Test
+    public void bloomReload() throws IOException {
+        checkReload((bs, dir) -> FilteredBlockstore.bloomBased(bs, 0.01, dir));
+    }
+
+    @Test
+    public void infiniReload() throws IOException {
+        checkReload((bs, dir) -> FilteredBlockstore.infiniBased(bs, 0.001, dir));
+    }
+
+    @Test
+    public void expandedInfiniRoundTrip() throws IOException {
+        CidInfiniFilter filter = CidInfiniFilter.build(1_000, 0.001);
+        List<Cid> cids = IntStream.range(0, 150_000)
+                .mapToObj(i -> new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(("b" + i).getBytes())))
+                .collect(Collectors.toList());
+        cids.forEach(filter::add);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        filter.writeSnapshot(new DataOutputStream(bout));
+        CidInfiniFilter reloaded = CidInfiniFilter.fromSnapshot(ByteBuffer.wrap(bout.toByteArray()));
+        Assert.assertTrue(cids.stream().allMatch(reloaded::has));
+        Cid absent = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256("absent".getBytes()));
+        Assert.assertTrue(reloaded.has(absent) == filter.has(absent));
+    }
+}
@@ -0,0 +1,111 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class GarbageCollectorTest {
+
+    @Test
+    public void deletesOnlyUnreachable() {
+        RamBlockstore bs = new RamBlockstore();
+        Cid live = TestBlocks.putTree(bs, "live", 3, 4);
+        Cid garbage = TestBlocks.putTree(bs, "garbage", 3, 4);
+        // a subtree shared between a live and a garbage root must be kept
+        Cid shared = TestBlocks.putTree(bs, "shared", 2, 3);
+        Cid liveWithShared = TestBlocks.putNode(bs, "live-root", List.of(live, shared));
+        TestBlocks.putNode(bs, "garbage-root", List.of(garbage, shared));
+        Set<Cid> liveBlocks = reachable(bs, liveWithShared);
+        long total = bs.count(false).join();
+
+        GarbageCollector gc = new GarbageCollector(bs, 4, 10, 1_000_000);
+        GarbageCollector.Progress res = gc.start(RootsProvider.of(List.of(liveWithShared))).join();
+
+        Assert.assertTrue(res.phase == GarbageCollector.Phase.DONE);
+        Assert.assertTrue(res.marked == liveBlocks.size());
+        Assert.assertTrue(res.deleted == total - liveBlocks.size());
+        Assert.assertTrue(bs.count(false).join() == liveBlocks.size());
+        for (Cid c : liveBlocks)
+            Assert.assertTrue(bs.has(c).join());
+        Assert.assertTrue(! bs.has(garbage).join());
+        Assert.assertTrue(! gc.isRunning());
+    }
+
+    @Test
+    public void failsWhenLinksAreUnreadable() {
+        Set<Cid> unreadable = new HashSet<>();
+        RamBlockstore bs = new RamBlockstore() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> get(Cid c) {
+                if (unreadable.contains(c))
+                    return CompletableFuture.failedFuture(new IllegalStateException("Unreadable " + c));
+                return super.get(c);
+            }
+        };
+        Cid root = TestBlocks.putTree(bs, "root", 2, 3);
+        TestBlocks.putTree(bs, "garbage", 2, 3);
+        long total = bs.count(false).join();
+        unreadable.add(root);
+
+        GarbageCollector.Progress res = new GarbageCollector(bs).start(RootsProvider.of(List.of(root))).join();
+        Assert.assertTrue(res.phase == GarbageCollector.Phase.FAILED);
+        Assert.assertTrue(res.error.isPresent());
+        Assert.assertTrue(bs.count(false).join() == total);
+    }
+
+    @Test
+    public void retainsBlocksUsedDuringCollection() {
+        RamBlockstore bs = new RamBlockstore();
+        Cid root = TestBlocks.putTree(bs, "root", 2, 3);
+        List<Cid> unreachable = TestBlocks.putBlocks(bs, 10);
+        GarbageCollector gc = new GarbageCollector(bs, 4, 10, 0);
+        Blockstore client = gc.tracking();
+        client.get(unreachable.get(0)).join();
+        // a client reads and re-puts blocks after marking has started, before linking them from a new root
+        RootsProvider roots = () -> {
+            client.get(unreachable.get(1)).join();
+            client.put("block2".getBytes(), Cid.Codec.Raw).join();
+            return List.of(root);
+        };
+
+        GarbageCollector.Progress res = gc.start(roots).join();
+        Assert.assertTrue(res.phase == GarbageCollector.Phase.DONE);
+        Assert.assertTrue(! bs.has(unreachable.get(0)).join());
+        Assert.assertTrue(bs.has(unreachable.get(1)).join());
+        Assert.assertTrue(bs.has(unreachable.get(2)).join());
+        Assert.assertTrue(res.deleted == unreachable.size() - 2);
+
+        // the grace set only lasts for one collection
+        res = gc.start(RootsProvider.of(List.of(root))).join();
+        Assert.assertTrue(res.deleted == 2);
+    }
+
+    @Test
+    public void zeroDeleteRateIsUnthrottled() {
+        RamBlockstore bs = new RamBlockstore();
+        List<Cid> garbage = TestBlocks.putBlocks(bs, 100);
+        GarbageCollector.Progress res = new GarbageCollector(bs, 1, 1, 0).start(RootsProvider.of(List.of())).join();
+        Assert.assertTrue(res.phase == GarbageCollector.Phase.DONE);
+        Assert.assertTrue(res.deleted == garbage.size());
+        Assert.assertTrue(bs.count(false).join() == 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDeleteRateIsRejected() {
+        new GarbageCollector(new RamBlockstore(), 1, 1, -1);
+    }
+
+    private static Set<Cid> reachable(Blockstore bs, Cid root) {
+        Set<Cid> res = new HashSet<>();
+        Deque<Cid> toVisit = new ArrayDeque<>(List.of(root));
+        while (! toVisit.isEmpty()) {
+            Cid c = toVisit.pop();
+            if (res.add(c))
+                toVisit.addAll(bs.getBlockMetadata(c).join().links);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,74 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.junit.*;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class GenerationalAbsentFilterTest {
+
+    private static Cid cid(int i) {
+        return new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(("block" + i).getBytes()));
+    }
+
+    @Test
+    public void agesOutGradually() {
+        // the minimum generation size of 1024 entries
+        GenerationalAbsentFilter absent = new GenerationalAbsentFilter(0, 4, 0.001);
+        List<Cid> cids = IntStream.range(0, 3 * 1024).mapToObj(GenerationalAbsentFilterTest::cid).collect(Collectors.toList());
+        cids.forEach(absent::add);
+
+        // filling two more generations drops only the oldest one
+        List<Cid> later = IntStream.range(10_000, 10_000 + 2 * 1024)
+                .mapToObj(GenerationalAbsentFilterTest::cid)
+                .collect(Collectors.toList());
+        later.forEach(absent::add);
+        long oldestRemembered = cids.subList(0, 1024).stream().filter(absent::has).count();
+        Assert.assertTrue(oldestRemembered < 10);
+        Assert.assertTrue(absent.has(cids.get(3 * 1024 - 1)));
+        Assert.assertTrue(later.stream().allMatch(absent::has));
+    }
+
+    @Test
+    public void concurrentAddsAndLookups() throws Exception {
+        GenerationalAbsentFilter absent = new GenerationalAbsentFilter(0, 4, 0.001);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int offset = t * 1000;
+            done.add(pool.submit(() -> {
+                for (int i = offset; i < offset + 1000; i++) {
+                    absent.add(cid(i));
+                    Assert.assertTrue(absent.has(cid(i)));
+                }
+            }));
+        }
+        for (Future<?> f : done)
+            f.get();
+        pool.shutdown();
+        // the most recent generation is never dropped
+        Assert.assertTrue(absent.has(cid(3999)));
+    }
+
+    @Test
+    public void invalidatedByPut() {
+        RamBlockstore blocks = new RamBlockstore();
+        Filter present = CidInfiniFilter.build(1_000, 0.001);
+        FilteredBlockstore filtered = new FilteredBlockstore(blocks, present);
+        byte[] block = "late arrival".getBytes();
+        Cid cid = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(block));
+
+        // a false positive in the present filter makes the lookup reach the target, which records it as absent
+        present.add(cid);
+        Assert.assertTrue(! filtered.has(cid).join());
+        Assert.assertTrue(! filtered.hasAll(List.of(cid)).join().get(0));
+
+        filtered.put(block, Cid.Codec.Raw).join();
+        Assert.assertTrue(filtered.has(cid).join());
+        Assert.assertTrue(filtered.get(cid).join().isPresent());
+    }
+}
@@ -0,0 +1,46 @@
+package org.peergos.blockstore;
+
+import org.junit.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class GroupCommitterTest {
+
+    @Test
+    public void concurrentWritesAreCommitted() throws Exception {
+        Path dir = Files.createTempDirectory("nabu-commit");
+        GroupCommitter committer = new GroupCommitter();
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        List<Future<CompletableFuture<Boolean>>> writes = IntStream.range(0, 200)
+                .mapToObj(i -> writers.submit(() -> committer.write(dir.resolve("block" + i), ("data" + i).getBytes())))
+                .collect(Collectors.toList());
+        for (Future<CompletableFuture<Boolean>> write : writes)
+            Assert.assertTrue(write.get().join());
+        writers.shutdown();
+        committer.close();
+
+        for (int i = 0; i < 200; i++)
+            Assert.assertTrue(Arrays.equals(("data" + i).getBytes(), Files.readAllBytes(dir.resolve("block" + i))));
+        try (Stream<Path> files = Files.list(dir)) {
+            Assert.assertTrue(files.noneMatch(p -> p.toString().endsWith(GroupCommitter.TEMP_SUFFIX)));
+        }
+    }
+
+    @Test
+    public void writeAfterCloseFails() throws IOException {
+        Path dir = Files.createTempDirectory("nabu-commit");
+        GroupCommitter committer = new GroupCommitter();
+        committer.close();
+        try {
+            committer.write(dir.resolve("block"), new byte[10]);
+            Assert.fail("Write after close should fail");
+        } catch (IllegalStateException expected) {}
+        try (Stream<Path> files = Files.list(dir)) {
+            Assert.assertTrue(files.count() == 0);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.junit.*;
+import org.peergos.*;
+import org.peergos.blockstore.metadatadb.*;
+
+import java.util.*;
+
+public class HasAnyTest {
+
+    @Test
+    public void metadataAndFilters() {
+        RamBlockMetadataStore metadata = new RamBlockMetadataStore();
+        Blockstore cached = new CachingBlockMetadataStore(new RamBlockstore(), metadata);
+        Blockstore filtered = new FilteredBlockstore(cached, CidInfiniFilter.build(cached));
+
+        byte[] block = "present".getBytes();
+        Cid cid = filtered.put(block, Cid.Codec.Raw).join();
+        Multihash present = new Multihash(cid.getType(), cid.getHash());
+        Multihash absent = new Multihash(Multihash.Type.sha2_256, Hash.sha256("absent".getBytes()));
+
+        Assert.assertTrue(metadata.hasAny(present));
+        Assert.assertTrue(! metadata.hasAny(absent));
+        Assert.assertTrue(filtered.hasAny(present).join());
+        Assert.assertTrue(! filtered.hasAny(absent).join());
+
+        Blockstore limited = new TypeLimitedBlockstore(filtered, Set.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf));
+        Assert.assertTrue(limited.hasAny(present).join());
+        Assert.assertTrue(! limited.hasAny(absent).join());
+    }
+}
@@ -0,0 +1,65 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.junit.*;
+import org.peergos.*;
+import org.peergos.blockstore.metadatadb.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class LruBlockMetadataStoreTest {
+
+    private static class CountingMetadataStore extends RamBlockMetadataStore {
+        final AtomicInteger gets = new AtomicInteger(0);
+
+        @Override
+        public Optional<BlockMetadata> get(Cid block) {
+            gets.incrementAndGet();
+            return super.get(block);
+        }
+    }
+
+    private static Cid cid(int i) {
+        return new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(("block" + i).getBytes()));
+    }
+
+    @Test
+    public void cachesPresentAndAbsent() {
+        CountingMetadataStore target = new CountingMetadataStore();
+        LruBlockMetadataStore cache = new LruBlockMetadataStore(target, 1024 * 1024);
+        target.put(cid(0), new BlockMetadata(5, Collections.emptyList()));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(cache.get(cid(0)).get().size == 5);
+            Assert.assertTrue(cache.get(cid(1)).isEmpty());
+        }
+        Assert.assertTrue(target.gets.get() == 2);
+        Assert.assertTrue(cache.getAll(List.of(cid(0), cid(1))).keySet().equals(Set.of(cid(0))));
+        Assert.assertTrue(target.gets.get() == 2);
+
+        // a put replaces a cached absence
+        cache.put(cid(1), new BlockMetadata(7, Collections.emptyList()));
+        Assert.assertTrue(cache.get(cid(1)).get().size == 7);
+        Assert.assertTrue(cache.hasAny(cid(1)));
+
+        // a remove invalidates
+        cache.remove(cid(0));
+        Assert.assertTrue(cache.get(cid(0)).isEmpty());
+        Assert.assertTrue(! cache.hasAny(cid(0)));
+    }
+
+    @Test
+    public void boundedBySize() {
+        CountingMetadataStore target = new CountingMetadataStore();
+        LruBlockMetadataStore cache = new LruBlockMetadataStore(target, 64 * 1024);
+        for (int i = 0; i < 10_000; i++)
+            cache.put(cid(i), new BlockMetadata(i, Collections.emptyList()));
+        // recent entries are cached, old ones were evicted
+        cache.get(cid(9_999));
+        Assert.assertTrue(target.gets.get() == 0);
+        cache.get(cid(0));
+        Assert.assertTrue(target.gets.get() == 1);
+        Assert.assertTrue(cache.get(cid(0)).get().size == 0);
+    }
+}
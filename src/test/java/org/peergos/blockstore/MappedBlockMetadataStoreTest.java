@@ -0,0 +1,210 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.junit.*;
+import org.peergos.*;
+import org.peergos.blockstore.metadatadb.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class MappedBlockMetadataStoreTest {
+
+    private final List<Path> tempDirs = new ArrayList<>();
+
+    private Path tempDir() throws IOException {
+        Path dir = Files.createTempDirectory("mapped-metadata");
+        tempDirs.add(dir);
+        return dir;
+    }
+
+    @After
+    public void deleteTempDirs() throws IOException {
+        for (Path dir : tempDirs) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder())
+                        .map(Path::toFile)
+                        .forEach(File::delete);
+            }
+        }
+    }
+
+    private static Cid cid(int i, Cid.Codec codec) {
+        return new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(("block" + i).getBytes()));
+    }
+
+    private static BlockMetadata meta(int i) {
+        List<Cid> links = IntStream.range(0, i % 4)
+                .mapToObj(j -> cid(i * 10 + j, Cid.Codec.Raw))
+                .collect(Collectors.toList());
+        return new BlockMetadata(i, links);
+    }
+
+    private static void assertMeta(int i, Optional<BlockMetadata> found) {
+        Assert.assertTrue(found.isPresent());
+        Assert.assertTrue(found.get().size == i);
+        Assert.assertTrue(found.get().links.equals(meta(i).links));
+    }
+
+    @Test
+    public void persistsAcrossResizesAndRestarts() throws Exception {
+        Path dir = tempDir();
+        MappedBlockMetadataStore store = new MappedBlockMetadataStore(dir);
+        int n = 5_000;
+        for (int i = 0; i < n; i++)
+            store.put(cid(i, Cid.Codec.DagCbor), meta(i));
+        // putting the same cid again is a no-op
+        store.put(cid(0, Cid.Codec.DagCbor), meta(0));
+        Assert.assertTrue(store.size() == n);
+        for (int i = 0; i < n; i++)
+            assertMeta(i, store.get(cid(i, Cid.Codec.DagCbor)));
+        Assert.assertTrue(store.get(cid(0, Cid.Codec.Raw)).isEmpty());
+        Assert.assertTrue(store.hasAny(cid(7, Cid.Codec.Raw)));
+
+        store.removeAll(IntStream.range(0, 100).mapToObj(i -> cid(i, Cid.Codec.DagCbor)).collect(Collectors.toList()));
+        store.close();
+
+        MappedBlockMetadataStore reopened = new MappedBlockMetadataStore(dir);
+        Assert.assertTrue(reopened.size() == n - 100);
+        Assert.assertTrue(reopened.get(cid(50, Cid.Codec.DagCbor)).isEmpty());
+        assertMeta(100, reopened.get(cid(100, Cid.Codec.DagCbor)));
+        // only the current table and log remain after resizing
+        Assert.assertTrue(Files.list(dir).count() == 3);
+        reopened.close();
+    }
+
+    @Test
+    public void listIsCompleteAndOrderedAcrossResizes() throws Exception {
+        MappedBlockMetadataStore store = new MappedBlockMetadataStore(tempDir());
+        for (int i = 0; i < 600; i++)
+            store.put(cid(i, Cid.Codec.Raw), meta(i));
+        List<Cid> firstPage = store.listPage(Optional.empty(), 100);
+        // grow the table between pages
+        for (int i = 600; i < 3_000; i++)
+            store.put(cid(i, Cid.Codec.Raw), meta(i));
+        Set<Cid> seen = new HashSet<>(firstPage);
+        Optional<Cid> after = Optional.of(firstPage.get(firstPage.size() - 1));
+        List<Cid> rest = new ArrayList<>();
+        while (true) {
+            List<Cid> page = store.listPage(after, 100);
+            if (page.isEmpty())
+                break;
+            rest.addAll(page);
+            after = Optional.of(page.get(page.size() - 1));
+        }
+        seen.addAll(rest);
+        Assert.assertTrue(firstPage.size() + rest.size() == seen.size());
+        // the pages may skip entries added before the cursor, but none added after it
+        Assert.assertTrue(IntStream.range(0, 600).allMatch(i -> seen.contains(cid(i, Cid.Codec.Raw))));
+
+        List<Cid> all = store.list().collect(Collectors.toList());
+        Assert.assertTrue(all.size() == 3_000);
+        Assert.assertTrue(new HashSet<>(all).size() == 3_000);
+        Assert.assertTrue(store.listCbor().count() == 0);
+        store.close();
+    }
+
+    @Test
+    public void compactionDropsRemovedEntries() throws Exception {
+        Path dir = tempDir();
+        MappedBlockMetadataStore store = new MappedBlockMetadataStore(dir);
+        for (int i = 0; i < 2_000; i++)
+            store.put(cid(i, Cid.Codec.DagCbor), meta(i));
+        for (int i = 0; i < 2_000; i += 2)
+            store.remove(cid(i, Cid.Codec.DagCbor));
+        store.compact();
+        Assert.assertTrue(store.size() == 1_000);
+        for (int i = 1; i < 2_000; i += 2)
+            assertMeta(i, store.get(cid(i, Cid.Codec.DagCbor)));
+        store.put(cid(0, Cid.Codec.DagCbor), meta(0));
+        store.close();
+
+        MappedBlockMetadataStore reopened = new MappedBlockMetadataStore(dir);
+        Assert.assertTrue(reopened.size() == 1_001);
+        assertMeta(0, reopened.get(cid(0, Cid.Codec.DagCbor)));
+        assertMeta(1_999, reopened.get(cid(1_999, Cid.Codec.DagCbor)));
+        Assert.assertTrue(Files.list(dir).count() == 3);
+        reopened.close();
+    }
+
+    @Test
+    public void interruptedResizeIsDiscarded() throws Exception {
+        Path dir = tempDir();
+        MappedBlockMetadataStore store = new MappedBlockMetadataStore(dir);
+        store.put(cid(1, Cid.Codec.Raw), meta(1));
+        store.close();
+        // a table from a resize which crashed before it became current
+        Files.write(dir.resolve("index.1"), new byte[100]);
+        MappedBlockMetadataStore reopened = new MappedBlockMetadataStore(dir);
+        assertMeta(1, reopened.get(cid(1, Cid.Codec.Raw)));
+        Assert.assertTrue(! dir.resolve("index.1").toFile().exists());
+        reopened.close();
+    }
+
+    @Test
+    public void unsyncedPutsAreDroppedAfterACrash() throws Exception {
+        Path dir = tempDir();
+        MappedBlockMetadataStore store = new MappedBlockMetadataStore(dir, 0);
+        for (int i = 0; i < 100; i++)
+            store.put(cid(i, Cid.Codec.DagCbor), meta(i));
+        store.sync();
+        for (int i = 100; i < 200; i++)
+            store.put(cid(i, Cid.Codec.DagCbor), meta(i));
+
+        // open the files without closing the store, as after a power loss
+        MappedBlockMetadataStore recovered = new MappedBlockMetadataStore(dir, 0);
+        Assert.assertTrue(recovered.size() == 100);
+        Assert.assertTrue(recovered.needsRebuild());
+        assertMeta(99, recovered.get(cid(99, Cid.Codec.DagCbor)));
+        Assert.assertTrue(recovered.get(cid(100, Cid.Codec.DagCbor)).isEmpty());
+        recovered.put(cid(100, Cid.Codec.DagCbor), meta(100));
+        assertMeta(100, recovered.get(cid(100, Cid.Codec.DagCbor)));
+        store.close();
+        recovered.close();
+
+        // the rebuild is still needed until it is marked done, even after a clean close
+        MappedBlockMetadataStore reopened = new MappedBlockMetadataStore(dir, 0);
+        Assert.assertTrue(reopened.needsRebuild());
+        Assert.assertTrue(reopened.size() == 101);
+        reopened.rebuilt();
+        reopened.close();
+        reopened = new MappedBlockMetadataStore(dir, 0);
+        Assert.assertTrue(! reopened.needsRebuild());
+        Assert.assertTrue(reopened.size() == 101);
+        reopened.close();
+    }
+
+    @Test
+    public void removesSurviveACrash() throws Exception {
+        Path dir = tempDir();
+        MappedBlockMetadataStore store = new MappedBlockMetadataStore(dir, 0);
+        for (int i = 0; i < 100; i++)
+            store.put(cid(i, Cid.Codec.DagCbor), meta(i));
+        store.sync();
+        store.removeAll(IntStream.range(0, 10)
+                .mapToObj(i -> cid(i, Cid.Codec.DagCbor))
+                .collect(Collectors.toList()));
+
+        // open the files without closing the store, as after a power loss
+        MappedBlockMetadataStore recovered = new MappedBlockMetadataStore(dir, 0);
+        Assert.assertTrue(recovered.size() == 90);
+        Assert.assertTrue(recovered.get(cid(0, Cid.Codec.DagCbor)).isEmpty());
+        assertMeta(10, recovered.get(cid(10, Cid.Codec.DagCbor)));
+        recovered.close();
+    }
+
+    @Test
+    public void migrate() throws Exception {
+        RamBlockMetadataStore source = new RamBlockMetadataStore();
+        for (int i = 0; i < 25_000; i++)
+            source.put(cid(i, Cid.Codec.DagCbor), meta(i));
+        MappedBlockMetadataStore target = new MappedBlockMetadataStore(tempDir());
+        Assert.assertTrue(MappedBlockMetadataStore.migrate(source, target) == 25_000);
+        Assert.assertTrue(target.size() == 25_000);
+        assertMeta(12_345, target.get(cid(12_345, Cid.Codec.DagCbor)));
+        target.close();
+    }
+}
@@ -0,0 +1,117 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class MemoryCacheBlockstoreTest {
+    private static Random r = new Random(42);
+
+    private static byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        r.nextBytes(block);
+        return block;
+    }
+
+    @Test
+    public void servesReadsFromMemory() {
+        RamBlockstore target = new RamBlockstore();
+        MemoryCacheBlockstore cached = new MemoryCacheBlockstore(target, 1024 * 1024, 4);
+        byte[] block = randomBlock(1000);
+        Cid cid = cached.put(block, Cid.Codec.Raw).join();
+        Assert.assertTrue(Arrays.equals(block, cached.get(cid).join().get()));
+
+        // now cached, so served without the target
+        target.rm(cid).join();
+        Assert.assertTrue(Arrays.equals(block, cached.get(cid).join().get()));
+        Assert.assertTrue(Arrays.equals(block, cached.getAll(List.of(cid)).join().get(0).get()));
+
+        cached.rm(cid).join();
+        Assert.assertTrue(cached.get(cid).join().isEmpty());
+    }
+
+    @Test
+    public void bufferMissesReadTheTargetBuffer() {
+        RamBlockstore target = new RamBlockstore() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> get(Cid c) {
+                throw new IllegalStateException("Buffer reads shouldn't copy the block");
+            }
+
+            @Override
+            public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+                return super.get(c).thenApply(b -> b.map(ByteBuffer::wrap));
+            }
+        };
+        MemoryCacheBlockstore cached = new MemoryCacheBlockstore(target, 1024 * 1024, 4);
+        byte[] block = randomBlock(1000);
+        Cid cid = target.put(block, Cid.Codec.Raw).join();
+        ByteBuffer miss = cached.getBuffer(cid).join().get();
+        Assert.assertTrue(miss.equals(ByteBuffer.wrap(block)));
+
+        target.rm(cid).join();
+        Assert.assertTrue(cached.getBuffer(cid).join().get().equals(ByteBuffer.wrap(block)));
+    }
+
+    @Test
+    public void hotBlocksSurviveEviction() {
+        RamBlockstore target = new RamBlockstore();
+        MemoryCacheBlockstore cached = new MemoryCacheBlockstore(target, 64 * 1000, 1);
+        Cid hot = target.put(randomBlock(1000), Cid.Codec.Raw).join();
+        cached.get(hot).join();
+        for (int i = 0; i < 1000; i++) {
+            Cid c = target.put(randomBlock(1000), Cid.Codec.Raw).join();
+            cached.get(c).join();
+            cached.get(hot).join();
+        }
+        target.rm(hot).join();
+        Assert.assertTrue(cached.get(hot).join().isPresent());
+    }
+
+    @Test
+    public void buffersSurviveEviction() {
+        RamBlockstore target = new RamBlockstore();
+        MemoryCacheBlockstore cached = new MemoryCacheBlockstore(target, 64 * 1000, 1);
+        byte[] block = randomBlock(1000);
+        Cid cid = target.put(block, Cid.Codec.Raw).join();
+        cached.get(cid).join();
+        ByteBuffer view = cached.getBuffer(cid).join().get();
+        Assert.assertTrue(view.isReadOnly());
+        for (int i = 0; i < 1000; i++)
+            cached.get(target.put(randomBlock(1000), Cid.Codec.Raw).join()).join();
+
+        byte[] read = new byte[view.remaining()];
+        view.get(read);
+        Assert.assertTrue(Arrays.equals(block, read));
+    }
+
+    @Test
+    public void concurrentReads() throws Exception {
+        RamBlockstore target = new RamBlockstore();
+        MemoryCacheBlockstore cached = new MemoryCacheBlockstore(target, 256 * 1000, 8);
+        Map<Cid, byte[]> blocks = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] block = randomBlock(1 + r.nextInt(2000));
+            blocks.put(target.put(block, Cid.Codec.Raw).join(), block);
+        }
+        List<Cid> cids = new ArrayList<>(blocks.keySet());
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = IntStream.range(0, 8)
+                .mapToObj(t -> pool.submit(() -> {
+                    Random local = new Random(t);
+                    for (int i = 0; i < 5_000; i++) {
+                        Cid c = cids.get(local.nextInt(cids.size()));
+                        if (! Arrays.equals(blocks.get(c), cached.get(c).join().get()))
+                            return false;
+                    }
+                    return true;
+                })).collect(Collectors.toList());
+        for (Future<Boolean> res : results)
+            Assert.assertTrue(res.get());
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,165 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+public class PackBlockstoreTest {
+    private static Random r = new Random(42);
+
+    private static Path tempDir() throws IOException {
+        Path dir = Files.createTempDirectory("nabu-packs");
+        dir.toFile().deleteOnExit();
+        return dir;
+    }
+
+    private static byte[] randomBlock() {
+        byte[] block = new byte[100 + r.nextInt(1000)];
+        r.nextBytes(block);
+        return block;
+    }
+
+    @Test
+    public void putGetRm() throws IOException {
+        PackBlockstore bs = new PackBlockstore(tempDir());
+        byte[] block = randomBlock();
+        Cid cid = bs.put(block, Cid.Codec.Raw).join();
+        Assert.assertTrue(bs.has(cid).join());
+        Assert.assertTrue(Arrays.equals(block, bs.get(cid).join().get()));
+        // putting a second time is a no-op
+        Assert.assertTrue(bs.put(block, Cid.Codec.Raw).join().equals(cid));
+        Assert.assertTrue(bs.count(false).join() == 1);
+        Assert.assertTrue(bs.hasAny(cid.bareMultihash()).join());
+        Assert.assertTrue(! bs.has(new Cid(1, Cid.Codec.DagCbor, cid.getType(), cid.getHash())).join());
+
+        Assert.assertTrue(bs.rm(cid).join());
+        Assert.assertTrue(! bs.has(cid).join());
+        Assert.assertTrue(! bs.hasAny(cid.bareMultihash()).join());
+        Assert.assertTrue(bs.get(cid).join().isEmpty());
+        Assert.assertTrue(! bs.rm(cid).join());
+        bs.close();
+    }
+
+    @Test
+    public void recoverWithoutIndex() throws IOException {
+        Path dir = tempDir();
+        PackBlockstore bs = new PackBlockstore(dir, 10_000, 0.5, false);
+        Map<Cid, byte[]> blocks = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] block = randomBlock();
+            blocks.put(bs.put(block, Cid.Codec.Raw).join(), block);
+        }
+        Cid removed = blocks.keySet().iterator().next();
+        bs.rm(removed).join();
+        blocks.remove(removed);
+
+        // simulate a crash: no index snapshot, plus a torn record at the end of the last segment
+        Path packs = dir.resolve("packs");
+        Files.deleteIfExists(packs.resolve("index"));
+        Path last = Files.list(packs).sorted(Comparator.reverseOrder()).findFirst().get();
+        Files.write(last, new byte[]{1, 0, 0, 0, 36, 0, 0}, StandardOpenOption.APPEND);
+
+        PackBlockstore reopened = new PackBlockstore(dir, 10_000, 0.5, false);
+        Assert.assertTrue(reopened.count(false).join() == blocks.size());
+        Assert.assertTrue(! reopened.has(removed).join());
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet())
+            Assert.assertTrue(Arrays.equals(e.getValue(), reopened.get(e.getKey()).join().get()));
+        reopened.close();
+    }
+
+    @Test
+    public void mappedReads() throws IOException {
+        Path dir = tempDir();
+        PackBlockstore bs = new PackBlockstore(dir, 10_000, 0.5, false, true);
+        Map<Cid, byte[]> blocks = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            byte[] block = randomBlock();
+            blocks.put(bs.put(block, Cid.Codec.Raw).join(), block);
+        }
+        // covers blocks in both sealed (mapped) and active segments
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet()) {
+            ByteBuffer buf = bs.getBuffer(e.getKey()).join().get();
+            byte[] read = new byte[buf.remaining()];
+            buf.get(read);
+            Assert.assertTrue(Arrays.equals(e.getValue(), read));
+        }
+        bs.close();
+    }
+
+    @Test
+    public void compaction() throws IOException {
+        Path dir = tempDir();
+        PackBlockstore bs = new PackBlockstore(dir, 10_000, 0.5, false);
+        List<Cid> cids = new ArrayList<>();
+        Map<Cid, byte[]> blocks = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] block = randomBlock();
+            Cid cid = bs.put(block, Cid.Codec.Raw).join();
+            cids.add(cid);
+            blocks.put(cid, block);
+        }
+        long segmentsBefore = Files.list(dir.resolve("packs")).count();
+        for (int i = 0; i < cids.size(); i += 4) {
+            bs.rm(cids.get(i)).join();
+            bs.rm(cids.get(i + 1)).join();
+            bs.rm(cids.get(i + 2)).join();
+            blocks.remove(cids.get(i));
+            blocks.remove(cids.get(i + 1));
+            blocks.remove(cids.get(i + 2));
+        }
+        bs.compact();
+        long segmentsAfter = Files.list(dir.resolve("packs")).count();
+        Assert.assertTrue(segmentsAfter < segmentsBefore);
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet())
+            Assert.assertTrue(Arrays.equals(e.getValue(), bs.get(e.getKey()).join().get()));
+        bs.close();
+
+        PackBlockstore reopened = new PackBlockstore(dir, 10_000, 0.5, false);
+        Assert.assertTrue(reopened.count(false).join() == blocks.size());
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet())
+            Assert.assertTrue(Arrays.equals(e.getValue(), reopened.get(e.getKey()).join().get()));
+        reopened.close();
+    }
+
+    @Test
+    public void compactionKeepsTombstonesOfOlderSegments() throws IOException {
+        Path dir = tempDir();
+        PackBlockstore bs = new PackBlockstore(dir, 10_000, 0.5, false);
+        List<Cid> first = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] block = new byte[1_000];
+            r.nextBytes(block);
+            first.add(bs.put(block, Cid.Codec.Raw).join());
+        }
+        // the first segment stays mostly live, the second holds only removed blocks and tombstones
+        bs.rm(first.get(0)).join();
+        List<Cid> second = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] block = new byte[1_000];
+            r.nextBytes(block);
+            Cid cid = bs.put(block, Cid.Codec.Raw).join();
+            bs.rm(cid).join();
+            second.add(cid);
+        }
+        bs.put(randomBlock(), Cid.Codec.Raw).join();
+        Path firstSegment = dir.resolve("packs").resolve("00000000.pack");
+        Path secondSegment = dir.resolve("packs").resolve("00000001.pack");
+        bs.compact();
+        Assert.assertTrue(firstSegment.toFile().exists());
+        Assert.assertTrue(! secondSegment.toFile().exists());
+        bs.close();
+
+        // rebuilding from the segments must not bring back the removed block in the first segment
+        Files.delete(dir.resolve("packs").resolve("index"));
+        PackBlockstore reopened = new PackBlockstore(dir, 10_000, 0.5, false);
+        Assert.assertTrue(! reopened.has(first.get(0)).join());
+        for (Cid cid : second)
+            Assert.assertTrue(! reopened.has(cid).join());
+        Assert.assertTrue(reopened.count(false).join() == 10);
+        reopened.close();
+    }
+}
@@ -0,0 +1,89 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class PrefetchingBlockstoreTest {
+
+    private static class CountingBlockstore extends RamBlockstore {
+        final AtomicInteger reads = new AtomicInteger(0);
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> get(Cid c) {
+            reads.incrementAndGet();
+            return super.get(c);
+        }
+    }
+
+    private static void awaitIdle(PrefetchingBlockstore bs) throws InterruptedException {
+        for (int i = 0; i < 500 && ! bs.isIdle(); i++)
+            Thread.sleep(10);
+        Assert.assertTrue(bs.isIdle());
+    }
+
+    private static List<Cid> children(Blockstore bs, Cid c) {
+        return bs.getBlockMetadata(c).join().links;
+    }
+
+    @Test
+    public void walkIsServedFromPrefetchedBlocks() throws Exception {
+        CountingBlockstore target = new CountingBlockstore();
+        Cid root = TestBlocks.putTree(target, "root", 2, 4);
+        PrefetchingBlockstore bs = new PrefetchingBlockstore(target, 2, 16, 1024 * 1024, 2);
+
+        bs.get(root).join();
+        awaitIdle(bs);
+        // the root and both levels below it
+        Assert.assertTrue(target.reads.get() == 1 + 4 + 16);
+
+        // walking the tree is served entirely from prefetched blocks
+        Map<Cid, List<Cid>> tree = children(target, root).stream()
+                .collect(Collectors.toMap(c -> c, c -> children(target, c)));
+        int before = target.reads.get();
+        for (Map.Entry<Cid, List<Cid>> child : tree.entrySet()) {
+            Assert.assertTrue(bs.get(child.getKey()).join().isPresent());
+            for (Cid grandChild : child.getValue())
+                Assert.assertTrue(bs.get(grandChild).join().isPresent());
+        }
+        Assert.assertTrue(target.reads.get() == before);
+    }
+
+    @Test
+    public void bufferReadsParseLinksFromTheBuffer() throws Exception {
+        CountingBlockstore target = new CountingBlockstore();
+        Cid root = TestBlocks.putTree(target, "root", 1, 4);
+        PrefetchingBlockstore bs = new PrefetchingBlockstore(target, 1, 16, 1024 * 1024, 2);
+
+        Assert.assertTrue(bs.getBuffer(root).join().isPresent());
+        awaitIdle(bs);
+        // the root is read once, then its children
+        Assert.assertTrue(target.reads.get() == 1 + 4);
+    }
+
+    @Test
+    public void fanOutIsLimited() throws Exception {
+        CountingBlockstore target = new CountingBlockstore();
+        Cid root = TestBlocks.putTree(target, "root", 1, 20);
+        PrefetchingBlockstore bs = new PrefetchingBlockstore(target, 3, 5, 1024 * 1024, 2);
+        bs.get(root).join();
+        awaitIdle(bs);
+        Assert.assertTrue(target.reads.get() == 1 + 5);
+    }
+
+    @Test
+    public void unusedSessionIsCancelled() throws Exception {
+        CountingBlockstore target = new CountingBlockstore();
+        Cid root = TestBlocks.putTree(target, "root", 4, 8);
+        // only room for a few prefetched blocks, none of which are read
+        PrefetchingBlockstore bs = new PrefetchingBlockstore(target, 4, 8, 2_000, 1);
+        bs.get(root).join();
+        awaitIdle(bs);
+        int total = 1 + 8 + 64 + 512 + 4096;
+        Assert.assertTrue("reads " + target.reads.get(), target.reads.get() < total / 10);
+    }
+}
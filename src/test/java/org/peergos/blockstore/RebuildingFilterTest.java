@@ -0,0 +1,86 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class RebuildingFilterTest {
+
+    private static long countPresent(Filter filter, List<Cid> cids) {
+        return cids.stream().filter(filter::has).count();
+    }
+
+    @Test
+    public void bloomRebuildsAfterRemovals() throws Exception {
+        RamBlockstore source = new RamBlockstore();
+        List<Cid> cids = TestBlocks.putBlocks(source, 10_000);
+        double fpr = 0.01;
+        RebuildingFilter<CidBloomFilter> filter = new RebuildingFilter<>(CidBloomFilter.build(source, fpr),
+                () -> CidBloomFilter.build(source, fpr), () -> source.count(false).join(), fpr);
+        FilteredBlockstore filtered = new FilteredBlockstore(source, filter);
+        CidBloomFilter initial = filter.current();
+
+        List<Cid> removed = cids.subList(0, 2_000);
+        List<Cid> kept = cids.subList(2_000, cids.size());
+        filtered.rmAll(removed).join();
+
+        long end = System.currentTimeMillis() + 10_000;
+        while (filter.current() == initial && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        Assert.assertTrue("rebuilt", filter.current() != initial);
+        // removes during the rebuild that the new filter still reports are counted as stale
+        Assert.assertTrue(filter.effectiveFalsePositiveRate() < fpr * 2);
+        Assert.assertTrue(countPresent(filter, kept) == kept.size());
+        Assert.assertTrue(countPresent(filter, removed) < removed.size() * fpr * 2);
+    }
+
+    @Test
+    public void bloomPutsDontQueryTheTarget() {
+        RamBlockstore source = new RamBlockstore() {
+            @Override
+            public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+                throw new IllegalStateException("Bloom filters don't count duplicate adds");
+            }
+        };
+        List<Cid> cids = TestBlocks.putBlocks(source, 100);
+        RebuildingFilter<CidBloomFilter> filter = new RebuildingFilter<>(CidBloomFilter.build(source, 0.01),
+                () -> CidBloomFilter.build(source, 0.01), () -> source.count(false).join(), 0.01);
+        FilteredBlockstore filtered = new FilteredBlockstore(source, filter);
+        Assert.assertTrue(filtered.put("block0".getBytes(), Cid.Codec.Raw).join().equals(cids.get(0)));
+        Assert.assertTrue(filtered.putAll(List.of(new Pair<>("block1".getBytes(), Cid.Codec.Raw))).join().equals(List.of(cids.get(1))));
+        filter.close();
+    }
+
+    @Test
+    public void countingInfiniRemovesEntries() {
+        RamBlockstore source = new RamBlockstore();
+        List<Cid> cids = TestBlocks.putBlocks(source, 10_000);
+        double fpr = 0.001;
+        CidInfiniFilter infini = CidInfiniFilter.build(source, fpr);
+        Assert.assertTrue(infini.supportsRemove());
+        RebuildingFilter<CidInfiniFilter> filter = new RebuildingFilter<>(infini,
+                () -> CidInfiniFilter.build(source, fpr), () -> source.count(false).join(), fpr);
+        FilteredBlockstore filtered = new FilteredBlockstore(source, filter);
+
+        // putting a stored block again doesn't add a second entry for it
+        Cid repeated = cids.get(0);
+        filtered.put("block0".getBytes(), Cid.Codec.Raw).join();
+        filtered.putAll(List.of(new Pair<>("block0".getBytes(), Cid.Codec.Raw))).join();
+
+        List<Cid> removed = cids.subList(1, 5_000);
+        List<Cid> kept = cids.subList(5_000, cids.size());
+        for (Cid c : removed)
+            filtered.rm(c).join();
+        Assert.assertTrue(filter.current() == infini);
+        Assert.assertTrue(filter.effectiveFalsePositiveRate() == fpr);
+        Assert.assertTrue(countPresent(filter, kept) == kept.size());
+        Assert.assertTrue(countPresent(filter, removed) < removed.size() * fpr * 2);
+
+        filtered.rm(repeated).join();
+        Assert.assertTrue(! filter.has(repeated));
+        filter.close();
+    }
+}
@@ -0,0 +1,75 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+import org.peergos.*;
+import org.peergos.blockstore.metadatadb.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class RefsPageTest {
+    private static Random r = new Random(42);
+
+    private static Set<Cid> fill(Blockstore bs, int n) {
+        Set<Cid> res = new HashSet<>();
+        for (int i = 0; i < n; i++) {
+            byte[] block = new byte[32];
+            r.nextBytes(block);
+            res.add(bs.put(block, Cid.Codec.Raw).join());
+        }
+        return res;
+    }
+
+    private static void checkPaging(Blockstore bs, boolean useBlockstore) {
+        Set<Cid> expected = fill(bs, 250);
+        List<Cid> paged = new ArrayList<>();
+        Optional<String> token = Optional.empty();
+        int pages = 0;
+        do {
+            RefsPage page = bs.refs(token, 20, Optional.empty(), useBlockstore).join();
+            Assert.assertTrue(page.refs.size() <= 20);
+            paged.addAll(page.refs);
+            token = page.next;
+            pages++;
+        } while (token.isPresent());
+        Assert.assertTrue(pages >= 13);
+        Assert.assertTrue("no duplicates", paged.size() == expected.size());
+        Assert.assertTrue(new HashSet<>(paged).equals(expected));
+
+        Set<Cid> streamed = bs.streamRefs(Optional.empty(), useBlockstore).collect(Collectors.toSet());
+        Assert.assertTrue(streamed.equals(expected));
+        Assert.assertTrue(bs.streamRefs(Optional.of(Cid.Codec.DagCbor), useBlockstore).count() == 0);
+    }
+
+    @Test
+    public void ramBlockstore() {
+        checkPaging(new RamBlockstore(), false);
+    }
+
+    @Test
+    public void fileBlockstore() throws IOException {
+        checkPaging(new FileBlockstore(Files.createTempDirectory("nabu-refs")), false);
+    }
+
+    @Test
+    public void indexedFileBlockstore() throws IOException {
+        FileBlockstore bs = new FileBlockstore(Files.createTempDirectory("nabu-refs"), false, true);
+        checkPaging(bs, false);
+        bs.close();
+    }
+
+    @Test
+    public void packBlockstore() throws IOException {
+        PackBlockstore bs = new PackBlockstore(Files.createTempDirectory("nabu-refs"));
+        checkPaging(bs, false);
+        bs.close();
+    }
+
+    @Test
+    public void metadataStore() {
+        checkPaging(new CachingBlockMetadataStore(new RamBlockstore(), new RamBlockMetadataStore()), false);
+    }
+}
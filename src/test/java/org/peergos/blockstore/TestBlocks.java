@@ -0,0 +1,57 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.peergos.cbor.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * Blocks and dags shared by the blockstore tests.
+ */
+public class TestBlocks {
+
+    public static Cid putNode(Blockstore bs, String label, List<Cid> children) {
+        Map<String, Cborable> node = new TreeMap<>();
+        node.put("label", new CborObject.CborString(label));
+        node.put("links", new CborObject.CborList(children.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList())));
+        return bs.put(CborObject.CborMap.build(node).toByteArray(), Cid.Codec.DagCbor).join();
+    }
+
+    /**
+     * @return a tree of the given depth and fan out, with raw leaves, shared by every tree with the same prefix
+     */
+    public static Cid putTree(Blockstore bs, String prefix, int depth, int fanOut) {
+        if (depth == 0)
+            return bs.put(prefix.getBytes(), Cid.Codec.Raw).join();
+        List<Cid> children = IntStream.range(0, fanOut)
+                .mapToObj(i -> putTree(bs, prefix + "/" + i, depth - 1, fanOut))
+                .collect(Collectors.toList());
+        return putNode(bs, prefix, children);
+    }
+
+    /**
+     * @return the cids of n raw blocks "block0", "block1", ...
+     */
+    public static List<Cid> putBlocks(Blockstore bs, int n) {
+        List<Cid> cids = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            cids.add(bs.put(("block" + i).getBytes(), Cid.Codec.Raw).join());
+        return cids;
+    }
+
+    public static Cid randomCid(Random r) {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, hash);
+    }
+
+    public static List<Cid> randomCids(int n, Random r) {
+        return IntStream.range(0, n)
+                .mapToObj(i -> randomCid(r))
+                .collect(Collectors.toList());
+    }
+}
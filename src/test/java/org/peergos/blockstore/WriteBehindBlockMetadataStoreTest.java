@@ -0,0 +1,91 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.junit.*;
+import org.peergos.*;
+import org.peergos.blockstore.metadatadb.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class WriteBehindBlockMetadataStoreTest {
+
+    private static class CountingMetadataStore extends RamBlockMetadataStore {
+        final AtomicInteger batches = new AtomicInteger(0);
+
+        @Override
+        public synchronized void putAll(Map<Cid, BlockMetadata> metas) {
+            batches.incrementAndGet();
+            super.putAll(metas);
+        }
+    }
+
+    private static Cid cid(int i) {
+        return new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(("block" + i).getBytes()));
+    }
+
+    @Test
+    public void putsAreWrittenBeforeTheyReturn() {
+        CountingMetadataStore target = new CountingMetadataStore();
+        WriteBehindBlockMetadataStore store = new WriteBehindBlockMetadataStore(target, 100, 1_000);
+        BlockMetadata meta = new BlockMetadata(5, Collections.emptyList());
+        store.put(cid(0), meta);
+        Assert.assertTrue(target.get(cid(0)).isPresent());
+        Assert.assertTrue(store.hasAny(cid(0)));
+        Assert.assertTrue(store.getAll(List.of(cid(0), cid(1))).keySet().equals(Set.of(cid(0))));
+
+        store.remove(cid(0));
+        Assert.assertTrue(store.get(cid(0)).isEmpty());
+        Assert.assertTrue(target.get(cid(0)).isEmpty());
+        store.close();
+    }
+
+    @Test
+    public void concurrentPutsShareBatches() throws Exception {
+        CountingMetadataStore target = new CountingMetadataStore() {
+            @Override
+            public synchronized void putAll(Map<Cid, BlockMetadata> metas) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {}
+                super.putAll(metas);
+            }
+        };
+        WriteBehindBlockMetadataStore store = new WriteBehindBlockMetadataStore(target, 100, 1_000);
+        ExecutorService pool = Executors.newFixedThreadPool(50);
+        List<Future<?>> puts = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            int n = i;
+            puts.add(pool.submit(() -> store.put(cid(n), new BlockMetadata(n, Collections.emptyList()))));
+        }
+        for (Future<?> put : puts)
+            put.get();
+        pool.shutdown();
+        Assert.assertTrue(target.size() == 1_000);
+        Assert.assertTrue("batches " + target.batches.get(), target.batches.get() < 1_000 / 10);
+        store.close();
+    }
+
+    @Test
+    public void failedWritesFailThePut() {
+        RamBlockMetadataStore target = new RamBlockMetadataStore() {
+            @Override
+            public void putAll(Map<Cid, BlockMetadata> metas) {
+                throw new IllegalStateException("Database unavailable");
+            }
+        };
+        WriteBehindBlockMetadataStore store = new WriteBehindBlockMetadataStore(target, 100, 1_000);
+        try {
+            store.put(cid(0), new BlockMetadata(1, Collections.emptyList()));
+            Assert.fail();
+        } catch (IllegalStateException expected) {}
+        Assert.assertTrue(target.get(cid(0)).isEmpty());
+
+        // after close, puts go directly to the target
+        store.close();
+        store.put(cid(1), new BlockMetadata(1, Collections.emptyList()));
+        Assert.assertTrue(target.get(cid(1)).isPresent());
+    }
+}